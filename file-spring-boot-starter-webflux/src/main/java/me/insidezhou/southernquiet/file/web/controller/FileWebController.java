@@ -4,7 +4,10 @@ import me.insidezhou.southernquiet.file.web.FileWebFluxAutoConfiguration;
 import me.insidezhou.southernquiet.file.web.exception.NotFoundException;
 import me.insidezhou.southernquiet.file.web.model.FileInfo;
 import me.insidezhou.southernquiet.file.web.model.ImageScale;
+import me.insidezhou.southernquiet.filesystem.ContentDigest;
 import me.insidezhou.southernquiet.filesystem.FileSystem;
+import me.insidezhou.southernquiet.filesystem.ReactiveFileSystem;
+import me.insidezhou.southernquiet.filesystem.ReactiveFileSystemAdapter;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.tika.Tika;
@@ -13,6 +16,7 @@ import org.springframework.boot.autoconfigure.web.ServerProperties;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.http.codec.multipart.Part;
@@ -24,12 +28,15 @@ import org.springframework.util.StringUtils;
 import org.springframework.web.util.UriComponentsBuilder;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -47,22 +54,42 @@ public class FileWebController {
     private final Tika tika = new Tika();
 
     private final FileSystem fileSystem;
+    private final ReactiveFileSystem reactiveFileSystem;
     private final String contextPath;
     private final FileWebFluxAutoConfiguration.Properties fileWebProperties;
 
+    /**
+     * 下载通过{@link ReactiveFileSystemAdapter}在有界的弹性调度器上读取文件。
+     */
     public FileWebController(FileSystem fileSystem,
                              FileWebFluxAutoConfiguration.Properties fileWebProperties,
                              ServerProperties serverProperties) {
 
+        this(
+            fileSystem,
+            new ReactiveFileSystemAdapter(fileSystem, Schedulers.boundedElastic(), (int) fileWebProperties.getBufferSize().toBytes()),
+            fileWebProperties,
+            serverProperties
+        );
+    }
+
+    /**
+     * @param reactiveFileSystem 下载文件时使用，驱动有原生实现时（如ReactiveMongoDbFileSystem）整个下载过程都是非阻塞的。
+     */
+    public FileWebController(FileSystem fileSystem,
+                             ReactiveFileSystem reactiveFileSystem,
+                             FileWebFluxAutoConfiguration.Properties fileWebProperties,
+                             ServerProperties serverProperties) {
+
         this.fileSystem = fileSystem;
+        this.reactiveFileSystem = reactiveFileSystem;
         this.contextPath = serverProperties.getServlet().getContextPath();
         this.fileWebProperties = fileWebProperties;
     }
 
     public Flux<FileInfo> upload(Flux<FilePart> files, ServerHttpRequest request) {
         return files
-            .map(part -> {
-
+            .concatMap(part -> {
                 Path tmpPath;
                 try {
                     tmpPath = Files.createTempFile("", "");
@@ -71,41 +98,19 @@ public class FileWebController {
                     throw new RuntimeException(e);
                 }
 
-                File file = tmpPath.toFile();
-                part.transferTo(file);
-
-                return file;
-            })
-            .map(file -> {
-                UriComponentsBuilder builder = UriComponentsBuilder.fromUri(request.getURI()).replaceQuery("");
-                String hash;
-                String mediaType;
-
-                InputStream inputStream;
-
-                try {
-                    mediaType = tika.detect(file);
-                    inputStream = new ByteArrayInputStream(FileCopyUtils.copyToByteArray(file));
-                    hash = DigestUtils.sha256Hex(inputStream);
-                }
-                catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-
-                saveFile(hash, inputStream);
-
-                FileInfo info = new FileInfo();
-                info.setId(hash);
-                info.setContentType(mediaType);
-
-                if (mediaType.startsWith("image")) {
-                    info.setUrl(builder.replacePath(contextPath + "/image/{hash}").build(hash).toString());
-                }
-                else {
-                    info.setUrl(builder.replacePath(contextPath + "/file/{hash}").build(hash).toString());
-                }
-
-                return info;
+                //边写临时文件边计算摘要，不需要把整个文件读入内存。
+                MessageDigest messageDigest = ContentDigest.newMessageDigest();
+                Flux<DataBuffer> content = part.content().doOnNext(buffer -> messageDigest.update(buffer.asByteBuffer()));
+
+                return DataBufferUtils.write(content, tmpPath)
+                    .then(Mono.fromCallable(() -> {
+                        try {
+                            return saveFile(ContentDigest.toHex(messageDigest), tmpPath, request);
+                        }
+                        finally {
+                            Files.deleteIfExists(tmpPath);
+                        }
+                    }));
             });
     }
 
@@ -151,25 +156,44 @@ public class FileWebController {
     }
 
     public Flux<DataBuffer> file(String id, ServerHttpResponse response) {
+        return file(id, null, response);
+    }
+
+    /**
+     * 以{@link ReactiveFileSystem#digest(String)}作为ETag，请求的If-None-Match与之匹配时返回304，不传输文件内容。
+     * 文件内容以{@link ReactiveFileSystem#read(String)}按需读取，Content-Type由第一块内容检测。
+     */
+    public Flux<DataBuffer> file(String id, ServerHttpRequest request, ServerHttpResponse response) {
         String path = getFilePath(id);
 
-        if (!fileSystem.exists(path)) throw new NotFoundException();
+        return reactiveFileSystem.meta(path)
+            .filter(meta -> !meta.isDirectory())
+            .switchIfEmpty(Mono.error(NotFoundException::new))
+            .flatMapMany(meta -> reactiveFileSystem.digest(path).defaultIfEmpty("").flatMapMany(digest -> {
+                if (StringUtils.hasText(digest)) {
+                    response.getHeaders().setETag(ContentDigest.toETag(digest));
 
-        return DataBufferUtils.readInputStream(
-            () -> {
-                InputStream resultStream;
-                try (InputStream inputStream = fileSystem.openReadStream(path)) {
-                    resultStream = new ByteArrayInputStream(StreamUtils.copyToByteArray(inputStream));
+                    if (null != request && request.getHeaders().getIfNoneMatch().stream().anyMatch(tag -> digest.equals(ContentDigest.fromETag(tag)))) {
+                        response.setStatusCode(HttpStatus.NOT_MODIFIED);
+                        return Flux.empty();
+                    }
                 }
 
-                response.getHeaders().set("Content-Type", tika.detect(resultStream));
-                resultStream.reset();
-
-                response.getHeaders().set("Content-Length", String.valueOf(resultStream.available()));
-                return resultStream;
-            },
-            new DefaultDataBufferFactory(),
-            (int) fileWebProperties.getBufferSize().toBytes());
+                response.getHeaders().setContentLength(meta.getSize());
+                return reactiveFileSystem.read(path)
+                    .switchOnFirst((signal, content) -> {
+                        if (signal.hasValue()) {
+                            //asByteBuffer不移动读取位置，检测后的内容原样发送。
+                            ByteBuffer head = signal.get().asByteBuffer();
+                            byte[] bytes = new byte[head.remaining()];
+                            head.get(bytes);
+
+                            response.getHeaders().set("Content-Type", tika.detect(bytes));
+                        }
+
+                        return content;
+                    });
+            }));
     }
 
     public Mono<String> base64file(String id, ServerHttpResponse response) {
@@ -234,9 +258,34 @@ public class FileWebController {
             (int) fileWebProperties.getBufferSize().toBytes());
     }
 
+    private FileInfo saveFile(String hash, Path file, ServerHttpRequest request) throws IOException {
+        String mediaType = tika.detect(file);
+
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            saveFile(hash, inputStream);
+        }
+
+        UriComponentsBuilder builder = UriComponentsBuilder.fromUri(request.getURI()).replaceQuery("");
+
+        FileInfo info = new FileInfo();
+        info.setId(hash);
+        info.setContentType(mediaType);
+
+        if (mediaType.startsWith("image")) {
+            info.setUrl(builder.replacePath(contextPath + "/image/{hash}").build(hash).toString());
+        }
+        else {
+            info.setUrl(builder.replacePath(contextPath + "/file/{hash}").build(hash).toString());
+        }
+
+        return info;
+    }
+
     private void saveFile(String filename, InputStream data) {
         try {
-            data.reset();
+            if (data.markSupported()) {
+                data.reset();
+            }
             fileSystem.put(getFilePath(filename), data);
         }
         catch (Exception e) {
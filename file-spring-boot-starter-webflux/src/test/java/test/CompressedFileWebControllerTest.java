@@ -0,0 +1,13 @@
+package test;
+
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebFlux;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * 启用透明压缩后，上传及下载的内容、Content-Length都与原文件一致。
+ */
+@SpringBootTest(classes = FileWebTest.class, properties = "southern-quiet.framework.file-system.local.compression=true")
+@AutoConfigureWebFlux
+@AutoConfigureWebTestClient
+public class CompressedFileWebControllerTest extends FileWebControllerTest {}
@@ -120,9 +120,20 @@ public class FileWebControllerTest {
             .expectBody()
             .returnResult();
 
+        Assert.assertArrayEquals(StreamUtils.copyToByteArray(resource.getInputStream()), result.getResponseBody());
+
         String filePath = FileWebController.getFilePath(fileInfo.getId());
 
         fileSystem.put(filePath + "_file.png", new ByteArrayInputStream(result.getResponseBody()));
+
+        String eTag = result.getResponseHeaders().getETag();
+        Assert.assertNotNull(eTag);
+
+        client.get()
+            .uri("/file/{id}", fileInfo.getId())
+            .ifNoneMatch(eTag)
+            .exchange()
+            .expectStatus().isNotModified();
     }
 
     @Test
@@ -5,6 +5,7 @@ import me.insidezhou.southernquiet.file.web.controller.FileWebController;
 import me.insidezhou.southernquiet.file.web.model.FileInfo;
 import me.insidezhou.southernquiet.file.web.model.ImageScale;
 import me.insidezhou.southernquiet.filesystem.FileSystem;
+import me.insidezhou.southernquiet.filesystem.ReactiveFileSystem;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -28,8 +29,8 @@ public class FileWebTest {
     @RestController
     public static class MainController extends FileWebController {
         @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
-        public MainController(FileSystem fileSystem, FileWebFluxAutoConfiguration.Properties fileWebProperties, ServerProperties serverProperties) {
-            super(fileSystem, fileWebProperties, serverProperties);
+        public MainController(FileSystem fileSystem, ReactiveFileSystem reactiveFileSystem, FileWebFluxAutoConfiguration.Properties fileWebProperties, ServerProperties serverProperties) {
+            super(fileSystem, reactiveFileSystem, fileWebProperties, serverProperties);
         }
 
         @PostMapping("upload")
@@ -46,8 +47,8 @@ public class FileWebTest {
 
         @GetMapping("file/{id}")
         @Override
-        public Flux<DataBuffer> file(@PathVariable String id, ServerHttpResponse response) {
-            return super.file(id, response);
+        public Flux<DataBuffer> file(@PathVariable String id, ServerHttpRequest request, ServerHttpResponse response) {
+            return super.file(id, request, response);
         }
 
         @GetMapping("base64file/{id}")
@@ -1,20 +1,38 @@
 package me.insidezhou.southernquiet.filesystem;
 
-import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.reactivestreams.client.gridfs.GridFSBuckets;
+import me.insidezhou.southernquiet.FrameworkAutoConfiguration;
+import me.insidezhou.southernquiet.event.EventPubSub;
+import me.insidezhou.southernquiet.filesystem.driver.LocalFileSystem;
 import me.insidezhou.southernquiet.filesystem.driver.MongoDbFileSystem;
+import me.insidezhou.southernquiet.filesystem.driver.ReactiveMongoDbFileSystem;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.AutoConfigureBefore;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.data.mongodb.MongoDatabaseFactory;
+import org.springframework.data.mongodb.ReactiveMongoDatabaseFactory;
 import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
 import org.springframework.data.mongodb.gridfs.GridFsOperations;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
 
 @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection")
 @Configuration
 @EnableConfigurationProperties
+@AutoConfigureBefore(FrameworkAutoConfiguration.class)
+@AutoConfigureAfter(name = "org.springframework.boot.autoconfigure.data.mongo.MongoReactiveDataAutoConfiguration")
 public class MongoDbFileSystemAutoConfiguration {
     @Bean
     @ConditionalOnMissingBean
@@ -22,6 +40,59 @@ public class MongoDbFileSystemAutoConfiguration {
         return new MongoDbFileSystem(properties, mongoOperations, gridFsOperations, factory.getMongoDatabase());
     }
 
+    @Configuration
+    @ConditionalOnProperty(value = "enable", prefix = "southern-quiet.framework.file-system.mongodb.local-cache")
+    public static class TieredFileSystemConfiguration {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        @Bean
+        @Primary
+        @ConditionalOnMissingBean(TieredFileSystem.class)
+        public TieredFileSystem tieredFileSystem(MongoDbFileSystem fileSystem, Properties properties, ObjectProvider<EventPubSub> eventPubSub) {
+            LocalCache localCache = properties.getLocalCache();
+
+            FrameworkAutoConfiguration.LocalFileSystemProperties localFileSystemProperties = new FrameworkAutoConfiguration.LocalFileSystemProperties();
+            localFileSystemProperties.setWorkingRoot(localCache.getWorkingRoot());
+
+            TieredFileSystem tieredFileSystem = new TieredFileSystem(
+                properties.isCompression() ? new CompressingFileSystem(fileSystem) : fileSystem,
+                new LocalFileSystem(localFileSystemProperties),
+                localCache.getMaxSize().toBytes(),
+                localCache.getMaxFileSize().toBytes(),
+                localCache.getEviction()
+            );
+
+            eventPubSub.ifAvailable(pubSub -> tieredFileSystem.setInvalidationListener(paths -> pubSub.publish(new PathInvalidatedEvent(paths))));
+
+            return tieredFileSystem;
+        }
+    }
+
+    @Configuration
+    @ConditionalOnExpression("${southern-quiet.framework.file-system.mongodb.compression:false} && !${southern-quiet.framework.file-system.mongodb.local-cache.enable:false}")
+    public static class CompressingFileSystemConfiguration {
+        @Bean
+        @Primary
+        @ConditionalOnMissingBean(CompressingFileSystem.class)
+        public CompressingFileSystem compressingFileSystem(MongoDbFileSystem fileSystem) {
+            return new CompressingFileSystem(fileSystem);
+        }
+    }
+
+    /**
+     * 直接读写mongodb，只在没有启用压缩及本地缓存时注册。启用时由框架以ReactiveFileSystemAdapter包装首选的FileSystem，读写都经过装饰器。
+     */
+    @Configuration
+    @ConditionalOnClass(name = "com.mongodb.reactivestreams.client.MongoClient")
+    @ConditionalOnExpression("!${southern-quiet.framework.file-system.mongodb.compression:false} && !${southern-quiet.framework.file-system.mongodb.local-cache.enable:false}")
+    public static class ReactiveMongoDbFileSystemConfiguration {
+        @Bean
+        @ConditionalOnMissingBean
+        @ConditionalOnBean({ReactiveMongoDatabaseFactory.class, ReactiveMongoOperations.class})
+        public ReactiveMongoDbFileSystem reactiveMongoDbFileSystem(MongoDbFileSystem fileSystem, ReactiveMongoOperations mongoOperations, ReactiveMongoDatabaseFactory factory) {
+            return new ReactiveMongoDbFileSystem(fileSystem, mongoOperations, GridFSBuckets.create(factory.getMongoDatabase().block()));
+        }
+    }
+
     @Bean
     @ConditionalOnMissingBean
     @ConfigurationProperties("southern-quiet.framework.file-system.mongodb")
@@ -42,6 +113,46 @@ public class MongoDbFileSystemAutoConfiguration {
          * 文件大小阈值，大于该阈值的使用GridFs而不是普通Document。阈值上限是mongodb上限16m。
          */
         private Integer fileSizeThreshold = 15 * 1024 * 1024;
+        /**
+         * 是否透明压缩文件内容，见{@link CompressingFileSystem}。
+         */
+        private boolean compression = false;
+        /**
+         * 是否按nameGrams字段上的索引查找名称，启动时建立索引并补齐缺少该字段的文档，见{@link NameIndex}。
+         */
+        private boolean nameIndex = false;
+        /**
+         * 是否在启动时建立路径集合及GridFS的索引，见{@link MongoDbFileSystem#collectionScans()}。
+         */
+        private boolean ensureIndexes = true;
+        /**
+         * 是否在启动时以explain检查驱动的查询，对会扫描整个集合的查询记录警告。
+         */
+        private boolean reportCollectionScans = true;
+        /**
+         * 追加写入的分段达到该数量时，在后台合并成一个GridFS文件。小于1时不合并。
+         */
+        private int segmentCompactionThreshold = 16;
+        /**
+         * 合并后被替换的分段延迟删除的时间，在此之前开始的读取仍然可以打开这些分段。
+         */
+        private Duration segmentReleaseDelay = Duration.ofMinutes(10);
+        /**
+         * 已存在目录的缓存数量上限，写入文件时命中缓存则不再查询所在的目录。小于1时不缓存。
+         */
+        private int directoryCacheSize = 10000;
+        /**
+         * 读取GridFS内容时每批读取的块数量，大于0时在后台预读下一批。小于1时不预读。
+         */
+        private int readAheadChunks = 4;
+        /**
+         * 预读线程数量上限，线程都在忙时不预读，在读取的线程上直接读取。
+         */
+        private int readAheadThreads = 8;
+        /**
+         * 热点文件的本地缓存
+         */
+        private LocalCache localCache = new LocalCache();
 
         public Integer getFileSizeThreshold() {
             return fileSizeThreshold;
@@ -51,6 +162,86 @@ public class MongoDbFileSystemAutoConfiguration {
             this.fileSizeThreshold = fileSizeThreshold;
         }
 
+        public boolean isCompression() {
+            return compression;
+        }
+
+        public void setCompression(boolean compression) {
+            this.compression = compression;
+        }
+
+        public boolean isNameIndex() {
+            return nameIndex;
+        }
+
+        public void setNameIndex(boolean nameIndex) {
+            this.nameIndex = nameIndex;
+        }
+
+        public boolean isEnsureIndexes() {
+            return ensureIndexes;
+        }
+
+        public void setEnsureIndexes(boolean ensureIndexes) {
+            this.ensureIndexes = ensureIndexes;
+        }
+
+        public boolean isReportCollectionScans() {
+            return reportCollectionScans;
+        }
+
+        public void setReportCollectionScans(boolean reportCollectionScans) {
+            this.reportCollectionScans = reportCollectionScans;
+        }
+
+        public int getSegmentCompactionThreshold() {
+            return segmentCompactionThreshold;
+        }
+
+        public void setSegmentCompactionThreshold(int segmentCompactionThreshold) {
+            this.segmentCompactionThreshold = segmentCompactionThreshold;
+        }
+
+        public Duration getSegmentReleaseDelay() {
+            return segmentReleaseDelay;
+        }
+
+        public void setSegmentReleaseDelay(Duration segmentReleaseDelay) {
+            this.segmentReleaseDelay = segmentReleaseDelay;
+        }
+
+        public int getDirectoryCacheSize() {
+            return directoryCacheSize;
+        }
+
+        public void setDirectoryCacheSize(int directoryCacheSize) {
+            this.directoryCacheSize = directoryCacheSize;
+        }
+
+        public int getReadAheadChunks() {
+            return readAheadChunks;
+        }
+
+        public void setReadAheadChunks(int readAheadChunks) {
+            this.readAheadChunks = readAheadChunks;
+        }
+
+        public int getReadAheadThreads() {
+            return readAheadThreads;
+        }
+
+        public void setReadAheadThreads(int readAheadThreads) {
+            this.readAheadThreads = readAheadThreads;
+        }
+
+        public LocalCache getLocalCache() {
+            return localCache;
+        }
+
+        public void setLocalCache(LocalCache localCache) {
+            this.localCache = localCache;
+        }
+
         public String getPathCollection() {
             return pathCollection;
         }
@@ -59,4 +250,68 @@ public class MongoDbFileSystemAutoConfiguration {
             this.pathCollection = pathCollection;
         }
     }
+
+    @SuppressWarnings("unused")
+    public static class LocalCache {
+        /**
+         * 是否在本地缓存热点文件，启用后{@link TieredFileSystem}成为首选的FileSystem。
+         */
+        private boolean enable = false;
+        /**
+         * 缓存在本地文件系统中的实际路径，启动时会被清空。
+         */
+        private String workingRoot = "${user.home}/.SQ_FILESYSTEM_CACHE";
+        /**
+         * 缓存总大小上限
+         */
+        private DataSize maxSize = DataSize.ofGigabytes(1);
+        /**
+         * 可缓存的单个文件大小上限
+         */
+        private DataSize maxFileSize = DataSize.ofMegabytes(16);
+        /**
+         * 淘汰策略
+         */
+        private TieredFileSystem.Eviction eviction = TieredFileSystem.Eviction.LRU;
+
+        public boolean isEnable() {
+            return enable;
+        }
+
+        public void setEnable(boolean enable) {
+            this.enable = enable;
+        }
+
+        public String getWorkingRoot() {
+            return workingRoot;
+        }
+
+        public void setWorkingRoot(String workingRoot) {
+            this.workingRoot = workingRoot;
+        }
+
+        public DataSize getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(DataSize maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public DataSize getMaxFileSize() {
+            return maxFileSize;
+        }
+
+        public void setMaxFileSize(DataSize maxFileSize) {
+            this.maxFileSize = maxFileSize;
+        }
+
+        public TieredFileSystem.Eviction getEviction() {
+            return eviction;
+        }
+
+        public void setEviction(TieredFileSystem.Eviction eviction) {
+            this.eviction = eviction;
+        }
+    }
 }
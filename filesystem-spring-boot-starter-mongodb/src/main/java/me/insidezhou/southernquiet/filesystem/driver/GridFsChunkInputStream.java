@@ -0,0 +1,171 @@
+package me.insidezhou.southernquiet.filesystem.driver;
+
+import com.mongodb.MongoGridFSException;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 直接按块读取GridFS文件中[start, end)的部分，从start所在的块开始，不需要读取之前的块。
+ * <ul>
+ * <li>每次以一次查询读取连续的若干块。</li>
+ * <li>开启预读时，读取当前这批块的同时在后台读取下一批，顺序读取大文件时查询与传输可以重叠。预读线程都在忙时不预读。</li>
+ * </ul>
+ */
+class GridFsChunkInputStream extends InputStream {
+    private final MongoCollection<Document> chunks;
+    private final ObjectId fileId;
+    private final long end;
+    private final int batchSize;
+    private final int lastChunk;
+    private final ExecutorService readAheadExecutor;
+
+    private final Deque<byte[]> batch = new ArrayDeque<>();
+    private Future<List<byte[]>> pending;
+    private int nextChunk;
+    private int skip;
+    private byte[] chunk;
+    private int chunkOffset;
+    private long position;
+
+    /**
+     * @param chunks            GridFS的块集合
+     * @param chunkSize         文件的块大小
+     * @param start             开始位置
+     * @param end               结束位置（不包括），不超过文件的大小。
+     * @param readAheadChunks   每批读取的块数量，大于0时在后台预读下一批。
+     * @param readAheadExecutor 执行预读的线程池，readAheadChunks不大于0时可以为null。
+     */
+    GridFsChunkInputStream(MongoCollection<Document> chunks, ObjectId fileId, int chunkSize, long start, long end, int readAheadChunks, ExecutorService readAheadExecutor) {
+        this.chunks = chunks;
+        this.fileId = fileId;
+        this.end = end;
+        this.batchSize = Math.max(readAheadChunks, 1);
+        this.lastChunk = end > start ? (int) ((end - 1) / chunkSize) : -1;
+        this.readAheadExecutor = readAheadChunks > 0 ? readAheadExecutor : null;
+
+        this.position = start;
+        this.nextChunk = (int) (start / chunkSize);
+        this.skip = (int) (start % chunkSize);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return -1 == read(b, 0, 1) ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (0 == len) return 0;
+        if (position >= end || !nextChunk()) return -1;
+
+        int read = (int) Math.min(Math.min(len, chunk.length - chunkOffset), end - position);
+        System.arraycopy(chunk, chunkOffset, b, off, read);
+        chunkOffset += read;
+        position += read;
+        return read;
+    }
+
+    @Override
+    public void close() {
+        if (null != pending) {
+            pending.cancel(false);
+            pending = null;
+        }
+
+        batch.clear();
+        chunk = null;
+        position = end;
+    }
+
+    /**
+     * 保证当前块还有未读的内容。
+     *
+     * @return 如果false，已经没有更多的块。
+     */
+    private boolean nextChunk() throws IOException {
+        while (null == chunk || chunkOffset >= chunk.length) {
+            if (batch.isEmpty()) {
+                List<byte[]> next = nextBatch();
+                if (next.isEmpty()) return false;
+
+                batch.addAll(next);
+            }
+
+            chunk = batch.poll();
+            chunkOffset = skip;
+            skip = 0;
+        }
+
+        return true;
+    }
+
+    private List<byte[]> nextBatch() throws IOException {
+        List<byte[]> result;
+        if (null != pending) {
+            try {
+                result = pending.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            finally {
+                pending = null;
+            }
+        }
+        else {
+            if (nextChunk > lastChunk) return Collections.emptyList();
+
+            result = fetch(nextChunk);
+            nextChunk += batchSize;
+        }
+
+        if (null != readAheadExecutor && nextChunk <= lastChunk) {
+            int from = nextChunk;
+            try {
+                pending = readAheadExecutor.submit(() -> fetch(from));
+                nextChunk += batchSize;
+            }
+            catch (RejectedExecutionException e) {
+                //预读线程都在忙或者已经关闭，下一批在读取的线程上读取。
+            }
+        }
+
+        return result;
+    }
+
+    private List<byte[]> fetch(int from) {
+        int to = Math.min(from + batchSize, lastChunk + 1);
+
+        List<byte[]> result = new ArrayList<>(to - from);
+        Document filter = new Document("files_id", fileId).append("n", new Document("$gte", from).append("$lt", to));
+        for (Document document : chunks.find(filter).sort(new Document("n", 1))) {
+            result.add(document.get("data", Binary.class).getData());
+        }
+
+        if (result.size() != to - from) {
+            throw new MongoGridFSException(String.format("GridFS文件%s缺少块，需要第%d至%d块，只找到%d块。", fileId, from, to - 1, result.size()));
+        }
+
+        return result;
+    }
+}
@@ -1,5 +1,7 @@
 package me.insidezhou.southernquiet.filesystem.driver;
 
+import com.mongodb.MongoGridFSException;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.gridfs.GridFSBucket;
 import com.mongodb.client.gridfs.GridFSBuckets;
@@ -11,40 +13,106 @@ import me.insidezhou.southernquiet.logging.SouthernQuietLoggerFactory;
 import org.bson.Document;
 import org.bson.types.Binary;
 import org.bson.types.ObjectId;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexOperations;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.data.mongodb.gridfs.GridFsOperations;
-import org.springframework.data.mongodb.gridfs.GridFsResource;
 import org.springframework.data.util.CloseableIterator;
 import org.springframework.util.Assert;
 import org.springframework.util.StreamUtils;
 import org.springframework.util.StringUtils;
 
 import java.io.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
 import java.time.Instant;
-import java.util.Iterator;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * {@link FileSystem}的mongodb驱动。
  */
-public class MongoDbFileSystem implements FileSystem {
+public class MongoDbFileSystem implements FileSystem, Closeable {
     private static final SouthernQuietLogger log = SouthernQuietLoggerFactory.getLogger(MongoDbFileSystem.class);
 
     private final MongoOperations mongoOperations;
     private final GridFsOperations gridFsOperations;
     private final GridFSBucket gridFSBucket;
+    /**
+     * GridFS文件的metadata上，除第一个路径之外共用该内容的路径数量。
+     */
+    private final static String SHARED_BY = "metadata.sharedBy";
+    /**
+     * 正在移动的目录上记录的目标路径，移动完成后去掉，见{@link #resumeMoves()}。
+     */
+    private final static String MOVING_TO = "movingTo";
+    /**
+     * 合并后被替换的GridFS文件上记录的释放时间，每被替换一次记录一个，见{@link #releaseExpired()}。
+     */
+    private final static String RELEASE_AT = "metadata.releaseAt";
+
     private final String pathCollection;
-    private int fileSizeThreshold;
+    private final String gridFsFilesCollection;
+    private final String gridFsChunksCollection;
+    private final boolean nameIndex;
+    private final int segmentCompactionThreshold;
+    private final Duration segmentReleaseDelay;
+    private final Set<String> compacting = ConcurrentHashMap.newKeySet();
+    private final Map<String, Boolean> existingDirectories;
+    private final int readAheadChunks;
+    private final ExecutorService readAheadExecutor;
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sq-mongodb-compact");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int fileSizeThreshold = 15 * 1024 * 1024;
 
     public MongoDbFileSystem(MongoDbFileSystemAutoConfiguration.Properties properties, MongoOperations mongoOperations, GridFsOperations gridFsOperations, MongoDatabase mongoDatabase) {
         this.pathCollection = properties.getPathCollection();
+        this.nameIndex = properties.isNameIndex();
+        this.segmentCompactionThreshold = properties.getSegmentCompactionThreshold();
+        this.segmentReleaseDelay = properties.getSegmentReleaseDelay();
+        this.readAheadChunks = properties.getReadAheadChunks();
+        if (readAheadChunks <= 0) {
+            this.readAheadExecutor = null;
+        }
+        else {
+            //没有队列，线程都在忙时拒绝预读，由读取的线程自己读取。
+            int readAheadThreads = Math.max(properties.getReadAheadThreads(), 1);
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(readAheadThreads, readAheadThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "sq-mongodb-read-ahead");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            this.readAheadExecutor = executor;
+        }
+
+        int directoryCacheSize = properties.getDirectoryCacheSize();
+        this.existingDirectories = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            private final static long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > directoryCacheSize;
+            }
+        });
 
         Integer threshHold = properties.getFileSizeThreshold();
         if (16 * 1024 * 1024 <= threshHold) {
@@ -59,10 +127,67 @@ public class MongoDbFileSystem implements FileSystem {
         this.mongoOperations = mongoOperations;
         this.gridFsOperations = gridFsOperations;
         this.gridFSBucket = GridFSBuckets.create(mongoDatabase);
+        this.gridFsFilesCollection = gridFSBucket.getBucketName() + ".files";
+        this.gridFsChunksCollection = gridFSBucket.getBucketName() + ".chunks";
 
         if (!mongoOperations.collectionExists(this.pathCollection)) {
             mongoOperations.createCollection(this.pathCollection);
         }
+
+        if (properties.isEnsureIndexes()) {
+            ensureIndexes();
+        }
+
+        if (nameIndex) {
+            mongoOperations.indexOps(pathCollection).ensureIndex(new Index().on("nameGrams", Sort.Direction.ASC));
+            indexNames();
+        }
+
+        resumeMoves();
+
+        long releaseInterval = Math.max(segmentReleaseDelay.toMillis(), 1);
+        compactor.scheduleWithFixedDelay(this::releaseExpired, releaseInterval, releaseInterval, TimeUnit.MILLISECONDS);
+
+        if (properties.isReportCollectionScans()) {
+            collectionScans().forEach(shape -> log.message("查询没有可用的索引，会扫描整个集合")
+                .context("collection", pathCollection)
+                .context("query", shape)
+                .warn());
+        }
+
+        //早于用量统计写入的数据，第一次启动时统计一次。
+        MongoPathMeta root = queryPathMeta(NormalizedPath.ROOT);
+        if (null != root && root.getFileCount() < 0) {
+            computeUsage(root);
+        }
+    }
+
+    String getPathCollection() {
+        return pathCollection;
+    }
+
+    int getFileSizeThreshold() {
+        return fileSizeThreshold;
+    }
+
+    /**
+     * 停止预读及合并的线程，等待进行中的合并完成。尚未到期的释放记录在GridFS文件上，不会丢失。
+     */
+    @Override
+    public void close() {
+        compactor.shutdown();
+        if (null != readAheadExecutor) {
+            readAheadExecutor.shutdown();
+        }
+
+        try {
+            if (!compactor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.message("合并文件分段的线程没有在限定时间内结束").warn();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @Override
@@ -76,12 +201,172 @@ public class MongoDbFileSystem implements FileSystem {
 
         NormalizedPath normalizedPath = new NormalizedPath(path);
 
-        MongoPathMeta file = queryPathMeta(normalizedPath);
+        MongoPathMeta existFile = queryPathMeta(normalizedPath);
+        MongoPathMeta file = prepareFile(normalizedPath, existFile, stream, () -> ensureDirectory(normalizedPath.getParentPath()));
+
+        //务必保证fileId、fileData其中之一不为空，读取时会依赖这个假设。
+        MongoPathMeta previous;
+        try {
+            previous = replaceFile(file);
+        }
+        catch (RuntimeException e) {
+            deleteUnreferenced(null == file.getFileId() ? Collections.emptyList() : Collections.singletonList(file.getFileId()), e);
+            throw e;
+        }
+        long matched = updateUsage(normalizedPath.getParentPath(), fileSize(previous), file.getSize());
+        if (null == previous && matched < usageDepth(normalizedPath.getParentPath())) {
+            repairDirectories(Collections.singleton(normalizedPath.getParentPath()));
+        }
+        deleteReplacedContent(contentIds(previous), file);
+    }
+
+    /**
+     * 写入文件的元信息，返回被替换的文档，文件原本不存在时为null。
+     * 用量的增量及要释放的旧内容都以返回的文档为准，同一路径的并发写入各自得到前一次写入的结果，不会重复扣减同一个旧大小。
+     * 元信息与用量是两次写入，两者之间中断造成的偏差由{@link #recomputeUsage(String)}修正。
+     * 同一路径上的新文件被并发写入时，后到的一方违反唯一索引，改为替换先建立的文档。
+     */
+    private MongoPathMeta replaceFile(MongoPathMeta file) {
+        try {
+            return mongoOperations.findAndModify(
+                newPathQuery(file),
+                fileUpdate(file),
+                FindAndModifyOptions.options().upsert(true).returnNew(false),
+                MongoPathMeta.class,
+                pathCollection
+            );
+        }
+        catch (DuplicateKeyException e) {
+            MongoPathMeta existFile = queryPathMeta(new NormalizedPath(file.getPath()));
+            if (null == existFile || existFile.isDirectory()) throw e;
+
+            file.setId(existFile.getId());
+            file.setCreationTime(existFile.getCreationTime());
+            return replaceFile(file);
+        }
+    }
+
+    /**
+     * 以$set写入元信息的所有字段，findAndModify及批量写入不接受整个文档的替换形式。目录上增量维护的用量不在其中，不会被覆盖。
+     * 开启名称索引时同时写入nameGrams。
+     */
+    private Update fileUpdate(MongoPathMeta file) {
+        Update update = new Update();
+        file.toMap().forEach(update::set);
+        if (nameIndex) {
+            update.set("nameGrams", new ArrayList<>(NameIndex.trigrams(file.getName())));
+        }
+        return update;
+    }
+
+    /**
+     * @return 文件不存在或者还没有内容时为-1。
+     */
+    private static long fileSize(MongoPathMeta file) {
+        return null == file || (null == file.getFileId() && null == file.getFileData()) ? -1 : file.getSize();
+    }
+
+    @Override
+    public void putAll(Map<String, ? extends InputStream> files) throws InvalidFileException {
+        if (files.isEmpty()) return;
+
+        List<NormalizedPath> normalizedPaths = files.keySet().stream().map(NormalizedPath::new).collect(Collectors.toList());
+        Map<String, MongoPathMeta> existFiles = queryPathMetas(normalizedPaths, false);
+        Set<String> directories = new HashSet<>();
+        List<ObjectId> replacedFileIds = new ArrayList<>();
+        Set<NormalizedPath> newFileDirectories = new HashSet<>();
+        List<ObjectId> uploaded = new ArrayList<>();
+        long expectedMatches = 0;
+
+        BulkOperations bulkOperations = mongoOperations.bulkOps(BulkOperations.BulkMode.UNORDERED, MongoPathMeta.class, pathCollection);
+        BulkOperations usageOperations = mongoOperations.bulkOps(BulkOperations.BulkMode.UNORDERED, pathCollection);
+        try {
+            for (Map.Entry<String, ? extends InputStream> entry : files.entrySet()) {
+                Assert.notNull(entry.getValue(), "stream");
+
+                NormalizedPath normalizedPath = new NormalizedPath(entry.getKey());
+                MongoPathMeta existFile = existFiles.get(normalizedPath.toString());
+                long previousSize = null == existFile ? -1 : existFile.getSize();
+                List<ObjectId> previousContent = contentIds(existFile);
+                MongoPathMeta file = prepareFile(
+                    normalizedPath,
+                    existFile,
+                    entry.getValue(),
+                    () -> {
+                        if (directories.add(normalizedPath.getParent())) {
+                            ensureDirectory(normalizedPath.getParentPath());
+                        }
+                    }
+                );
+                if (null != file.getFileId()) {
+                    uploaded.add(file.getFileId());
+                }
+
+                bulkOperations.upsert(newPathQuery(file), fileUpdate(file));
+                //批量写入取不回被替换的文档，用量按写入前查询到的元信息计算，与同一路径的并发写入之间的偏差由recomputeUsage修正。
+                usageOperations.updateMulti(usageQuery(normalizedPath.getParentPath()), usageUpdate(previousSize, file.getSize()));
+                expectedMatches += usageDepth(normalizedPath.getParentPath());
+
+                if (null == existFile) {
+                    newFileDirectories.add(normalizedPath.getParentPath());
+                }
+
+                previousContent.stream().filter(id -> !id.equals(file.getFileId())).forEach(replacedFileIds::add);
+            }
+
+            bulkOperations.execute();
+        }
+        catch (InvalidFileException | RuntimeException e) {
+            deleteUnreferenced(uploaded, e);
+            throw e;
+        }
+
+        if (usageOperations.execute().getMatchedCount() < expectedMatches) {
+            repairDirectories(newFileDirectories);
+        }
+
+        if (!replacedFileIds.isEmpty()) {
+            releaseContent(replacedFileIds);
+        }
+    }
+
+    /**
+     * 写入失败时删除这次上传的GridFS文件。批量写入可能部分生效，已被路径引用的不删除。
+     *
+     * @param failure 写入失败的原因，删除时的异常附加在其上。
+     */
+    private void deleteUnreferenced(List<ObjectId> uploaded, Exception failure) {
+        if (uploaded.isEmpty()) return;
+
+        try {
+            Set<ObjectId> referenced = new HashSet<>(mongoOperations.findDistinct(
+                Query.query(Criteria.where("fileId").in(uploaded)),
+                "fileId",
+                pathCollection,
+                ObjectId.class
+            ));
+
+            uploaded.stream().filter(id -> !referenced.contains(id)).forEach(gridFSBucket::delete);
+        }
+        catch (RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * 准备好要写入的文件元信息及内容。最多读取阈值大小的内容来决定内嵌还是使用GridFS，超过阈值时，
+     * 已读取的部分及剩余的流直接写入新的GridFS文件。
+     * 原有的GridFS文件不在这里删除，路径指向新内容之后再由{@link #deleteReplacedContent(List, MongoPathMeta)}删除，读取者不会看到内容缺失的文件。
+     *
+     * @param file              路径上已存在的文件，可以为null。
+     * @param directoryCreator  文件不存在时，确保其所在的目录存在。
+     */
+    private MongoPathMeta prepareFile(NormalizedPath normalizedPath, MongoPathMeta file, InputStream stream, Runnable directoryCreator) throws InvalidFileException {
         if (null == file) {
-            MongoPathMeta directory = createAndGetDirectory(normalizedPath.getParentPath());
-            file = new MongoPathMeta(normalizedPath, stream);
+            directoryCreator.run();
+            file = new MongoPathMeta(normalizedPath);
+            file.setDirectory(false);
             file.setId(ObjectId.get().toString());
-            file.setParentId(directory.getId());
 
             Instant now = Instant.now();
             file.setCreationTime(now);
@@ -93,115 +378,497 @@ public class MongoDbFileSystem implements FileSystem {
         }
         else {
             file.setLastModifiedTime(Instant.now());
-            try {
-                file.setSize(stream.available());
-            }
-            catch (IOException e) {
-                throw new RuntimeException(e);
-            }
         }
 
-        if (file.getSize() <= fileSizeThreshold) {
-            try {
-                file.setFileData(new Binary(StreamUtils.copyToByteArray(stream)));
+        try {
+            byte[] head = readAtMost(stream, fileSizeThreshold + 1);
+            file.setSegments(null);
+            if (head.length <= fileSizeThreshold) {
+                file.setFileId(null);
+                file.setFileData(new Binary(head));
+                file.setSize(head.length);
+                file.setDigest(ContentDigest.of(head));
+                return file;
+            }
+
+            MessageDigest messageDigest = ContentDigest.newMessageDigest();
+            GridFSUploadStream uploadStream = gridFSBucket.openUploadStream(normalizedPath.toString());
+            long size = head.length;
+            try (OutputStream outputStream = new DigestOutputStream(uploadStream, messageDigest)) {
+                outputStream.write(head);
+
+                byte[] buffer = new byte[StreamUtils.BUFFER_SIZE];
+                int read;
+                while (-1 != (read = stream.read(buffer))) {
+                    outputStream.write(buffer, 0, read);
+                    size += read;
+                }
             }
-            catch (IOException e) {
-                throw new RuntimeException(e);
+            catch (IOException | RuntimeException e) {
+                uploadStream.abort();
+                throw e;
             }
+
+            file.setFileId(uploadStream.getObjectId());
+            file.setFileData(null);
+            file.setSize(size);
+            file.setDigest(ContentDigest.toHex(messageDigest));
+            return file;
+        }
+        catch (IOException e) {
+            throw new InvalidFileException(normalizedPath.toString(), e);
+        }
+    }
+
+    /**
+     * 读取流开头最多limit个字节，流较短时不会分配limit大小的数组。
+     */
+    private static byte[] readAtMost(InputStream stream, int limit) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(Math.min(limit, StreamUtils.BUFFER_SIZE));
+        byte[] buffer = new byte[StreamUtils.BUFFER_SIZE];
+
+        int remaining = limit;
+        int read;
+        while (remaining > 0 && -1 != (read = stream.read(buffer, 0, Math.min(buffer.length, remaining)))) {
+            outputStream.write(buffer, 0, read);
+            remaining -= read;
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * 路径已经指向新内容后，删除被替换的GridFS文件。
+     *
+     * @param previousContent 原有内容的GridFS文件，见{@link #contentIds(MongoPathMeta)}。
+     */
+    private void deleteReplacedContent(List<ObjectId> previousContent, MongoPathMeta file) {
+        releaseContent(previousContent.stream().filter(id -> !id.equals(file.getFileId())).collect(Collectors.toList()));
+    }
+
+    /**
+     * 文件内容占用的所有GridFS文件：主体及追加的分段。
+     */
+    private static List<ObjectId> contentIds(MongoPathMeta file) {
+        List<ObjectId> ids = new ArrayList<>();
+        if (null == file) return ids;
+
+        if (null != file.getFileId()) {
+            ids.add(file.getFileId());
+        }
+
+        if (null != file.getSegments()) {
+            ids.addAll(file.getSegments());
+        }
+
+        return ids;
+    }
+
+    /**
+     * 把已经上传到GridFS的文件挂载到路径上，替换路径上原有的文件内容。
+     *
+     * @param path   文件路径
+     * @param fileId 已上传的GridFS文件
+     * @param size   文件大小
+     * @param digest 文件内容的摘要
+     * @throws InvalidFileException 路径指向目录
+     */
+    MongoPathMeta putGridFsFile(String path, ObjectId fileId, long size, String digest) throws InvalidFileException {
+        NormalizedPath normalizedPath = new NormalizedPath(path);
+
+        MongoPathMeta file = queryPathMeta(normalizedPath);
+        if (null == file) {
+            ensureDirectory(normalizedPath.getParentPath());
+            file = new MongoPathMeta(normalizedPath);
+            file.setDirectory(false);
+            file.setId(ObjectId.get().toString());
+
+            Instant now = Instant.now();
+            file.setCreationTime(now);
+            file.setLastModifiedTime(now);
+            file.setLastAccessTime(now);
+        }
+        else if (file.isDirectory()) {
+            gridFSBucket.delete(fileId);
+            throw new InvalidFileException(normalizedPath.toString());
         }
         else {
-            if (null != file.getFileId()) {
-                gridFSBucket.delete(file.getFileId());
-            }
+            file.setLastModifiedTime(Instant.now());
+        }
 
-            ObjectId objectId = gridFsOperations.store(stream, file.getPath());
-            file.setFileId(objectId);
+        gridFSBucket.rename(fileId, file.getPath());
+        file.setFileId(fileId);
+        file.setFileData(null);
+        file.setSegments(null);
+        file.setSize(size);
+        file.setDigest(digest);
+
+        MongoPathMeta previous = replaceFile(file);
+        long matched = updateUsage(normalizedPath.getParentPath(), fileSize(previous), size);
+        if (null == previous && matched < usageDepth(normalizedPath.getParentPath())) {
+            repairDirectories(Collections.singleton(normalizedPath.getParentPath()));
         }
+        deleteReplacedContent(contentIds(previous), file);
 
-        //务必保证fileId、fileData其中之一不为空，读取时会依赖这个假设。
-        mongoOperations.upsert(newPathQuery(file), Update.fromDocument(new Document(file.toMap())), MongoPathMeta.class, pathCollection);
+        return file;
     }
 
     @Override
     public InputStream openReadStream(String path) throws InvalidFileException {
         MongoPathMeta pathMeta = meta(path);
-        if (null == pathMeta) throw new InvalidFileException(path);
+        if (null == pathMeta || pathMeta.isDirectory()) throw new InvalidFileException(path);
 
-        if (null == pathMeta.getFileId()) {
-            return new ByteArrayInputStream(pathMeta.getFileData().getData());
+        try {
+            return contentStream(pathMeta);
+        }
+        catch (MongoGridFSException e) {
+            throw new InvalidFileException(path, e);
         }
+    }
 
-        GridFsResource resource = gridFsOperations.getResource(pathMeta.getPath());
-        if (!resource.exists()) throw new InvalidFileException(path);
+    /**
+     * GridFS内容从position所在的块开始读取，见{@link GridFsChunkInputStream}。
+     */
+    @Override
+    public InputStream openReadStream(String path, long position, long length) throws InvalidFileException {
+        MongoPathMeta pathMeta = meta(path);
+        if (null == pathMeta || pathMeta.isDirectory()) throw new InvalidFileException(path);
 
         try {
-            return resource.getInputStream();
+            return contentStream(pathMeta, position, length);
         }
-        catch (IOException e) {
+        catch (MongoGridFSException e) {
             throw new InvalidFileException(path, e);
         }
     }
 
+    /**
+     * 追加写入：新写入的内容作为一个分段上传到GridFS，关闭时追加到文件的segments上，不需要复制已有的内容。
+     * 分段数量达到阈值后，由后台线程合并，见{@link #compact(String)}。
+     */
     @Override
     public OutputStream openWriteStream(String path) throws InvalidFileException {
-        MongoPathMeta pathMeta = meta(path);
+        NormalizedPath normalizedPath = new NormalizedPath(path);
 
-        if (null == pathMeta) {
-            pathMeta = new MongoPathMeta(path);
-            pathMeta.setDirectory(false);
-        }
+        MongoPathMeta pathMeta = queryPathMeta(normalizedPath);
+        if (null != pathMeta && pathMeta.isDirectory()) throw new InvalidFileException(path);
 
-        if (pathMeta.isDirectory()) throw new InvalidFileException(path);
+        GridFSUploadStream stream = gridFSBucket.openUploadStream(normalizedPath.toString());
 
-        MongoPathMeta mongoPathMeta = pathMeta;
-        String candidateFilename = pathMeta.getPath() + "_" + System.nanoTime();
+        MessageDigest messageDigest = ContentDigest.newMessageDigest();
+        AtomicLong size = new AtomicLong();
+        OutputStream digestOutputStream = new DigestOutputStream(stream, messageDigest) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                super.write(b, off, len);
+                size.addAndGet(len);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                super.write(b);
+                size.incrementAndGet();
+            }
+        };
 
-        GridFSUploadStream stream = gridFSBucket.openUploadStream(candidateFilename);
+        return new BufferedOutputStream(digestOutputStream) {
+            private boolean closed;
 
-        BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(stream) {
             @Override
             public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+
                 super.close();
 
-                if (null != mongoPathMeta.getFileId()) {
-                    gridFSBucket.delete(mongoPathMeta.getFileId());
+                try {
+                    if (null == pathMeta || !appendSegment(pathMeta, stream.getObjectId(), size.get())) {
+                        putGridFsFile(path, stream.getObjectId(), size.get(), ContentDigest.toHex(messageDigest));
+                    }
                 }
+                catch (InvalidFileException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+    }
 
-                gridFSBucket.rename(stream.getObjectId(), mongoPathMeta.getPath());
-
-                mongoPathMeta.setFileId(stream.getObjectId());
-                mongoPathMeta.setFileData(null);
+    /**
+     * 文件的完整内容：内嵌的内容或GridFS主体，之后依次是追加的分段。分段在读到时才打开。
+     */
+    private InputStream contentStream(MongoPathMeta file) {
+        return contentStream(file, 0, -1);
+    }
 
-                mongoOperations.upsert(
-                    newPathQuery(mongoPathMeta),
-                    Update.fromDocument(new Document(mongoPathMeta.toMap())),
-                    MongoPathMeta.class,
-                    pathCollection
-                );
+    /**
+     * 文件内容依次是内嵌的内容或GridFS文件，以及追加的分段。只打开与读取范围有交集的部分，GridFS文件直接从所在的块开始读。
+     *
+     * @param length 读取的长度，小于0时读到文件末尾。
+     */
+    private InputStream contentStream(MongoPathMeta file, long position, long length) {
+        long end = length < 0 ? Long.MAX_VALUE : position + length;
+        List<Supplier<InputStream>> parts = new ArrayList<>();
+        long offset = 0;
+
+        if (null == file.getFileId()) {
+            byte[] data = null == file.getFileData() ? new byte[0] : file.getFileData().getData();
+            long from = Math.max(position, offset);
+            long to = Math.min(end, data.length);
+            if (from < to) {
+                parts.add(() -> new ByteArrayInputStream(data, (int) from, (int) (to - from)));
             }
-        };
+            offset += data.length;
+        }
 
-        if (null != pathMeta.getFileId()) {
-            gridFSBucket.downloadToStream(pathMeta.getFileId(), bufferedOutputStream);
+        List<ObjectId> contentIds = contentIds(file);
+        if (!contentIds.isEmpty()) {
+            //一次查询取得所有GridFS文件的大小及块大小。
+            Map<Object, Document> gridFsFiles = new HashMap<>();
+            mongoOperations.getCollection(gridFsFilesCollection)
+                .find(new Document("_id", new Document("$in", contentIds)))
+                .projection(new Document("length", 1).append("chunkSize", 1))
+                .forEach((Consumer<Document>) document -> gridFsFiles.put(document.get("_id"), document));
+
+            MongoCollection<Document> chunks = mongoOperations.getCollection(gridFsChunksCollection);
+            for (ObjectId contentId : contentIds) {
+                Document gridFsFile = gridFsFiles.get(contentId);
+                if (null == gridFsFile) throw new MongoGridFSException("找不到GridFS文件" + contentId);
+
+                long size = gridFsFile.get("length", Number.class).longValue();
+                int chunkSize = gridFsFile.get("chunkSize", Number.class).intValue();
+                long from = Math.max(position, offset) - offset;
+                long to = Math.min(end, offset + size) - offset;
+                if (from < to) {
+                    parts.add(() -> new GridFsChunkInputStream(chunks, contentId, chunkSize, from, to, readAheadChunks, readAheadExecutor));
+                }
+                offset += size;
+            }
         }
-        else if (null != pathMeta.getFileData()) {
-            try {
-                bufferedOutputStream.write(pathMeta.getFileData().getData());
+
+        if (parts.isEmpty()) return new ByteArrayInputStream(new byte[0]);
+        if (1 == parts.size()) return parts.get(0).get();
+
+        //分段在读到时才打开，不会同时预读多个分段。
+        Iterator<Supplier<InputStream>> iterator = parts.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                return iterator.next().get();
             }
-            catch (IOException e) {
-                throw new RuntimeException(e);
+        });
+    }
+
+    /**
+     * 把已上传的分段追加到文件上。
+     *
+     * @return 如果false，文件已经不存在（或变成了目录），分段没有被使用。
+     */
+    private boolean appendSegment(MongoPathMeta file, ObjectId segmentId, long size) {
+        if (0 == size) {
+            gridFSBucket.delete(segmentId);
+            return true;
+        }
+
+        //追加后无法接着计算整个文件的摘要，留到需要时再计算。
+        Query query = Query.query(Criteria.where("_id").is(file.getId()).and("isDirectory").is(false));
+        query.fields().include("segments").include("parent");
+        Update update = new Update()
+            .push("segments", segmentId)
+            .inc("size", size)
+            .set("lastModifiedTime", Instant.now())
+            .unset("digest");
+
+        MongoPathMeta appended = mongoOperations.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), MongoPathMeta.class, pathCollection);
+        if (null == appended) return false;
+
+        updateUsage(new NormalizedPath(file.getParent()), 0, size);
+
+        if (segmentCompactionThreshold > 0 && appended.getSegments().size() >= segmentCompactionThreshold) {
+            scheduleCompaction(file);
+        }
+
+        return true;
+    }
+
+    private void scheduleCompaction(MongoPathMeta file) {
+        if (!compacting.add(file.getId())) return;
+
+        try {
+            compactor.execute(() -> {
+                boolean retry = false;
+                try {
+                    retry = compact(file.getId());
+                }
+                catch (RuntimeException e) {
+                    log.message("合并文件分段失败")
+                        .context("path", file.getPath())
+                        .exception(e)
+                        .warn();
+                }
+                finally {
+                    compacting.remove(file.getId());
+                }
+
+                //合并期间有新的分段追加进来，那次追加没有再安排合并。
+                if (retry) {
+                    scheduleCompaction(file);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            //已经关闭
+            compacting.remove(file.getId());
+        }
+    }
+
+    /**
+     * 分层合并：从最新的分段往前，只要前一个分段不超过已选分段总大小的两倍就一起合并，遇到大得多的分段即停止。
+     * 已合并过的大分段只在后面积累了相近的大小后才会被再次复制，每个字节被复制的次数是文件大小的对数级，而不是每次都重写整个文件。
+     * 选中的分段延伸到开头且主体也不大时，主体一起合并，成为新的主体。
+     * <p>
+     * 只有segments与读取时完全一致才替换，否则放弃这次合并。被替换的内容在{@link MongoDbFileSystemAutoConfiguration.Properties#getSegmentReleaseDelay()}之后才释放，
+     * 持有旧元信息的读取仍然可以打开这些分段。
+     *
+     * @param id 文件的id
+     * @return 如果true，合并期间文件有变化，需要重新合并。
+     */
+    boolean compact(String id) {
+        Query fileQuery = Query.query(Criteria.where("_id").is(id));
+        MongoPathMeta file = mongoOperations.findOne(fileQuery, MongoPathMeta.class, pathCollection);
+        if (null == file || file.isDirectory() || null == file.getSegments() || file.getSegments().size() < 2) return false;
+
+        List<ObjectId> segments = new ArrayList<>(file.getSegments());
+        Map<Object, Long> sizes = new HashMap<>();
+        mongoOperations.getCollection(gridFsFilesCollection)
+            .find(new Document("_id", new Document("$in", contentIds(file))))
+            .projection(new Document("length", 1))
+            .forEach((Consumer<Document>) document -> sizes.put(document.get("_id"), document.get("length", Number.class).longValue()));
+
+        int from = segments.size() - 1;
+        long mergedSize = sizes.getOrDefault(segments.get(from), 0L);
+        while (from > 0 && sizes.getOrDefault(segments.get(from - 1), 0L) <= 2 * mergedSize) {
+            mergedSize += sizes.getOrDefault(segments.get(--from), 0L);
+        }
+
+        long bodySize = null != file.getFileId() ? sizes.getOrDefault(file.getFileId(), 0L) : null == file.getFileData() ? 0 : file.getFileData().length();
+        boolean withBody = 0 == from && bodySize <= 2 * mergedSize;
+        if (!withBody && segments.size() - from < 2) return false;
+
+        long position = bodySize;
+        for (int i = 0; i < from; ++i) {
+            position += sizes.getOrDefault(segments.get(i), 0L);
+        }
+        if (withBody) {
+            position = 0;
+            mergedSize += bodySize;
+        }
+
+        MessageDigest messageDigest = ContentDigest.newMessageDigest();
+        GridFSUploadStream uploadStream = gridFSBucket.openUploadStream(file.getPath());
+        try (InputStream inputStream = contentStream(file, position, mergedSize); OutputStream outputStream = new DigestOutputStream(uploadStream, messageDigest)) {
+            StreamUtils.copy(inputStream, outputStream);
+        }
+        catch (IOException | RuntimeException e) {
+            uploadStream.abort();
+            throw e instanceof RuntimeException ? (RuntimeException) e : new UncheckedIOException((IOException) e);
+        }
+
+        Query query = Query.query(Criteria.where("_id").is(id).and("fileId").is(file.getFileId()).and("segments").is(segments));
+
+        List<ObjectId> replaced = new ArrayList<>(segments.subList(from, segments.size()));
+        Update update;
+        if (withBody) {
+            //合并了全部内容，摘要就是整个文件的摘要。
+            update = new Update()
+                .set("fileId", uploadStream.getObjectId())
+                .unset("fileData")
+                .set("segments", Collections.emptyList())
+                .set("digest", ContentDigest.toHex(messageDigest));
+
+            if (null != file.getFileId()) {
+                replaced.add(file.getFileId());
             }
         }
+        else {
+            List<ObjectId> compacted = new ArrayList<>(segments.subList(0, from));
+            compacted.add(uploadStream.getObjectId());
+            update = Update.update("segments", compacted);
+        }
+
+        if (0 == mongoOperations.updateFirst(query, update, pathCollection).getModifiedCount()) {
+            gridFSBucket.delete(uploadStream.getObjectId());
+            return true;
+        }
+
+        //记录在GridFS文件上而不是内存中的定时任务，重启后仍然会释放。
+        mongoOperations.updateMulti(
+            Query.query(Criteria.where("_id").in(replaced)),
+            new Update().push(RELEASE_AT, Date.from(Instant.now().plus(segmentReleaseDelay))),
+            gridFsFilesCollection
+        );
 
-        return bufferedOutputStream;
+        return false;
     }
 
+    /**
+     * 释放已到期的被替换内容。每次以findAndModify取走一个最早的释放时间，多个实例同时执行时同一次释放只会执行一次。
+     */
+    void releaseExpired() {
+        try {
+            Query query = Query.query(Criteria.where(RELEASE_AT).lte(new Date()));
+            query.fields().include("_id");
+
+            Document expired;
+            while (null != (expired = mongoOperations.findAndModify(query, new Update().pop(RELEASE_AT, Update.Position.FIRST), Document.class, gridFsFilesCollection))) {
+                releaseContent(Collections.singletonList(expired.getObjectId("_id")));
+            }
+        }
+        catch (RuntimeException e) {
+            log.message("释放合并前的分段失败")
+                .exception(e)
+                .warn();
+        }
+    }
+
+    /**
+     * 只修改路径文档：文件更新parent及name，目录还要以一次更新改写其下所有路径的parent前缀，不复制任何内容。
+     * 目标目录已存在时把源目录下的路径逐个合并过去，因为目标已存在而被忽略的路径保留在源目录中。
+     */
     @Override
     public void move(String source, String destination, boolean replaceExisting) throws FileSystemException {
-        copy(source, destination, replaceExisting);
-        delete(source);
+        NormalizedPath normalizedSrc = new NormalizedPath(source);
+        NormalizedPath normalizedDest = new NormalizedPath(destination);
+
+        MongoPathMeta sourcePathMeta = queryPathMeta(normalizedSrc);
+        if (null == sourcePathMeta) throw new PathNotFoundException(source);
+        if (NormalizedPath.ROOT.equals(normalizedSrc)) throw new FileSystemException("不能移动根目录。");
+
+        MongoPathMeta destPathMeta = queryPathMeta(normalizedDest);
+
+        if (!sourcePathMeta.isDirectory()) {
+            moveFile(sourcePathMeta, fileTarget(normalizedDest, destPathMeta, sourcePathMeta), replaceExisting);
+            return;
+        }
+
+        assertDirectoryTarget(sourcePathMeta, normalizedDest, destPathMeta);
+        if (normalizedSrc.toString().equals(normalizedDest.toString())) return;
+
+        if (null == destPathMeta) {
+            moveDirectory(sourcePathMeta, normalizedDest);
+        }
+        else {
+            mergeDirectory(sourcePathMeta, destPathMeta, replaceExisting);
+        }
     }
 
+    /**
+     * 只复制路径文档，GridFS内容由源文件及副本共用，见{@link #retainContent(MongoPathMeta)}。
+     */
     @Override
     public void copy(String source, String destination, boolean replaceExisting) throws FileSystemException {
         NormalizedPath normalizedSrc = new NormalizedPath(source);
@@ -211,27 +878,32 @@ public class MongoDbFileSystem implements FileSystem {
         if (null == sourcePathMeta) throw new PathNotFoundException(source);
 
         MongoPathMeta destPathMeta = queryPathMeta(normalizedDest);
-        if (null == destPathMeta) {
-            MongoPathMeta destDirectory = createAndGetDirectory(normalizedDest);
 
-            if (sourcePathMeta.isDirectory()) {
-                copyFromDirectoryToDirectory(sourcePathMeta, destDirectory, replaceExisting);
-            }
-            else {
-                copyFileToDirectory(sourcePathMeta, destDirectory, replaceExisting);
-            }
+        if (!sourcePathMeta.isDirectory()) {
+            copyFile(sourcePathMeta, fileTarget(normalizedDest, destPathMeta, sourcePathMeta), replaceExisting);
+            return;
         }
-        else {
-            if (sourcePathMeta.isDirectory()) {
-                if (!destPathMeta.isDirectory()) throw new FileSystemException("不能把目录移动或复制到文件。");
 
-                copyFromDirectoryToDirectory(sourcePathMeta, destPathMeta, replaceExisting);
-            }
-            else {
-                MongoPathMeta destDirectory = destPathMeta.isDirectory() ? destPathMeta : queryPathMeta(destPathMeta.getParentId());
-                copyFileToDirectory(sourcePathMeta, destDirectory, replaceExisting);
-            }
-        }
+        assertDirectoryTarget(sourcePathMeta, normalizedDest, destPathMeta);
+        if (normalizedSrc.toString().equals(normalizedDest.toString())) return;
+
+        copyFromDirectoryToDirectory(sourcePathMeta, null == destPathMeta ? createAndGetDirectory(normalizedDest) : destPathMeta, replaceExisting);
+    }
+
+    /**
+     * 目标是目录时，文件放到该目录下，否则目标就是文件的新路径。
+     */
+    private NormalizedPath fileTarget(NormalizedPath destination, MongoPathMeta destPathMeta, MongoPathMeta sourcePathMeta) {
+        return null != destPathMeta && destPathMeta.isDirectory() ? childPath(destPathMeta, sourcePathMeta.getName()) : destination;
+    }
+
+    private void assertDirectoryTarget(MongoPathMeta sourcePathMeta, NormalizedPath destination, MongoPathMeta destPathMeta) throws FileSystemException {
+        if (null != destPathMeta && !destPathMeta.isDirectory()) throw new FileSystemException("不能把目录移动或复制到文件。");
+        if (destination.toString().startsWith(sourcePathMeta.getPath() + PATH_SEPARATOR)) throw new FileSystemException("不能把目录移动或复制到其自身之下。");
+    }
+
+    private NormalizedPath childPath(MongoPathMeta directory, String name) {
+        return new NormalizedPath(directory.getPath() + PATH_SEPARATOR + name);
     }
 
     @Override
@@ -239,19 +911,53 @@ public class MongoDbFileSystem implements FileSystem {
         delete(new NormalizedPath(path));
     }
 
+    /**
+     * 文件逐个以findAndRemove删除，与并发的删除同时进行时，只有真正删除了文档的一方释放内容及扣减用量，共用的内容不会被多释放一次。
+     */
+    @Override
+    public void deleteAll(Collection<String> paths) {
+        List<NormalizedPath> normalizedPaths = paths.stream().map(NormalizedPath::new).collect(Collectors.toList());
+        Collection<MongoPathMeta> metas = queryPathMetas(normalizedPaths, false).values();
+
+        List<ObjectId> gridFsIds = new ArrayList<>();
+        BulkOperations usageOperations = mongoOperations.bulkOps(BulkOperations.BulkMode.UNORDERED, pathCollection);
+        boolean removed = false;
+        for (MongoPathMeta meta : metas) {
+            if (meta.isDirectory()) {
+                delete(meta.getPath());
+                continue;
+            }
+
+            MongoPathMeta removedFile = mongoOperations.findAndRemove(Query.query(Criteria.where("_id").is(meta.getId())), MongoPathMeta.class, pathCollection);
+            if (null == removedFile) continue;
+
+            gridFsIds.addAll(contentIds(removedFile));
+            usageOperations.updateMulti(usageQuery(new NormalizedPath(removedFile.getParent())), usageUpdate(removedFile.getSize(), -1));
+            removed = true;
+        }
+
+        if (removed) {
+            usageOperations.execute();
+        }
+
+        if (!gridFsIds.isEmpty()) {
+            releaseContent(gridFsIds);
+        }
+    }
+
     @Override
     public void touchCreation(String path) {
-        touchPath(new NormalizedPath(path), meta -> meta.setCreationTime(Instant.now()));
+        touchPath(new NormalizedPath(path), "creationTime");
     }
 
     @Override
     public void touchLastModified(String path) {
-        touchPath(new NormalizedPath(path), meta -> meta.setLastModifiedTime(Instant.now()));
+        touchPath(new NormalizedPath(path), "lastModifiedTime");
     }
 
     @Override
     public void touchLastAccess(String path) {
-        touchPath(new NormalizedPath(path), meta -> meta.setLastAccessTime(Instant.now()));
+        touchPath(new NormalizedPath(path), "lastAccessTime");
     }
 
     @SuppressWarnings("unchecked")
@@ -260,27 +966,56 @@ public class MongoDbFileSystem implements FileSystem {
         return (M) queryPathMeta(new NormalizedPath(path));
     }
 
+    /**
+     * 没有保存摘要的文件（早于摘要功能写入的，或者追加写入过的）在第一次获取时计算并保存。
+     * 计算的是读取到的元信息所指向的内容，只有内容在计算期间没有被追加或替换时才保存。
+     */
     @Override
-    public Stream<MongoPathMeta> directories(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) throws PathNotFoundException {
-        NormalizedPath normalizePath = new NormalizedPath(path);
-        MongoPathMeta root = queryPathMeta(normalizePath);
-        if (null == root || !root.isDirectory()) throw new PathNotFoundException(path);
+    public String digest(String path) throws InvalidFileException {
+        MongoPathMeta pathMeta = meta(path);
+        if (null == pathMeta || pathMeta.isDirectory()) throw new InvalidFileException(path);
 
-        Stream<MongoPathMeta> stream = subDirectories(root, search, recursive);
+        if (null != pathMeta.getDigest()) return pathMeta.getDigest();
 
-        if (null != sort) {
-            stream = FileSystem.sort(stream, sort);
+        String digest;
+        try (InputStream inputStream = contentStream(pathMeta)) {
+            digest = ContentDigest.of(inputStream);
         }
-
-        if (offset > 0) {
-            stream = stream.skip(offset);
+        catch (IOException | MongoGridFSException e) {
+            throw new InvalidFileException(path, e);
         }
 
-        if (limit > 0) {
-            stream = stream.limit(limit);
-        }
+        Query query = Query.query(Criteria.where("_id").is(pathMeta.getId())
+            .and("fileId").is(pathMeta.getFileId())
+            .and("segments").is(pathMeta.getSegments())
+            .and("size").is(pathMeta.getSize())
+            .and("digest").exists(false));
+        mongoOperations.updateFirst(query, Update.update("digest", digest), pathCollection);
+        return digest;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <M extends PathMeta> Map<String, M> metaAll(Collection<String> paths) {
+        return (Map<String, M>) toRequestedPaths(paths, queryPathMetas(paths.stream().map(NormalizedPath::new).collect(Collectors.toList()), true));
+    }
+
+    @Override
+    public Map<String, Boolean> existsAll(Collection<String> paths) {
+        Map<String, MongoPathMeta> metas = queryPathMetas(paths.stream().map(NormalizedPath::new).collect(Collectors.toList()), false);
+
+        Map<String, Boolean> result = new HashMap<>();
+        paths.forEach(path -> result.put(path, metas.containsKey(new NormalizedPath(path).toString())));
+        return result;
+    }
+
+    @Override
+    public Stream<MongoPathMeta> directories(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) throws PathNotFoundException {
+        NormalizedPath normalizePath = new NormalizedPath(path);
+        MongoPathMeta root = queryPathMeta(normalizePath);
+        if (null == root || !root.isDirectory()) throw new PathNotFoundException(path);
 
-        return stream;
+        return FileSystem.sort(subDirectories(root, search, recursive), sort, offset, limit);
     }
 
     @Override
@@ -289,13 +1024,24 @@ public class MongoDbFileSystem implements FileSystem {
         MongoPathMeta root = queryPathMeta(normalizePath);
         if (null == root || !root.isDirectory()) throw new PathNotFoundException(path);
 
+        return iteratorToStream(mongoOperations.stream(filesQuery(root, search, recursive, offset, limit, sort), MongoPathMeta.class, pathCollection));
+    }
+
+    /**
+     * 列出目录下文件的查询，与{@link ReactiveMongoDbFileSystem}共用。
+     */
+    Query filesQuery(MongoPathMeta root, String search, boolean recursive, int offset, int limit, PathMetaSort sort) {
         Query query = new Query(Criteria.where("isDirectory").is(false));
         if (StringUtils.hasText(search)) {
-            query = query.addCriteria(Criteria.where("name").regex(".*" + search + ".*"));
+            query = query.addCriteria(nameCriteria(search));
         }
 
+        //排序值相同时按名称排序，与FileSystem.comparator一致，分页结果才稳定。
         if (null != sort) {
             query = sort(query, sort);
+            if (PathMetaSort.Name != sort && PathMetaSort.NameDesc != sort) {
+                query = query.with(Sort.by(Sort.Order.asc("name")));
+            }
         }
 
         if (offset > 0) {
@@ -306,18 +1052,211 @@ public class MongoDbFileSystem implements FileSystem {
             query = query.limit(limit);
         }
 
-        if (!recursive) {
-            Criteria criteria = Criteria.where("parent").is(root.getPath());
-            return iteratorToStream(mongoOperations.stream(query.addCriteria(criteria), MongoPathMeta.class, pathCollection));
+        return query.addCriteria(recursive ? descendantCriteria(root) : Criteria.where("parent").is(root.getPath()));
+    }
+
+    @Override
+    public Stream<MongoPathMeta> files(String path, String cursor, int limit, PathMetaSort sort) throws PathNotFoundException {
+        PathMetaSort pathMetaSort = PathMetaCursor.normalize(sort);
+
+        NormalizedPath normalizePath = new NormalizedPath(path);
+        MongoPathMeta root = queryPathMeta(normalizePath);
+        if (null == root || !root.isDirectory()) throw new PathNotFoundException(path);
+
+        Query query = Query.query(Criteria.where("parent").is(root.getPath()).and("isDirectory").is(false));
+        if (StringUtils.hasText(cursor)) {
+            query.addCriteria(keysetCriteria(PathMetaCursor.parse(cursor, pathMetaSort)));
+        }
+
+        query = sort(query, pathMetaSort);
+        if (PathMetaSort.Name != pathMetaSort && PathMetaSort.NameDesc != pathMetaSort) {
+            query = query.with(Sort.by(Sort.Order.asc("name")));
         }
 
-        List<String> directories = subDirectories(root, search, true).map(MongoPathMeta::getPath).collect(Collectors.toList());
-        directories.add(root.getPath());
-        query = query.addCriteria(Criteria.where("parent").in(directories));
+        if (limit > 0) {
+            query = query.limit(limit);
+        }
 
         return iteratorToStream(mongoOperations.stream(query, MongoPathMeta.class, pathCollection));
     }
 
+    /**
+     * 基于change stream，见{@link MongoPathWatcher}。
+     */
+    @Override
+    public Closeable watch(String path, boolean recursive, Duration debounce, Consumer<List<PathChange>> listener) throws PathNotFoundException {
+        NormalizedPath normalizedPath = new NormalizedPath(path);
+        if (normalizedPath.getParentNames().length > 0) {
+            MongoPathMeta root = queryPathMeta(normalizedPath);
+            if (null == root || !root.isDirectory()) throw new PathNotFoundException(path);
+        }
+
+        return new MongoPathWatcher(
+            mongoOperations.getCollection(pathCollection),
+            normalizedPath.toString(),
+            recursive,
+            new PathChangeBatcher(debounce, listener)
+        );
+    }
+
+    /**
+     * 重新统计目录的用量并保存，用于修正绕过驱动的修改造成的偏差，统计期间的写入可能不会计入。
+     *
+     * @param path 目录路径
+     * @throws PathNotFoundException 目录不存在
+     */
+    public void recomputeUsage(String path) throws PathNotFoundException {
+        NormalizedPath normalizedPath = new NormalizedPath(path);
+        MongoPathMeta directory = queryPathMeta(normalizedPath);
+        if (null == directory || !directory.isDirectory()) throw new PathNotFoundException(path);
+
+        long previousSize = Math.max(directory.getTotalSize(), 0);
+        long previousCount = Math.max(directory.getFileCount(), 0);
+        computeUsage(directory);
+
+        if (normalizedPath.getParentNames().length > 0) {
+            mongoOperations.updateMulti(
+                usageQuery(normalizedPath.getParentPath()),
+                new Update().inc("totalSize", directory.getTotalSize() - previousSize).inc("fileCount", directory.getFileCount() - previousCount),
+                pathCollection
+            );
+        }
+    }
+
+    /**
+     * 以explain检查驱动使用的各种查询形状，找出没有可用索引、会扫描整个集合（COLLSCAN）的查询。
+     * explain只生成执行计划，不会执行查询。
+     *
+     * @return 会扫描整个集合的查询形状，形如“meta: {...} sort: {...}”。
+     */
+    public List<String> collectionScans() {
+        Map<String, Query> shapes = new LinkedHashMap<>();
+
+        NormalizedPath samplePath = new NormalizedPath("/SQ_EXPLAIN/sample");
+        MongoPathMeta sampleDirectory = new MongoPathMeta(samplePath.getParentPath());
+        sampleDirectory.setId(ObjectId.get().toString());
+
+        shapes.put("meta", newPathQuery(samplePath));
+        shapes.put("moving", movingQuery());
+        shapes.put("usage", usageQuery(samplePath));
+        shapes.put("recursive", Query.query(Criteria.where("isDirectory").is(false)).addCriteria(descendantCriteria(sampleDirectory)));
+        shapes.put("search", Query.query(Criteria.where("isDirectory").is(false)).addCriteria(nameCriteria("sample")).addCriteria(descendantCriteria(sampleDirectory)));
+
+        Arrays.stream(PathMetaSort.values())
+            .filter(sort -> !isDescending(sort) && PathMetaSort.IsDirectory != sort)
+            .forEach(sort -> {
+                Query query = sort(Query.query(Criteria.where("parent").is(sampleDirectory.getPath()).and("isDirectory").is(false)), sort);
+                if (PathMetaSort.Name != sort) {
+                    query = query.with(Sort.by(Sort.Order.asc("name")));
+                }
+                shapes.put("list" + sort, query);
+            });
+
+        return shapes.entrySet().stream()
+            .filter(entry -> isCollectionScan(explain(entry.getValue())))
+            .map(entry -> entry.getKey() + ": " + entry.getValue().getQueryObject().toJson() + " sort: " + entry.getValue().getSortObject().toJson())
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * 路径的查找及列出都依赖以下索引，缺少时集合的每次查询都是全表扫描：
+     * <ul>
+     * <li>(parent, name)：按路径查找，唯一。</li>
+     * <li>movingTo，稀疏：启动时查找中途失败的目录移动。</li>
+     * <li>(parent, isDirectory, 排序字段, name)：列出目录，按排序字段及游标分页，前缀也用于递归列出。</li>
+     * <li>GridFS的(filename, uploadDate)：按路径读取大文件。</li>
+     * <li>GridFS的metadata.releaseAt，稀疏：查找到期的被替换内容。</li>
+     * </ul>
+     * 文档只以parent路径关联所在目录，不再保存parentId，递归列出以parent的前缀匹配，因此不建立(parentId, name)索引。
+     * 已有的数据违反唯一约束时无法建立唯一索引，只记录警告。
+     */
+    private void ensureIndexes() {
+        IndexOperations indexOperations = mongoOperations.indexOps(pathCollection);
+
+        try {
+            indexOperations.ensureIndex(new Index().on("parent", Sort.Direction.ASC).on("name", Sort.Direction.ASC).unique());
+        }
+        catch (DataAccessException e) {
+            log.message("无法建立唯一索引，集合中存在重复的路径")
+                .context("collection", pathCollection)
+                .exception(e)
+                .warn();
+        }
+
+        indexOperations.ensureIndex(new Index().on(MOVING_TO, Sort.Direction.ASC).sparse());
+
+        Arrays.stream(PathMetaSort.values())
+            .filter(sort -> !isDescending(sort) && PathMetaSort.IsDirectory != sort)
+            .map(this::sortField)
+            .distinct()
+            .forEach(field -> {
+                Index index = new Index().on("parent", Sort.Direction.ASC).on("isDirectory", Sort.Direction.ASC).on(field, Sort.Direction.ASC);
+                if (!"name".equals(field)) {
+                    index = index.on("name", Sort.Direction.ASC);
+                }
+                indexOperations.ensureIndex(index);
+            });
+
+        mongoOperations.indexOps(gridFsFilesCollection)
+            .ensureIndex(new Index().on("filename", Sort.Direction.ASC).on("uploadDate", Sort.Direction.ASC));
+        mongoOperations.indexOps(gridFsFilesCollection)
+            .ensureIndex(new Index().on(RELEASE_AT, Sort.Direction.ASC).sparse());
+    }
+
+    private Document explain(Query query) {
+        Document find = new Document("find", pathCollection)
+            .append("filter", query.getQueryObject())
+            .append("sort", query.getSortObject());
+
+        return mongoOperations.executeCommand(new Document("explain", find).append("verbosity", "queryPlanner"));
+    }
+
+    /**
+     * 执行计划中任意一个阶段是COLLSCAN。
+     */
+    private boolean isCollectionScan(Object plan) {
+        if (plan instanceof Document) {
+            Document document = (Document) plan;
+            if ("COLLSCAN".equals(document.get("stage"))) return true;
+
+            return document.entrySet().stream()
+                .filter(entry -> !"rejectedPlans".equals(entry.getKey()))
+                .anyMatch(entry -> isCollectionScan(entry.getValue()));
+        }
+
+        if (plan instanceof List) {
+            return ((List<?>) plan).stream().anyMatch(this::isCollectionScan);
+        }
+
+        return false;
+    }
+
+    /**
+     * 游标之后的元素：排序值在游标之后，或者排序值相同而名称在游标之后。mongodb排序时null在最前。
+     */
+    private Criteria keysetCriteria(PathMetaCursor cursor) {
+        PathMetaSort sort = cursor.getSort();
+        String field = sortField(sort);
+        boolean desc = isDescending(sort);
+
+        if (PathMetaSort.Name == sort || PathMetaSort.NameDesc == sort) {
+            return desc ? Criteria.where("name").lt(cursor.getName()) : Criteria.where("name").gt(cursor.getName());
+        }
+
+        Object value = cursor.getValue();
+        Criteria sameValue = Criteria.where(field).is(value).and("name").gt(cursor.getName());
+
+        if (null == value) {
+            return desc ? sameValue : new Criteria().orOperator(Criteria.where(field).ne(null), sameValue);
+        }
+
+        Criteria afterValue = desc
+            ? new Criteria().orOperator(Criteria.where(field).lt(value), Criteria.where(field).is(null))
+            : Criteria.where(field).gt(value);
+
+        return new Criteria().orOperator(afterValue, sameValue);
+    }
+
     private <T> Stream<T> iteratorToStream(Iterator<T> iterator) {
         return org.springframework.data.util.StreamUtils.createStreamFromIterator(iterator);
     }
@@ -326,7 +1265,7 @@ public class MongoDbFileSystem implements FileSystem {
         return Query.query(Criteria.where("_id").is(meta.getId()));
     }
 
-    private Query newPathQuery(NormalizedPath normalizedPath) {
+    Query newPathQuery(NormalizedPath normalizedPath) {
         return Query.query(Criteria.where("name").is(normalizedPath.getName()).and("parent").is(normalizedPath.getParent()));
     }
 
@@ -334,16 +1273,42 @@ public class MongoDbFileSystem implements FileSystem {
         return mongoOperations.findOne(newPathQuery(normalizedPath), MongoPathMeta.class, pathCollection);
     }
 
-    private MongoPathMeta queryPathMeta(String pathName, String parentId) {
-        Query query = Query.query(Criteria.where("name").is(pathName).and("parentId").is(parentId));
+    /**
+     * 以一次查询获取多个路径的元信息。
+     *
+     * @param withFileData 如果false，不读取内嵌的文件内容。
+     * @return 以规格化的路径为key。
+     */
+    private Map<String, MongoPathMeta> queryPathMetas(Collection<NormalizedPath> normalizedPaths, boolean withFileData) {
+        if (normalizedPaths.isEmpty()) return new HashMap<>();
+
+        Map<String, Set<String>> namesByParent = new HashMap<>();
+        normalizedPaths.forEach(p -> namesByParent.computeIfAbsent(p.getParent(), parent -> new HashSet<>()).add(p.getName()));
+
+        Criteria[] criteria = namesByParent.entrySet().stream()
+            .map(entry -> Criteria.where("parent").is(entry.getKey()).and("name").in(entry.getValue()))
+            .toArray(Criteria[]::new);
+
+        Query query = new Query(1 == criteria.length ? criteria[0] : new Criteria().orOperator(criteria));
+        if (!withFileData) {
+            query.fields().exclude("fileData");
+        }
 
-        return mongoOperations.findOne(query, MongoPathMeta.class, pathCollection);
+        return mongoOperations.find(query, MongoPathMeta.class, pathCollection)
+            .stream()
+            .collect(Collectors.toMap(meta -> new NormalizedPath(meta.getPath()).toString(), Function.identity(), (a, b) -> a));
     }
 
-    private MongoPathMeta queryPathMeta(String pathId) {
-        Query query = Query.query(Criteria.where("_id").is(pathId));
+    private Map<String, MongoPathMeta> toRequestedPaths(Collection<String> paths, Map<String, MongoPathMeta> metas) {
+        Map<String, MongoPathMeta> result = new HashMap<>();
+        paths.forEach(path -> {
+            MongoPathMeta meta = metas.get(new NormalizedPath(path).toString());
+            if (null != meta) {
+                result.put(path, meta);
+            }
+        });
 
-        return mongoOperations.findOne(query, MongoPathMeta.class, pathCollection);
+        return result;
     }
 
     private CloseableIterator<MongoPathMeta> getPathsInDirectory(MongoPathMeta directory) {
@@ -354,90 +1319,314 @@ public class MongoDbFileSystem implements FileSystem {
         );
     }
 
-    private void touchPath(NormalizedPath normalizedPath, Consumer<MongoPathMeta> consumer) {
-        MongoPathMeta pathMeta = queryPathMeta(normalizedPath);
+    /**
+     * 只更新时间字段，不覆盖目录上增量维护的用量。
+     */
+    private void touchPath(NormalizedPath normalizedPath, String field) {
+        mongoOperations.updateFirst(newPathQuery(normalizedPath), Update.update(field, Instant.now()), pathCollection);
+    }
 
-        consumer.accept(pathMeta);
+    /**
+     * 目录及其所有上级目录，以一次updateMulti更新用量。
+     */
+    private Query usageQuery(NormalizedPath directory) {
+        List<Criteria> criteria = new ArrayList<>();
+        for (NormalizedPath p = directory; ; p = p.getParentPath()) {
+            criteria.add(Criteria.where("parent").is(p.getParent()).and("name").is(p.getName()));
+            if (0 == p.getParentNames().length) break;
+        }
 
-        mongoOperations.updateFirst(
-            newPathQuery(pathMeta),
-            Update.fromDocument(new Document(pathMeta.toMap())),
-            pathCollection
-        );
+        return Query.query(new Criteria().orOperator(criteria.toArray(new Criteria[0])).and("isDirectory").is(true));
     }
 
-    private Stream<MongoPathMeta> subDirectories(MongoPathMeta root, String search, boolean recursive) {
-        Query query = Query.query(Criteria.where("parent").is(root.getPath()).and("isDirectory").is(true));
-        if (StringUtils.hasText(search)) {
-            query = query.addCriteria(Criteria.where("name").regex("*" + search + "*"));
+    /**
+     * @param previousSize 变化之前的文件大小，文件原本不存在时为-1。
+     * @param size         变化之后的文件大小，文件被删除时为-1。
+     */
+    private Update usageUpdate(long previousSize, long size) {
+        return new Update()
+            .inc("totalSize", Math.max(size, 0) - Math.max(previousSize, 0))
+            .inc("fileCount", (size < 0 ? 0 : 1) - (previousSize < 0 ? 0 : 1));
+    }
+
+    /**
+     * @return 更新到的目录数量，大小没有变化时为-1。
+     */
+    private long updateUsage(NormalizedPath directory, long previousSize, long size) {
+        if (previousSize == size) return -1;
+
+        return mongoOperations.updateMulti(usageQuery(directory), usageUpdate(previousSize, size), pathCollection).getMatchedCount();
+    }
+
+    /**
+     * 目录及其所有上级目录的数量，即{@link #usageQuery(NormalizedPath)}应该匹配到的数量。
+     */
+    private static int usageDepth(NormalizedPath directory) {
+        return directory.getParentNames().length + 1;
+    }
+
+    /**
+     * 自底向上统计目录树的用量，保存到每个目录上。
+     */
+    private void computeUsage(MongoPathMeta directory) {
+        Query query = Query.query(Criteria.where("parent").is(directory.getPath()));
+        query.fields().exclude("fileData");
+
+        long totalSize = 0;
+        long fileCount = 0;
+        for (MongoPathMeta meta : mongoOperations.find(query, MongoPathMeta.class, pathCollection)) {
+            if (meta.isDirectory()) {
+                computeUsage(meta);
+                totalSize += meta.getTotalSize();
+                fileCount += meta.getFileCount();
+            }
+            else {
+                totalSize += meta.getSize();
+                fileCount += 1;
+            }
+        }
+
+        directory.setTotalSize(totalSize);
+        directory.setFileCount(fileCount);
+        mongoOperations.updateFirst(newPathQuery(directory), new Update().set("totalSize", totalSize).set("fileCount", fileCount), pathCollection);
+    }
+
+    /**
+     * 名称包含search。开启名称索引且search足够长时，先按nameGrams缩小范围。
+     */
+    private Criteria nameCriteria(String search) {
+        if (!nameIndex || !NameIndex.supports(search)) return Criteria.where("name").regex(escapeRegex(search));
+
+        return Criteria.where("nameGrams").all(NameIndex.trigrams(search)).and("name").regex(escapeRegex(search));
+    }
+
+    /**
+     * 目录下所有层级的路径。parent保存的是上级目录的完整路径，以前缀匹配即可在parent的索引上一次查出整棵子树。
+     */
+    private Criteria descendantCriteria(MongoPathMeta directory) {
+        if (NormalizedPath.ROOT.toString().equals(directory.getPath())) return Criteria.where("parent").regex("^" + PATH_SEPARATOR);
+
+        //目录自身或者以“目录/”开头，不用|以免mongodb放弃前缀范围。
+        return Criteria.where("parent").regex("^" + escapeRegex(directory.getPath()) + "(" + PATH_SEPARATOR + ".*)?$");
+    }
+
+    /**
+     * 转义正则中的元字符。不使用\Q...\E，以便mongodb把锚定的前缀识别为索引上的范围扫描。
+     */
+    private static String escapeRegex(String text) {
+        StringBuilder builder = new StringBuilder(text.length() + 8);
+        for (char c : text.toCharArray()) {
+            if ("\\^$.|?*+()[]{}".indexOf(c) >= 0) {
+                builder.append('\\');
+            }
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 补齐早于名称索引写入的文档的nameGrams。
+     */
+    private void indexNames() {
+        Query query = Query.query(Criteria.where("nameGrams").exists(false));
+        query.fields().include("name");
+
+        BulkOperations bulkOperations = mongoOperations.bulkOps(BulkOperations.BulkMode.UNORDERED, pathCollection);
+        int count = 0;
+        try (CloseableIterator<MongoPathMeta> iterator = mongoOperations.stream(query, MongoPathMeta.class, pathCollection)) {
+            while (iterator.hasNext()) {
+                MongoPathMeta meta = iterator.next();
+                meta.indexName();
+                bulkOperations.updateOne(newPathQuery(meta), Update.update("nameGrams", meta.getNameGrams()));
+
+                if (++count % 1000 == 0) {
+                    bulkOperations.execute();
+                    bulkOperations = mongoOperations.bulkOps(BulkOperations.BulkMode.UNORDERED, pathCollection);
+                }
+            }
         }
 
-        if (!mongoOperations.exists(query, pathCollection)) return Stream.empty();
+        if (count % 1000 != 0) {
+            bulkOperations.execute();
+        }
+    }
+
+    private Stream<MongoPathMeta> subDirectories(MongoPathMeta root, String search, boolean recursive) {
+        Query query = Query.query(Criteria.where("isDirectory").is(true))
+            .addCriteria(recursive ? descendantCriteria(root) : Criteria.where("parent").is(root.getPath()));
 
-        Stream<MongoPathMeta> stream = iteratorToStream(mongoOperations.stream(query, MongoPathMeta.class, pathCollection));
-        if (!recursive) return stream;
+        if (StringUtils.hasText(search)) {
+            query = query.addCriteria(nameCriteria(search));
+        }
 
-        List<MongoPathMeta> subDirectories = stream.collect(Collectors.toList());
-        return Stream.concat(subDirectories.stream(), subDirectories.stream().flatMap(d -> subDirectories(d, search, true)));
+        return iteratorToStream(mongoOperations.stream(query, MongoPathMeta.class, pathCollection));
     }
 
     private Query sort(Query query, PathMetaSort sort) {
+        String field = sortField(sort);
+        return query.with(Sort.by(isDescending(sort) ? Sort.Order.desc(field) : Sort.Order.asc(field)));
+    }
+
+    private String sortField(PathMetaSort sort) {
         switch (sort) {
             case Name:
-                return query.with(Sort.by(Sort.Order.asc("name")));
             case NameDesc:
-                return query.with(Sort.by(Sort.Order.desc("name")));
+                return "name";
 
             case IsDirectory:
-                return query.with(Sort.by(Sort.Order.asc("isDirectory")));
             case IsDirectoryDesc:
-                return query.with(Sort.by(Sort.Order.desc("isDirectory")));
+                return "isDirectory";
 
             case CreationTime:
-                return query.with(Sort.by(Sort.Order.asc("creationTime")));
             case CreationTimeDesc:
-                return query.with(Sort.by(Sort.Order.desc("creationTime")));
+                return "creationTime";
 
             case LastAccessTime:
-                return query.with(Sort.by(Sort.Order.asc("lastAccessTime")));
             case LastAccessTimeDesc:
-                return query.with(Sort.by(Sort.Order.desc("lastAccessTime")));
+                return "lastAccessTime";
 
             case LastModifiedTime:
-                return query.with(Sort.by(Sort.Order.asc("lastModifiedTime")));
             case LastModifiedTimeDesc:
-                return query.with(Sort.by(Sort.Order.desc("lastModifiedTime")));
+                return "lastModifiedTime";
 
             case Size:
-                return query.with(Sort.by(Sort.Order.asc("size")));
             case SizeDesc:
-                return query.with(Sort.by(Sort.Order.desc("size")));
+                return "size";
             default:
                 throw new RuntimeException();
         }
     }
 
+    private boolean isDescending(PathMetaSort sort) {
+        switch (sort) {
+            case NameDesc:
+            case IsDirectoryDesc:
+            case CreationTimeDesc:
+            case LastAccessTimeDesc:
+            case LastModifiedTimeDesc:
+            case SizeDesc:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 写入文件前确保所在的目录存在，先查已存在目录的缓存，命中时不查询数据库。
+     * 路径以parent关联所在的目录，缓存的目录被其他节点删除后又在同一路径上重建时不受影响；
+     * 被删除或移走而没有重建时，由写入后的{@link #repairDirectories(Set)}重新建立。
+     */
+    private void ensureDirectory(NormalizedPath normalizedPath) {
+        if (null == existingDirectories.get(normalizedPath.toString())) {
+            createAndGetDirectory(normalizedPath);
+        }
+    }
+
     @SuppressWarnings("UnusedReturnValue")
     private MongoPathMeta createAndGetDirectory(NormalizedPath normalizedPath) {
-        MongoPathMeta meta = queryPathMeta(normalizedPath);
-        if (null != meta) {
-            if (!meta.isDirectory()) {
-                throw new RuntimeException(String.format("该路径%s指向一个已经存在的文件。", normalizedPath.getName()));
+        return createAndGetDirectory(normalizedPath, new ArrayList<>());
+    }
+
+    /**
+     * 以一次查询获取目录及其所有上级目录，缺少的目录以一次有序的批量upsert建立，并缓存整条路径上的目录。
+     *
+     * @param created 收集新建立的目录，自上而下。
+     */
+    private MongoPathMeta createAndGetDirectory(NormalizedPath normalizedPath, List<MongoPathMeta> created) {
+        LinkedList<NormalizedPath> chain = new LinkedList<>();
+        for (NormalizedPath p = normalizedPath; ; p = p.getParentPath()) {
+            chain.addFirst(p);
+            if (0 == p.getParentNames().length) break;
+        }
+
+        Map<String, MongoPathMeta> directories = queryPathMetas(chain, false);
+        BulkOperations bulkOperations = mongoOperations.bulkOps(BulkOperations.BulkMode.ORDERED, MongoPathMeta.class, pathCollection);
+
+        MongoPathMeta parent = null;
+        for (NormalizedPath p : chain) {
+            MongoPathMeta meta = directories.get(p.toString());
+            if (null == meta) {
+                meta = new MongoPathMeta(p, null);
+                meta.setId(ObjectId.get().toString());
+                meta.setTotalSize(0);
+                meta.setFileCount(0);
+
+                //只在插入时写入，其他节点同时建立的目录及其用量保持不变。
+                Map<String, Object> fields = meta.toMap();
+                fields.put("totalSize", 0L);
+                fields.put("fileCount", 0L);
+                if (nameIndex) {
+                    fields.put("nameGrams", new ArrayList<>(NameIndex.trigrams(meta.getName())));
+                }
+
+                Update update = new Update();
+                fields.forEach((key, value) -> {
+                    if (null != value) {
+                        update.setOnInsert(key, value);
+                    }
+                });
+
+                bulkOperations.upsert(newPathQuery(p), update);
+                directories.put(p.toString(), meta);
+                created.add(meta);
+            }
+            else if (!meta.isDirectory()) {
+                throw new RuntimeException(String.format("该路径%s指向一个已经存在的文件。", p.getName()));
             }
 
-            return meta;
+            parent = meta;
         }
 
-        meta = new MongoPathMeta(normalizedPath, null);
+        if (!created.isEmpty() && bulkOperations.execute().getUpserts().size() < created.size()) {
+            //有目录被其他节点同时建立，以实际的文档为准。
+            Map<String, MongoPathMeta> actual = queryPathMetas(chain, false);
+            parent = null;
+            for (NormalizedPath p : chain) {
+                MongoPathMeta meta = actual.get(p.toString());
+                if (null == meta) throw new RuntimeException(String.format("目录%s在建立的同时被删除。", p));
 
-        if (!NormalizedPath.ROOT.equals(normalizedPath)) {
-            MongoPathMeta parent = createAndGetDirectory(normalizedPath.getParentPath());
-            meta.setParentId(parent.getId());
+                parent = meta;
+            }
+            created.removeIf(meta -> !meta.getId().equals(actual.get(new NormalizedPath(meta.getPath()).toString()).getId()));
+            directories = actual;
         }
 
-        mongoOperations.insert(meta, pathCollection);
+        directories.keySet().forEach(path -> existingDirectories.put(path, Boolean.TRUE));
+        return parent;
+    }
 
-        return meta;
+    /**
+     * 缓存的目录已被其他节点删除或移走时，新文件的用量更新匹配到的目录会少于应有的数量。
+     * 清空缓存，重新建立缺少的目录，并统计新建立的目录的用量。
+     *
+     * @param directories 新文件所在的目录
+     */
+    private void repairDirectories(Set<NormalizedPath> directories) {
+        existingDirectories.clear();
+
+        directories.forEach(directory -> {
+            List<MongoPathMeta> created = new ArrayList<>();
+            createAndGetDirectory(directory, created);
+
+            if (!created.isEmpty()) {
+                computeUsage(created.get(0));
+            }
+        });
+    }
+
+    /**
+     * 目录被删除或移动后，使目录及其下所有目录的id缓存失效。
+     */
+    private void evictDirectories(String path) {
+        if (NormalizedPath.ROOT.toString().equals(path)) {
+            existingDirectories.clear();
+            return;
+        }
+
+        String prefix = path + PATH_SEPARATOR;
+        synchronized (existingDirectories) {
+            existingDirectories.keySet().removeIf(p -> p.equals(path) || p.startsWith(prefix));
+        }
     }
 
     private void delete(NormalizedPath normalizedPath) {
@@ -447,68 +1636,252 @@ public class MongoDbFileSystem implements FileSystem {
         if (null == pathMeta) return;
 
         if (pathMeta.isDirectory()) {
-            delete(normalizedPath.getParentPath());
+            deleteTree(pathMeta);
+            evictDirectories(pathMeta.getPath());
+
+            if (normalizedPath.getParentNames().length > 0) {
+                mongoOperations.updateMulti(
+                    usageQuery(normalizedPath.getParentPath()),
+                    new Update().inc("totalSize", -Math.max(pathMeta.getTotalSize(), 0)).inc("fileCount", -Math.max(pathMeta.getFileCount(), 0)),
+                    pathCollection
+                );
+            }
         }
         else {
-            mongoOperations.remove(query, pathCollection);
+            //并发删除时只有真正删除了文档的一方扣减用量。
+            MongoPathMeta removed = mongoOperations.findAndRemove(query, MongoPathMeta.class, pathCollection);
+            if (null == removed) return;
 
-            if (null != pathMeta.getFileId()) {
-                gridFsOperations.delete(query);
-            }
+            releaseContent(contentIds(removed));
+            updateUsage(normalizedPath.getParentPath(), removed.getSize(), -1);
         }
     }
 
-    private void copyFileToDirectory(MongoPathMeta sourceFileMeta, MongoPathMeta directory, boolean replaceExisting) {
-        MongoPathMeta existFile = queryPathMeta(sourceFileMeta.getName(), directory.getId());
+    /**
+     * 删除目录及其下所有的路径。
+     */
+    private void deleteTree(MongoPathMeta directory) {
+        Query gridFsFiles = Query.query(descendantCriteria(directory))
+            .addCriteria(new Criteria().orOperator(Criteria.where("fileId").ne(null), Criteria.where("segments.0").exists(true)));
+        gridFsFiles.fields().include("_id");
+
+        //占用GridFS内容的文件逐个删除，只释放由这里删除的文档的内容，与并发的删除不会重复释放。
+        List<ObjectId> gridFsIds = new ArrayList<>();
+        mongoOperations.find(gridFsFiles, MongoPathMeta.class, pathCollection).forEach(meta -> {
+            MongoPathMeta removed = mongoOperations.findAndRemove(Query.query(Criteria.where("_id").is(meta.getId())), MongoPathMeta.class, pathCollection);
+            if (null != removed) {
+                gridFsIds.addAll(contentIds(removed));
+            }
+        });
 
-        if (null != existFile) {
-            if (!replaceExisting) return;
+        mongoOperations.remove(Query.query(descendantCriteria(directory)), pathCollection);
+        mongoOperations.remove(newPathQuery(directory), pathCollection);
 
-            MongoPathMeta destFileMeta = sourceFileMeta.clone();
-            destFileMeta.setParentId(directory.getId());
-            destFileMeta.setParent(directory.getPath());
+        if (!gridFsIds.isEmpty()) {
+            releaseContent(gridFsIds);
+        }
+    }
 
-            if (null != existFile.getFileId()) {
-                gridFSBucket.delete(existFile.getFileId());
+    /**
+     * 增加文件内容的引用。GridFS文件的metadata.sharedBy记录第一个路径之外还有几个路径共用该内容。
+     * 内容已被删除时（源文件同时被删除或改写），撤销已增加的引用并抛出异常，副本不会指向已删除的内容。
+     */
+    private void retainContent(MongoPathMeta file) {
+        List<ObjectId> retained = new ArrayList<>();
+        for (ObjectId id : contentIds(file)) {
+            if (0 == mongoOperations.updateFirst(Query.query(Criteria.where("_id").is(id)), new Update().inc(SHARED_BY, 1), gridFsFilesCollection).getMatchedCount()) {
+                releaseContent(retained);
+                throw new RuntimeException(String.format("文件%s在复制的同时被删除或改写。", file.getPath()));
             }
 
-            mongoOperations.updateFirst(newPathQuery(destFileMeta), Update.fromDocument(new Document(destFileMeta.toMap())), pathCollection);
+            retained.add(id);
         }
-        else {
-            MongoPathMeta destFileMeta = sourceFileMeta.clone();
-            destFileMeta.setParentId(directory.getId());
-            destFileMeta.setParent(directory.getPath());
+    }
 
-            if (null != destFileMeta.getFileId()) {
-                ObjectId fileId;
-                try {
-                    fileId = gridFsOperations.store(
-                        gridFsOperations.getResource(sourceFileMeta.getPath()).getInputStream(),
-                        destFileMeta.getPath()
-                    );
+    /**
+     * 释放文件内容的引用，没有其他路径共用时才删除GridFS文件。
+     * 删除以引用数仍然为0为条件，与{@link #retainContent(MongoPathMeta)}并发时，要么复制先增加了引用、这里改为减少引用，要么这里先删除、复制失败。
+     */
+    private void releaseContent(Collection<ObjectId> contentIds) {
+        List<ObjectId> unshared = new ArrayList<>();
+        for (ObjectId id : contentIds) {
+            Query shared = Query.query(Criteria.where("_id").is(id).and(SHARED_BY).gt(0));
+            Query notShared = Query.query(Criteria.where("_id").is(id).orOperator(Criteria.where(SHARED_BY).exists(false), Criteria.where(SHARED_BY).lte(0)));
+
+            while (0 == mongoOperations.updateFirst(shared, new Update().inc(SHARED_BY, -1), gridFsFilesCollection).getModifiedCount()) {
+                if (0 < mongoOperations.remove(notShared, gridFsFilesCollection).getDeletedCount()) {
+                    unshared.add(id);
+                    break;
                 }
-                catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-                destFileMeta.setFileId(fileId);
+
+                //已被删除
+                if (!mongoOperations.exists(Query.query(Criteria.where("_id").is(id)), gridFsFilesCollection)) break;
             }
+        }
+
+        if (!unshared.isEmpty()) {
+            mongoOperations.remove(Query.query(Criteria.where("files_id").in(unshared)), gridFsChunksCollection);
+        }
+    }
+
+    /**
+     * 复制文件的路径文档到target，与源文件共用内容。
+     */
+    private void copyFile(MongoPathMeta sourceFileMeta, NormalizedPath target, boolean replaceExisting) {
+        MongoPathMeta existFile = queryPathMeta(target);
+        if (null != existFile && (!replaceExisting || existFile.isDirectory() || existFile.getId().equals(sourceFileMeta.getId()))) return;
 
-            mongoOperations.insert(destFileMeta, pathCollection);
+        MongoPathMeta directory = createAndGetDirectory(target.getParentPath());
+
+        MongoPathMeta destFileMeta = sourceFileMeta.clone();
+        destFileMeta.setId(null == existFile ? ObjectId.get().toString() : existFile.getId());
+        destFileMeta.setParent(directory.getPath());
+        destFileMeta.setName(target.getName());
+
+        retainContent(sourceFileMeta);
+        mongoOperations.upsert(newPathQuery(destFileMeta), fileUpdate(destFileMeta), MongoPathMeta.class, pathCollection);
+        updateUsage(target.getParentPath(), null == existFile ? -1 : existFile.getSize(), sourceFileMeta.getSize());
+
+        if (null != existFile) {
+            releaseContent(contentIds(existFile));
         }
     }
 
     private void copyFromDirectoryToDirectory(MongoPathMeta srcDirectory, MongoPathMeta destDirectory, boolean replaceExisting) {
-        CloseableIterator<MongoPathMeta> iterator = getPathsInDirectory(srcDirectory);
-        iterator.forEachRemaining(meta -> {
-            if (meta.isDirectory()) {
-                MongoPathMeta subDirectory = meta.clone();
-                subDirectory.setParent(destDirectory.getPath());
-                subDirectory.setParentId(destDirectory.getId());
-                copyFromDirectoryToDirectory(meta, subDirectory, replaceExisting);
+        try (CloseableIterator<MongoPathMeta> iterator = getPathsInDirectory(srcDirectory)) {
+            iterator.forEachRemaining(meta -> {
+                NormalizedPath target = childPath(destDirectory, meta.getName());
+
+                if (meta.isDirectory()) {
+                    copyFromDirectoryToDirectory(meta, createAndGetDirectory(target), replaceExisting);
+                }
+                else {
+                    copyFile(meta, target, replaceExisting);
+                }
+            });
+        }
+    }
+
+    /**
+     * 把文件的路径文档改到target上。
+     */
+    private void moveFile(MongoPathMeta sourceFileMeta, NormalizedPath target, boolean replaceExisting) {
+        MongoPathMeta existFile = queryPathMeta(target);
+        if (null != existFile) {
+            if (!replaceExisting || existFile.isDirectory() || existFile.getId().equals(sourceFileMeta.getId())) return;
+
+            delete(target);
+        }
+
+        MongoPathMeta directory = createAndGetDirectory(target.getParentPath());
+        mongoOperations.updateFirst(newPathQuery(sourceFileMeta), relocation(directory, target.getName()), pathCollection);
+
+        updateUsage(new NormalizedPath(sourceFileMeta.getParent()), sourceFileMeta.getSize(), -1);
+        updateUsage(target.getParentPath(), -1, sourceFileMeta.getSize());
+    }
+
+    /**
+     * 目标不存在时，改写目录自身及其下所有路径的parent。后者以一次更新管道在服务端完成（需要mongodb 4.2）。
+     * 开始前在目录上记录目标路径，中途失败时由{@link #resumeMoves()}在下次启动时继续完成。
+     */
+    private void moveDirectory(MongoPathMeta srcDirectory, NormalizedPath target) {
+        mongoOperations.updateFirst(newPathQuery(srcDirectory), Update.update(MOVING_TO, target.toString()), pathCollection);
+        completeMove(srcDirectory, target);
+    }
+
+    /**
+     * 继续完成中途失败的目录移动。其下的路径可能已部分改写，改写只匹配仍在源目录下的路径，重新执行一次即可。
+     */
+    private void resumeMoves() {
+        mongoOperations.find(movingQuery(), Document.class, pathCollection).forEach(document -> {
+            MongoPathMeta srcDirectory = mongoOperations.getConverter().read(MongoPathMeta.class, document);
+            try {
+                completeMove(srcDirectory, new NormalizedPath(document.getString(MOVING_TO)));
             }
-            else {
-                copyFileToDirectory(meta, destDirectory, replaceExisting);
+            catch (RuntimeException e) {
+                log.message("无法继续完成目录的移动")
+                    .context("path", srcDirectory.getPath())
+                    .context("target", document.getString(MOVING_TO))
+                    .exception(e)
+                    .warn();
             }
         });
     }
+
+    private Query movingQuery() {
+        return Query.query(Criteria.where(MOVING_TO).exists(true));
+    }
+
+    /**
+     * 先改写其下路径，最后改写目录自身并去掉移动标记，标记还在说明移动没有完成。
+     */
+    private void completeMove(MongoPathMeta srcDirectory, NormalizedPath target) {
+        MongoPathMeta directory = createAndGetDirectory(target.getParentPath());
+
+        String sourcePath = srcDirectory.getPath();
+        Document rewriteParent = new Document("$set", new Document("parent", new Document("$concat", Arrays.asList(
+            target.toString(),
+            new Document("$substrCP", Arrays.asList("$parent", sourcePath.codePointCount(0, sourcePath.length()), Integer.MAX_VALUE))
+        ))));
+
+        mongoOperations.getCollection(pathCollection).updateMany(descendantCriteria(srcDirectory).getCriteriaObject(), Collections.singletonList(rewriteParent));
+        mongoOperations.updateFirst(newPathQuery(srcDirectory), relocation(directory, target.getName()).unset(MOVING_TO), pathCollection);
+        evictDirectories(sourcePath);
+
+        long totalSize = Math.max(srcDirectory.getTotalSize(), 0);
+        long fileCount = Math.max(srcDirectory.getFileCount(), 0);
+        mongoOperations.updateMulti(
+            usageQuery(new NormalizedPath(srcDirectory.getParent())),
+            new Update().inc("totalSize", -totalSize).inc("fileCount", -fileCount),
+            pathCollection
+        );
+        mongoOperations.updateMulti(
+            usageQuery(target.getParentPath()),
+            new Update().inc("totalSize", totalSize).inc("fileCount", fileCount),
+            pathCollection
+        );
+    }
+
+    /**
+     * 目标目录已存在时，逐个移动源目录下的路径，源目录移空后删除。
+     */
+    private void mergeDirectory(MongoPathMeta srcDirectory, MongoPathMeta destDirectory, boolean replaceExisting) {
+        List<MongoPathMeta> children;
+        try (CloseableIterator<MongoPathMeta> iterator = getPathsInDirectory(srcDirectory)) {
+            children = iteratorToStream(iterator).collect(Collectors.toList());
+        }
+
+        for (MongoPathMeta child : children) {
+            NormalizedPath target = childPath(destDirectory, child.getName());
+
+            if (!child.isDirectory()) {
+                moveFile(child, target, replaceExisting);
+                continue;
+            }
+
+            MongoPathMeta existDirectory = queryPathMeta(target);
+            if (null == existDirectory) {
+                moveDirectory(child, target);
+            }
+            else if (existDirectory.isDirectory()) {
+                mergeDirectory(child, existDirectory, replaceExisting);
+            }
+        }
+
+        if (!mongoOperations.exists(Query.query(Criteria.where("parent").is(srcDirectory.getPath())), pathCollection)) {
+            mongoOperations.remove(newPathQuery(srcDirectory), pathCollection);
+            evictDirectories(srcDirectory.getPath());
+        }
+    }
+
+    /**
+     * 没有开启名称索引时去掉原有的nameGrams，以免之后开启时沿用改名前的。
+     */
+    private Update relocation(MongoPathMeta directory, String name) {
+        Update update = new Update()
+            .set("parent", directory.getPath())
+            .set("name", name);
+
+        return nameIndex ? update.set("nameGrams", new ArrayList<>(NameIndex.trigrams(name))) : update.unset("nameGrams");
+    }
 }
@@ -1,11 +1,14 @@
 package me.insidezhou.southernquiet.filesystem.driver;
 
+import me.insidezhou.southernquiet.filesystem.NameIndex;
 import me.insidezhou.southernquiet.filesystem.NormalizedPath;
 import me.insidezhou.southernquiet.filesystem.PathMeta;
 import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 @SuppressWarnings({"WeakerAccess", "unused"})
@@ -42,17 +45,31 @@ public class MongoPathMeta extends PathMeta implements Cloneable {
     public Map<String, Object> toMap() {
         Map<String, Object> map = super.toMap();
         map.put("id", getId());
-        map.put("parentId", getParentId());
         map.put("fileId", getFileId());
         map.put("fileData", getFileData());
+        map.put("segments", getSegments());
         return map;
     }
 
+    /**
+     * 按当前名称设置nameGrams。{@link #toMap()}不包含nameGrams，只在开启名称索引时单独写入。
+     */
+    public void indexName() {
+        setNameGrams(new ArrayList<>(NameIndex.trigrams(getName())));
+    }
+
     private String id;
-    private String parentId;
 
     private ObjectId fileId;
     private Binary fileData;
+    /**
+     * 追加写入的GridFS分段，按顺序接在fileId或fileData的内容之后。
+     */
+    private List<ObjectId> segments;
+    /**
+     * 名称的三元组，用于按名称查找，见{@link NameIndex}。
+     */
+    private List<String> nameGrams;
 
     public String getId() {
         return id;
@@ -62,14 +79,6 @@ public class MongoPathMeta extends PathMeta implements Cloneable {
         this.id = id;
     }
 
-    public String getParentId() {
-        return parentId;
-    }
-
-    public void setParentId(String parentId) {
-        this.parentId = parentId;
-    }
-
     public ObjectId getFileId() {
         return fileId;
     }
@@ -85,4 +94,20 @@ public class MongoPathMeta extends PathMeta implements Cloneable {
     public void setFileData(Binary fileData) {
         this.fileData = fileData;
     }
+
+    public List<ObjectId> getSegments() {
+        return segments;
+    }
+
+    public void setSegments(List<ObjectId> segments) {
+        this.segments = segments;
+    }
+
+    public List<String> getNameGrams() {
+        return nameGrams;
+    }
+
+    public void setNameGrams(List<String> nameGrams) {
+        this.nameGrams = nameGrams;
+    }
 }
@@ -0,0 +1,188 @@
+package me.insidezhou.southernquiet.filesystem.driver;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import me.insidezhou.southernquiet.filesystem.PathChange;
+import me.insidezhou.southernquiet.filesystem.PathChangeBatcher;
+import me.insidezhou.southernquiet.logging.SouthernQuietLogger;
+import me.insidezhou.southernquiet.logging.SouthernQuietLoggerFactory;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static me.insidezhou.southernquiet.filesystem.FileSystem.PATH_SEPARATOR_STRING;
+
+/**
+ * 基于change stream监听路径集合，需要mongodb以副本集或分片集群的方式部署。
+ * <p>
+ * 删除事件中只有文档的_id，所以启动时加载被监听范围内所有文档的_id及路径，之后随事件更新。
+ * 移动后的文档不再满足范围条件，所以更新事件不按范围过滤，由已加载的_id判断移出范围的文档，作为删除投递。
+ */
+class MongoPathWatcher implements Closeable {
+    private final static SouthernQuietLogger log = SouthernQuietLoggerFactory.getLogger(MongoPathWatcher.class);
+
+    private final String root;
+    private final boolean recursive;
+    private final PathChangeBatcher batcher;
+    private final MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor;
+    private final Map<BsonValue, String> paths = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    MongoPathWatcher(MongoCollection<Document> collection, String root, boolean recursive, PathChangeBatcher batcher) {
+        this.root = root;
+        this.recursive = recursive;
+        this.batcher = batcher;
+
+        //先打开change stream再加载快照，加载期间的变化不会遗漏。
+        this.cursor = collection
+            .watch(Collections.singletonList(Aggregates.match(Filters.or(
+                Filters.eq("operationType", "delete"),
+                Filters.in("operationType", "update", "replace", "drop", "rename", "dropDatabase", "invalidate"),
+                scope("fullDocument.parent", root, recursive)
+            ))))
+            .fullDocument(FullDocument.UPDATE_LOOKUP)
+            .maxAwaitTime(1, TimeUnit.SECONDS)
+            .cursor();
+
+        try {
+            for (Document document : collection.find(scope("parent", root, recursive)).projection(Projections.include("parent", "name"))) {
+                paths.put(document.toBsonDocument(Document.class, collection.getCodecRegistry()).get("_id"), path(document));
+            }
+        }
+        catch (RuntimeException e) {
+            cursor.close();
+            throw e;
+        }
+
+        Thread thread = new Thread(this::run, "sq-watch-mongodb");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        batcher.close();
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                ChangeStreamDocument<Document> change = cursor.tryNext();
+                if (null != change) {
+                    handle(change);
+                }
+            }
+        }
+        catch (MongoException e) {
+            if (!closed) {
+                log.message("监听路径集合的change stream中断").context("root", root).exception(e).error();
+                batcher.add(new PathChange(PathChange.Type.OVERFLOW, root));
+                batcher.close();
+            }
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    private void handle(ChangeStreamDocument<Document> change) {
+        BsonValue id = null == change.getDocumentKey() ? null : change.getDocumentKey().get("_id");
+
+        switch (change.getOperationType()) {
+            case INSERT:
+                add(id, change.getFullDocument(), PathChange.Type.CREATED);
+                break;
+
+            case UPDATE:
+            case REPLACE:
+                add(id, change.getFullDocument(), PathChange.Type.MODIFIED);
+                break;
+
+            case DELETE:
+                //不在快照中的文档不在监听范围内
+                String path = null == id ? null : paths.remove(id);
+                if (null != path) {
+                    batcher.add(new PathChange(PathChange.Type.DELETED, path));
+                }
+                break;
+
+            default:
+                batcher.add(new PathChange(PathChange.Type.OVERFLOW, root));
+                closed = true;
+                batcher.close();
+        }
+    }
+
+    private void add(BsonValue id, Document document, PathChange.Type type) {
+        //更新后随即被删除的文档查不到最新的内容，由之后的删除事件处理。
+        if (null == document) return;
+
+        String previous = null == id ? null : paths.get(id);
+        if (!inScope(document.getString("parent"))) {
+            //移出监听范围
+            if (null != previous) {
+                paths.remove(id);
+                batcher.add(new PathChange(PathChange.Type.DELETED, previous));
+            }
+            return;
+        }
+
+        String path = path(document);
+        if (null != id) {
+            paths.put(id, path);
+        }
+
+        if (null != previous && !previous.equals(path)) {
+            //范围内的移动
+            batcher.add(new PathChange(PathChange.Type.DELETED, previous));
+            batcher.add(new PathChange(PathChange.Type.CREATED, path));
+        }
+        else if (null == previous && PathChange.Type.MODIFIED == type) {
+            //移入监听范围
+            batcher.add(new PathChange(PathChange.Type.CREATED, path));
+        }
+        else {
+            batcher.add(new PathChange(type, path));
+        }
+    }
+
+    private boolean inScope(String parent) {
+        if (null == parent) return false;
+        if (!recursive) return root.equals(parent);
+
+        return PATH_SEPARATOR_STRING.equals(root) || root.equals(parent) || parent.startsWith(root + PATH_SEPARATOR_STRING);
+    }
+
+    private static String path(Document document) {
+        String parent = document.getString("parent");
+        String name = document.getString("name");
+        return PATH_SEPARATOR_STRING.equals(parent) ? parent + name : parent + PATH_SEPARATOR_STRING + name;
+    }
+
+    /**
+     * @param field 上级路径的字段名，change stream中的文档在fullDocument字段下。
+     */
+    private static Bson scope(String field, String root, boolean recursive) {
+        if (!recursive) return Filters.eq(field, root);
+        if (PATH_SEPARATOR_STRING.equals(root)) return Filters.exists(field);
+
+        return Filters.or(
+            Filters.eq(field, root),
+            Filters.regex(field, "^" + Pattern.quote(root + PATH_SEPARATOR_STRING))
+        );
+    }
+}
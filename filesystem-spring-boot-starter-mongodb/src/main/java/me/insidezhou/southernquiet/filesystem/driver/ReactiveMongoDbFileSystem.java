@@ -0,0 +1,180 @@
+package me.insidezhou.southernquiet.filesystem.driver;
+
+import com.mongodb.reactivestreams.client.gridfs.GridFSBucket;
+import me.insidezhou.southernquiet.filesystem.*;
+import org.bson.types.ObjectId;
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * 基于{@link ReactiveMongoOperations}及响应式GridFS驱动的{@link ReactiveFileSystem}。
+ * <ul>
+ * <li>读取文件、获取元信息及摘要、列出目录都是非阻塞的，列出目录时按订阅方的需求从游标中分批获取。只有元信息中没有摘要时才在调度器上计算。</li>
+ * <li>超过内嵌阈值的文件内容以非阻塞的方式写入GridFS，写入后更新路径元信息、删除等需要维护用量的操作仍然交给{@link MongoDbFileSystem}。</li>
+ * <li>直接读写mongodb，不经过压缩及本地缓存等装饰器。</li>
+ * </ul>
+ */
+public class ReactiveMongoDbFileSystem extends ReactiveFileSystemAdapter {
+    private final MongoDbFileSystem mongoDbFileSystem;
+    private final ReactiveMongoOperations mongoOperations;
+    private final GridFSBucket gridFSBucket;
+
+    public ReactiveMongoDbFileSystem(MongoDbFileSystem fileSystem, ReactiveMongoOperations mongoOperations, GridFSBucket gridFSBucket) {
+        this(fileSystem, mongoOperations, gridFSBucket, Schedulers.boundedElastic(), DEFAULT_BUFFER_SIZE);
+    }
+
+    public ReactiveMongoDbFileSystem(MongoDbFileSystem fileSystem, ReactiveMongoOperations mongoOperations, GridFSBucket gridFSBucket, Scheduler scheduler, int bufferSize) {
+        super(fileSystem, scheduler, bufferSize);
+
+        this.mongoDbFileSystem = fileSystem;
+        this.mongoOperations = mongoOperations;
+        this.gridFSBucket = gridFSBucket;
+    }
+
+    @Override
+    public Mono<PathMeta> meta(String path) {
+        return queryPathMeta(new NormalizedPath(path)).cast(PathMeta.class);
+    }
+
+    @Override
+    public Mono<Boolean> exists(String path) {
+        return mongoOperations.exists(mongoDbFileSystem.newPathQuery(new NormalizedPath(path)), MongoPathMeta.class, mongoDbFileSystem.getPathCollection());
+    }
+
+    @Override
+    public Flux<PathMeta> list(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) {
+        return queryPathMeta(new NormalizedPath(path))
+            .filter(MongoPathMeta::isDirectory)
+            .switchIfEmpty(Mono.error(() -> new PathNotFoundException(path)))
+            .flatMapMany(root -> mongoOperations.find(
+                mongoDbFileSystem.filesQuery(root, search, recursive, offset, limit, sort),
+                MongoPathMeta.class,
+                mongoDbFileSystem.getPathCollection()
+            ));
+    }
+
+    /**
+     * 元信息中已有摘要时直接返回，否则在调度器上由{@link MongoDbFileSystem#digest(String)}计算并保存。
+     */
+    @Override
+    public Mono<String> digest(String path) {
+        return queryPathMeta(new NormalizedPath(path))
+            .switchIfEmpty(Mono.error(() -> new InvalidFileException(path)))
+            .flatMap(meta -> {
+                if (meta.isDirectory()) return Mono.error(new InvalidFileException(path));
+                if (null != meta.getDigest()) return Mono.just(meta.getDigest());
+
+                return super.digest(path);
+            });
+    }
+
+    @Override
+    public Flux<DataBuffer> read(String path) {
+        return queryPathMeta(new NormalizedPath(path))
+            .switchIfEmpty(Mono.error(() -> new InvalidFileException(path)))
+            .flatMapMany(meta -> {
+                if (meta.isDirectory()) return Flux.error(new InvalidFileException(path));
+
+                //没有内嵌内容也没有GridFS文件的文档视为空文件。
+                Flux<DataBuffer> head = null == meta.getFileId()
+                    ? null == meta.getFileData() ? Flux.empty() : Flux.just(bufferFactory.wrap(meta.getFileData().getData()))
+                    : download(meta.getFileId());
+
+                if (null == meta.getSegments() || meta.getSegments().isEmpty()) return head;
+
+                return head.concatWith(Flux.fromIterable(meta.getSegments()).concatMap(this::download));
+            });
+    }
+
+    private Mono<MongoPathMeta> queryPathMeta(NormalizedPath normalizedPath) {
+        return mongoOperations.findOne(mongoDbFileSystem.newPathQuery(normalizedPath), MongoPathMeta.class, mongoDbFileSystem.getPathCollection());
+    }
+
+    private Flux<DataBuffer> download(ObjectId fileId) {
+        return Flux.from(gridFSBucket.downloadToPublisher(fileId).bufferSizeBytes(bufferSize))
+            .map(bufferFactory::wrap);
+    }
+
+    /**
+     * 不超过内嵌阈值的内容合并后由{@link MongoDbFileSystem#put(String, InputStream)}保存在文档中，
+     * 超过阈值的内容以非阻塞的方式上传到GridFS，上传完成后在调度器上更新路径元信息。
+     */
+    @Override
+    public Mono<Void> write(String path, Publisher<DataBuffer> data) {
+        int threshold = mongoDbFileSystem.getFileSizeThreshold();
+        AtomicLong buffered = new AtomicLong();
+
+        //第一批积累到超过阈值为止，之后每块各成一批。第一批不超过阈值说明内容已经结束。
+        return Flux.from(data)
+            .bufferUntil(buffer -> buffered.addAndGet(buffer.readableByteCount()) > threshold)
+            .switchOnFirst((signal, batches) -> {
+                List<DataBuffer> head = signal.hasValue() ? signal.get() : Collections.emptyList();
+                if (head.stream().mapToLong(DataBuffer::readableByteCount).sum() <= threshold) {
+                    return batches.then(Mono.defer(() -> putInline(path, head)));
+                }
+
+                return upload(path, batches.concatMapIterable(Function.identity()));
+            })
+            .then();
+    }
+
+    private Mono<Void> putInline(String path, List<DataBuffer> buffers) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        buffers.forEach(buffer -> {
+            byte[] bytes = new byte[buffer.readableByteCount()];
+            buffer.read(bytes);
+            DataBufferUtils.release(buffer);
+            outputStream.write(bytes, 0, bytes.length);
+        });
+
+        return Mono.<Void>fromCallable(() -> {
+            mongoDbFileSystem.put(path, new ByteArrayInputStream(outputStream.toByteArray()));
+            return null;
+        }).subscribeOn(scheduler);
+    }
+
+    private Mono<Void> upload(String path, Flux<DataBuffer> data) {
+        AtomicLong size = new AtomicLong();
+        MessageDigest messageDigest = ContentDigest.newMessageDigest();
+
+        Flux<ByteBuffer> content = data.map(buffer -> {
+            byte[] bytes = new byte[buffer.readableByteCount()];
+            buffer.read(bytes);
+            DataBufferUtils.release(buffer);
+
+            size.addAndGet(bytes.length);
+            messageDigest.update(bytes);
+            return ByteBuffer.wrap(bytes);
+        });
+
+        String candidateFilename = path + "_" + System.nanoTime();
+
+        return Mono.from(gridFSBucket.uploadFromPublisher(candidateFilename, content))
+            .publishOn(scheduler)
+            .flatMap(fileId -> {
+                try {
+                    mongoDbFileSystem.putGridFsFile(path, fileId, size.get(), ContentDigest.toHex(messageDigest));
+                    return Mono.<Void>empty();
+                }
+                catch (InvalidFileException e) {
+                    return Mono.error(e);
+                }
+            });
+    }
+}
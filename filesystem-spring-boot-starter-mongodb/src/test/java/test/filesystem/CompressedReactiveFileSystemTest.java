@@ -0,0 +1,47 @@
+package test.filesystem;
+
+import me.insidezhou.southernquiet.filesystem.FileSystem;
+import me.insidezhou.southernquiet.filesystem.ReactiveFileSystem;
+import me.insidezhou.southernquiet.filesystem.driver.ReactiveMongoDbFileSystem;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+@SpringBootTest(properties = "southern-quiet.framework.file-system.mongodb.compression=true")
+@RunWith(SpringRunner.class)
+public class CompressedReactiveFileSystemTest {
+    @Configuration
+    @EnableAutoConfiguration
+    public static class Config {}
+
+    @Autowired
+    private FileSystem fileSystem;
+
+    @Autowired
+    private ReactiveFileSystem reactiveFileSystem;
+
+    /**
+     * 启用压缩时，下载经过首选的FileSystem解压，大小也是原始大小。
+     */
+    @Test
+    public void read() throws Exception {
+        Assert.assertFalse(reactiveFileSystem instanceof ReactiveMongoDbFileSystem);
+
+        byte[] bytes = new byte[64 * 1024];
+        Arrays.fill(bytes, (byte) 'a');
+        fileSystem.put("reactive_compression/a.txt", new ByteArrayInputStream(bytes));
+
+        Assert.assertArrayEquals(bytes, ReactiveMongoDbFileSystemTest.read(reactiveFileSystem, "reactive_compression/a.txt"));
+        Assert.assertEquals(bytes.length, reactiveFileSystem.meta("reactive_compression/a.txt").block().getSize());
+
+        fileSystem.delete("reactive_compression");
+    }
+}
@@ -1,11 +1,45 @@
 package test.filesystem;
 
+import com.mongodb.client.gridfs.model.GridFSFile;
+import me.insidezhou.southernquiet.filesystem.ContentDigest;
+import me.insidezhou.southernquiet.filesystem.InvalidFileException;
+import me.insidezhou.southernquiet.filesystem.MongoDbFileSystemAutoConfiguration;
+import me.insidezhou.southernquiet.filesystem.NormalizedPath;
+import me.insidezhou.southernquiet.filesystem.PathMeta;
+import me.insidezhou.southernquiet.filesystem.PathNotFoundException;
+import me.insidezhou.southernquiet.filesystem.driver.MongoDbFileSystem;
+import me.insidezhou.southernquiet.filesystem.driver.MongoPathMeta;
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.MongoDatabaseFactory;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.GridFsCriteria;
+import org.springframework.data.mongodb.gridfs.GridFsOperations;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @SpringBootTest
 @RunWith(SpringRunner.class)
@@ -14,4 +48,450 @@ public class MongoDbFileSystemTest extends FileSystemTest {
     @EnableAutoConfiguration
     @ComponentScan({"me.insidezhou.southernquiet.filesystem"})
     public static class Config {}
+
+    @Autowired
+    private MongoDbFileSystem mongoDbFileSystem;
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Autowired
+    private GridFsOperations gridFsOperations;
+
+    @Autowired
+    private MongoDatabaseFactory mongoDatabaseFactory;
+
+    @Test
+    public void collectionScans() {
+        Assert.assertTrue(mongoDbFileSystem.collectionScans().toString(), mongoDbFileSystem.collectionScans().isEmpty());
+    }
+
+    @Test
+    public void recursiveListing() throws Exception {
+        mongoDbFileSystem.delete("mongo_tree");
+
+        //名称中的正则元字符按字面匹配，同一前缀的兄弟目录不算在内。
+        mongoDbFileSystem.put("mongo_tree/a.b(1)/x.txt", "x");
+        mongoDbFileSystem.put("mongo_tree/a.b(1)/sub/y.txt", "y");
+        mongoDbFileSystem.put("mongo_tree/axb(1)/z.txt", "z");
+        mongoDbFileSystem.put("mongo_tree/a.b(1)2/w.txt", "w");
+
+        Assert.assertEquals(
+            new HashSet<>(Arrays.asList("/mongo_tree/a.b(1)/x.txt", "/mongo_tree/a.b(1)/sub/y.txt")),
+            mongoDbFileSystem.files("mongo_tree/a.b(1)", true).map(PathMeta::getPath).collect(Collectors.toSet())
+        );
+        Assert.assertEquals(1, mongoDbFileSystem.directories("mongo_tree/a.b(1)", true).count());
+        Assert.assertEquals(4, mongoDbFileSystem.files("mongo_tree", true).count());
+        Assert.assertEquals(1, mongoDbFileSystem.files("mongo_tree", "y", true).count());
+
+        mongoDbFileSystem.delete("mongo_tree");
+    }
+
+    @Test
+    public void putAllRollback() throws Exception {
+        MongoDbFileSystem fileSystem = newFileSystem(properties -> {});
+        fileSystem.delete("mongo_rollback");
+        fileSystem.createDirectory("mongo_rollback/dir");
+
+        //后面的条目失败时，前面已经上传到GridFS的内容被删除。
+        Map<String, InputStream> files = new LinkedHashMap<>();
+        files.put("mongo_rollback/a.txt", new ByteArrayInputStream(content(1024)));
+        files.put("mongo_rollback/dir", new ByteArrayInputStream(content(1024)));
+        try {
+            fileSystem.putAll(files);
+            Assert.fail();
+        }
+        catch (InvalidFileException e) {
+            //pass
+        }
+
+        Assert.assertFalse(fileSystem.exists("mongo_rollback/a.txt"));
+        Assert.assertNull(gridFsOperations.findOne(Query.query(GridFsCriteria.whereFilename().is("/mongo_rollback/a.txt"))));
+
+        fileSystem.delete("mongo_rollback");
+    }
+
+    @Test
+    public void appendCompaction() throws Exception {
+        MongoDbFileSystem fileSystem = newFileSystem(properties -> {
+            properties.setSegmentCompactionThreshold(4);
+            properties.setSegmentReleaseDelay(Duration.ofSeconds(3));
+        });
+        fileSystem.delete("mongo_append");
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(content(10000));
+        fileSystem.put("mongo_append/log.txt", new ByteArrayInputStream(expected.toByteArray()));
+        ObjectId body = pathMeta("mongo_append/log.txt").getFileId();
+
+        InputStream reader = null;
+        byte[] snapshot = null;
+        for (int i = 0; i < 40; ++i) {
+            byte[] segment = content(10 + i);
+            try (OutputStream outputStream = fileSystem.openWriteStream("mongo_append/log.txt")) {
+                outputStream.write(segment);
+            }
+            expected.write(segment);
+
+            //读取开始后发生的合并不影响这次读取。
+            if (10 == i) {
+                reader = fileSystem.openReadStream("mongo_append/log.txt");
+                snapshot = expected.toByteArray();
+                Assert.assertEquals(snapshot[0], (byte) reader.read());
+            }
+        }
+
+        await(() -> pathMeta("mongo_append/log.txt").getSegments().size() < 4);
+        Assert.assertArrayEquals(Arrays.copyOfRange(snapshot, 1, snapshot.length), StreamUtils.copyToByteArray(reader));
+        reader.close();
+
+        //只合并大小相近的尾部分段，远大于它们的主体不会被重写。
+        MongoPathMeta meta = pathMeta("mongo_append/log.txt");
+        Assert.assertEquals(body, meta.getFileId());
+        Assert.assertArrayEquals(expected.toByteArray(), StreamUtils.copyToByteArray(fileSystem.openReadStream("mongo_append/log.txt")));
+        Assert.assertEquals(expected.size(), fileSystem.meta("mongo_append/log.txt").getSize());
+
+        //延迟过后，被替换的分段都已删除。
+        await(() -> 1 + pathMeta("mongo_append/log.txt").getSegments().size() == gridFsFiles("/mongo_append/log.txt"));
+
+        //追加后的摘要在第一次获取时计算并保存，只保存给计算时的内容。
+        fileSystem.put("mongo_append/digest.txt", new ByteArrayInputStream(content(100)));
+        try (OutputStream outputStream = fileSystem.openWriteStream("mongo_append/digest.txt")) {
+            outputStream.write(content(50));
+        }
+        Assert.assertNull(pathMeta("mongo_append/digest.txt").getDigest());
+        String digest = fileSystem.digest("mongo_append/digest.txt");
+        Assert.assertEquals(ContentDigest.of(read(fileSystem, "mongo_append/digest.txt")), digest);
+        Assert.assertEquals(digest, pathMeta("mongo_append/digest.txt").getDigest());
+
+        fileSystem.delete("mongo_append");
+    }
+
+    @Test
+    public void rangedRead() throws Exception {
+        int chunkSize = 255 * 1024;
+
+        for (int readAheadChunks : new int[]{0, 1, 2}) {
+            MongoDbFileSystem fileSystem = newFileSystem(properties -> {
+                properties.setSegmentCompactionThreshold(0);
+                properties.setReadAheadChunks(readAheadChunks);
+                properties.setReadAheadThreads(1);
+            });
+            fileSystem.delete("mongo_range");
+
+            //主体3块，后面是跨越块边界的分段及很小的分段。
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write(content(2 * chunkSize + 100));
+            fileSystem.put("mongo_range/a.bin", new ByteArrayInputStream(expected.toByteArray()));
+            for (int size : new int[]{chunkSize + 1, 10, chunkSize - 1}) {
+                byte[] segment = content(size);
+                try (OutputStream outputStream = fileSystem.openWriteStream("mongo_range/a.bin")) {
+                    outputStream.write(segment);
+                }
+                expected.write(segment);
+            }
+            byte[] bytes = expected.toByteArray();
+            int body = 2 * chunkSize + 100;
+
+            long[][] ranges = {
+                {0, 10},
+                {chunkSize - 1, 2},
+                {chunkSize, chunkSize},
+                {chunkSize - 1, chunkSize + 2},
+                {body - 5, 10},
+                {body + chunkSize - 1, 20},
+                {chunkSize / 2, bytes.length},
+                {bytes.length - 1, 10},
+                {bytes.length, 10},
+            };
+            for (long[] range : ranges) {
+                int from = (int) Math.min(range[0], bytes.length);
+                int to = (int) Math.min(range[0] + range[1], bytes.length);
+                try (InputStream inputStream = fileSystem.openReadStream("mongo_range/a.bin", range[0], range[1])) {
+                    Assert.assertArrayEquals(Arrays.copyOfRange(bytes, from, to), StreamUtils.copyToByteArray(inputStream));
+                }
+            }
+
+            //同时读取的数量超过预读线程时，没有线程可用的读取在自己的线程上读取。
+            List<InputStream> readers = new ArrayList<>();
+            for (int i = 0; i < 4; ++i) {
+                readers.add(fileSystem.openReadStream("mongo_range/a.bin", i, bytes.length));
+            }
+            ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[readers.size()];
+            byte[] buffer = new byte[10000];
+            boolean reading = true;
+            while (reading) {
+                reading = false;
+                for (int i = 0; i < readers.size(); ++i) {
+                    if (null == outputs[i]) outputs[i] = new ByteArrayOutputStream();
+
+                    int read = readers.get(i).read(buffer);
+                    if (-1 != read) {
+                        outputs[i].write(buffer, 0, read);
+                        reading = true;
+                    }
+                }
+            }
+            for (int i = 0; i < readers.size(); ++i) {
+                readers.get(i).close();
+                Assert.assertArrayEquals(Arrays.copyOfRange(bytes, i, bytes.length), outputs[i].toByteArray());
+            }
+
+            //关闭后预读线程不再可用，仍然可以读取。
+            fileSystem.close();
+            try (InputStream inputStream = fileSystem.openReadStream("mongo_range/a.bin", 1, bytes.length)) {
+                Assert.assertArrayEquals(Arrays.copyOfRange(bytes, 1, bytes.length), StreamUtils.copyToByteArray(inputStream));
+            }
+
+            fileSystem.delete("mongo_range");
+        }
+    }
+
+    @Test
+    public void sharedContent() throws Exception {
+        MongoDbFileSystem fileSystem = newFileSystem(properties -> {});
+        fileSystem.delete("mongo_shared");
+
+        byte[] bytes = content(1024);
+        fileSystem.put("mongo_shared/a.txt", new ByteArrayInputStream(bytes));
+        fileSystem.copy("mongo_shared/a.txt", "mongo_shared/b.txt");
+        fileSystem.copy("mongo_shared/a.txt", "mongo_shared/c.txt");
+        Assert.assertEquals(1, gridFsFiles("/mongo_shared/a.txt"));
+
+        //源文件删除、副本被改写后，剩下的副本仍然可读，最后一个引用释放时才删除GridFS文件。
+        fileSystem.delete("mongo_shared/a.txt");
+        fileSystem.put("mongo_shared/b.txt", "b");
+        Assert.assertArrayEquals(bytes, read(fileSystem, "mongo_shared/c.txt"));
+        Assert.assertEquals(1, gridFsFiles("/mongo_shared/a.txt"));
+
+        fileSystem.delete("mongo_shared/c.txt");
+        Assert.assertEquals(0, gridFsFiles("/mongo_shared/a.txt"));
+
+        //复制与删除源文件并发时，副本要么复制失败，要么内容完整。
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        for (int i = 0; i < 50; ++i) {
+            fileSystem.put("mongo_shared/src.txt", new ByteArrayInputStream(bytes));
+
+            String target = "mongo_shared/copy" + i + ".txt";
+            Future<?> copy = executor.submit(() -> {
+                try {
+                    fileSystem.copy("mongo_shared/src.txt", target);
+                }
+                catch (PathNotFoundException | RuntimeException e) {
+                    //源文件先被删除
+                }
+                return null;
+            });
+            Future<?> delete = executor.submit(() -> {
+                fileSystem.delete("mongo_shared/src.txt");
+                return null;
+            });
+            copy.get();
+            delete.get();
+
+            if (fileSystem.exists(target)) {
+                Assert.assertArrayEquals(bytes, read(fileSystem, target));
+            }
+        }
+
+        //同一个路径被批量删除与单个删除并发时，共用内容的副本只被释放一次引用，仍然可读。
+        for (int i = 0; i < 50; ++i) {
+            fileSystem.put("mongo_shared/raced.txt", new ByteArrayInputStream(bytes));
+            fileSystem.copy("mongo_shared/raced.txt", "mongo_shared/kept.txt");
+
+            Future<?> deleteAll = executor.submit(() -> {
+                fileSystem.deleteAll(Collections.singletonList("mongo_shared/raced.txt"));
+                return null;
+            });
+            Future<?> delete = executor.submit(() -> {
+                fileSystem.delete("mongo_shared/raced.txt");
+                return null;
+            });
+            deleteAll.get();
+            delete.get();
+
+            Assert.assertArrayEquals(bytes, read(fileSystem, "mongo_shared/kept.txt"));
+            fileSystem.delete("mongo_shared/kept.txt");
+        }
+        executor.shutdown();
+
+        fileSystem.delete("mongo_shared");
+        Assert.assertEquals(0, gridFsFiles("/mongo_shared/src.txt"));
+    }
+
+    @Test
+    public void moveDirectory() throws Exception {
+        MongoDbFileSystem fileSystem = newFileSystem(properties -> {});
+        fileSystem.delete("mongo_move");
+
+        fileSystem.put("mongo_move/src/a.txt", "a");
+        fileSystem.put("mongo_move/src/sub/b.txt", "bb");
+        fileSystem.move("mongo_move/src", "mongo_move/dest");
+
+        Assert.assertFalse(fileSystem.exists("mongo_move/src"));
+        Assert.assertEquals("a", fileSystem.read("mongo_move/dest/a.txt"));
+        Assert.assertEquals("bb", fileSystem.read("mongo_move/dest/sub/b.txt"));
+        assertUsage("mongo_move/dest", 3, 2);
+
+        //模拟中途失败：只改写了其下的部分路径，目录自身还在原处，下次启动时继续完成。
+        mongoOperations.updateFirst(
+            Query.query(Criteria.where("parent").is("/mongo_move").and("name").is("dest")),
+            Update.update("movingTo", "/mongo_move/moved"),
+            new MongoDbFileSystemAutoConfiguration.Properties().getPathCollection()
+        );
+        mongoOperations.updateFirst(
+            Query.query(Criteria.where("parent").is("/mongo_move/dest").and("name").is("a.txt")),
+            Update.update("parent", "/mongo_move/moved"),
+            new MongoDbFileSystemAutoConfiguration.Properties().getPathCollection()
+        );
+
+        newFileSystem(properties -> {});
+        Assert.assertFalse(fileSystem.exists("mongo_move/dest"));
+        Assert.assertEquals("a", fileSystem.read("mongo_move/moved/a.txt"));
+        Assert.assertEquals("bb", fileSystem.read("mongo_move/moved/sub/b.txt"));
+        assertUsage("mongo_move/moved", 3, 2);
+        assertUsage("mongo_move", 3, 2);
+
+        fileSystem.delete("mongo_move");
+    }
+
+    @Test
+    public void directoryCache() throws Exception {
+        MongoDbFileSystem fileSystem = newFileSystem(properties -> {});
+        fileSystem.delete("mongo_cache");
+        fileSystem.put("mongo_cache/a/1.txt", "1");
+
+        //其他节点删除后在同一路径上重建了目录，缓存仍然有效。
+        mongoDbFileSystem.delete("mongo_cache/a");
+        mongoDbFileSystem.put("mongo_cache/a/2.txt", "22");
+        fileSystem.put("mongo_cache/a/3.txt", "333");
+        Assert.assertEquals(
+            new HashSet<>(Arrays.asList("2.txt", "3.txt")),
+            fileSystem.files("mongo_cache/a").map(PathMeta::getName).collect(Collectors.toSet())
+        );
+        assertUsage("mongo_cache/a", 5, 2);
+
+        //其他节点删除了缓存的目录，写入后重新建立并统计用量。
+        mongoDbFileSystem.delete("mongo_cache");
+        fileSystem.put("mongo_cache/a/4.txt", "4444");
+        Assert.assertTrue(fileSystem.meta("mongo_cache/a").isDirectory());
+        Assert.assertEquals(1, fileSystem.files("mongo_cache/a").count());
+        assertUsage("mongo_cache", 4, 1);
+        assertUsage("mongo_cache/a", 4, 1);
+
+        mongoDbFileSystem.delete("mongo_cache");
+        Map<String, InputStream> files = new HashMap<>();
+        files.put("mongo_cache/a/5.txt", new ByteArrayInputStream(new byte[5]));
+        files.put("mongo_cache/a/6.txt", new ByteArrayInputStream(new byte[6]));
+        fileSystem.putAll(files);
+        assertUsage("mongo_cache", 11, 2);
+        assertUsage("mongo_cache/a", 11, 2);
+
+        fileSystem.delete("mongo_cache");
+    }
+
+    @Test
+    public void usage() throws Exception {
+        mongoDbFileSystem.delete("mongo_usage");
+
+        mongoDbFileSystem.put("mongo_usage/a/1.txt", "123");
+        mongoDbFileSystem.put("mongo_usage/a/2.txt", "12345");
+        mongoDbFileSystem.put("mongo_usage/b/1.txt", "1");
+        assertUsage("mongo_usage", 9, 3);
+        assertUsage("mongo_usage/a", 8, 2);
+
+        mongoDbFileSystem.put("mongo_usage/a/1.txt", "1");
+        assertUsage("mongo_usage/a", 6, 2);
+
+        mongoDbFileSystem.copy("mongo_usage/a", "mongo_usage/c");
+        assertUsage("mongo_usage", 13, 5);
+
+        mongoDbFileSystem.move("mongo_usage/c/2.txt", "mongo_usage/b/2.txt");
+        assertUsage("mongo_usage/b", 6, 2);
+        assertUsage("mongo_usage/c", 1, 1);
+
+        mongoDbFileSystem.delete("mongo_usage/a");
+        mongoDbFileSystem.deleteAll(Arrays.asList("mongo_usage/b/1.txt", "mongo_usage/c/1.txt"));
+        assertUsage("mongo_usage", 5, 1);
+
+        //并发写入同一路径，用量按最终的大小计算。
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; ++i) {
+            String content = String.valueOf(i);
+            futures.add(executor.submit(() -> {
+                mongoDbFileSystem.put("mongo_usage/concurrent.txt", content);
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertUsage("mongo_usage", 5 + mongoDbFileSystem.meta("mongo_usage/concurrent.txt").getSize(), 2);
+
+        mongoDbFileSystem.recomputeUsage("mongo_usage");
+        assertUsage("mongo_usage", 5 + mongoDbFileSystem.meta("mongo_usage/concurrent.txt").getSize(), 2);
+
+        PathMeta root = mongoDbFileSystem.meta("/");
+        PathMeta directory = mongoDbFileSystem.meta("mongo_usage");
+        mongoDbFileSystem.delete("mongo_usage");
+        PathMeta after = mongoDbFileSystem.meta("/");
+        Assert.assertEquals(root.getTotalSize() - directory.getTotalSize(), after.getTotalSize());
+        Assert.assertEquals(root.getFileCount() - directory.getFileCount(), after.getFileCount());
+    }
+
+    private MongoPathMeta pathMeta(String path) {
+        NormalizedPath normalizedPath = new NormalizedPath(path);
+        return mongoOperations.findOne(
+            Query.query(Criteria.where("parent").is(normalizedPath.getParent()).and("name").is(normalizedPath.getName())),
+            MongoPathMeta.class,
+            new MongoDbFileSystemAutoConfiguration.Properties().getPathCollection()
+        );
+    }
+
+    private static byte[] read(MongoDbFileSystem fileSystem, String path) throws Exception {
+        try (InputStream inputStream = fileSystem.openReadStream(path)) {
+            return StreamUtils.copyToByteArray(inputStream);
+        }
+    }
+
+    private int gridFsFiles(String filename) {
+        List<GridFSFile> files = new ArrayList<>();
+        gridFsOperations.find(Query.query(GridFsCriteria.whereFilename().is(filename))).into(files);
+        return files.size();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    private void assertUsage(String path, long totalSize, long fileCount) {
+        PathMeta meta = mongoDbFileSystem.meta(path);
+        Assert.assertEquals(totalSize, meta.getTotalSize());
+        Assert.assertEquals(fileCount, meta.getFileCount());
+    }
+
+    /**
+     * 内嵌阈值很小的实例，内容都保存在GridFS中。
+     */
+    private MongoDbFileSystem newFileSystem(Consumer<MongoDbFileSystemAutoConfiguration.Properties> customizer) {
+        MongoDbFileSystemAutoConfiguration.Properties properties = new MongoDbFileSystemAutoConfiguration.Properties();
+        properties.setFileSizeThreshold(16);
+        properties.setEnsureIndexes(false);
+        properties.setReportCollectionScans(false);
+        customizer.accept(properties);
+
+        return new MongoDbFileSystem(properties, mongoOperations, gridFsOperations, mongoDatabaseFactory.getMongoDatabase());
+    }
+
+    private static byte[] content(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
 }
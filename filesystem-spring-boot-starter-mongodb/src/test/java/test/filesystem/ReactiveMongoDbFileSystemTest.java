@@ -0,0 +1,142 @@
+package test.filesystem;
+
+import com.mongodb.reactivestreams.client.gridfs.GridFSBuckets;
+import me.insidezhou.southernquiet.filesystem.ContentDigest;
+import me.insidezhou.southernquiet.filesystem.MongoDbFileSystemAutoConfiguration;
+import me.insidezhou.southernquiet.filesystem.ReactiveFileSystem;
+import me.insidezhou.southernquiet.filesystem.driver.MongoDbFileSystem;
+import me.insidezhou.southernquiet.filesystem.driver.MongoPathMeta;
+import me.insidezhou.southernquiet.filesystem.driver.ReactiveMongoDbFileSystem;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.data.mongodb.MongoDatabaseFactory;
+import org.springframework.data.mongodb.ReactiveMongoDatabaseFactory;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.GridFsOperations;
+import org.springframework.test.context.junit4.SpringRunner;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+@SpringBootTest
+@RunWith(SpringRunner.class)
+public class ReactiveMongoDbFileSystemTest {
+    @Configuration
+    @EnableAutoConfiguration
+    public static class Config {}
+
+    @Autowired
+    private ReactiveFileSystem reactiveFileSystem;
+
+    @Autowired
+    private MongoOperations mongoOperations;
+
+    @Autowired
+    private GridFsOperations gridFsOperations;
+
+    @Autowired
+    private MongoDatabaseFactory mongoDatabaseFactory;
+
+    @Autowired
+    private ReactiveMongoOperations reactiveMongoOperations;
+
+    @Autowired
+    private ReactiveMongoDatabaseFactory reactiveMongoDatabaseFactory;
+
+    @Test
+    public void bean() {
+        Assert.assertTrue(reactiveFileSystem instanceof ReactiveMongoDbFileSystem);
+    }
+
+    @Test
+    public void readWrite() throws Exception {
+        MongoDbFileSystemAutoConfiguration.Properties properties = new MongoDbFileSystemAutoConfiguration.Properties();
+        properties.setFileSizeThreshold(1024);
+        properties.setEnsureIndexes(false);
+        properties.setReportCollectionScans(false);
+        MongoDbFileSystem fileSystem = new MongoDbFileSystem(properties, mongoOperations, gridFsOperations, mongoDatabaseFactory.getMongoDatabase());
+        ReactiveMongoDbFileSystem reactiveFileSystem = new ReactiveMongoDbFileSystem(fileSystem, reactiveMongoOperations, GridFSBuckets.create(reactiveMongoDatabaseFactory.getMongoDatabase().block()));
+        fileSystem.delete("reactive_mongo");
+
+        //不超过阈值的内容保存在文档中，超过的上传到GridFS。
+        byte[] small = content(1000);
+        reactiveFileSystem.write("reactive_mongo/small.bin", chunks(small, 100)).block();
+        Assert.assertNull(((MongoPathMeta) fileSystem.meta("reactive_mongo/small.bin")).getFileId());
+        Assert.assertArrayEquals(small, read(reactiveFileSystem, "reactive_mongo/small.bin"));
+
+        byte[] large = content(5000);
+        reactiveFileSystem.write("reactive_mongo/large.bin", chunks(large, 300)).block();
+        Assert.assertNotNull(((MongoPathMeta) fileSystem.meta("reactive_mongo/large.bin")).getFileId());
+        Assert.assertEquals(large.length, fileSystem.meta("reactive_mongo/large.bin").getSize());
+        Assert.assertArrayEquals(large, read(reactiveFileSystem, "reactive_mongo/large.bin"));
+
+        reactiveFileSystem.write("reactive_mongo/empty.bin", Flux.empty()).block();
+        Assert.assertEquals(0, read(reactiveFileSystem, "reactive_mongo/empty.bin").length);
+
+        //下载依次读取内嵌的内容及追加的分段。
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(small);
+        for (int i = 0; i < 3; ++i) {
+            byte[] segment = content(100 + i);
+            try (OutputStream outputStream = fileSystem.openWriteStream("reactive_mongo/small.bin")) {
+                outputStream.write(segment);
+            }
+            expected.write(segment);
+        }
+        Assert.assertArrayEquals(expected.toByteArray(), read(reactiveFileSystem, "reactive_mongo/small.bin"));
+
+        //摘要直接取自元信息，缺少时计算后保存。
+        Assert.assertEquals(ContentDigest.of(large), reactiveFileSystem.digest("reactive_mongo/large.bin").block());
+
+        //没有内嵌内容及GridFS文件的文档按空文件读取。
+        mongoOperations.updateFirst(
+            Query.query(Criteria.where("_id").is(((MongoPathMeta) fileSystem.meta("reactive_mongo/empty.bin")).getId())),
+            new Update().unset("fileData").unset("digest"),
+            properties.getPathCollection()
+        );
+        Assert.assertEquals(0, read(reactiveFileSystem, "reactive_mongo/empty.bin").length);
+        Assert.assertEquals(ContentDigest.of(new byte[0]), reactiveFileSystem.digest("reactive_mongo/empty.bin").block());
+        Assert.assertEquals(ContentDigest.of(new byte[0]), fileSystem.meta("reactive_mongo/empty.bin").getDigest());
+
+        fileSystem.delete("reactive_mongo");
+    }
+
+    static byte[] read(ReactiveFileSystem reactiveFileSystem, String path) {
+        return DataBufferUtils.join(reactiveFileSystem.read(path))
+            .map(buffer -> {
+                byte[] bytes = new byte[buffer.readableByteCount()];
+                buffer.read(bytes);
+                DataBufferUtils.release(buffer);
+                return bytes;
+            })
+            .defaultIfEmpty(new byte[0])
+            .block();
+    }
+
+    private static Flux<DataBuffer> chunks(byte[] bytes, int size) {
+        DefaultDataBufferFactory factory = new DefaultDataBufferFactory();
+        return Flux.range(0, (bytes.length + size - 1) / size)
+            .map(i -> factory.wrap(Arrays.copyOfRange(bytes, i * size, Math.min(bytes.length, (i + 1) * size))));
+    }
+
+    static byte[] content(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -7,10 +7,16 @@ import me.insidezhou.southernquiet.debounce.DebouncePointcut;
 import me.insidezhou.southernquiet.debounce.DebouncerProvider;
 import me.insidezhou.southernquiet.debounce.DefaultDebouncerProvider;
 import me.insidezhou.southernquiet.event.EventPubSub;
+import me.insidezhou.southernquiet.filesystem.CompressingFileSystem;
 import me.insidezhou.southernquiet.filesystem.FileSystem;
+import me.insidezhou.southernquiet.filesystem.ReactiveFileSystem;
+import me.insidezhou.southernquiet.filesystem.ReactiveFileSystemAdapter;
 import me.insidezhou.southernquiet.filesystem.driver.LocalFileSystem;
+import me.insidezhou.southernquiet.filesystem.driver.ReactiveLocalFileSystem;
+import me.insidezhou.southernquiet.filesystem.driver.ShardedLocalFileSystem;
 import me.insidezhou.southernquiet.keyvalue.KeyValueStore;
 import me.insidezhou.southernquiet.keyvalue.driver.FileSystemKeyValueStore;
+import me.insidezhou.southernquiet.keyvalue.driver.LogStructuredKeyValueStore;
 import me.insidezhou.southernquiet.throttle.DefaultThrottleManager;
 import me.insidezhou.southernquiet.throttle.ThrottleAdvice;
 import me.insidezhou.southernquiet.throttle.ThrottleManager;
@@ -21,6 +27,7 @@ import org.springframework.aop.support.DefaultPointcutAdvisor;
 import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
@@ -32,6 +39,7 @@ import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.util.AntPathMatcher;
 import org.springframework.util.PathMatcher;
 import org.springframework.util.StringUtils;
+import org.springframework.util.unit.DataSize;
 
 import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
@@ -53,6 +61,13 @@ public class FrameworkAutoConfiguration {
     public final static String ConfigRoot_FileSystem = ConfigRoot + ".file-system";
     public final static String ConfigRoot_KeyValue = ConfigRoot + ".key-value";
 
+    @Bean
+    @ConditionalOnProperty(name = {"enable", "log.enable"}, prefix = ConfigRoot_KeyValue)
+    @ConditionalOnMissingBean(KeyValueStore.class)
+    public LogStructuredKeyValueStore logStructuredKeyValueStore(KeyValueStoreProperties properties) {
+        return new LogStructuredKeyValueStore(properties.getLog());
+    }
+
     @Bean
     @ConditionalOnProperty(value = "enable", prefix = ConfigRoot_KeyValue)
     @ConditionalOnMissingBean(KeyValueStore.class)
@@ -62,8 +77,26 @@ public class FrameworkAutoConfiguration {
 
     @Bean
     @ConditionalOnMissingBean(FileSystem.class)
-    public LocalFileSystem fileSystem(LocalFileSystemProperties properties) {
-        return new LocalFileSystem(properties);
+    public FileSystem fileSystem(LocalFileSystemProperties properties) {
+        FileSystem fileSystem = null != properties.getVolumes() && properties.getVolumes().length > 0
+            ? new ShardedLocalFileSystem(properties)
+            : new LocalFileSystem(properties);
+
+        return properties.isCompression() ? new CompressingFileSystem(fileSystem) : fileSystem;
+    }
+
+    @Configuration
+    @ConditionalOnClass(name = "reactor.core.publisher.Flux")
+    public static class ReactiveFileSystemConfiguration {
+        @Bean
+        @ConditionalOnMissingBean(ReactiveFileSystem.class)
+        public ReactiveFileSystem reactiveFileSystem(FileSystem fileSystem) {
+            if (fileSystem instanceof LocalFileSystem) {
+                return new ReactiveLocalFileSystem((LocalFileSystem) fileSystem);
+            }
+
+            return new ReactiveFileSystemAdapter(fileSystem);
+        }
     }
 
     @Bean
@@ -315,6 +348,38 @@ public class FrameworkAutoConfiguration {
          * FileSystem默认驱动在本地文件系统中的实际路径
          */
         private String workingRoot = "${user.home}/.SQ_FILESYSTEM";
+        /**
+         * 递归复制、移动、删除目录时的并行度。
+         */
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+        /**
+         * 多卷分片时各个卷在本地文件系统中的实际路径，非空时取代workingRoot。
+         */
+        private String[] volumes = new String[0];
+        /**
+         * 启动时是否把不在所属卷上的文件迁移到所属卷，卷的配置发生变化后需要开启。
+         */
+        private boolean rebalanceOnStartup = false;
+        /**
+         * 是否透明压缩文件内容，见{@link CompressingFileSystem}。
+         */
+        private boolean compression = false;
+        /**
+         * 是否在写入后等待文件及其所在目录落盘，多个写入方的fsync会成组提交。
+         */
+        private boolean durable = false;
+        /**
+         * 成组提交时一批的最长等待时间
+         */
+        private Duration groupCommitInterval = Duration.ofMillis(2);
+        /**
+         * 成组提交时一批的文件数量上限
+         */
+        private int groupCommitSize = 256;
+        /**
+         * 是否在内存中维护文件名的三元组索引，用于按名称查找，见{@link me.insidezhou.southernquiet.filesystem.NameIndex}。
+         */
+        private boolean nameIndex = false;
 
         public String getWorkingRoot() {
             return workingRoot;
@@ -323,6 +388,70 @@ public class FrameworkAutoConfiguration {
         public void setWorkingRoot(String workingRoot) {
             this.workingRoot = workingRoot;
         }
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        public void setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+        }
+
+        public String[] getVolumes() {
+            return volumes;
+        }
+
+        public void setVolumes(String[] volumes) {
+            this.volumes = volumes;
+        }
+
+        public boolean isRebalanceOnStartup() {
+            return rebalanceOnStartup;
+        }
+
+        public void setRebalanceOnStartup(boolean rebalanceOnStartup) {
+            this.rebalanceOnStartup = rebalanceOnStartup;
+        }
+
+        public boolean isCompression() {
+            return compression;
+        }
+
+        public void setCompression(boolean compression) {
+            this.compression = compression;
+        }
+
+        public boolean isDurable() {
+            return durable;
+        }
+
+        public void setDurable(boolean durable) {
+            this.durable = durable;
+        }
+
+        public Duration getGroupCommitInterval() {
+            return groupCommitInterval;
+        }
+
+        public void setGroupCommitInterval(Duration groupCommitInterval) {
+            this.groupCommitInterval = groupCommitInterval;
+        }
+
+        public int getGroupCommitSize() {
+            return groupCommitSize;
+        }
+
+        public void setGroupCommitSize(int groupCommitSize) {
+            this.groupCommitSize = groupCommitSize;
+        }
+
+        public boolean isNameIndex() {
+            return nameIndex;
+        }
+
+        public void setNameIndex(boolean nameIndex) {
+            this.nameIndex = nameIndex;
+        }
     }
 
     public static class KeyValueStoreProperties {
@@ -333,6 +462,8 @@ public class FrameworkAutoConfiguration {
 
         private FileSystem fileSystem = new FileSystem();
 
+        private Log log = new Log();
+
         public boolean isEnable() {
             return enable;
         }
@@ -349,13 +480,120 @@ public class FrameworkAutoConfiguration {
             this.fileSystem = fileSystem;
         }
 
+        public Log getLog() {
+            return log;
+        }
+
+        public void setLog(Log log) {
+            this.log = log;
+        }
+
+        public static class Log {
+            /**
+             * 是否以{@link LogStructuredKeyValueStore}取代基于FileSystem的驱动
+             */
+            private boolean enable = false;
+            /**
+             * 段文件在本地文件系统中的实际路径
+             */
+            private String workingRoot = "${user.home}/.SQ_KEY_VALUE";
+            /**
+             * 段文件的大小，预先分配并映射到内存。
+             */
+            private DataSize segmentSize = DataSize.ofMegabytes(64);
+            /**
+             * 是否在写入落盘后才返回
+             */
+            private boolean durable = false;
+            /**
+             * 成组提交时一批刷盘的最长等待时间
+             */
+            private Duration groupCommitInterval = Duration.ofMillis(2);
+            /**
+             * 成组提交时一批的数量上限
+             */
+            private int groupCommitSize = 256;
+            /**
+             * 检查是否需要压缩的间隔
+             */
+            private Duration compactionInterval = Duration.ofMinutes(1);
+            /**
+             * 已写满的段中失效记录的比例达到该值时压缩该段
+             */
+            private double compactionRatio = 0.5;
+
+            public boolean isEnable() {
+                return enable;
+            }
+
+            public void setEnable(boolean enable) {
+                this.enable = enable;
+            }
+
+            public String getWorkingRoot() {
+                return workingRoot;
+            }
+
+            public void setWorkingRoot(String workingRoot) {
+                this.workingRoot = workingRoot;
+            }
+
+            public DataSize getSegmentSize() {
+                return segmentSize;
+            }
+
+            public void setSegmentSize(DataSize segmentSize) {
+                this.segmentSize = segmentSize;
+            }
+
+            public boolean isDurable() {
+                return durable;
+            }
+
+            public void setDurable(boolean durable) {
+                this.durable = durable;
+            }
+
+            public Duration getGroupCommitInterval() {
+                return groupCommitInterval;
+            }
+
+            public void setGroupCommitInterval(Duration groupCommitInterval) {
+                this.groupCommitInterval = groupCommitInterval;
+            }
+
+            public int getGroupCommitSize() {
+                return groupCommitSize;
+            }
+
+            public void setGroupCommitSize(int groupCommitSize) {
+                this.groupCommitSize = groupCommitSize;
+            }
+
+            public Duration getCompactionInterval() {
+                return compactionInterval;
+            }
+
+            public void setCompactionInterval(Duration compactionInterval) {
+                this.compactionInterval = compactionInterval;
+            }
+
+            public double getCompactionRatio() {
+                return compactionRatio;
+            }
+
+            public void setCompactionRatio(double compactionRatio) {
+                this.compactionRatio = compactionRatio;
+            }
+        }
+
         public static class FileSystem {
             /**
              * KeyValueStore在FileSystem中的路径
              */
             private String workingRoot = "KEY_VALUE";
             /**
-             * 文件名中不同部分的分隔
+             * 旧版本文件名中key与ttl的分隔，启动时用来迁移旧版本的文件。
              */
             private String nameSeparator = "__";
 
@@ -0,0 +1,507 @@
+package me.insidezhou.southernquiet.filesystem;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static me.insidezhou.southernquiet.filesystem.FileSystem.PATH_SEPARATOR_STRING;
+
+/**
+ * 缓存{@link PathMeta}的{@link FileSystem}装饰器。
+ * <ul>
+ * <li>缓存有数量上限，按LRU淘汰，路径不存在的结果同样会被缓存。</li>
+ * <li>通过当前装饰器进行的写操作会使相关路径的缓存失效，这些路径上正在进行的加载也作废，其他路径的加载不受影响。</li>
+ * <li>绕过装饰器的外部修改只能依赖ttl来保证最终一致，ttl为null时缓存不会过期。</li>
+ * <li>缓存的{@link PathMeta}会被多个调用方共享，调用方不应修改它。</li>
+ * </ul>
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class CachingFileSystem implements FileSystem {
+    private final FileSystem fileSystem;
+    private final Duration ttl;
+    private final Map<String, CachedMeta> cache;
+
+    /**
+     * 与{@link #cache}同步的有序路径，使子路径的失效只涉及前缀范围内的路径，而不是遍历整个缓存。
+     */
+    private final NavigableSet<String> cachedPaths = new TreeSet<>();
+
+    /**
+     * 正在从被装饰的文件系统加载的路径。
+     */
+    private final NavigableMap<String, Load> loading = new TreeMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    public CachingFileSystem(FileSystem fileSystem, int maxEntries) {
+        this(fileSystem, maxEntries, null);
+    }
+
+    /**
+     * @param fileSystem 被装饰的文件系统
+     * @param maxEntries 缓存数量上限
+     * @param ttl        缓存有效期，为null时不过期。
+     */
+    public CachingFileSystem(FileSystem fileSystem, int maxEntries, Duration ttl) {
+        this.fileSystem = fileSystem;
+        this.ttl = ttl;
+        this.cache = new LinkedHashMap<String, CachedMeta>(16, 0.75f, true) {
+            private final static long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedMeta> eldest) {
+                if (size() <= maxEntries) return false;
+
+                cachedPaths.remove(eldest.getKey());
+                return true;
+            }
+        };
+    }
+
+    public FileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * 缓存命中率，没有任何请求时为0。
+     */
+    public double getHitRatio() {
+        long hit = hitCount.get();
+        long total = hit + missCount.get();
+        return 0 == total ? 0 : (double) hit / total;
+    }
+
+    /**
+     * 使路径及其所有子路径的缓存失效，用于响应绕过当前装饰器的外部修改。
+     */
+    public void invalidate(String path) {
+        invalidate(new NormalizedPath(path), true);
+    }
+
+    /**
+     * 监听被装饰的文件系统，按路径的变化使缓存失效，外部修改不再依赖ttl。
+     *
+     * @return 关闭后停止监听
+     */
+    public Closeable invalidateOnChange() throws PathNotFoundException {
+        return fileSystem.watch(PATH_SEPARATOR_STRING, true, changes -> changes.forEach(change -> invalidate(change.getPath())));
+    }
+
+    public void invalidateAll() {
+        synchronized (cache) {
+            cache.clear();
+            cachedPaths.clear();
+
+            loading.values().forEach(load -> load.stale = true);
+            loading.clear();
+        }
+    }
+
+    @Override
+    public void createDirectory(String path) {
+        try {
+            fileSystem.createDirectory(path);
+        }
+        finally {
+            invalidate(new NormalizedPath(path), false);
+        }
+    }
+
+    @Override
+    public void put(String path, InputStream stream) throws InvalidFileException {
+        try {
+            fileSystem.put(path, stream);
+        }
+        finally {
+            invalidate(new NormalizedPath(path), false);
+        }
+    }
+
+    @Override
+    public void put(String path, CharSequence txt) throws InvalidFileException {
+        try {
+            fileSystem.put(path, txt);
+        }
+        finally {
+            invalidate(new NormalizedPath(path), false);
+        }
+    }
+
+    @Override
+    public void putAll(Map<String, ? extends InputStream> files) throws InvalidFileException {
+        try {
+            fileSystem.putAll(files);
+        }
+        finally {
+            files.keySet().forEach(path -> invalidate(new NormalizedPath(path), false));
+        }
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return null != meta(path);
+    }
+
+    @Override
+    public InputStream openReadStream(String path) throws InvalidFileException {
+        return fileSystem.openReadStream(path);
+    }
+
+    @Override
+    public InputStream openReadStream(String path, long position, long length) throws InvalidFileException {
+        return fileSystem.openReadStream(path, position, length);
+    }
+
+    @Override
+    public OutputStream openWriteStream(String path) throws InvalidFileException {
+        NormalizedPath normalizedPath = new NormalizedPath(path);
+
+        OutputStream outputStream;
+        try {
+            outputStream = fileSystem.openWriteStream(path);
+        }
+        finally {
+            invalidate(normalizedPath, false);
+        }
+
+        return new FilterOutputStream(outputStream) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                }
+                finally {
+                    invalidate(normalizedPath, false);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void move(String source, String destination, boolean replaceExisting) throws FileSystemException {
+        try {
+            fileSystem.move(source, destination, replaceExisting);
+        }
+        finally {
+            invalidate(new NormalizedPath(source), true);
+            invalidate(new NormalizedPath(destination), true);
+        }
+    }
+
+    @Override
+    public void copy(String source, String destination, boolean replaceExisting) throws FileSystemException {
+        try {
+            fileSystem.copy(source, destination, replaceExisting);
+        }
+        finally {
+            invalidate(new NormalizedPath(destination), true);
+        }
+    }
+
+    @Override
+    public void delete(String path) {
+        try {
+            fileSystem.delete(path);
+        }
+        finally {
+            invalidate(new NormalizedPath(path), true);
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<String> paths) {
+        try {
+            fileSystem.deleteAll(paths);
+        }
+        finally {
+            paths.forEach(path -> invalidate(new NormalizedPath(path), true));
+        }
+    }
+
+    @Override
+    public void touchCreation(String path) {
+        try {
+            fileSystem.touchCreation(path);
+        }
+        finally {
+            invalidate(new NormalizedPath(path), false);
+        }
+    }
+
+    @Override
+    public void touchLastModified(String path) {
+        try {
+            fileSystem.touchLastModified(path);
+        }
+        finally {
+            invalidate(new NormalizedPath(path), false);
+        }
+    }
+
+    @Override
+    public void touchLastAccess(String path) {
+        try {
+            fileSystem.touchLastAccess(path);
+        }
+        finally {
+            invalidate(new NormalizedPath(path), false);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <M extends PathMeta> M meta(String path) {
+        String key = new NormalizedPath(path).toString();
+
+        Load load;
+        synchronized (cache) {
+            CachedMeta cached = cache.get(key);
+            if (null != cached) {
+                if (cached.isAlive()) {
+                    hitCount.incrementAndGet();
+                    return (M) cached.meta;
+                }
+
+                evict(key);
+            }
+
+            load = startLoad(key);
+        }
+
+        missCount.incrementAndGet();
+        M meta;
+        try {
+            meta = fileSystem.meta(path);
+        }
+        catch (RuntimeException | Error e) {
+            synchronized (cache) {
+                endLoad(key, load);
+            }
+            throw e;
+        }
+
+        synchronized (cache) {
+            //加载期间这个路径发生过失效，加载结果可能已经过时，不能放入缓存。
+            if (!load.stale) {
+                cache(key, new CachedMeta(meta, expireAt()));
+            }
+            endLoad(key, load);
+        }
+
+        return meta;
+    }
+
+    /**
+     * 缓存的元信息中没有摘要时，交给被装饰的文件系统计算。
+     */
+    @Override
+    public String digest(String path) throws InvalidFileException {
+        PathMeta meta = meta(path);
+        if (null != meta && null != meta.getDigest()) return meta.getDigest();
+
+        return fileSystem.digest(path);
+    }
+
+    /**
+     * 命中缓存的路径直接返回，其余路径交给被装饰的文件系统批量获取。
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public <M extends PathMeta> Map<String, M> metaAll(Collection<String> paths) {
+        Map<String, M> result = new HashMap<>();
+        List<String> missed = new ArrayList<>();
+        List<Load> loads = new ArrayList<>();
+
+        synchronized (cache) {
+            for (String path : paths) {
+                String key = new NormalizedPath(path).toString();
+                CachedMeta cached = cache.get(key);
+                if (null != cached && cached.isAlive()) {
+                    hitCount.incrementAndGet();
+                    if (null != cached.meta) {
+                        result.put(path, (M) cached.meta);
+                    }
+                }
+                else {
+                    missCount.incrementAndGet();
+                    missed.add(path);
+                    loads.add(startLoad(key));
+                }
+            }
+        }
+
+        if (missed.isEmpty()) return result;
+
+        Map<String, M> loaded;
+        try {
+            loaded = fileSystem.metaAll(missed);
+        }
+        catch (RuntimeException | Error e) {
+            synchronized (cache) {
+                for (int i = 0; i < missed.size(); ++i) {
+                    endLoad(new NormalizedPath(missed.get(i)).toString(), loads.get(i));
+                }
+            }
+            throw e;
+        }
+        result.putAll(loaded);
+
+        synchronized (cache) {
+            long expireAt = expireAt();
+            for (int i = 0; i < missed.size(); ++i) {
+                String path = missed.get(i);
+                String key = new NormalizedPath(path).toString();
+                Load load = loads.get(i);
+
+                if (!load.stale) {
+                    cache(key, new CachedMeta(loaded.get(path), expireAt));
+                }
+                endLoad(key, load);
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public Map<String, Boolean> existsAll(Collection<String> paths) {
+        Map<String, PathMeta> metas = metaAll(paths);
+
+        Map<String, Boolean> result = new HashMap<>();
+        paths.forEach(path -> result.put(path, metas.containsKey(path)));
+        return result;
+    }
+
+    @Override
+    public Stream<? extends PathMeta> directories(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) throws PathNotFoundException {
+        return fileSystem.directories(path, search, recursive, offset, limit, sort);
+    }
+
+    @Override
+    public Stream<? extends PathMeta> files(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) throws PathNotFoundException {
+        return fileSystem.files(path, search, recursive, offset, limit, sort);
+    }
+
+    @Override
+    public Stream<? extends PathMeta> files(String path, String cursor, int limit, PathMetaSort sort) throws PathNotFoundException {
+        return fileSystem.files(path, cursor, limit, sort);
+    }
+
+    @Override
+    public Closeable watch(String path, boolean recursive, Duration debounce, Consumer<List<PathChange>> listener) throws PathNotFoundException {
+        return fileSystem.watch(path, recursive, debounce, listener);
+    }
+
+    /**
+     * 使路径及其所有上级路径的缓存失效，上级目录可能因为写操作而被创建。
+     *
+     * @param subPaths 如果true，同时使所有子路径的缓存失效。
+     */
+    private void invalidate(NormalizedPath normalizedPath, boolean subPaths) {
+        String key = normalizedPath.toString();
+
+        synchronized (cache) {
+            invalidateKey(key);
+
+            NormalizedPath parent = normalizedPath;
+            while (parent.getParentNames().length > 0) {
+                parent = parent.getParentPath();
+                invalidateKey(parent.toString());
+            }
+
+            if (subPaths) {
+                String prefix = NormalizedPath.ROOT.equals(normalizedPath) ? PATH_SEPARATOR_STRING : key + PATH_SEPARATOR_STRING;
+
+                NavigableSet<String> cachedSubPaths = cachedPaths.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+                cachedSubPaths.forEach(cache::remove);
+                cachedSubPaths.clear();
+
+                NavigableMap<String, Load> loadingSubPaths = loading.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+                loadingSubPaths.values().forEach(load -> load.stale = true);
+                loadingSubPaths.clear();
+            }
+        }
+    }
+
+    /**
+     * 去掉路径的缓存，并使路径上正在进行的加载作废。之后开始的加载使用新的{@link Load}，不受影响。
+     */
+    private void invalidateKey(String key) {
+        evict(key);
+
+        Load load = loading.remove(key);
+        if (null != load) {
+            load.stale = true;
+        }
+    }
+
+    private void cache(String key, CachedMeta cachedMeta) {
+        //先记录路径，放入缓存时可能立即被淘汰。
+        cachedPaths.add(key);
+        cache.put(key, cachedMeta);
+    }
+
+    private void evict(String key) {
+        cache.remove(key);
+        cachedPaths.remove(key);
+    }
+
+    private Load startLoad(String key) {
+        Load load = loading.computeIfAbsent(key, k -> new Load());
+        ++load.loaders;
+        return load;
+    }
+
+    private void endLoad(String key, Load load) {
+        if (0 == --load.loaders) {
+            loading.remove(key, load);
+        }
+    }
+
+    private long expireAt() {
+        return null == ttl ? Long.MAX_VALUE : System.currentTimeMillis() + ttl.toMillis();
+    }
+
+    /**
+     * 同一路径上并发的加载共用一个，失效时标记为作废并从{@link #loading}中去掉。
+     */
+    private static class Load {
+        private int loaders;
+        private boolean stale;
+    }
+
+    private static class CachedMeta {
+        private final PathMeta meta;
+        private final long expireAt;
+
+        private CachedMeta(PathMeta meta, long expireAt) {
+            this.meta = meta;
+            this.expireAt = expireAt;
+        }
+
+        private boolean isAlive() {
+            return System.currentTimeMillis() < expireAt;
+        }
+    }
+}
@@ -0,0 +1,595 @@
+package me.insidezhou.southernquiet.filesystem;
+
+import org.springframework.util.StreamUtils;
+import org.springframework.util.StringUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.*;
+
+/**
+ * 透明压缩文件内容的{@link FileSystem}装饰器。
+ * <ul>
+ * <li>文件以5字节的头部开始，标记内容的编码方式，之后是内容本身；压缩的内容之后还有8字节的原始大小。</li>
+ * <li>已经压缩过的内容（按扩展名或者魔数识别）以及很小的内容不再压缩，只加上头部。</li>
+ * <li>没有头部的文件按原样读取，所以可以直接装饰已有数据的文件系统。</li>
+ * <li>{@link PathMeta#getSize()}是原始大小，需要读取文件的头部和尾部，列举目录时每个文件都会打开一次。</li>
+ * <li>向已有内容的文件追加写入时，需要在本地临时文件中重新压缩整个文件。</li>
+ * </ul>
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class CompressingFileSystem implements FileSystem {
+    private final static byte[] MAGIC = {'S', 'Q', 'Z', 1};
+    private final static int HEADER_SIZE = MAGIC.length + 1;
+    private final static int TRAILER_SIZE = Long.BYTES;
+    /**
+     * 识别内容所需的字节数，小于该大小的内容不压缩。
+     */
+    private final static int PEEK_SIZE = 16;
+    private final static int BUFFER_SIZE = 8192;
+
+    /**
+     * 已经压缩过的常见格式的扩展名
+     */
+    public final static Set<String> COMPRESSED_EXTENSIONS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+        "gz", "tgz", "zip", "jar", "bz2", "xz", "7z", "rar", "zst", "br", "lz4",
+        "jpg", "jpeg", "png", "gif", "webp", "heic",
+        "mp3", "aac", "ogg", "mp4", "m4a", "mkv", "mov", "avi", "webm",
+        "woff", "woff2", "pdf", "docx", "xlsx", "pptx"
+    )));
+
+    /**
+     * 已经压缩过的常见格式的魔数
+     */
+    private final static byte[][] COMPRESSED_MAGICS = {
+        {0x1F, (byte) 0x8B}, //gzip
+        {'P', 'K', 3, 4}, //zip
+        {'B', 'Z', 'h'}, //bzip2
+        {(byte) 0xFD, '7', 'z', 'X', 'Z', 0}, //xz
+        {'7', 'z', (byte) 0xBC, (byte) 0xAF, 0x27, 0x1C}, //7z
+        {0x28, (byte) 0xB5, 0x2F, (byte) 0xFD}, //zstd
+        {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}, //jpeg
+        {(byte) 0x89, 'P', 'N', 'G'}, //png
+        {'G', 'I', 'F', '8'}, //gif
+        {'O', 'g', 'g', 'S'}, //ogg
+        {'I', 'D', '3'}, //mp3
+        {'w', 'O', 'F', 'F'}, //woff
+        {'w', 'O', 'F', '2'}, //woff2
+    };
+
+    /**
+     * 内容的编码方式
+     */
+    public enum Codec {
+        STORED, DEFLATE
+    }
+
+    private final FileSystem fileSystem;
+    private final int level;
+
+    public CompressingFileSystem(FileSystem fileSystem) {
+        this(fileSystem, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param fileSystem 被装饰的文件系统
+     * @param level      压缩级别，见{@link Deflater}。
+     */
+    public CompressingFileSystem(FileSystem fileSystem, int level) {
+        this.fileSystem = fileSystem;
+        this.level = level;
+    }
+
+    public FileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    /**
+     * 文件在底层文件系统中的编码方式，没有头部的文件为null。
+     */
+    public Codec codec(String path) throws InvalidFileException {
+        try (InputStream inputStream = fileSystem.openReadStream(path)) {
+            return readCodec(inputStream);
+        }
+        catch (IOException e) {
+            throw new InvalidFileException(path, e);
+        }
+    }
+
+    @Override
+    public void createDirectory(String path) {
+        fileSystem.createDirectory(path);
+    }
+
+    @Override
+    public void put(String path, InputStream stream) throws InvalidFileException {
+        try (InputStream inputStream = new CompressingInputStream(stream, isCompressedName(path), level)) {
+            fileSystem.put(path, inputStream);
+        }
+        catch (IOException e) {
+            throw new InvalidFileException(path, e);
+        }
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return fileSystem.exists(path);
+    }
+
+    @Override
+    public InputStream openReadStream(String path) throws InvalidFileException {
+        InputStream inputStream = fileSystem.openReadStream(path);
+
+        try {
+            PushbackInputStream pushbackInputStream = new PushbackInputStream(inputStream, HEADER_SIZE);
+            byte[] header = new byte[HEADER_SIZE];
+            int count = readAtMost(pushbackInputStream, header);
+
+            Codec codec = parseCodec(header, count);
+            if (null == codec) {
+                pushbackInputStream.unread(header, 0, count);
+                return pushbackInputStream;
+            }
+
+            if (Codec.STORED == codec) return pushbackInputStream;
+
+            Inflater inflater = new Inflater();
+            return new InflaterInputStream(pushbackInputStream, inflater, BUFFER_SIZE) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) return;
+                    closed = true;
+
+                    try {
+                        super.close();
+                    }
+                    finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+        catch (IOException e) {
+            try {
+                inputStream.close();
+            }
+            catch (IOException ignored) {}
+
+            throw new InvalidFileException(path, e);
+        }
+    }
+
+    @Override
+    public OutputStream openWriteStream(String path) throws InvalidFileException {
+        PathMeta meta = fileSystem.meta(path);
+        if (null != meta && meta.isDirectory()) throw new InvalidFileException(path);
+
+        boolean compressedName = isCompressedName(path);
+        if (null == meta || 0 == meta.getSize()) {
+            return new CompressingOutputStream(fileSystem.openWriteStream(path), compressedName, level);
+        }
+
+        Path tempFile;
+        OutputStream outputStream;
+        try {
+            tempFile = Files.createTempFile("sq_compressing", null);
+            outputStream = new CompressingOutputStream(Files.newOutputStream(tempFile), compressedName, level);
+        }
+        catch (IOException e) {
+            throw new InvalidFileException(path, e);
+        }
+
+        try (InputStream inputStream = openReadStream(path)) {
+            StreamUtils.copy(inputStream, outputStream);
+        }
+        catch (IOException e) {
+            try {
+                outputStream.close();
+                Files.deleteIfExists(tempFile);
+            }
+            catch (IOException ignored) {}
+
+            throw new InvalidFileException(path, e);
+        }
+
+        return new FilterOutputStream(outputStream) {
+            private boolean closed;
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+
+                try {
+                    super.close();
+
+                    try (InputStream inputStream = Files.newInputStream(tempFile)) {
+                        fileSystem.put(path, inputStream);
+                    }
+                    catch (InvalidFileException e) {
+                        throw new IOException(e);
+                    }
+                }
+                finally {
+                    Files.deleteIfExists(tempFile);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void move(String source, String destination, boolean replaceExisting) throws FileSystemException {
+        fileSystem.move(source, destination, replaceExisting);
+    }
+
+    @Override
+    public void copy(String source, String destination, boolean replaceExisting) throws FileSystemException {
+        fileSystem.copy(source, destination, replaceExisting);
+    }
+
+    @Override
+    public void delete(String path) {
+        fileSystem.delete(path);
+    }
+
+    @Override
+    public void touchCreation(String path) {
+        fileSystem.touchCreation(path);
+    }
+
+    @Override
+    public void touchLastModified(String path) {
+        fileSystem.touchLastModified(path);
+    }
+
+    @Override
+    public void touchLastAccess(String path) {
+        fileSystem.touchLastAccess(path);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <M extends PathMeta> M meta(String path) {
+        PathMeta meta = fileSystem.meta(path);
+        return null == meta ? null : (M) toLogicalMeta(meta);
+    }
+
+    @Override
+    public Stream<? extends PathMeta> directories(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) throws PathNotFoundException {
+        return fileSystem.directories(path, search, recursive, offset, limit, sort);
+    }
+
+    @Override
+    public Stream<? extends PathMeta> files(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) throws PathNotFoundException {
+        Stream<PathMeta> stream = fileSystem.files(path, search, recursive).map(this::toLogicalMeta);
+        return FileSystem.sort(stream, sort, offset, limit);
+    }
+
+    /**
+     * 原始大小只能从文件中读到，所以游标分页在装饰器中进行。
+     */
+    @Override
+    public Stream<? extends PathMeta> files(String path, String cursor, int limit, PathMetaSort sort) throws PathNotFoundException {
+        PathMetaSort pathMetaSort = PathMetaCursor.normalize(sort);
+
+        Stream<PathMeta> stream = fileSystem.files(path).map(this::toLogicalMeta);
+        if (StringUtils.hasText(cursor)) {
+            PathMetaCursor pathMetaCursor = PathMetaCursor.parse(cursor, pathMetaSort);
+            stream = stream.filter(pathMetaCursor::precedes);
+        }
+
+        return FileSystem.sort(stream, pathMetaSort, 0, limit);
+    }
+
+    @Override
+    public Closeable watch(String path, boolean recursive, Duration debounce, Consumer<List<PathChange>> listener) throws PathNotFoundException {
+        return fileSystem.watch(path, recursive, debounce, listener);
+    }
+
+    /**
+     * 不修改底层文件系统返回的{@link PathMeta}，它可能被缓存共享。底层保存的摘要是编码后内容的摘要，不能使用。
+     * 目录的用量是压缩后占用的大小。
+     */
+    private PathMeta toLogicalMeta(PathMeta meta) {
+        PathMeta logicalMeta = new PathMeta(meta.getPath());
+        logicalMeta.setDirectory(meta.isDirectory());
+        logicalMeta.setCreationTime(meta.getCreationTime());
+        logicalMeta.setLastModifiedTime(meta.getLastModifiedTime());
+        logicalMeta.setLastAccessTime(meta.getLastAccessTime());
+        logicalMeta.setSize(meta.getSize());
+        logicalMeta.setTotalSize(meta.getTotalSize());
+        logicalMeta.setFileCount(meta.getFileCount());
+
+        if (!meta.isDirectory()) {
+            logicalMeta.setSize(readLogicalSize(meta));
+        }
+
+        return logicalMeta;
+    }
+
+    private long readLogicalSize(PathMeta meta) {
+        long size = meta.getSize();
+        if (size < HEADER_SIZE) return size;
+
+        try (InputStream inputStream = fileSystem.openReadStream(meta.getPath())) {
+            Codec codec = readCodec(inputStream);
+            if (null == codec) return size;
+            if (Codec.STORED == codec) return size - HEADER_SIZE;
+
+            skipFully(inputStream, size - HEADER_SIZE - TRAILER_SIZE);
+            return new DataInputStream(inputStream).readLong();
+        }
+        catch (IOException | InvalidFileException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Codec readCodec(InputStream inputStream) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        return parseCodec(header, readAtMost(inputStream, header));
+    }
+
+    /**
+     * 读满缓冲区或者读到流的末尾，返回读到的字节数。
+     */
+    private static int readAtMost(InputStream inputStream, byte[] buffer) throws IOException {
+        int count = 0;
+        while (count < buffer.length) {
+            int read = inputStream.read(buffer, count, buffer.length - count);
+            if (read < 0) break;
+            count += read;
+        }
+        return count;
+    }
+
+    private static Codec parseCodec(byte[] header, int count) {
+        if (count < HEADER_SIZE || !startsWith(header, count, MAGIC)) return null;
+
+        int ordinal = header[MAGIC.length];
+        return ordinal >= 0 && ordinal < Codec.values().length ? Codec.values()[ordinal] : null;
+    }
+
+    private static void skipFully(InputStream inputStream, long count) throws IOException {
+        while (count > 0) {
+            long skipped = inputStream.skip(count);
+            if (skipped <= 0) {
+                if (inputStream.read() < 0) throw new EOFException();
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] prefix) {
+        if (length < prefix.length) return false;
+
+        for (int i = 0; i < prefix.length; ++i) {
+            if (data[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private static boolean isCompressedName(String path) {
+        String extension = StringUtils.getFilenameExtension(new NormalizedPath(path).getName());
+        return null != extension && COMPRESSED_EXTENSIONS.contains(extension.toLowerCase());
+    }
+
+    private static Codec chooseCodec(boolean compressedName, byte[] head, int length) {
+        if (compressedName || length < PEEK_SIZE) return Codec.STORED;
+
+        for (byte[] magic : COMPRESSED_MAGICS) {
+            if (startsWith(head, length, magic)) return Codec.STORED;
+        }
+        return Codec.DEFLATE;
+    }
+
+    private static byte[] header(Codec codec) {
+        byte[] header = Arrays.copyOf(MAGIC, HEADER_SIZE);
+        header[MAGIC.length] = (byte) codec.ordinal();
+        return header;
+    }
+
+    private static byte[] trailer(long size) {
+        byte[] trailer = new byte[TRAILER_SIZE];
+        for (int i = TRAILER_SIZE - 1; i >= 0; --i) {
+            trailer[i] = (byte) size;
+            size >>>= 8;
+        }
+        return trailer;
+    }
+
+    /**
+     * 读取时压缩，用于{@link FileSystem#put(String, InputStream)}。
+     */
+    private static class CompressingInputStream extends SequenceInputStream {
+        /**
+         * 关闭时释放{@link Deflater}，但不关闭调用方传入的流。
+         */
+        private CompressingInputStream(InputStream source, boolean compressedName, int level) throws IOException {
+            this(new PushbackInputStream(new UnclosableInputStream(source), PEEK_SIZE), compressedName, level);
+        }
+
+        private CompressingInputStream(PushbackInputStream source, boolean compressedName, int level) throws IOException {
+            super(parts(source, compressedName, level));
+        }
+
+        private static Enumeration<InputStream> parts(PushbackInputStream source, boolean compressedName, int level) throws IOException {
+            byte[] head = new byte[PEEK_SIZE];
+            int length = readAtMost(source, head);
+            source.unread(head, 0, length);
+
+            Codec codec = chooseCodec(compressedName, head, length);
+            if (Codec.STORED == codec) {
+                return Collections.enumeration(Arrays.asList(new ByteArrayInputStream(header(codec)), source));
+            }
+
+            long[] size = new long[1];
+            InputStream counting = new FilterInputStream(source) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) ++size[0];
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int count = super.read(b, off, len);
+                    if (count > 0) size[0] += count;
+                    return count;
+                }
+            };
+
+            Deflater deflater = new Deflater(level);
+            InputStream deflating = new DeflaterInputStream(counting, deflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    }
+                    finally {
+                        deflater.end();
+                    }
+                }
+            };
+
+            //原始大小在压缩的内容读完之后才能确定
+            InputStream trailer = new InputStream() {
+                private InputStream trailer;
+
+                @Override
+                public int read() throws IOException {
+                    return stream().read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return stream().read(b, off, len);
+                }
+
+                private InputStream stream() {
+                    if (null == trailer) {
+                        trailer = new ByteArrayInputStream(trailer(size[0]));
+                    }
+                    return trailer;
+                }
+            };
+
+            return Collections.enumeration(Arrays.asList(new ByteArrayInputStream(header(codec)), deflating, trailer));
+        }
+    }
+
+    /**
+     * 写入时压缩，缓冲开头的{@link #PEEK_SIZE}字节来选择编码方式。
+     */
+    private static class CompressingOutputStream extends OutputStream {
+        private final OutputStream target;
+        private final boolean compressedName;
+        private final int level;
+
+        private final byte[] head = new byte[PEEK_SIZE];
+        private int headLength;
+
+        private OutputStream out;
+        private Deflater deflater;
+        private long size;
+        private boolean closed;
+
+        private CompressingOutputStream(OutputStream target, boolean compressedName, int level) {
+            this.target = target;
+            this.compressedName = compressedName;
+            this.level = level;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            size += len;
+
+            if (null == out) {
+                int count = Math.min(len, PEEK_SIZE - headLength);
+                System.arraycopy(b, off, head, headLength, count);
+                headLength += count;
+                off += count;
+                len -= count;
+
+                if (headLength < PEEK_SIZE) return;
+                start();
+            }
+
+            if (len > 0) {
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (null != out) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+
+            try {
+                if (null == out) {
+                    start();
+                }
+
+                if (null != deflater) {
+                    ((DeflaterOutputStream) out).finish();
+                    target.write(trailer(size));
+                }
+            }
+            finally {
+                if (null != deflater) {
+                    deflater.end();
+                }
+                target.close();
+            }
+        }
+
+        private void start() throws IOException {
+            Codec codec = chooseCodec(compressedName, head, headLength);
+            target.write(header(codec));
+
+            if (Codec.DEFLATE == codec) {
+                deflater = new Deflater(level);
+                out = new DeflaterOutputStream(target, deflater, BUFFER_SIZE);
+            }
+            else {
+                out = target;
+            }
+
+            out.write(head, 0, headLength);
+        }
+    }
+
+    private static class UnclosableInputStream extends FilterInputStream {
+        private UnclosableInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,86 @@
+package me.insidezhou.southernquiet.filesystem;
+
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 文件内容的摘要，以小写十六进制的SHA-256表示。
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class ContentDigest {
+    public final static String ALGORITHM = "SHA-256";
+
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ContentDigest() {}
+
+    public static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static String toHex(MessageDigest messageDigest) {
+        byte[] bytes = messageDigest.digest();
+
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    public static String of(byte[] data) {
+        MessageDigest messageDigest = newMessageDigest();
+        messageDigest.update(data);
+        return toHex(messageDigest);
+    }
+
+    /**
+     * 读取整个流并计算摘要，调用方负责流的关闭。
+     */
+    public static String of(InputStream stream) throws IOException {
+        MessageDigest messageDigest = newMessageDigest();
+
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = stream.read(buffer)) >= 0) {
+            messageDigest.update(buffer, 0, count);
+        }
+
+        return toHex(messageDigest);
+    }
+
+    /**
+     * HTTP强ETag。
+     */
+    public static String toETag(String digest) {
+        return null == digest ? null : "\"" + digest + "\"";
+    }
+
+    /**
+     * 从HTTP ETag中取出摘要，兼容弱ETag。
+     */
+    public static String fromETag(String eTag) {
+        if (!StringUtils.hasText(eTag)) return null;
+
+        String digest = eTag.trim();
+        if (digest.startsWith("W/")) {
+            digest = digest.substring(2);
+        }
+
+        if (digest.length() >= 2 && digest.startsWith("\"") && digest.endsWith("\"")) {
+            digest = digest.substring(1, digest.length() - 1);
+        }
+
+        return digest;
+    }
+}
@@ -0,0 +1,523 @@
+package me.insidezhou.southernquiet.filesystem;
+
+import org.springframework.util.StreamUtils;
+import org.springframework.util.StringUtils;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 按内容去重的{@link FileSystem}装饰器。
+ * <ul>
+ * <li>内容以{@link ContentDigest}为名只保存一份，并记录引用计数，引用计数归零时删除。</li>
+ * <li>每个路径上只保存指向内容的指针，复制文件只需要复制指针并增加引用计数，删除则减少引用计数。</li>
+ * <li>引用计数的更新只在当前进程内互斥，不要让多个进程通过各自的DedupFileSystem写同一个底层文件系统。</li>
+ * <li>获取元信息需要读取指针来得到文件的大小及摘要，列举目录时每个文件都会读取一次指针。</li>
+ * </ul>
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class DedupFileSystem implements FileSystem {
+    private final static String POINTER_ROOT = "PATHS";
+    private final static String BLOB_ROOT = "BLOBS";
+    private final static String REFERENCE_ROOT = "REFS";
+    private final static String TEMP_ROOT = "TMP";
+
+    private final static int LOCK_STRIPES = 64;
+
+    private final FileSystem fileSystem;
+    /**
+     * 路径锁总是在内容锁之前获取。
+     */
+    private final Object[] pathLocks = new Object[LOCK_STRIPES];
+    private final Object[] blobLocks = new Object[LOCK_STRIPES];
+
+    public DedupFileSystem(FileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+
+        for (int i = 0; i < LOCK_STRIPES; ++i) {
+            pathLocks[i] = new Object();
+            blobLocks[i] = new Object();
+        }
+
+        fileSystem.createDirectory(POINTER_ROOT);
+    }
+
+    public FileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    /**
+     * 内容当前被多少个路径引用。
+     *
+     * @param digest 内容的摘要
+     */
+    public long getReferenceCount(String digest) {
+        synchronized (blobLock(digest)) {
+            return readReferenceCount(digest);
+        }
+    }
+
+    @Override
+    public void createDirectory(String path) {
+        fileSystem.createDirectory(pointerPath(path));
+    }
+
+    @Override
+    public void put(String path, InputStream stream) throws InvalidFileException {
+        String tempPath = tempPath();
+
+        MessageDigest messageDigest = ContentDigest.newMessageDigest();
+        long size;
+        try (OutputStream outputStream = new DigestOutputStream(fileSystem.openWriteStream(tempPath), messageDigest)) {
+            size = StreamUtils.copy(stream, outputStream);
+        }
+        catch (IOException e) {
+            fileSystem.delete(tempPath);
+            throw new InvalidFileException(path, e);
+        }
+
+        replacePointer(path, commitBlob(tempPath, ContentDigest.toHex(messageDigest), size));
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return fileSystem.exists(pointerPath(path));
+    }
+
+    @Override
+    public InputStream openReadStream(String path) throws InvalidFileException {
+        return fileSystem.openReadStream(blobPath(readPointer(path).digest));
+    }
+
+    @Override
+    public InputStream openReadStream(String path, long position, long length) throws InvalidFileException {
+        return fileSystem.openReadStream(blobPath(readPointer(path).digest), position, length);
+    }
+
+    /**
+     * 内容一旦保存就不再改变，所以追加写入时先把原有内容复制到新的临时文件，关闭流时作为新的内容保存。
+     */
+    @Override
+    public OutputStream openWriteStream(String path) throws InvalidFileException {
+        PathMeta meta = fileSystem.meta(pointerPath(path));
+        if (null != meta && meta.isDirectory()) throw new InvalidFileException(path);
+
+        String tempPath = tempPath();
+        MessageDigest messageDigest = ContentDigest.newMessageDigest();
+        OutputStream outputStream = new DigestOutputStream(fileSystem.openWriteStream(tempPath), messageDigest);
+
+        long existingSize = 0;
+        if (null != meta) {
+            try (InputStream inputStream = openReadStream(path)) {
+                existingSize = StreamUtils.copy(inputStream, outputStream);
+            }
+            catch (IOException e) {
+                fileSystem.delete(tempPath);
+                throw new InvalidFileException(path, e);
+            }
+        }
+
+        long initialSize = existingSize;
+        return new FilterOutputStream(outputStream) {
+            private long size = initialSize;
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                ++size;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                size += len;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+
+                super.close();
+
+                try {
+                    replacePointer(path, commitBlob(tempPath, ContentDigest.toHex(messageDigest), size));
+                }
+                catch (InvalidFileException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void move(String source, String destination, boolean replaceExisting) throws FileSystemException {
+        moveOrCopy(true, source, destination, replaceExisting);
+    }
+
+    /**
+     * 只复制指针并增加引用计数，不复制内容。
+     */
+    @Override
+    public void copy(String source, String destination, boolean replaceExisting) throws FileSystemException {
+        moveOrCopy(false, source, destination, replaceExisting);
+    }
+
+    @Override
+    public void delete(String path) {
+        PathMeta meta = fileSystem.meta(pointerPath(path));
+        if (null == meta) return;
+
+        if (!meta.isDirectory()) {
+            removePointer(path);
+            return;
+        }
+
+        List<String> files;
+        try {
+            files = fileSystem.files(pointerPath(path), "", true).map(m -> userPath(m.getPath())).collect(Collectors.toList());
+        }
+        catch (PathNotFoundException e) {
+            return;
+        }
+
+        files.forEach(this::removePointer);
+        fileSystem.delete(pointerPath(path));
+    }
+
+    @Override
+    public void touchCreation(String path) {
+        fileSystem.touchCreation(pointerPath(path));
+    }
+
+    @Override
+    public void touchLastModified(String path) {
+        fileSystem.touchLastModified(pointerPath(path));
+    }
+
+    @Override
+    public void touchLastAccess(String path) {
+        fileSystem.touchLastAccess(pointerPath(path));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <M extends PathMeta> M meta(String path) {
+        PathMeta meta = fileSystem.meta(pointerPath(path));
+        return null == meta ? null : (M) toUserMeta(meta);
+    }
+
+    /**
+     * 指针中保存了摘要，不需要读取内容。
+     */
+    @Override
+    public String digest(String path) throws InvalidFileException {
+        return readPointer(path).digest;
+    }
+
+    @Override
+    public Stream<? extends PathMeta> directories(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) throws PathNotFoundException {
+        Stream<PathMeta> stream = fileSystem.directories(pointerPath(path), search, recursive).map(this::toUserMeta);
+        return FileSystem.sort(stream, sort, offset, limit);
+    }
+
+    @Override
+    public Stream<? extends PathMeta> files(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) throws PathNotFoundException {
+        Stream<PathMeta> stream = fileSystem.files(pointerPath(path), search, recursive).map(this::toUserMeta);
+        return FileSystem.sort(stream, sort, offset, limit);
+    }
+
+    /**
+     * 文件大小只能从指针中读到，所以游标分页在装饰器中进行。
+     */
+    @Override
+    public Stream<? extends PathMeta> files(String path, String cursor, int limit, PathMetaSort sort) throws PathNotFoundException {
+        PathMetaSort pathMetaSort = PathMetaCursor.normalize(sort);
+
+        Stream<PathMeta> stream = fileSystem.files(pointerPath(path)).map(this::toUserMeta);
+        if (StringUtils.hasText(cursor)) {
+            PathMetaCursor pathMetaCursor = PathMetaCursor.parse(cursor, pathMetaSort);
+            stream = stream.filter(pathMetaCursor::precedes);
+        }
+
+        return FileSystem.sort(stream, pathMetaSort, 0, limit);
+    }
+
+    /**
+     * 路径上只有指针，监听指针的变化。
+     */
+    @Override
+    public Closeable watch(String path, boolean recursive, Duration debounce, Consumer<List<PathChange>> listener) throws PathNotFoundException {
+        return fileSystem.watch(pointerPath(path), recursive, debounce, changes -> listener.accept(
+            changes.stream().map(change -> new PathChange(change.getType(), userPath(change.getPath()))).collect(Collectors.toList())
+        ));
+    }
+
+    private void moveOrCopy(boolean move, String source, String destination, boolean replaceExisting) throws FileSystemException {
+        PathMeta sourceMeta = fileSystem.meta(pointerPath(source));
+        if (null == sourceMeta) throw new PathNotFoundException(source);
+
+        PathMeta destinationMeta = fileSystem.meta(pointerPath(destination));
+
+        //目标不存在时，移动指针不改变引用计数。
+        if (move && null == destinationMeta) {
+            fileSystem.move(pointerPath(source), pointerPath(destination), false);
+            return;
+        }
+
+        if (!sourceMeta.isDirectory()) {
+            String target = null != destinationMeta && destinationMeta.isDirectory()
+                ? new NormalizedPath(destination).toString() + PATH_SEPARATOR + sourceMeta.getName()
+                : destination;
+
+            copyPointer(move, source, target, replaceExisting);
+            return;
+        }
+
+        if (null != destinationMeta && !destinationMeta.isDirectory()) throw new FileSystemException("不能把目录移动或复制到文件。");
+
+        String sourceRoot = new NormalizedPath(source).toString();
+        String destinationRoot = new NormalizedPath(destination).toString();
+
+        List<String> directories = fileSystem.directories(pointerPath(source), "", true).map(m -> userPath(m.getPath())).collect(Collectors.toList());
+        List<String> files = fileSystem.files(pointerPath(source), "", true).map(m -> userPath(m.getPath())).collect(Collectors.toList());
+
+        fileSystem.createDirectory(pointerPath(destination));
+        directories.forEach(d -> fileSystem.createDirectory(pointerPath(destinationRoot + d.substring(sourceRoot.length()))));
+
+        for (String file : files) {
+            copyPointer(move, file, destinationRoot + file.substring(sourceRoot.length()), replaceExisting);
+        }
+
+        if (move) {
+            deleteEmptyDirectories(source);
+        }
+    }
+
+    /**
+     * 移动时，因为目标已存在而被忽略的文件会保留下来。
+     */
+    private void deleteEmptyDirectories(String path) throws PathNotFoundException {
+        if (fileSystem.files(pointerPath(path), "", true).findAny().isPresent()) return;
+
+        fileSystem.delete(pointerPath(path));
+    }
+
+    private void copyPointer(boolean move, String source, String destination, boolean replaceExisting) throws InvalidFileException {
+        synchronized (pathLock(destination)) {
+            PathMeta destinationMeta = fileSystem.meta(pointerPath(destination));
+            if (null != destinationMeta && (!replaceExisting || destinationMeta.isDirectory())) return;
+
+            Pointer pointer = readPointer(source);
+            addReference(pointer.digest, 1);
+            writePointer(destination, pointer, null == destinationMeta ? null : readPointer(destination));
+        }
+
+        if (move) {
+            removePointer(source);
+        }
+    }
+
+    private void replacePointer(String path, Pointer pointer) throws InvalidFileException {
+        synchronized (pathLock(path)) {
+            PathMeta meta = fileSystem.meta(pointerPath(path));
+            if (null != meta && meta.isDirectory()) {
+                addReference(pointer.digest, -1);
+                throw new InvalidFileException(path);
+            }
+
+            writePointer(path, pointer, null == meta ? null : readPointer(path));
+        }
+    }
+
+    private void writePointer(String path, Pointer pointer, Pointer previous) throws InvalidFileException {
+        fileSystem.put(pointerPath(path), pointer.toString());
+
+        if (null != previous) {
+            addReference(previous.digest, -1);
+        }
+    }
+
+    /**
+     * 先删除指针再减少引用计数，中途失败时最多留下无人引用的内容，而不会留下指向已删除内容的指针。
+     */
+    private void removePointer(String path) {
+        synchronized (pathLock(path)) {
+            Pointer pointer;
+            try {
+                pointer = readPointer(path);
+            }
+            catch (InvalidFileException e) {
+                return;
+            }
+
+            fileSystem.delete(pointerPath(path));
+            addReference(pointer.digest, -1);
+        }
+    }
+
+    private Pointer readPointer(String path) throws InvalidFileException {
+        String pointerPath = pointerPath(path);
+
+        PathMeta meta = fileSystem.meta(pointerPath);
+        if (null == meta || meta.isDirectory()) throw new InvalidFileException(path);
+
+        return Pointer.parse(fileSystem.read(pointerPath));
+    }
+
+    /**
+     * 把临时文件作为内容保存，相同的内容已经存在时丢弃临时文件。引用计数加一。
+     */
+    private Pointer commitBlob(String tempPath, String digest, long size) throws InvalidFileException {
+        synchronized (blobLock(digest)) {
+            String blobPath = blobPath(digest);
+
+            if (fileSystem.exists(blobPath)) {
+                fileSystem.delete(tempPath);
+            }
+            else {
+                try {
+                    fileSystem.move(tempPath, blobPath, true);
+                }
+                catch (FileSystemException e) {
+                    fileSystem.delete(tempPath);
+                    throw new InvalidFileException(blobPath, e);
+                }
+            }
+
+            addReference(digest, 1);
+        }
+
+        return new Pointer(digest, size);
+    }
+
+    /**
+     * 引用计数归零时删除内容。
+     */
+    private void addReference(String digest, long delta) {
+        synchronized (blobLock(digest)) {
+            long count = readReferenceCount(digest) + delta;
+
+            if (count > 0) {
+                try {
+                    fileSystem.put(referencePath(digest), String.valueOf(count));
+                }
+                catch (InvalidFileException e) {
+                    throw new RuntimeException(e);
+                }
+                return;
+            }
+
+            fileSystem.delete(blobPath(digest));
+            fileSystem.delete(referencePath(digest));
+        }
+    }
+
+    private long readReferenceCount(String digest) {
+        String referencePath = referencePath(digest);
+        if (!fileSystem.exists(referencePath)) return 0;
+
+        try {
+            return Long.parseLong(fileSystem.read(referencePath).trim());
+        }
+        catch (InvalidFileException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 底层的目录下只有指针文件，只有文件数量是有效的用量。
+     */
+    private PathMeta toUserMeta(PathMeta meta) {
+        PathMeta userMeta = new PathMeta(userPath(meta.getPath()));
+        userMeta.setDirectory(meta.isDirectory());
+        userMeta.setCreationTime(meta.getCreationTime());
+        userMeta.setLastModifiedTime(meta.getLastModifiedTime());
+        userMeta.setLastAccessTime(meta.getLastAccessTime());
+        userMeta.setSize(meta.getSize());
+        userMeta.setFileCount(meta.getFileCount());
+
+        if (!meta.isDirectory()) {
+            try {
+                Pointer pointer = Pointer.parse(fileSystem.read(meta.getPath()));
+                userMeta.setSize(pointer.size);
+                userMeta.setDigest(pointer.digest);
+            }
+            catch (InvalidFileException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        return userMeta;
+    }
+
+    private String pointerPath(String path) {
+        return POINTER_ROOT + new NormalizedPath(path).toString();
+    }
+
+    /**
+     * 把底层文件系统中指针的路径还原为用户路径。
+     */
+    private String userPath(String pointerPath) {
+        String path = new NormalizedPath(pointerPath).toString().substring(POINTER_ROOT.length() + 1);
+        return path.isEmpty() ? PATH_SEPARATOR_STRING : path;
+    }
+
+    /**
+     * 按摘要的前缀分散到子目录，避免单个目录下的文件过多。
+     */
+    private String blobPath(String digest) {
+        return BLOB_ROOT + PATH_SEPARATOR + digest.substring(0, 2) + PATH_SEPARATOR + digest.substring(2, 4) + PATH_SEPARATOR + digest;
+    }
+
+    private String referencePath(String digest) {
+        return REFERENCE_ROOT + PATH_SEPARATOR + digest.substring(0, 2) + PATH_SEPARATOR + digest.substring(2, 4) + PATH_SEPARATOR + digest;
+    }
+
+    private String tempPath() {
+        return TEMP_ROOT + PATH_SEPARATOR + UUID.randomUUID().toString();
+    }
+
+    private Object pathLock(String path) {
+        return pathLocks[Math.floorMod(new NormalizedPath(path).toString().hashCode(), LOCK_STRIPES)];
+    }
+
+    private Object blobLock(String digest) {
+        return blobLocks[Math.floorMod(digest.hashCode(), LOCK_STRIPES)];
+    }
+
+    /**
+     * 路径上保存的指针，字符串形式为“摘要:大小”。
+     */
+    private static class Pointer {
+        private static Pointer parse(String value) {
+            String[] values = value.trim().split(":");
+            return new Pointer(values[0], Long.parseLong(values[1]));
+        }
+
+        private final String digest;
+        private final long size;
+
+        private Pointer(String digest, long size) {
+            this.digest = digest;
+            this.size = size;
+        }
+
+        @Override
+        public String toString() {
+            return digest + ":" + size;
+        }
+    }
+}
@@ -1,14 +1,18 @@
 package me.insidezhou.southernquiet.filesystem;
 
 import org.springframework.util.StreamUtils;
+import org.springframework.util.StringUtils;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.Comparator;
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 /**
@@ -19,40 +23,116 @@ public interface FileSystem {
     char PATH_SEPARATOR = '/';
     String PATH_SEPARATOR_STRING = String.valueOf(PATH_SEPARATOR);
 
-    static <T extends PathMeta> Stream<T> sort(Stream<T> stream, PathMetaSort sort) {
+    /**
+     * 路径元信息的排序，排序值相同时按路径名排序，以保证分页结果稳定。
+     */
+    static Comparator<PathMeta> comparator(PathMetaSort sort) {
+        Comparator<PathMeta> comparator;
+
         switch (sort) {
             case Name:
-                return stream.sorted(Comparator.comparing(PathMeta::getName));
+                comparator = Comparator.comparing(PathMeta::getName);
+                break;
             case NameDesc:
-                return stream.sorted(Comparator.comparing(PathMeta::getName).reversed());
+                comparator = Comparator.comparing(PathMeta::getName).reversed();
+                break;
 
             case IsDirectory:
-                return stream.sorted(Comparator.comparing(PathMeta::isDirectory));
+                comparator = Comparator.comparing(PathMeta::isDirectory);
+                break;
             case IsDirectoryDesc:
-                return stream.sorted(Comparator.comparing(PathMeta::isDirectory).reversed());
+                comparator = Comparator.comparing(PathMeta::isDirectory).reversed();
+                break;
 
             case CreationTime:
-                return stream.sorted(Comparator.comparing(PathMeta::getCreationTime));
+                comparator = Comparator.comparing(PathMeta::getCreationTime);
+                break;
             case CreationTimeDesc:
-                return stream.sorted(Comparator.comparing(PathMeta::getCreationTime).reversed());
+                comparator = Comparator.comparing(PathMeta::getCreationTime).reversed();
+                break;
 
             case LastAccessTime:
-                return stream.sorted(Comparator.comparing(PathMeta::getLastAccessTime));
+                comparator = Comparator.comparing(PathMeta::getLastAccessTime);
+                break;
             case LastAccessTimeDesc:
-                return stream.sorted(Comparator.comparing(PathMeta::getLastAccessTime).reversed());
+                comparator = Comparator.comparing(PathMeta::getLastAccessTime).reversed();
+                break;
 
             case LastModifiedTime:
-                return stream.sorted(Comparator.comparing(PathMeta::getLastModifiedTime));
+                comparator = Comparator.comparing(PathMeta::getLastModifiedTime);
+                break;
             case LastModifiedTimeDesc:
-                return stream.sorted(Comparator.comparing(PathMeta::getLastModifiedTime).reversed());
+                comparator = Comparator.comparing(PathMeta::getLastModifiedTime).reversed();
+                break;
 
             case Size:
-                return stream.sorted(Comparator.comparing(PathMeta::getSize));
+                comparator = Comparator.comparing(PathMeta::getSize);
+                break;
             case SizeDesc:
-                return stream.sorted(Comparator.comparing(PathMeta::getSize).reversed());
+                comparator = Comparator.comparing(PathMeta::getSize).reversed();
+                break;
             default:
                 throw new RuntimeException();
         }
+
+        return comparator.thenComparing(PathMeta::getPath);
+    }
+
+    static <T extends PathMeta> Stream<T> sort(Stream<T> stream, PathMetaSort sort) {
+        return stream.sorted(comparator(sort));
+    }
+
+    /**
+     * 使用堆保留前K个元素的K的上限，超过时对整个流排序。
+     */
+    int TOP_K_LIMIT = 10000;
+
+    /**
+     * 排序并分页。有limit且offset+limit不超过{@link #TOP_K_LIMIT}时，只用堆保留前K个元素，而不是对整个流排序。
+     *
+     * @param offset 开始位置索引。小于0则忽略。
+     * @param limit  数量限制。小于0则忽略。
+     * @param sort   排序选项，为null时不排序。
+     */
+    static <T extends PathMeta> Stream<T> sort(Stream<T> stream, PathMetaSort sort, int offset, int limit) {
+        offset = Math.max(offset, 0);
+
+        if (null != sort && limit > 0 && (long) offset + limit <= TOP_K_LIMIT) {
+            Comparator<PathMeta> comparator = comparator(sort);
+            int k = offset + limit;
+
+            //堆顶是当前保留的最大元素，新元素比它小时替换之。
+            PriorityQueue<T> heap = new PriorityQueue<>(comparator.reversed());
+            try (Stream<T> s = stream) {
+                s.forEach(meta -> {
+                    if (heap.size() < k) {
+                        heap.offer(meta);
+                    }
+                    else if (comparator.compare(meta, heap.peek()) < 0) {
+                        heap.poll();
+                        heap.offer(meta);
+                    }
+                });
+            }
+
+            List<T> list = new ArrayList<>(heap);
+            list.sort(comparator);
+            return list.stream().skip(offset);
+        }
+
+        if (null != sort) {
+            stream = sort(stream, sort);
+        }
+
+        if (offset > 0) {
+            stream = stream.skip(offset);
+        }
+
+        if (limit > 0) {
+            stream = stream.limit(limit);
+        }
+
+        return stream;
     }
 
     /**
@@ -87,6 +167,18 @@ public interface FileSystem {
         }
     }
 
+    /**
+     * 批量写入文件，如果文件未存在，则创建；否则替换。
+     *
+     * @param files 路径及其输入流
+     * @throws InvalidFileException 无效文件，此时其他文件可能已经写入。
+     */
+    default void putAll(Map<String, ? extends InputStream> files) throws InvalidFileException {
+        for (Map.Entry<String, ? extends InputStream> entry : files.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
     /**
      * 检查路径是否存在。
      *
@@ -120,6 +212,59 @@ public interface FileSystem {
         }
     }
 
+    /**
+     * 获取文件内容的摘要，见{@link ContentDigest}。驱动没有保存摘要时读取文件内容计算。
+     *
+     * @param path 文件路径
+     * @throws InvalidFileException 无效文件
+     */
+    default String digest(String path) throws InvalidFileException {
+        PathMeta meta = meta(path);
+        if (null == meta || meta.isDirectory()) throw new InvalidFileException(path);
+
+        if (null != meta.getDigest()) return meta.getDigest();
+
+        try (InputStream inputStream = openReadStream(path)) {
+            return ContentDigest.of(inputStream);
+        }
+        catch (IOException e) {
+            throw new InvalidFileException(path, e);
+        }
+    }
+
+    /**
+     * 检查文件内容是否与摘要一致，用于在传输之前判断内容是否未改变。
+     *
+     * @param path   文件路径
+     * @param digest 摘要或者HTTP ETag
+     * @return 文件不存在时返回false。
+     */
+    default boolean matches(String path, String digest) {
+        String expected = ContentDigest.fromETag(digest);
+        if (null == expected) return false;
+
+        try {
+            return expected.equals(digest(path));
+        }
+        catch (InvalidFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 文件内容与摘要不一致时才读取，与HTTP If-None-Match的语义相同。调用方负责流的关闭。
+     *
+     * @param path   文件路径
+     * @param digest 调用方持有的内容的摘要或者HTTP ETag，为null时总是读取。
+     * @return 内容未改变时返回null。
+     * @throws InvalidFileException 无效文件
+     */
+    default InputStream openReadStreamIfNoneMatch(String path, String digest) throws InvalidFileException {
+        if (null != digest && matches(path, digest)) return null;
+
+        return openReadStream(path);
+    }
+
     /**
      * 用流的方式读取文件内容，调用方负责流的关闭。
      *
@@ -128,6 +273,29 @@ public interface FileSystem {
      */
     InputStream openReadStream(String path) throws InvalidFileException;
 
+    /**
+     * 从position开始读取文件内容，调用方负责流的关闭。默认实现跳过position之前的内容，驱动可以直接定位。
+     *
+     * @param path     路径
+     * @param position 开始位置
+     * @param length   读取的长度，小于0时读到文件末尾。
+     * @throws InvalidFileException 无效文件
+     */
+    default InputStream openReadStream(String path, long position, long length) throws InvalidFileException {
+        InputStream inputStream = openReadStream(path);
+        try {
+            return RangeInputStream.of(inputStream, position, length);
+        }
+        catch (IOException e) {
+            try {
+                inputStream.close();
+            }
+            catch (IOException ignored) {}
+
+            throw new InvalidFileException(path, e);
+        }
+    }
+
     /**
      * 用流的方式写入文件内容，调用方负责流的关闭。
      * <ul>
@@ -187,6 +355,15 @@ public interface FileSystem {
      */
     void delete(String path);
 
+    /**
+     * 批量删除文件或目录。
+     *
+     * @param paths 路径
+     */
+    default void deleteAll(Collection<String> paths) {
+        paths.forEach(this::delete);
+    }
+
     /**
      * 刷新文件或目录的 {@link PathMeta#getCreationTime()}。
      *
@@ -216,6 +393,36 @@ public interface FileSystem {
      */
     <M extends PathMeta> M meta(String path);
 
+    /**
+     * 批量获取路径的元信息。
+     *
+     * @param paths 路径
+     * @return 以传入的路径为key，不存在的路径不会出现在结果中。
+     */
+    default <M extends PathMeta> Map<String, M> metaAll(Collection<String> paths) {
+        Map<String, M> result = new HashMap<>();
+        paths.forEach(path -> {
+            M meta = meta(path);
+            if (null != meta) {
+                result.put(path, meta);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * 批量检查路径是否存在。
+     *
+     * @param paths 路径
+     * @return 以传入的路径为key。
+     */
+    default Map<String, Boolean> existsAll(Collection<String> paths) {
+        Map<String, Boolean> result = new HashMap<>();
+        paths.forEach(path -> result.put(path, exists(path)));
+        return result;
+    }
+
     /**
      * 获取目录下子目录，非递归。
      *
@@ -313,4 +520,52 @@ public interface FileSystem {
      * @throws PathNotFoundException 目录不存在
      */
     Stream<? extends PathMeta> files(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) throws PathNotFoundException;
+
+    /**
+     * 以keyset的方式分页获取目录下文件，非递归。与offset分页不同，翻页的代价与页码无关。
+     *
+     * @param path   目录路径
+     * @param cursor 上一页最后一个文件的游标，由{@link PathMetaCursor#of(PathMeta, PathMetaSort)}生成。为空时从第一页开始。
+     * @param limit  数量限制，必须大于0。
+     * @param sort   排序选项，翻页过程中必须保持不变。为null时按{@link PathMetaSort#Name}排序。
+     * @throws PathNotFoundException 目录不存在
+     */
+    default Stream<? extends PathMeta> files(String path, String cursor, int limit, PathMetaSort sort) throws PathNotFoundException {
+        PathMetaSort pathMetaSort = PathMetaCursor.normalize(sort);
+
+        Stream<? extends PathMeta> stream = files(path, "", false, -1, -1, null);
+        if (StringUtils.hasText(cursor)) {
+            PathMetaCursor pathMetaCursor = PathMetaCursor.parse(cursor, pathMetaSort);
+            stream = stream.filter(pathMetaCursor::precedes);
+        }
+
+        return sort(stream, pathMetaSort, 0, limit);
+    }
+
+    /**
+     * 监听路径的变化，包括绕过当前实例的外部修改。变化经过{@link PathChangeBatcher}合并后成批投递。
+     *
+     * @param path      目录路径
+     * @param recursive 如果true，则同时监听所有子目录。
+     * @param listener  接收成批的变化
+     * @return 关闭后停止监听
+     * @throws PathNotFoundException 目录不存在
+     */
+    default Closeable watch(String path, boolean recursive, Consumer<List<PathChange>> listener) throws PathNotFoundException {
+        return watch(path, recursive, PathChangeBatcher.DEFAULT_DEBOUNCE, listener);
+    }
+
+    /**
+     * 监听路径的变化。默认以{@link PollingPathWatcher}定期列出目录，有原生变化通知的实现应该覆盖此方法。
+     *
+     * @param path      目录路径
+     * @param recursive 如果true，则同时监听所有子目录。
+     * @param debounce  合并变化的静默期
+     * @param listener  接收成批的变化
+     * @return 关闭后停止监听
+     * @throws PathNotFoundException 目录不存在
+     */
+    default Closeable watch(String path, boolean recursive, Duration debounce, Consumer<List<PathChange>> listener) throws PathNotFoundException {
+        return new PollingPathWatcher(this, path, recursive, PollingPathWatcher.DEFAULT_INTERVAL, new PathChangeBatcher(debounce, listener));
+    }
 }
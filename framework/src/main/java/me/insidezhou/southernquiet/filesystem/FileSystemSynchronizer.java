@@ -0,0 +1,433 @@
+package me.insidezhou.southernquiet.filesystem;
+
+import org.springframework.util.StringUtils;
+
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static me.insidezhou.southernquiet.filesystem.FileSystem.PATH_SEPARATOR_STRING;
+
+/**
+ * 把源{@link FileSystem}上的目录增量同步到目标{@link FileSystem}，例如在{@link me.insidezhou.southernquiet.filesystem.driver.LocalFileSystem}与MongoDb驱动之间复制。
+ * <ul>
+ * <li>两侧按目录逐层列举，文件按名称分页归并比较，内存占用与目录大小无关。</li>
+ * <li>只传输目标上不存在、大小不同或源文件较新的文件；开启compareDigest时以摘要代替修改时间比较。</li>
+ * <li>传输以有界的并行度进行，每完成一批保存一次检查点，中断后再次同步时跳过检查点之前的路径。</li>
+ * </ul>
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class FileSystemSynchronizer {
+    private final static int PAGE_SIZE = 1000;
+
+    /**
+     * 检查点及遍历顺序中，文件名与目录名的前缀。同一目录下先处理文件，再处理子目录。
+     */
+    private final static String FILE_PREFIX = "0";
+    private final static String DIRECTORY_PREFIX = "1";
+
+    private final FileSystem source;
+    private final FileSystem target;
+    private final int parallelism;
+
+    private int batchSize;
+    private boolean compareDigest;
+    private boolean deleteExtraneous;
+
+    /**
+     * @param source      源文件系统
+     * @param target      目标文件系统
+     * @param parallelism 同时传输的文件数量
+     */
+    public FileSystemSynchronizer(FileSystem source, FileSystem target, int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("并行度必须大于0。");
+
+        this.source = source;
+        this.target = target;
+        this.parallelism = parallelism;
+        this.batchSize = parallelism * 16;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * 每批传输的文件数量，每批完成后保存一次检查点。
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    public boolean isCompareDigest() {
+        return compareDigest;
+    }
+
+    /**
+     * 如果true，大小相同的文件比较摘要而不是修改时间，适用于两侧时钟不一致或者修改时间不可靠的情况。
+     */
+    public void setCompareDigest(boolean compareDigest) {
+        this.compareDigest = compareDigest;
+    }
+
+    public boolean isDeleteExtraneous() {
+        return deleteExtraneous;
+    }
+
+    /**
+     * 如果true，删除目标上存在而源上不存在的文件及目录。
+     */
+    public void setDeleteExtraneous(boolean deleteExtraneous) {
+        this.deleteExtraneous = deleteExtraneous;
+    }
+
+    /**
+     * 不保存检查点的同步。
+     *
+     * @see #sync(String, String)
+     */
+    public Result sync(String path) throws FileSystemException {
+        return sync(path, null);
+    }
+
+    /**
+     * 把源上的目录同步到目标上的同一路径。
+     *
+     * @param path       目录路径
+     * @param checkpoint 目标上保存检查点的文件路径，不能位于要同步的目录下。为null时不保存检查点。同步完成后删除。
+     * @throws PathNotFoundException 源目录不存在
+     * @throws FileSystemException   传输失败，此时已完成的批次记录在检查点中。
+     */
+    public Result sync(String path, String checkpoint) throws FileSystemException {
+        NormalizedPath root = new NormalizedPath(path);
+
+        PathMeta rootMeta = source.meta(root.toString());
+        if (null == rootMeta || !rootMeta.isDirectory()) throw new PathNotFoundException(path);
+
+        if (null != checkpoint && isInside(new NormalizedPath(checkpoint), root)) {
+            throw new IllegalArgumentException("检查点不能位于要同步的目录下。");
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            Run run = new Run(executor, checkpoint);
+            run.directory(root.toString(), Collections.emptyList());
+            run.flush();
+
+            if (null != checkpoint) {
+                target.delete(checkpoint);
+            }
+
+            return run.result;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static boolean isInside(NormalizedPath path, NormalizedPath directory) {
+        if (0 == directory.getParentNames().length) return true;
+
+        return path.toString().startsWith(directory.toString() + PATH_SEPARATOR_STRING);
+    }
+
+    private static String child(String directory, String name) {
+        return new NormalizedPath(directory + PATH_SEPARATOR_STRING + name).toString();
+    }
+
+    private static List<String> append(List<String> key, String element) {
+        List<String> list = new ArrayList<>(key.size() + 1);
+        list.addAll(key);
+        list.add(element);
+        return list;
+    }
+
+    /**
+     * 按遍历顺序比较，上级目录在其下的路径之前。
+     */
+    private static int compare(List<String> a, List<String> b) {
+        for (int i = 0; i < Math.min(a.size(), b.size()); ++i) {
+            int c = a.get(i).compareTo(b.get(i));
+            if (0 != c) return c;
+        }
+
+        return Integer.compare(a.size(), b.size());
+    }
+
+    /**
+     * 以名称排序，分页列举目录下的文件。
+     */
+    private static Iterator<PathMeta> files(FileSystem fileSystem, String directory) {
+        return new Iterator<PathMeta>() {
+            private Iterator<PathMeta> page = Collections.emptyIterator();
+            private String cursor;
+            private boolean last;
+
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext() && !last) {
+                    List<PathMeta> list;
+                    try (Stream<? extends PathMeta> stream = fileSystem.files(directory, cursor, PAGE_SIZE, PathMetaSort.Name)) {
+                        list = stream.collect(Collectors.<PathMeta>toList());
+                    }
+                    catch (PathNotFoundException e) {
+                        list = Collections.emptyList();
+                    }
+
+                    last = list.size() < PAGE_SIZE;
+                    if (!list.isEmpty()) {
+                        cursor = PathMetaCursor.of(list.get(list.size() - 1), PathMetaSort.Name);
+                    }
+                    page = list.iterator();
+                }
+
+                return page.hasNext();
+            }
+
+            @Override
+            public PathMeta next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return page.next();
+            }
+        };
+    }
+
+    private static List<String> directories(FileSystem fileSystem, String directory) {
+        try (Stream<? extends PathMeta> stream = fileSystem.directories(directory, "", false, -1, -1, PathMetaSort.Name)) {
+            return stream.map(PathMeta::getName).collect(Collectors.toList());
+        }
+        catch (PathNotFoundException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    private static <T> T next(Iterator<T> iterator) {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * 一次同步的统计。
+     */
+    public static class Result {
+        private final AtomicLong transferred = new AtomicLong();
+        private final AtomicLong transferredBytes = new AtomicLong();
+        private final AtomicLong deleted = new AtomicLong();
+        private final AtomicLong unchanged = new AtomicLong();
+
+        /**
+         * 传输的文件数量。
+         */
+        public long getTransferred() {
+            return transferred.get();
+        }
+
+        /**
+         * 传输的字节数。
+         */
+        public long getTransferredBytes() {
+            return transferredBytes.get();
+        }
+
+        /**
+         * 在目标上删除的文件及目录数量。
+         */
+        public long getDeleted() {
+            return deleted.get();
+        }
+
+        /**
+         * 没有变化而跳过的文件数量，不包括检查点之前的文件。
+         */
+        public long getUnchanged() {
+            return unchanged.get();
+        }
+    }
+
+    /**
+     * 一次同步的遍历状态。路径以遍历顺序的键表示，见{@link #FILE_PREFIX}。
+     */
+    private class Run {
+        private final ExecutorService executor;
+        private final String checkpoint;
+        private final List<String> resume;
+        private final List<Future<?>> pending = new ArrayList<>();
+        private final Result result = new Result();
+        private List<String> lastKey;
+
+        private Run(ExecutorService executor, String checkpoint) throws FileSystemException {
+            this.executor = executor;
+            this.checkpoint = checkpoint;
+            this.resume = loadCheckpoint();
+        }
+
+        private void directory(String directory, List<String> key) throws FileSystemException {
+            Iterator<PathMeta> sourceFiles = files(source, directory);
+            Iterator<PathMeta> targetFiles = files(target, directory);
+
+            PathMeta s = next(sourceFiles);
+            PathMeta t = next(targetFiles);
+            while (null != s || null != t) {
+                int c = null == s ? 1 : null == t ? -1 : s.getName().compareTo(t.getName());
+                if (c < 0) {
+                    file(directory, key, s, null);
+                    s = next(sourceFiles);
+                }
+                else if (c > 0) {
+                    file(directory, key, null, t);
+                    t = next(targetFiles);
+                }
+                else {
+                    file(directory, key, s, t);
+                    s = next(sourceFiles);
+                    t = next(targetFiles);
+                }
+            }
+
+            //子目录同样按名称归并，保证检查点按遍历顺序前进。
+            Set<String> sourceDirectories = new HashSet<>(directories(source, directory));
+            TreeSet<String> names = new TreeSet<>(sourceDirectories);
+            if (deleteExtraneous) {
+                names.addAll(directories(target, directory));
+            }
+
+            for (String name : names) {
+                List<String> directoryKey = append(key, DIRECTORY_PREFIX + name);
+                if (done(directoryKey)) continue;
+
+                String path = child(directory, name);
+                if (sourceDirectories.contains(name)) {
+                    directory(path, directoryKey);
+                }
+                else {
+                    submit(directoryKey, () -> {
+                        target.delete(path);
+                        result.deleted.incrementAndGet();
+                    });
+                }
+            }
+        }
+
+        private void file(String directory, List<String> key, PathMeta sourceMeta, PathMeta targetMeta) throws FileSystemException {
+            String name = (null == sourceMeta ? targetMeta : sourceMeta).getName();
+            List<String> fileKey = append(key, FILE_PREFIX + name);
+            if (done(fileKey)) return;
+
+            String path = child(directory, name);
+            if (null == sourceMeta) {
+                if (deleteExtraneous) {
+                    submit(fileKey, () -> {
+                        target.delete(path);
+                        result.deleted.incrementAndGet();
+                    });
+                }
+                return;
+            }
+
+            if (null == targetMeta || sourceMeta.getSize() != targetMeta.getSize()) {
+                submit(fileKey, () -> transfer(path, sourceMeta.getSize()));
+                return;
+            }
+
+            //摘要可能需要读取文件内容计算，放在传输线程上比较。
+            if (compareDigest) {
+                submit(fileKey, () -> {
+                    if (Objects.equals(digest(source, sourceMeta), digest(target, targetMeta))) {
+                        result.unchanged.incrementAndGet();
+                    }
+                    else {
+                        transfer(path, sourceMeta.getSize());
+                    }
+                });
+                return;
+            }
+
+            if (null == sourceMeta.getLastModifiedTime()
+                || null == targetMeta.getLastModifiedTime()
+                || sourceMeta.getLastModifiedTime().isAfter(targetMeta.getLastModifiedTime())) {
+
+                submit(fileKey, () -> transfer(path, sourceMeta.getSize()));
+                return;
+            }
+
+            result.unchanged.incrementAndGet();
+        }
+
+        private void transfer(String path, long size) throws Exception {
+            try (InputStream inputStream = source.openReadStream(path)) {
+                target.put(path, inputStream);
+            }
+
+            result.transferred.incrementAndGet();
+            result.transferredBytes.addAndGet(size);
+        }
+
+        private String digest(FileSystem fileSystem, PathMeta meta) throws InvalidFileException {
+            return null == meta.getDigest() ? fileSystem.digest(meta.getPath()) : meta.getDigest();
+        }
+
+        /**
+         * 检查点之前（含）的路径已经同步过。检查点位于目录之下时，目录只同步了一部分。
+         */
+        private boolean done(List<String> key) {
+            if (null == resume) return false;
+            if (key.size() < resume.size() && key.equals(resume.subList(0, key.size()))) return false;
+
+            return compare(key, resume) <= 0;
+        }
+
+        private void submit(List<String> key, Task task) throws FileSystemException {
+            pending.add(executor.submit(() -> {
+                task.run();
+                return null;
+            }));
+            lastKey = key;
+
+            if (pending.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        /**
+         * 等待当前批次完成并保存检查点。批次中有失败时不保存。
+         */
+        private void flush() throws FileSystemException {
+            Throwable failure = null;
+            for (Future<?> future : pending) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    if (null == failure) failure = e.getCause();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new FileSystemException("同步被中断。", e);
+                }
+            }
+            pending.clear();
+
+            if (null != failure) throw new FileSystemException("同步失败。", failure);
+
+            if (null != checkpoint && null != lastKey) {
+                target.put(checkpoint, String.join(PATH_SEPARATOR_STRING, lastKey));
+            }
+        }
+
+        private List<String> loadCheckpoint() throws FileSystemException {
+            if (null == checkpoint || !target.exists(checkpoint)) return null;
+
+            String value = target.read(checkpoint);
+            if (!StringUtils.hasText(value)) return null;
+
+            return Arrays.asList(value.trim().split(PATH_SEPARATOR_STRING));
+        }
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,258 @@
+package me.insidezhou.southernquiet.filesystem;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static me.insidezhou.southernquiet.filesystem.FileSystem.PATH_SEPARATOR;
+import static me.insidezhou.southernquiet.filesystem.FileSystem.PATH_SEPARATOR_STRING;
+
+/**
+ * 路径名称的三元组（trigram）索引，按contains查找名称时只需要比较包含查找词所有三元组的路径。
+ * <ul>
+ * <li>查找词少于{@link #GRAM_SIZE}个字符时无法使用索引，见{@link #supports(String)}。</li>
+ * <li>每个路径有一个递增的编号，倒排列表按编号有序，求交集只需要归并。</li>
+ * <li>删除的路径只留下空位，空位过多时重建。</li>
+ * </ul>
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class NameIndex {
+    public final static int GRAM_SIZE = 3;
+
+    private final static int COMPACT_THRESHOLD = 1024;
+
+    /**
+     * 名称中所有不重复的三元组。
+     */
+    public static Set<String> trigrams(String name) {
+        Set<String> grams = new LinkedHashSet<>();
+        for (int i = 0; i + GRAM_SIZE <= name.length(); ++i) {
+            grams.add(name.substring(i, i + GRAM_SIZE));
+        }
+        return grams;
+    }
+
+    public static boolean supports(String search) {
+        return null != search && search.length() >= GRAM_SIZE;
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<String, Integer> ids = new TreeMap<>();
+    private final List<String> paths = new ArrayList<>();
+    private final Map<String, Postings> postings = new HashMap<>();
+    private int removed;
+
+    /**
+     * @param path 路径，已经存在时忽略。
+     */
+    public void add(String path) {
+        String normalizedPath = new NormalizedPath(path).toString();
+        if (PATH_SEPARATOR_STRING.equals(normalizedPath)) return;
+
+        lock.writeLock().lock();
+        try {
+            doAdd(normalizedPath);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 删除路径及其下所有的路径。
+     */
+    public void remove(String path) {
+        String normalizedPath = new NormalizedPath(path).toString();
+
+        lock.writeLock().lock();
+        try {
+            doRemove(subtree(normalizedPath));
+            compactIfNecessary();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 把路径及其下所有的路径移动到新的位置。
+     */
+    public void move(String source, String destination) {
+        String normalizedSource = new NormalizedPath(source).toString();
+        String normalizedDestination = new NormalizedPath(destination).toString();
+
+        lock.writeLock().lock();
+        try {
+            List<String> moved = subtree(normalizedSource);
+            doRemove(moved);
+            moved.forEach(p -> doAdd(normalizedDestination + p.substring(normalizedSource.length())));
+            compactIfNecessary();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            ids.clear();
+            paths.clear();
+            postings.clear();
+            removed = 0;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ids.size();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 查找名称包含search的路径。
+     *
+     * @param directory 目录路径
+     * @param search    查找词，至少{@link #GRAM_SIZE}个字符。
+     * @param recursive 如果true，包括所有子目录下的路径。
+     * @return 规格化的路径，按编号排序。
+     */
+    public List<String> search(String directory, String search, boolean recursive) {
+        if (!supports(search)) throw new IllegalArgumentException("查找词不能少于" + GRAM_SIZE + "个字符。");
+
+        String normalizedDirectory = new NormalizedPath(directory).toString();
+        String prefix = PATH_SEPARATOR_STRING.equals(normalizedDirectory) ? normalizedDirectory : normalizedDirectory + PATH_SEPARATOR;
+
+        lock.readLock().lock();
+        try {
+            List<Postings> lists = new ArrayList<>();
+            for (String gram : trigrams(search)) {
+                Postings list = postings.get(gram);
+                if (null == list) return Collections.emptyList();
+                lists.add(list);
+            }
+            lists.sort(Comparator.comparingInt(p -> p.size));
+
+            int[] candidates = Arrays.copyOf(lists.get(0).ids, lists.get(0).size);
+            int count = candidates.length;
+            for (int i = 1; i < lists.size() && count > 0; ++i) {
+                count = intersect(candidates, count, lists.get(i));
+            }
+
+            List<String> result = new ArrayList<>();
+            for (int i = 0; i < count; ++i) {
+                String path = paths.get(candidates[i]);
+                if (null == path || !path.startsWith(prefix)) continue;
+
+                int separator = path.lastIndexOf(PATH_SEPARATOR);
+                if (!recursive && separator >= prefix.length()) continue;
+                if (!path.substring(separator + 1).contains(search)) continue;
+
+                result.add(path);
+            }
+            return result;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 原地求交集，结果保留在candidates的前面。
+     *
+     * @return 交集的大小
+     */
+    private static int intersect(int[] candidates, int count, Postings list) {
+        int result = 0;
+        int j = 0;
+        for (int i = 0; i < count && j < list.size; ) {
+            if (candidates[i] < list.ids[j]) {
+                ++i;
+            }
+            else if (candidates[i] > list.ids[j]) {
+                ++j;
+            }
+            else {
+                candidates[result++] = candidates[i];
+                ++i;
+                ++j;
+            }
+        }
+        return result;
+    }
+
+    private void doAdd(String path) {
+        if (ids.containsKey(path)) return;
+
+        int id = paths.size();
+        paths.add(path);
+        ids.put(path, id);
+
+        for (String gram : trigrams(path.substring(path.lastIndexOf(PATH_SEPARATOR) + 1))) {
+            postings.computeIfAbsent(gram, g -> new Postings()).add(id);
+        }
+    }
+
+    private void doRemove(List<String> removedPaths) {
+        for (String path : removedPaths) {
+            Integer id = ids.remove(path);
+            if (null == id) continue;
+
+            paths.set(id, null);
+            ++removed;
+        }
+    }
+
+    /**
+     * 路径自身及其下所有的路径。
+     */
+    private List<String> subtree(String path) {
+        if (PATH_SEPARATOR_STRING.equals(path)) return new ArrayList<>(ids.keySet());
+
+        List<String> result = new ArrayList<>();
+        if (ids.containsKey(path)) {
+            result.add(path);
+        }
+
+        //以分隔符结尾的前缀，上界是分隔符的下一个字符。
+        result.addAll(ids.subMap(path + PATH_SEPARATOR, (path + (char) (PATH_SEPARATOR + 1))).keySet());
+        return result;
+    }
+
+    /**
+     * 空位超过一半时按路径重新编号。
+     */
+    private void compactIfNecessary() {
+        if (removed < COMPACT_THRESHOLD || removed * 2 < paths.size()) return;
+
+        List<String> live = new ArrayList<>(ids.keySet());
+        ids.clear();
+        paths.clear();
+        postings.clear();
+        removed = 0;
+
+        live.forEach(this::doAdd);
+    }
+
+    /**
+     * 按编号递增的倒排列表，编号总是递增分配，所以追加即有序。
+     */
+    private static class Postings {
+        private int[] ids = new int[4];
+        private int size;
+
+        private void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package me.insidezhou.southernquiet.filesystem;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * 路径上发生的变化。
+ *
+ * @see FileSystem#watch(String, boolean, java.util.function.Consumer)
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PathChange implements Serializable {
+    private final static long serialVersionUID = -3468019520962436791L;
+
+    public enum Type {
+        CREATED,
+        MODIFIED,
+        DELETED,
+        /**
+         * 有变化被遗漏，路径及其所有子路径都应该被视为已修改。
+         */
+        OVERFLOW
+    }
+
+    private Type type;
+    private String path;
+
+    public PathChange() {}
+
+    public PathChange(Type type, String path) {
+        this.type = type;
+        this.path = new NormalizedPath(path).toString();
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PathChange that = (PathChange) o;
+        return type == that.type && Objects.equals(path, that.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, path);
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + path;
+    }
+}
@@ -0,0 +1,120 @@
+package me.insidezhou.southernquiet.filesystem;
+
+import me.insidezhou.southernquiet.logging.SouthernQuietLogger;
+import me.insidezhou.southernquiet.logging.SouthernQuietLoggerFactory;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 合并短时间内的{@link PathChange}，路径在静默期内没有新的变化时才成批投递，持续变化时最迟在{@link #maxDelay}之后投递。
+ * 同一路径的多次变化只保留一个：新建后的修改仍是新建，其余以最后一次为准。
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PathChangeBatcher implements Closeable {
+    private final static SouthernQuietLogger log = SouthernQuietLoggerFactory.getLogger(PathChangeBatcher.class);
+
+    public final static Duration DEFAULT_DEBOUNCE = Duration.ofMillis(100);
+
+    private final static ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sq-path-change");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long debounceNanos;
+    private final long maxDelayNanos;
+    private final Consumer<List<PathChange>> listener;
+    private final Object deliveryLock = new Object();
+
+    private Map<String, PathChange> pending = new LinkedHashMap<>();
+    private long firstPendingNanos;
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean closed;
+
+    public PathChangeBatcher(Duration debounce, Consumer<List<PathChange>> listener) {
+        this(debounce, debounce.multipliedBy(10), listener);
+    }
+
+    /**
+     * @param debounce 静默期
+     * @param maxDelay 变化最长的等待时间
+     * @param listener 接收成批的变化，不会被并发调用。
+     */
+    public PathChangeBatcher(Duration debounce, Duration maxDelay, Consumer<List<PathChange>> listener) {
+        this.debounceNanos = debounce.toNanos();
+        this.maxDelayNanos = Math.max(debounceNanos, maxDelay.toNanos());
+        this.listener = listener;
+    }
+
+    public synchronized void add(PathChange change) {
+        if (closed) return;
+
+        long now = System.nanoTime();
+        if (pending.isEmpty()) {
+            firstPendingNanos = now;
+        }
+
+        PathChange previous = pending.remove(change.getPath());
+        if (null != previous && PathChange.Type.CREATED == previous.getType() && PathChange.Type.MODIFIED == change.getType()) {
+            change = previous;
+        }
+        pending.put(change.getPath(), change);
+
+        if (null != scheduledFlush) {
+            scheduledFlush.cancel(false);
+        }
+
+        long delay = Math.min(debounceNanos, firstPendingNanos + maxDelayNanos - now);
+        scheduledFlush = scheduler.schedule(this::flush, Math.max(0, delay), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 立即投递所有等待中的变化。
+     */
+    public void flush() {
+        synchronized (deliveryLock) {
+            List<PathChange> changes;
+            synchronized (this) {
+                if (pending.isEmpty()) return;
+
+                changes = new ArrayList<>(pending.values());
+                pending = new LinkedHashMap<>();
+                scheduledFlush = null;
+            }
+
+            try {
+                listener.accept(changes);
+            }
+            catch (RuntimeException e) {
+                log.message("处理路径变化时抛出异常").exception(e).error();
+            }
+        }
+    }
+
+    /**
+     * 关闭时投递剩余的变化，之后的变化被忽略。
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+
+            if (null != scheduledFlush) {
+                scheduledFlush.cancel(false);
+            }
+        }
+
+        flush();
+    }
+}
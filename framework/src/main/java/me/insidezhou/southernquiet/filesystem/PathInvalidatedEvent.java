@@ -0,0 +1,34 @@
+package me.insidezhou.southernquiet.filesystem;
+
+import me.insidezhou.southernquiet.event.ShouldBroadcast;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 路径的内容被修改，其他节点上该路径的本地缓存应该失效。
+ *
+ * @see TieredFileSystem
+ */
+@ShouldBroadcast(typeId = "SQ_PATH_INVALIDATED")
+public class PathInvalidatedEvent implements Serializable {
+    private final static long serialVersionUID = 6101472245513546315L;
+
+    private List<String> paths = new ArrayList<>();
+
+    public PathInvalidatedEvent() {}
+
+    public PathInvalidatedEvent(Collection<String> paths) {
+        this.paths = new ArrayList<>(paths);
+    }
+
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    public void setPaths(List<String> paths) {
+        this.paths = paths;
+    }
+}
@@ -81,6 +81,18 @@ public class PathMeta implements Serializable {
      * 如果路径指向文件的话，表示文件大小，单位：byte。
      */
     private long size;
+    /**
+     * 文件内容的摘要，见{@link ContentDigest}。目录或者摘要未知时为null。
+     */
+    private String digest;
+    /**
+     * 如果路径指向目录，表示目录下（包括子目录）所有文件的大小之和，单位：byte。驱动没有统计时为-1。
+     */
+    private long totalSize = -1;
+    /**
+     * 如果路径指向目录，表示目录下（包括子目录）的文件数量。驱动没有统计时为-1。
+     */
+    private long fileCount = -1;
 
     /**
      * 路径名
@@ -98,6 +110,7 @@ public class PathMeta implements Serializable {
         map.put("lastModifiedTime", getLastModifiedTime());
         map.put("lastAccessTime", getLastAccessTime());
         map.put("size", getSize());
+        map.put("digest", getDigest());
         return map;
     }
 
@@ -156,4 +169,28 @@ public class PathMeta implements Serializable {
     public void setSize(long size) {
         this.size = size;
     }
-}
\ No newline at end of file
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public void setTotalSize(long totalSize) {
+        this.totalSize = totalSize;
+    }
+
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    public void setFileCount(long fileCount) {
+        this.fileCount = fileCount;
+    }
+}
@@ -0,0 +1,152 @@
+package me.insidezhou.southernquiet.filesystem;
+
+import org.springframework.util.Assert;
+
+import java.time.Instant;
+
+import static me.insidezhou.southernquiet.filesystem.FileSystem.PATH_SEPARATOR;
+
+/**
+ * keyset分页的游标，记录上一页最后一个元素的排序值及名称。
+ * <p>
+ * 游标的字符串形式为“排序值/名称”，由于名称中不可能出现{@link FileSystem#PATH_SEPARATOR}，所以可以无歧义的解析。
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PathMetaCursor {
+    /**
+     * 生成指向meta之后的游标。
+     *
+     * @param meta 上一页最后一个元素
+     * @param sort 分页使用的排序，为null时按{@link PathMetaSort#Name}排序。
+     */
+    public static String of(PathMeta meta, PathMetaSort sort) {
+        return valueToString(sortValue(meta, normalize(sort))) + PATH_SEPARATOR + meta.getName();
+    }
+
+    public static PathMetaCursor parse(String cursor, PathMetaSort sort) {
+        int index = cursor.indexOf(PATH_SEPARATOR);
+        Assert.isTrue(index >= 0, "cursor");
+
+        sort = normalize(sort);
+        return new PathMetaCursor(sort, parseValue(cursor.substring(0, index), sort), cursor.substring(index + 1));
+    }
+
+    public static PathMetaSort normalize(PathMetaSort sort) {
+        return null == sort ? PathMetaSort.Name : sort;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Comparable sortValue(PathMeta meta, PathMetaSort sort) {
+        switch (sort) {
+            case Name:
+            case NameDesc:
+                return meta.getName();
+
+            case IsDirectory:
+            case IsDirectoryDesc:
+                return meta.isDirectory();
+
+            case CreationTime:
+            case CreationTimeDesc:
+                return meta.getCreationTime();
+
+            case LastAccessTime:
+            case LastAccessTimeDesc:
+                return meta.getLastAccessTime();
+
+            case LastModifiedTime:
+            case LastModifiedTimeDesc:
+                return meta.getLastModifiedTime();
+
+            case Size:
+            case SizeDesc:
+                return meta.getSize();
+            default:
+                throw new RuntimeException();
+        }
+    }
+
+    private static String valueToString(Object value) {
+        return null == value ? "" : value.toString();
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Comparable parseValue(String value, PathMetaSort sort) {
+        switch (sort) {
+            case Name:
+            case NameDesc:
+                return value;
+
+            case IsDirectory:
+            case IsDirectoryDesc:
+                return Boolean.parseBoolean(value);
+
+            case CreationTime:
+            case CreationTimeDesc:
+            case LastAccessTime:
+            case LastAccessTimeDesc:
+            case LastModifiedTime:
+            case LastModifiedTimeDesc:
+                return value.isEmpty() ? null : Instant.parse(value);
+
+            case Size:
+            case SizeDesc:
+                return Long.parseLong(value);
+            default:
+                throw new RuntimeException();
+        }
+    }
+
+    private final PathMetaSort sort;
+    @SuppressWarnings("rawtypes")
+    private final Comparable value;
+    private final String name;
+
+    @SuppressWarnings("rawtypes")
+    private PathMetaCursor(PathMetaSort sort, Comparable value, String name) {
+        this.sort = sort;
+        this.value = value;
+        this.name = name;
+    }
+
+    /**
+     * 判断meta在排序上是否位于游标之后，与{@link FileSystem#comparator(PathMetaSort)}保持一致。
+     */
+    @SuppressWarnings("unchecked")
+    public boolean precedes(PathMeta meta) {
+        int result;
+        if (PathMetaSort.Name == sort || PathMetaSort.NameDesc == sort) {
+            result = meta.getName().compareTo(name);
+            return PathMetaSort.Name == sort ? result > 0 : result < 0;
+        }
+
+        Comparable<Object> metaValue = sortValue(meta, sort);
+        if (null == metaValue || null == value) {
+            result = null == metaValue ? (null == value ? 0 : -1) : 1;
+        }
+        else {
+            result = metaValue.compareTo(value);
+        }
+
+        if (sort.name().endsWith("Desc")) {
+            result = -result;
+        }
+
+        return result > 0 || (0 == result && meta.getName().compareTo(name) > 0);
+    }
+
+    public PathMetaSort getSort() {
+        return sort;
+    }
+
+    /**
+     * 游标的排序值，类型为{@link String}、{@link Boolean}、{@link Instant}、{@link Long}之一。
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,107 @@
+package me.insidezhou.southernquiet.filesystem;
+
+import me.insidezhou.southernquiet.logging.SouthernQuietLogger;
+import me.insidezhou.southernquiet.logging.SouthernQuietLoggerFactory;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 定期列出目录并与上一次的快照比较，用于没有原生变化通知的{@link FileSystem}实现。
+ * 文件以修改时间和大小判断是否修改过，目录只报告新建和删除。
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class PollingPathWatcher implements Closeable {
+    private final static SouthernQuietLogger log = SouthernQuietLoggerFactory.getLogger(PollingPathWatcher.class);
+
+    public final static Duration DEFAULT_INTERVAL = Duration.ofSeconds(1);
+
+    private final static ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sq-watch-polling");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final FileSystem fileSystem;
+    private final String path;
+    private final boolean recursive;
+    private final PathChangeBatcher batcher;
+    private final ScheduledFuture<?> scheduledPoll;
+
+    private Map<String, String> snapshot;
+
+    /**
+     * @param interval 两次列出目录之间的间隔
+     * @throws PathNotFoundException 目录不存在
+     */
+    public PollingPathWatcher(FileSystem fileSystem, String path, boolean recursive, Duration interval, PathChangeBatcher batcher) throws PathNotFoundException {
+        this.fileSystem = fileSystem;
+        this.path = path;
+        this.recursive = recursive;
+        this.batcher = batcher;
+        this.snapshot = snapshot();
+
+        long intervalMillis = Math.max(1, interval.toMillis());
+        this.scheduledPoll = scheduler.scheduleWithFixedDelay(this::poll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        scheduledPoll.cancel(false);
+        batcher.close();
+    }
+
+    private void poll() {
+        Map<String, String> current;
+        try {
+            current = snapshot();
+        }
+        catch (PathNotFoundException e) {
+            current = Collections.emptyMap();
+        }
+        catch (RuntimeException e) {
+            log.message("轮询路径变化失败").context("path", path).exception(e).warn();
+            return;
+        }
+
+        Map<String, String> previous = snapshot;
+        current.forEach((p, version) -> {
+            String previousVersion = previous.get(p);
+            if (null == previousVersion) {
+                batcher.add(new PathChange(PathChange.Type.CREATED, p));
+            }
+            else if (!previousVersion.equals(version)) {
+                batcher.add(new PathChange(PathChange.Type.MODIFIED, p));
+            }
+        });
+
+        Map<String, String> finalCurrent = current;
+        previous.keySet().stream()
+            .filter(p -> !finalCurrent.containsKey(p))
+            .forEach(p -> batcher.add(new PathChange(PathChange.Type.DELETED, p)));
+
+        snapshot = current;
+    }
+
+    private Map<String, String> snapshot() throws PathNotFoundException {
+        Map<String, String> snapshot = new HashMap<>();
+
+        try (Stream<? extends PathMeta> stream = fileSystem.directories(path, recursive)) {
+            stream.forEach(meta -> snapshot.put(meta.getPath(), ""));
+        }
+
+        try (Stream<? extends PathMeta> stream = fileSystem.files(path, recursive)) {
+            stream.forEach(meta -> snapshot.put(meta.getPath(), meta.getLastModifiedTime() + ":" + meta.getSize()));
+        }
+
+        return snapshot;
+    }
+}
@@ -0,0 +1,76 @@
+package me.insidezhou.southernquiet.filesystem;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 只读取底层流中从当前位置开始的length个字节，见{@link FileSystem#openReadStream(String, long, long)}。
+ */
+public class RangeInputStream extends FilterInputStream {
+    /**
+     * 跳过position之前的内容，再限制读取的长度。
+     *
+     * @param length 读取的长度，小于0时读到流的末尾。
+     */
+    public static InputStream of(InputStream stream, long position, long length) throws IOException {
+        while (position > 0) {
+            long skipped = stream.skip(position);
+            if (skipped <= 0) {
+                //skip返回0时无法区分是否已到末尾，读一个字节确认。
+                if (stream.read() < 0) break;
+                skipped = 1;
+            }
+            position -= skipped;
+        }
+
+        return length < 0 ? stream : new RangeInputStream(stream, length);
+    }
+
+    private long remaining;
+
+    private RangeInputStream(InputStream stream, long length) {
+        super(stream);
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) return -1;
+
+        int b = super.read();
+        if (b >= 0) {
+            --remaining;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (0 == len) return 0;
+        if (remaining <= 0) return -1;
+
+        int read = super.read(b, off, (int) Math.min(len, remaining));
+        if (read > 0) {
+            remaining -= read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(super.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
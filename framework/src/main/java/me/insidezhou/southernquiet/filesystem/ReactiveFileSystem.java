@@ -0,0 +1,114 @@
+package me.insidezhou.southernquiet.filesystem;
+
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * 非阻塞的文件系统，{@link FileSystem}的响应式伴生接口。
+ */
+@SuppressWarnings({"unused"})
+public interface ReactiveFileSystem {
+    /**
+     * 读取文件内容，订阅方负责释放每个{@link DataBuffer}。
+     *
+     * @param path 文件路径
+     * @return 文件不存在时，以{@link InvalidFileException}结束。
+     */
+    Flux<DataBuffer> read(String path);
+
+    /**
+     * 如果文件未存在，则创建；否则替换。写入完成后释放所有{@link DataBuffer}。
+     *
+     * @param path 要写入的路径
+     * @param data 文件内容
+     * @return 路径指向目录时，以{@link InvalidFileException}结束。
+     */
+    Mono<Void> write(String path, Publisher<DataBuffer> data);
+
+    /**
+     * 获取路径的元信息。
+     *
+     * @param path 路径
+     * @return 路径不存在时，为空。
+     */
+    Mono<PathMeta> meta(String path);
+
+    /**
+     * 获取文件内容的摘要，见{@link FileSystem#digest(String)}。
+     *
+     * @param path 文件路径
+     * @return 元信息中没有摘要时，为空。
+     */
+    default Mono<String> digest(String path) {
+        return meta(path).flatMap(meta -> Mono.justOrEmpty(meta.getDigest()));
+    }
+
+    /**
+     * 检查路径是否存在。
+     *
+     * @param path 路径
+     */
+    default Mono<Boolean> exists(String path) {
+        return meta(path).hasElement();
+    }
+
+    /**
+     * 删除文件或目录。
+     *
+     * @param path 路径
+     */
+    Mono<Void> delete(String path);
+
+    /**
+     * 获取目录下文件，非递归。
+     *
+     * @see #list(String, String, boolean, int, int, PathMetaSort)
+     */
+    default Flux<PathMeta> list(String path) {
+        return list(path, "", false);
+    }
+
+    /**
+     * 获取目录下文件。
+     *
+     * @see #list(String, String, boolean, int, int, PathMetaSort)
+     */
+    default Flux<PathMeta> list(String path, boolean recursive) {
+        return list(path, "", recursive);
+    }
+
+    /**
+     * 获取目录下文件。
+     *
+     * @see #list(String, String, boolean, int, int, PathMetaSort)
+     */
+    default Flux<PathMeta> list(String path, String search, boolean recursive) {
+        return list(path, search, recursive, -1, -1, null);
+    }
+
+    /**
+     * 获取目录下文件。
+     *
+     * @param path      目录路径
+     * @param search    以contains方式查找文件名。如果为空，返回所有结果。
+     * @param recursive 如果true，则递归搜索所有子目录。
+     * @param offset    开始位置索引。小于0则忽略。
+     * @param limit     数量限制。小于0则忽略。
+     * @param sort      排序选项。选项之间是互斥的。
+     * @return 目录不存在时，以{@link PathNotFoundException}结束。
+     */
+    Flux<PathMeta> list(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort);
+
+    /**
+     * 监听路径的变化，见{@link FileSystem#watch(String, boolean, java.util.function.Consumer)}。取消订阅时停止监听。
+     *
+     * @param path      目录路径
+     * @param recursive 如果true，则同时监听所有子目录。
+     * @return 成批的变化。目录不存在时，以{@link PathNotFoundException}结束。
+     */
+    Flux<List<PathChange>> watch(String path, boolean recursive);
+}
@@ -0,0 +1,120 @@
+package me.insidezhou.southernquiet.filesystem;
+
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * 把阻塞的{@link FileSystem}桥接为{@link ReactiveFileSystem}，所有阻塞调用都在有界的弹性调度器上执行。
+ */
+@SuppressWarnings("WeakerAccess")
+public class ReactiveFileSystemAdapter implements ReactiveFileSystem {
+    public final static int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    protected final FileSystem fileSystem;
+    protected final Scheduler scheduler;
+    protected final DataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+    protected final int bufferSize;
+
+    public ReactiveFileSystemAdapter(FileSystem fileSystem) {
+        this(fileSystem, Schedulers.boundedElastic(), DEFAULT_BUFFER_SIZE);
+    }
+
+    public ReactiveFileSystemAdapter(FileSystem fileSystem, Scheduler scheduler, int bufferSize) {
+        this.fileSystem = fileSystem;
+        this.scheduler = scheduler;
+        this.bufferSize = bufferSize;
+    }
+
+    public FileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    @Override
+    public Flux<DataBuffer> read(String path) {
+        return DataBufferUtils.readInputStream(() -> fileSystem.openReadStream(path), bufferFactory, bufferSize)
+            .subscribeOn(scheduler);
+    }
+
+    /**
+     * {@link FileSystem#put(String, InputStream)}需要完整的输入流，所以会先在内存中合并所有{@link DataBuffer}。
+     */
+    @Override
+    public Mono<Void> write(String path, Publisher<DataBuffer> data) {
+        return DataBufferUtils.join(data)
+            .publishOn(scheduler)
+            .flatMap(buffer -> {
+                try (InputStream inputStream = buffer.asInputStream(true)) {
+                    fileSystem.put(path, inputStream);
+                    return Mono.<Void>empty();
+                }
+                catch (InvalidFileException e) {
+                    return Mono.error(e);
+                }
+                catch (IOException e) {
+                    return Mono.error(new InvalidFileException(path, e));
+                }
+            });
+    }
+
+    @Override
+    public Mono<PathMeta> meta(String path) {
+        return Mono.<PathMeta>fromCallable(() -> fileSystem.meta(path)).subscribeOn(scheduler);
+    }
+
+    @Override
+    public Mono<String> digest(String path) {
+        return Mono.fromCallable(() -> fileSystem.digest(path)).subscribeOn(scheduler);
+    }
+
+    @Override
+    public Mono<Boolean> exists(String path) {
+        return Mono.fromCallable(() -> fileSystem.exists(path)).subscribeOn(scheduler);
+    }
+
+    @Override
+    public Mono<Void> delete(String path) {
+        return Mono.<Void>fromRunnable(() -> fileSystem.delete(path)).subscribeOn(scheduler);
+    }
+
+    @Override
+    public Flux<PathMeta> list(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) {
+        return Flux.<PathMeta>defer(() -> {
+            try {
+                return Flux.fromStream(fileSystem.files(path, search, recursive, offset, limit, sort));
+            }
+            catch (PathNotFoundException e) {
+                return Flux.error(e);
+            }
+        }).subscribeOn(scheduler);
+    }
+
+    @Override
+    public Flux<List<PathChange>> watch(String path, boolean recursive) {
+        return Flux.create(sink -> {
+            try {
+                Closeable closeable = fileSystem.watch(path, recursive, sink::next);
+                sink.onDispose(() -> {
+                    try {
+                        closeable.close();
+                    }
+                    catch (IOException ignored) {}
+                });
+            }
+            catch (PathNotFoundException | RuntimeException e) {
+                sink.error(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,624 @@
+package me.insidezhou.southernquiet.filesystem;
+
+import org.springframework.context.event.EventListener;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static me.insidezhou.southernquiet.filesystem.FileSystem.PATH_SEPARATOR_STRING;
+
+/**
+ * 读穿透的分层{@link FileSystem}，把主文件系统上的热点文件缓存在本地的缓存文件系统中。
+ * <ul>
+ * <li>只缓存文件内容，元信息及目录列举总是直接访问主文件系统。</li>
+ * <li>未命中时边读主文件系统边写缓存，读完并关闭流后才放入缓存，同一路径同时只有一个读取者填充缓存。</li>
+ * <li>缓存总大小有上限，按{@link Eviction}淘汰。</li>
+ * <li>每个缓存条目保存为独立的文件，锁内只维护簿记，读写及删除缓存文件都在锁外进行，不会阻塞其他读写。</li>
+ * <li>通过当前装饰器的写操作会使本地缓存失效，并通知{@link InvalidationListener}，用于让其他节点的缓存失效。</li>
+ * <li>缓存文件系统中的内容在启动时会被清空，不要与其他用途共用；关闭时一起关闭。</li>
+ * <li>写操作只使同一路径及其子路径上正在进行的填充作废，其他路径的填充不受影响。</li>
+ * </ul>
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class TieredFileSystem implements FileSystem, Closeable {
+    public enum Eviction {
+        /**
+         * 淘汰最久没有被读取的文件。
+         */
+        LRU,
+        /**
+         * 淘汰被读取次数最少的文件，次数相同时淘汰最久没有被读取的。
+         */
+        LFU
+    }
+
+    /**
+     * 路径因为写操作而失效时的回调。
+     */
+    @FunctionalInterface
+    public interface InvalidationListener {
+        void onInvalidated(Collection<String> paths);
+    }
+
+    private final static String DATA_ROOT = "data";
+    /**
+     * 旧版本填充缓存时使用的临时目录，启动时清理。
+     */
+    private final static String TEMP_ROOT = "tmp";
+
+    private final FileSystem fileSystem;
+    private final FileSystem cacheFileSystem;
+    private final long maxSize;
+    private final long maxFileSize;
+
+    /**
+     * 按路径排序，使子路径失效时只需要访问前缀范围内的条目。
+     */
+    private final TreeMap<String, CachedFile> cachedFiles = new TreeMap<>();
+    private final TreeSet<CachedFile> evictionOrder;
+    private final TreeMap<String, Fill> filling = new TreeMap<>();
+    private long size;
+    private long sequence;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private InvalidationListener invalidationListener = paths -> {};
+
+    /**
+     * @param fileSystem      主文件系统
+     * @param cacheFileSystem 缓存文件系统，通常是本地SSD上的{@link me.insidezhou.southernquiet.filesystem.driver.LocalFileSystem}。
+     * @param maxSize         缓存总大小上限，单位字节。
+     * @param maxFileSize     可缓存的单个文件大小上限，单位字节。
+     * @param eviction        淘汰策略
+     */
+    public TieredFileSystem(FileSystem fileSystem, FileSystem cacheFileSystem, long maxSize, long maxFileSize, Eviction eviction) {
+        this.fileSystem = fileSystem;
+        this.cacheFileSystem = cacheFileSystem;
+        this.maxSize = maxSize;
+        this.maxFileSize = Math.min(maxFileSize, maxSize);
+
+        Comparator<CachedFile> comparator = Eviction.LFU == eviction
+            ? Comparator.<CachedFile>comparingLong(f -> f.hits).thenComparingLong(f -> f.sequence)
+            : Comparator.comparingLong(f -> f.sequence);
+        this.evictionOrder = new TreeSet<>(comparator);
+
+        cacheFileSystem.delete(DATA_ROOT);
+        cacheFileSystem.delete(TEMP_ROOT);
+    }
+
+    public FileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    public FileSystem getCacheFileSystem() {
+        return cacheFileSystem;
+    }
+
+    public void setInvalidationListener(InvalidationListener invalidationListener) {
+        this.invalidationListener = invalidationListener;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * 当前缓存的总大小，单位字节。
+     */
+    public long getSize() {
+        synchronized (cachedFiles) {
+            return size;
+        }
+    }
+
+    /**
+     * 使路径及其所有子路径的缓存失效，用于响应其他节点的写操作，不会通知{@link InvalidationListener}。
+     */
+    public void invalidate(String path) {
+        invalidate(new NormalizedPath(path).toString(), true);
+    }
+
+    /**
+     * 监听主文件系统，按路径的变化使缓存失效，可以代替{@link PathInvalidatedEvent}的广播。
+     *
+     * @return 关闭后停止监听
+     */
+    public Closeable invalidateOnChange() throws PathNotFoundException {
+        return fileSystem.watch(PATH_SEPARATOR_STRING, true, changes -> changes.forEach(change -> invalidate(change.getPath())));
+    }
+
+    @EventListener
+    public void onPathInvalidated(PathInvalidatedEvent event) {
+        event.getPaths().forEach(this::invalidate);
+    }
+
+    /**
+     * 关闭缓存文件系统，主文件系统由其所有者关闭。
+     */
+    @Override
+    public void close() throws IOException {
+        if (cacheFileSystem instanceof Closeable) {
+            ((Closeable) cacheFileSystem).close();
+        }
+    }
+
+    @Override
+    public InputStream openReadStream(String path) throws InvalidFileException {
+        String key = new NormalizedPath(path).toString();
+
+        String storagePath = touch(key);
+        if (null != storagePath) {
+            try {
+                InputStream inputStream = cacheFileSystem.openReadStream(storagePath);
+                hitCount.incrementAndGet();
+                return inputStream;
+            }
+            catch (InvalidFileException e) {
+                //读取前刚好被淘汰
+                invalidate(key, false);
+            }
+        }
+
+        missCount.incrementAndGet();
+
+        //先登记填充再打开主文件系统，之后的写操作都能使这次填充作废。
+        Fill fill = new Fill();
+        boolean filler;
+        synchronized (cachedFiles) {
+            filler = null == filling.putIfAbsent(key, fill);
+        }
+        if (!filler) return fileSystem.openReadStream(path);
+
+        InputStream inputStream;
+        try {
+            inputStream = fileSystem.openReadStream(path);
+        }
+        catch (InvalidFileException | RuntimeException e) {
+            removeFill(key, fill);
+            throw e;
+        }
+
+        String fillPath = DATA_ROOT + PATH_SEPARATOR_STRING + UUID.randomUUID().toString();
+        try {
+            return new FillingInputStream(inputStream, cacheFileSystem.openWriteStream(fillPath), key, fillPath, fill);
+        }
+        catch (InvalidFileException | RuntimeException e) {
+            removeFill(key, fill);
+            return inputStream;
+        }
+    }
+
+    /**
+     * 已缓存时从本地读取指定的范围，否则直接从后端读取，只读取部分内容时不填充缓存。
+     */
+    @Override
+    public InputStream openReadStream(String path, long position, long length) throws InvalidFileException {
+        String key = new NormalizedPath(path).toString();
+
+        String storagePath = touch(key);
+        if (null != storagePath) {
+            try {
+                InputStream inputStream = cacheFileSystem.openReadStream(storagePath, position, length);
+                hitCount.incrementAndGet();
+                return inputStream;
+            }
+            catch (InvalidFileException e) {
+                //读取前刚好被淘汰
+                invalidate(key, false);
+            }
+        }
+
+        missCount.incrementAndGet();
+        return fileSystem.openReadStream(path, position, length);
+    }
+
+    @Override
+    public void createDirectory(String path) {
+        fileSystem.createDirectory(path);
+    }
+
+    @Override
+    public void put(String path, InputStream stream) throws InvalidFileException {
+        try {
+            fileSystem.put(path, stream);
+        }
+        finally {
+            invalidateAndNotify(Collections.singletonList(path), false);
+        }
+    }
+
+    @Override
+    public void put(String path, CharSequence txt) throws InvalidFileException {
+        try {
+            fileSystem.put(path, txt);
+        }
+        finally {
+            invalidateAndNotify(Collections.singletonList(path), false);
+        }
+    }
+
+    @Override
+    public void putAll(Map<String, ? extends InputStream> files) throws InvalidFileException {
+        try {
+            fileSystem.putAll(files);
+        }
+        finally {
+            invalidateAndNotify(files.keySet(), false);
+        }
+    }
+
+    @Override
+    public OutputStream openWriteStream(String path) throws InvalidFileException {
+        OutputStream outputStream;
+        try {
+            outputStream = fileSystem.openWriteStream(path);
+        }
+        finally {
+            invalidateAndNotify(Collections.singletonList(path), false);
+        }
+
+        return new FilterOutputStream(outputStream) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                }
+                finally {
+                    invalidateAndNotify(Collections.singletonList(path), false);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void move(String source, String destination, boolean replaceExisting) throws FileSystemException {
+        try {
+            fileSystem.move(source, destination, replaceExisting);
+        }
+        finally {
+            invalidateAndNotify(Arrays.asList(source, destination), true);
+        }
+    }
+
+    @Override
+    public void copy(String source, String destination, boolean replaceExisting) throws FileSystemException {
+        try {
+            fileSystem.copy(source, destination, replaceExisting);
+        }
+        finally {
+            invalidateAndNotify(Collections.singletonList(destination), true);
+        }
+    }
+
+    @Override
+    public void delete(String path) {
+        try {
+            fileSystem.delete(path);
+        }
+        finally {
+            invalidateAndNotify(Collections.singletonList(path), true);
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<String> paths) {
+        try {
+            fileSystem.deleteAll(paths);
+        }
+        finally {
+            invalidateAndNotify(paths, true);
+        }
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return fileSystem.exists(path);
+    }
+
+    @Override
+    public void touchCreation(String path) {
+        fileSystem.touchCreation(path);
+    }
+
+    @Override
+    public void touchLastModified(String path) {
+        fileSystem.touchLastModified(path);
+    }
+
+    @Override
+    public void touchLastAccess(String path) {
+        fileSystem.touchLastAccess(path);
+    }
+
+    @Override
+    public <M extends PathMeta> M meta(String path) {
+        return fileSystem.meta(path);
+    }
+
+    @Override
+    public String digest(String path) throws InvalidFileException {
+        return fileSystem.digest(path);
+    }
+
+    @Override
+    public <M extends PathMeta> Map<String, M> metaAll(Collection<String> paths) {
+        return fileSystem.metaAll(paths);
+    }
+
+    @Override
+    public Map<String, Boolean> existsAll(Collection<String> paths) {
+        return fileSystem.existsAll(paths);
+    }
+
+    @Override
+    public Stream<? extends PathMeta> directories(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) throws PathNotFoundException {
+        return fileSystem.directories(path, search, recursive, offset, limit, sort);
+    }
+
+    @Override
+    public Stream<? extends PathMeta> files(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) throws PathNotFoundException {
+        return fileSystem.files(path, search, recursive, offset, limit, sort);
+    }
+
+    @Override
+    public Stream<? extends PathMeta> files(String path, String cursor, int limit, PathMetaSort sort) throws PathNotFoundException {
+        return fileSystem.files(path, cursor, limit, sort);
+    }
+
+    @Override
+    public Closeable watch(String path, boolean recursive, Duration debounce, Consumer<List<PathChange>> listener) throws PathNotFoundException {
+        return fileSystem.watch(path, recursive, debounce, listener);
+    }
+
+    private void invalidateAndNotify(Collection<String> paths, boolean subPaths) {
+        List<String> keys = paths.stream().map(path -> new NormalizedPath(path).toString()).collect(Collectors.toList());
+        keys.forEach(key -> invalidate(key, subPaths));
+        invalidationListener.onInvalidated(keys);
+    }
+
+    /**
+     * @param subPaths 如果true，同时使所有子路径的缓存失效。
+     */
+    private void invalidate(String key, boolean subPaths) {
+        List<String> evicted = new ArrayList<>();
+        synchronized (cachedFiles) {
+            Fill fill = filling.get(key);
+            if (null != fill) {
+                fill.stale = true;
+            }
+
+            CachedFile cachedFile = cachedFiles.get(key);
+            if (null != cachedFile) {
+                evicted.add(evict(cachedFile));
+            }
+
+            if (subPaths) {
+                String prefix = PATH_SEPARATOR_STRING.equals(key) ? key : key + PATH_SEPARATOR_STRING;
+                subPaths(filling, prefix).values().forEach(f -> f.stale = true);
+                new ArrayList<>(subPaths(cachedFiles, prefix).values()).forEach(f -> evicted.add(evict(f)));
+            }
+        }
+
+        evicted.forEach(cacheFileSystem::delete);
+    }
+
+    private static <V> SortedMap<String, V> subPaths(TreeMap<String, V> map, String prefix) {
+        return map.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    /**
+     * 命中时更新淘汰顺序。
+     *
+     * @return 缓存文件的路径，未命中时返回null。
+     */
+    private String touch(String key) {
+        synchronized (cachedFiles) {
+            CachedFile cachedFile = cachedFiles.get(key);
+            if (null == cachedFile) return null;
+
+            evictionOrder.remove(cachedFile);
+            cachedFile.hits++;
+            cachedFile.sequence = ++sequence;
+            evictionOrder.add(cachedFile);
+            return cachedFile.storagePath;
+        }
+    }
+
+    /**
+     * 填充完成的文件直接作为缓存文件，锁内只登记。
+     */
+    private void commit(String key, String fillPath, long fileSize, Fill fill) {
+        List<String> evicted = new ArrayList<>();
+        synchronized (cachedFiles) {
+            filling.remove(key, fill);
+
+            //填充期间这个路径失效过，读到的内容可能已经过时。
+            if (fill.stale) {
+                evicted.add(fillPath);
+            }
+            else {
+                CachedFile existing = cachedFiles.get(key);
+                if (null != existing) {
+                    evicted.add(evict(existing));
+                }
+
+                CachedFile cachedFile = new CachedFile(key, fillPath, fileSize);
+                cachedFile.hits = 1;
+                cachedFile.sequence = ++sequence;
+
+                cachedFiles.put(key, cachedFile);
+                evictionOrder.add(cachedFile);
+                size += fileSize;
+
+                while (size > maxSize && !evictionOrder.isEmpty()) {
+                    evicted.add(evict(evictionOrder.first()));
+                }
+            }
+        }
+
+        evicted.forEach(cacheFileSystem::delete);
+    }
+
+    private void discard(String key, String fillPath, Fill fill) {
+        removeFill(key, fill);
+        cacheFileSystem.delete(fillPath);
+    }
+
+    private void removeFill(String key, Fill fill) {
+        synchronized (cachedFiles) {
+            filling.remove(key, fill);
+        }
+    }
+
+    /**
+     * 只在锁内移除簿记，缓存文件由调用方在锁外删除。
+     *
+     * @return 需要删除的缓存文件
+     */
+    private String evict(CachedFile cachedFile) {
+        cachedFiles.remove(cachedFile.path);
+        evictionOrder.remove(cachedFile);
+        size -= cachedFile.size;
+
+        return cachedFile.storagePath;
+    }
+
+    private static class CachedFile {
+        private final String path;
+        private final String storagePath;
+        private final long size;
+        private long hits;
+        private long sequence;
+
+        private CachedFile(String path, String storagePath, long size) {
+            this.path = path;
+            this.storagePath = storagePath;
+            this.size = size;
+        }
+    }
+
+    /**
+     * 正在进行的填充，填充期间路径失效时标记为过时，完成后不放入缓存。只在锁内访问。
+     */
+    private static class Fill {
+        private boolean stale;
+    }
+
+    /**
+     * 读取主文件系统的同时写入新的缓存文件，完整读取后才放入缓存。写缓存失败不影响读取。
+     */
+    private class FillingInputStream extends FilterInputStream {
+        private final OutputStream cacheStream;
+        private final String key;
+        private final String fillPath;
+        private final Fill fill;
+
+        private long fileSize;
+        private boolean eof;
+        private boolean abandoned;
+        private boolean closed;
+
+        private FillingInputStream(InputStream in, OutputStream cacheStream, String key, String fillPath, Fill fill) {
+            super(in);
+            this.cacheStream = cacheStream;
+            this.key = key;
+            this.fillPath = fillPath;
+            this.fill = fill;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                eof = true;
+            }
+            else if (!abandoned) {
+                fill(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = in.read(b, off, len);
+            if (count < 0) {
+                eof = true;
+            }
+            else if (count > 0 && !abandoned) {
+                fill(b, off, count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            abandoned = true;
+            return in.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+
+            try {
+                in.close();
+            }
+            finally {
+                try {
+                    cacheStream.close();
+                }
+                catch (IOException e) {
+                    abandoned = true;
+                }
+
+                if (eof && !abandoned) {
+                    commit(key, fillPath, fileSize, fill);
+                }
+                else {
+                    discard(key, fillPath, fill);
+                }
+            }
+        }
+
+        private void fill(byte[] b, int off, int len) {
+            fileSize += len;
+            if (fileSize > maxFileSize) {
+                abandoned = true;
+                return;
+            }
+
+            try {
+                cacheStream.write(b, off, len);
+            }
+            catch (IOException e) {
+                abandoned = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package me.insidezhou.southernquiet.filesystem.driver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 成组提交的fsync。写入方把文件放入队列后等待，刷盘线程每隔一段时间或者积累到一定数量后，
+ * 对这一批文件及其所在目录各做一次fsync，再一起唤醒所有等待的写入方。
+ * <p>
+ * 同一个文件或目录在一批中只刷一次，并发写入越多，每次写入分摊到的fsync越少。
+ * 写入前新建的目录由{@link #created(Path)}登记，之后的第一批连同其上级目录一起刷盘，目录项才能在崩溃后保留。
+ */
+class GroupCommitter implements Closeable {
+    @FunctionalInterface
+    interface Force {
+        void force(Path path) throws IOException;
+    }
+
+    private final long intervalNanos;
+    private final int batchSize;
+    private final Force force;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Set<Path> created = ConcurrentHashMap.newKeySet();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    private static class Pending {
+        private final Path file;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Pending(Path file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * @param interval  一批的最长等待时间
+     * @param batchSize 一批的数量上限，达到后立即刷盘。
+     * @param force     对文件或目录做fsync
+     */
+    GroupCommitter(Duration interval, int batchSize, Force force) {
+        this.intervalNanos = interval.toNanos();
+        this.batchSize = Math.max(batchSize, 1);
+        this.force = force;
+
+        thread = new Thread(this::run, "sq-group-commit");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 登记新建的目录，必须在等待其下文件的{@link #sync(Path)}之前调用。
+     */
+    void created(Path directory) {
+        created.add(directory);
+    }
+
+    /**
+     * 文件、其所在目录及之前登记的新建目录落盘后完成。
+     */
+    CompletableFuture<Void> sync(Path file) {
+        Pending pending = new Pending(file);
+        queue.add(pending);
+
+        //与close并发时，可能在刷盘线程退出后才放入队列。
+        if (closed && queue.remove(pending)) {
+            pending.future.completeExceptionally(new IOException("成组提交已关闭"));
+        }
+
+        return pending.future;
+    }
+
+    /**
+     * 停止刷盘线程，队列中未刷盘的写入以异常完成。
+     */
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+
+    private void run() {
+        while (!closed) {
+            List<Pending> batch = new ArrayList<>(batchSize);
+            try {
+                batch.add(queue.take());
+
+                long deadline = System.nanoTime() + intervalNanos;
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    if (batch.size() >= batchSize) break;
+
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+
+                    Pending pending = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (null == pending) break;
+                    batch.add(pending);
+                }
+            }
+            catch (InterruptedException e) {
+                batch.forEach(p -> p.future.completeExceptionally(e));
+                break;
+            }
+
+            flush(batch);
+        }
+
+        List<Pending> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        rest.forEach(p -> p.future.completeExceptionally(new IOException("成组提交已关闭")));
+    }
+
+    private void flush(List<Pending> batch) {
+        Set<Path> files = new LinkedHashSet<>();
+        Set<Path> directories = new LinkedHashSet<>();
+        batch.forEach(p -> {
+            files.add(p.file);
+            directories.add(p.file.getParent());
+        });
+
+        //新建的目录自身的目录项在上级目录中。
+        List<Path> createdDirectories = new ArrayList<>(created);
+        created.removeAll(createdDirectories);
+        createdDirectories.forEach(directory -> {
+            directories.add(directory);
+            if (null != directory.getParent()) {
+                directories.add(directory.getParent());
+            }
+        });
+
+        //先刷文件再刷目录，目录项指向的内容必须已经落盘。
+        Map<Path, IOException> failures = new HashMap<>();
+        files.forEach(file -> force(file, failures));
+        directories.forEach(directory -> force(directory, failures));
+
+        //新建目录刷盘失败时无法确定影响了哪些写入，整批失败，并留到下一批重试。
+        IOException createdFailure = createdDirectories.stream()
+            .flatMap(directory -> Arrays.asList(directory, directory.getParent()).stream())
+            .filter(Objects::nonNull)
+            .map(failures::get)
+            .filter(Objects::nonNull)
+            .findFirst()
+            .orElse(null);
+        if (null != createdFailure) {
+            created.addAll(createdDirectories);
+        }
+
+        batch.forEach(p -> {
+            IOException e = failures.getOrDefault(p.file, failures.getOrDefault(p.file.getParent(), createdFailure));
+            if (null == e) {
+                p.future.complete(null);
+            }
+            else {
+                p.future.completeExceptionally(e);
+            }
+        });
+    }
+
+    private void force(Path path, Map<Path, IOException> failures) {
+        if (Files.notExists(path)) return;
+
+        try {
+            force.force(path);
+        }
+        catch (IOException e) {
+            failures.put(path, e);
+        }
+    }
+}
@@ -4,48 +4,121 @@ import me.insidezhou.southernquiet.FrameworkAutoConfiguration;
 import me.insidezhou.southernquiet.filesystem.FileSystem;
 import me.insidezhou.southernquiet.filesystem.FileSystemException;
 import me.insidezhou.southernquiet.filesystem.*;
+import me.insidezhou.southernquiet.util.Pair;
 import org.springframework.util.StreamUtils;
 import org.springframework.util.StringUtils;
 import org.springframework.util.SystemPropertyUtils;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.DigestOutputStream;
+import java.time.Duration;
 import java.time.Instant;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * 基于操作系统本地文件系统的驱动.
  */
-public class LocalFileSystem implements FileSystem {
+public class LocalFileSystem implements FileSystem, Closeable {
+    /**
+     * 保存文件内容摘要的扩展属性，值为“修改时间:大小:摘要”，修改时间或大小不一致时说明文件被绕过驱动修改过，摘要无效。
+     */
+    private final static String DIGEST_ATTRIBUTE = "sq.digest";
+    /**
+     * 保存目录用量的扩展属性，值为“大小:文件数量”，写入、删除、复制及移动文件时增量更新到所有上级目录。
+     */
+    private final static String USAGE_ATTRIBUTE = "sq.usage";
+    private final static int LOCK_STRIPES = 64;
+
+    /**
+     * 用量的增量更新是读-改-写，由实例内的锁保护，同一工作目录只应由一个实例写入。
+     */
+    private final Object usageLock = new Object();
+    /**
+     * 文件的写入及删除连同前后大小的读取在路径锁内完成，同一路径的并发修改不会重复计算同一个旧大小。
+     */
+    private final Object[] pathLocks = new Object[LOCK_STRIPES];
+
     private String workingRoot;
+    private final Path workingRootPath;
+    private final ParallelFileTree fileTree;
+    private final boolean attributeSupported;
+    /**
+     * 没有开启durable时为null。
+     */
+    private final GroupCommitter groupCommitter;
+    /**
+     * 没有开启nameIndex时为null。
+     */
+    private final NameIndex nameIndex;
 
     public LocalFileSystem(FrameworkAutoConfiguration.LocalFileSystemProperties properties) {
         String workingRoot = SystemPropertyUtils.resolvePlaceholders(properties.getWorkingRoot());
         Path workingPath = Paths.get(workingRoot);
         try {
-            createDirectories(workingPath);
+            Files.createDirectories(workingPath);
+            this.workingRootPath = workingPath;
+            this.attributeSupported = Files.getFileStore(workingPath).supportsFileAttributeView(UserDefinedFileAttributeView.class);
+
+            //早于用量统计的工作目录，第一次启动时遍历一次。
+            if (attributeSupported && null == loadUsage(workingPath)) {
+                computeUsage(workingPath, true);
+            }
         }
         catch (IOException e) {
             throw new RuntimeException(e);
         }
 
+        for (int i = 0; i < LOCK_STRIPES; ++i) {
+            pathLocks[i] = new Object();
+        }
+
         this.workingRoot = workingRoot;
+        this.fileTree = new ParallelFileTree(properties.getParallelism());
+        this.groupCommitter = properties.isDurable() ? new GroupCommitter(properties.getGroupCommitInterval(), properties.getGroupCommitSize(), this::force) : null;
+        this.nameIndex = properties.isNameIndex() ? new NameIndex() : null;
+
+        try {
+            reindex(workingPath);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
     public void createDirectory(String path) {
         try {
-            Files.createDirectories(getWorkingPath(path));
+            createDirectories(getWorkingPath(path));
         }
         catch (IOException e) {
             throw new RuntimeException(e);
@@ -58,7 +131,10 @@ public class LocalFileSystem implements FileSystem {
 
         try {
             createDirectories(workingPath.getParent());
-            Files.write(workingPath, StreamUtils.copyToByteArray(stream));
+
+            byte[] data = StreamUtils.copyToByteArray(stream);
+            write(workingPath, data);
+            awaitSync(workingPath);
         }
         catch (IOException e) {
             throw new InvalidFileException(path, e);
@@ -71,13 +147,35 @@ public class LocalFileSystem implements FileSystem {
 
         try {
             createDirectories(workingPath.getParent());
-            Files.write(workingPath, txt.toString().getBytes(StandardCharsets.UTF_8));
+
+            write(workingPath, txt.toString().getBytes(StandardCharsets.UTF_8));
+            awaitSync(workingPath);
         }
         catch (IOException e) {
             throw new InvalidFileException(path, e);
         }
     }
 
+    @Override
+    public void putAll(Map<String, ? extends InputStream> files) throws InvalidFileException {
+        AtomicReference<InvalidFileException> failure = new AtomicReference<>();
+
+        fileTree.parallel(() -> {
+            files.entrySet().parallelStream().forEach(entry -> {
+                try {
+                    put(entry.getKey(), entry.getValue());
+                }
+                catch (InvalidFileException e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+
+            return null;
+        });
+
+        if (null != failure.get()) throw failure.get();
+    }
+
     @Override
     public boolean exists(String path) {
         Path workingPath = getWorkingPath(path);
@@ -96,13 +194,87 @@ public class LocalFileSystem implements FileSystem {
         }
     }
 
+    /**
+     * 直接把通道定位到position，不需要读取之前的内容。
+     */
+    @Override
+    public InputStream openReadStream(String path, long position, long length) throws InvalidFileException {
+        Path workingPath = getWorkingPath(path);
+
+        try {
+            SeekableByteChannel channel = Files.newByteChannel(workingPath);
+            try {
+                channel.position(position);
+                return RangeInputStream.of(Channels.newInputStream(channel), 0, length);
+            }
+            catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        catch (IOException e) {
+            throw new InvalidFileException(path, e);
+        }
+    }
+
     @Override
     public OutputStream openWriteStream(String path) throws InvalidFileException {
         Path workingPath = getWorkingPath(path);
 
         try {
             createDirectories(workingPath.getParent());
-            return Files.newOutputStream(workingPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+            //新建的文件在打开时计入数量，追加的字节数在关闭时计入大小。
+            long previousSize;
+            OutputStream outputStream;
+            synchronized (pathLock(workingPath)) {
+                previousSize = sizeOf(workingPath);
+                outputStream = Files.newOutputStream(workingPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                fileChanged(workingPath, previousSize);
+            }
+
+            //追加到已有内容时无法接着计算摘要，留到需要时再计算。
+            if (previousSize <= 0 && attributeSupported) {
+                outputStream = new DigestOutputStream(outputStream, ContentDigest.newMessageDigest()) {
+                    private boolean closed;
+
+                    @Override
+                    public void close() throws IOException {
+                        if (closed) return;
+                        closed = true;
+
+                        super.close();
+                        storeDigest(workingPath, ContentDigest.toHex(getMessageDigest()));
+                    }
+                };
+            }
+
+            return new FilterOutputStream(outputStream) {
+                private boolean closed;
+                private long written;
+
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    written += 1;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    written += len;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) return;
+                    closed = true;
+
+                    super.close();
+                    updateUsage(workingPath.getParent(), written, 0);
+                    awaitSync(workingPath);
+                }
+            };
         }
         catch (IOException e) {
             throw new InvalidFileException(path, e);
@@ -125,37 +297,34 @@ public class LocalFileSystem implements FileSystem {
 
         if (Files.notExists(workingPath)) return;
 
-        if (!Files.isDirectory(workingPath)) {
-            try {
-                Files.deleteIfExists(workingPath);
-            }
-            catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-
-            return;
-        }
-
         try {
-            Files.walkFileTree(workingPath, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    Files.delete(file);
-                    return FileVisitResult.CONTINUE;
-                }
-
-                @Override
-                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                    Files.delete(dir);
-                    return FileVisitResult.CONTINUE;
+            if (Files.isDirectory(workingPath, LinkOption.NOFOLLOW_LINKS)) {
+                Usage usage = usageOf(workingPath);
+                fileTree.walk(workingPath, null, Files::delete, Files::delete);
+                updateUsage(workingPath.getParent(), -usage.size, -usage.count);
+                reindex(workingPath);
+            }
+            else {
+                synchronized (pathLock(workingPath)) {
+                    long previousSize = sizeOf(workingPath);
+                    Files.deleteIfExists(workingPath);
+                    fileChanged(workingPath, previousSize);
                 }
-            });
+            }
         }
         catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Override
+    public void deleteAll(Collection<String> paths) {
+        fileTree.parallel(() -> {
+            paths.parallelStream().forEach(this::delete);
+            return null;
+        });
+    }
+
     @Override
     public void touchCreation(String path) {
         Path workingPath = getWorkingPath(path);
@@ -198,43 +367,179 @@ public class LocalFileSystem implements FileSystem {
         return (M) meta(normalizedPath, getWorkingPath(normalizedPath));
     }
 
+    /**
+     * 扩展属性中没有有效的摘要时，读取文件内容计算并保存。
+     */
+    @Override
+    public String digest(String path) throws InvalidFileException {
+        Path workingPath = getWorkingPath(path);
+        if (!Files.isRegularFile(workingPath)) throw new InvalidFileException(path);
+
+        try {
+            String digest = loadDigest(workingPath, Files.readAttributes(workingPath, BasicFileAttributes.class));
+            if (null != digest) return digest;
+
+            try (InputStream inputStream = Files.newInputStream(workingPath)) {
+                digest = ContentDigest.of(inputStream);
+            }
+
+            storeDigest(workingPath, digest);
+            return digest;
+        }
+        catch (IOException e) {
+            throw new InvalidFileException(path, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <M extends PathMeta> Map<String, M> metaAll(Collection<String> paths) {
+        return fileTree.parallel(() -> paths.parallelStream()
+            .distinct()
+            .map(path -> new Pair<>(path, (M) meta(path)))
+            .filter(pair -> null != pair.getSecond())
+            .collect(Collectors.toMap(Pair::getFirst, Pair::getSecond)));
+    }
+
+    @Override
+    public Map<String, Boolean> existsAll(Collection<String> paths) {
+        return fileTree.parallel(() -> paths.parallelStream()
+            .distinct()
+            .collect(Collectors.toMap(Function.identity(), this::exists)));
+    }
+
     @Override
     public Stream<? extends PathMeta> directories(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) throws PathNotFoundException {
-        Stream<PathMeta> stream = pathStream(path, search, recursive, sort).filter(PathMeta::isDirectory);
-        if (offset > 0) {
-            stream = stream.skip(offset);
+        Stream<PathMeta> stream = pathStream(path, search, recursive).filter(PathMeta::isDirectory);
+        return FileSystem.sort(stream, sort, offset, limit);
+    }
+
+    @Override
+    public Stream<? extends PathMeta> files(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) throws PathNotFoundException {
+        Stream<PathMeta> stream = pathStream(path, search, recursive).filter(m -> !m.isDirectory());
+        return FileSystem.sort(stream, sort, offset, limit);
+    }
+
+    @Override
+    public Stream<? extends PathMeta> files(String path, String cursor, int limit, PathMetaSort sort) throws PathNotFoundException {
+        PathMetaSort pathMetaSort = PathMetaCursor.normalize(sort);
+        Path workingPath = getWorkingPath(path);
+        if (Files.notExists(workingPath)) throw new PathNotFoundException(path);
+
+        Stream<Path> stream;
+        try {
+            stream = Files.list(workingPath);
         }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        Stream<PathMeta> metaStream;
+        if (StringUtils.hasText(cursor)) {
+            PathMetaCursor pathMetaCursor = PathMetaCursor.parse(cursor, pathMetaSort);
+
+            //按名称排序时，在读取文件属性之前就可以排除游标之前的文件。
+            if (PathMetaSort.Name == pathMetaSort) {
+                stream = stream.filter(p -> p.getFileName().toString().compareTo(pathMetaCursor.getName()) > 0);
+            }
+            else if (PathMetaSort.NameDesc == pathMetaSort) {
+                stream = stream.filter(p -> p.getFileName().toString().compareTo(pathMetaCursor.getName()) < 0);
+            }
 
-        if (limit > 0) {
-            stream = stream.limit(limit);
+            metaStream = stream.map(p -> meta(getNormalizedPath(p), p)).filter(m -> null != m && !m.isDirectory() && pathMetaCursor.precedes(m));
+        }
+        else {
+            metaStream = stream.map(p -> meta(getNormalizedPath(p), p)).filter(m -> null != m && !m.isDirectory());
         }
 
-        return stream;
+        return FileSystem.sort(metaStream, pathMetaSort, 0, limit);
     }
 
     @Override
-    public Stream<? extends PathMeta> files(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) throws PathNotFoundException {
-        Stream<PathMeta> stream = pathStream(path, search, recursive, sort).filter(m -> !m.isDirectory());
-        if (offset > 0) {
-            stream = stream.skip(offset);
+    public Closeable watch(String path, boolean recursive, Duration debounce, Consumer<List<PathChange>> listener) throws PathNotFoundException {
+        Path workingPath = getWorkingPath(path);
+        if (!Files.isDirectory(workingPath)) throw new PathNotFoundException(path);
+
+        try {
+            return watch(workingPath, recursive, new PathChangeBatcher(debounce, listener));
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    LocalPathWatcher watch(Path workingPath, boolean recursive, PathChangeBatcher batcher) throws IOException {
+        return new LocalPathWatcher(workingPath, recursive, p -> p.equals(workingRootPath) ? PATH_SEPARATOR_STRING : getNormalizedPath(p).toString(), batcher);
+    }
+
+    /**
+     * 重新遍历目录统计用量并保存，用于修正绕过驱动的修改造成的偏差，统计期间的写入可能不会计入。
+     *
+     * @param path 目录路径
+     * @throws PathNotFoundException 目录不存在
+     */
+    public void recomputeUsage(String path) throws PathNotFoundException {
+        Path workingPath = getWorkingPath(path);
+        if (!Files.isDirectory(workingPath)) throw new PathNotFoundException(path);
+
+        try {
+            Usage previous = loadUsage(workingPath);
+            Usage usage = recomputeUsage(workingPath);
+            if (!workingPath.equals(workingRootPath)) {
+                updateUsage(workingPath.getParent(), usage.size - (null == previous ? 0 : previous.size), usage.count - (null == previous ? 0 : previous.count));
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 关闭并行操作使用的线程池及成组提交的刷盘线程。
+     */
+    @Override
+    public void close() {
+        fileTree.close();
+
+        if (null != groupCommitter) {
+            groupCommitter.close();
         }
+    }
 
-        if (limit > 0) {
-            stream = stream.limit(limit);
+    /**
+     * 对文件或目录做fsync，开启durable时由成组提交的刷盘线程调用。
+     */
+    protected void force(Path workingPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(workingPath, Files.isDirectory(workingPath) ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+            channel.force(true);
         }
+    }
 
-        return stream;
+    /**
+     * 开启durable时，文件及其所在目录落盘后完成，否则立即完成。
+     */
+    CompletableFuture<Void> sync(Path workingPath) {
+        return null == groupCommitter ? CompletableFuture.completedFuture(null) : groupCommitter.sync(workingPath);
+    }
+
+    private void awaitSync(Path workingPath) throws IOException {
+        try {
+            sync(workingPath).join();
+        }
+        catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
     }
 
     private Path getWorkingPath(NormalizedPath path) {
         return Paths.get(workingRoot + path.toString());
     }
 
-    private Path getWorkingPath(String path) {
+    Path getWorkingPath(String path) {
         return Paths.get(workingRoot + new NormalizedPath(path).toString());
     }
 
-    private NormalizedPath getNormalizedPath(Path path) {
+    NormalizedPath getNormalizedPath(Path path) {
         return new NormalizedPath(path.subpath(Paths.get(workingRoot).getNameCount(), path.getNameCount()).toString());
     }
 
@@ -244,74 +549,108 @@ public class LocalFileSystem implements FileSystem {
 
         if (Files.notExists(src)) throw new PathNotFoundException(source);
 
-        if (Files.notExists(dest)) {
-            try {
-                moveOrCopy(move, src, dest);
-            }
-            catch (IOException e) {
-                throw new FileSystemException(source + " " + destination, e);
-            }
+        boolean isDirectory = Files.isDirectory(src, LinkOption.NOFOLLOW_LINKS);
 
-            return;
-        }
+        try {
+            if (isDirectory && Files.exists(dest) && !Files.isDirectory(dest)) throw new FileSystemException("不能把目录移动或复制到文件。");
 
-        Stream<Path> stream;
-        if (Files.isDirectory(src)) {
-            if (!Files.isDirectory(dest)) throw new FileSystemException("不能把目录移动或复制到文件。");
+            Usage sourceUsage = move ? usageOf(src) : null;
+            Usage targetUsage = usageOf(dest);
 
-            try {
-                stream = Files.walk(src).filter(p -> !Files.isDirectory(p));
+            if (Files.notExists(dest)) {
+                createDirectories(dest.getParent());
+
+                //重命名时目录的用量属性随目录一起移动。
+                if (move && rename(src, dest)) {
+                    updateUsage(src.getParent(), -sourceUsage.size, -sourceUsage.count);
+                    updateUsage(dest.getParent(), sourceUsage.size, sourceUsage.count);
+                    if (null != nameIndex) {
+                        nameIndex.move(getNormalizedPath(src).toString(), getNormalizedPath(dest).toString());
+                    }
+                    return;
+                }
             }
-            catch (IOException e) {
-                throw new FileSystemException(source + " " + destination, e);
+
+            if (isDirectory) {
+                moveOrCopyTree(move, src, dest, replaceExisting);
+            }
+            else {
+                moveOrCopyFile(move, src, dest, replaceExisting);
+            }
+
+            //逐个文件移动或复制后，重新统计涉及的目录树。
+            Usage usage = isDirectory ? recomputeUsage(dest) : usageOf(dest);
+            updateUsage(dest.getParent(), usage.size - targetUsage.size, usage.count - targetUsage.count);
+            reindex(dest);
+
+            if (move) {
+                usage = isDirectory ? recomputeUsage(src) : usageOf(src);
+                updateUsage(src.getParent(), usage.size - sourceUsage.size, usage.count - sourceUsage.count);
+                reindex(src);
             }
         }
-        else {
-            stream = Stream.of(src);
+        catch (IOException e) {
+            throw new FileSystemException(source + " " + destination, e);
         }
+    }
 
-        if (replaceExisting) {
-            stream.forEach(path -> {
-                Path target = dest.resolve(path.relativize(src));
-                try {
-                    moveOrCopy(move, src, target, StandardCopyOption.REPLACE_EXISTING);
-                }
-                catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            });
+    /**
+     * 同一个文件系统内的移动只需要重命名。
+     *
+     * @return 如果false，表示无法重命名，需要逐个文件移动。
+     */
+    private boolean rename(Path src, Path dest) throws IOException {
+        try {
+            Files.move(src, dest, StandardCopyOption.ATOMIC_MOVE);
+            return true;
         }
-        else {
-            stream.forEach(path -> {
-                Path target = dest.resolve(path.relativize(src));
-                if (Files.exists(target)) return;
-
-                try {
-                    moveOrCopy(move, src, target);
-                }
-                catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            });
+        catch (AtomicMoveNotSupportedException e) {
+            return false;
         }
     }
 
-    private void moveOrCopy(boolean move, Path src, Path dest, CopyOption... options) throws IOException {
-        Set<CopyOption> opts = new HashSet<>(Arrays.asList(options));
-        opts.add(StandardCopyOption.COPY_ATTRIBUTES);
+    /**
+     * 把src目录下的内容并行的合并到dest目录。移动时，源目录中因为目标已存在而被忽略的文件会保留下来。
+     */
+    private void moveOrCopyTree(boolean move, Path src, Path dest, boolean replaceExisting) throws IOException {
+        fileTree.walk(
+            src,
+            dir -> createDirectories(dest.resolve(src.relativize(dir))),
+            file -> moveOrCopyFile(move, file, dest.resolve(src.relativize(file)), replaceExisting),
+            move ? this::deleteIfEmpty : null
+        );
+    }
+
+    private void moveOrCopyFile(boolean move, Path src, Path dest, boolean replaceExisting) throws IOException {
+        if (Files.exists(dest, LinkOption.NOFOLLOW_LINKS) && !replaceExisting) return;
 
         if (move) {
-            Files.move(src, dest, opts.toArray(new CopyOption[0]));
+            Files.move(src, dest, StandardCopyOption.REPLACE_EXISTING);
         }
         else {
-            Files.copy(src, dest, opts.toArray(new CopyOption[0]));
+            Files.copy(src, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    private void deleteIfEmpty(Path dir) throws IOException {
+        try {
+            Files.delete(dir);
+        }
+        catch (DirectoryNotEmptyException e) {
+            //pass
         }
     }
 
-    private Stream<PathMeta> pathStream(String path, String search, boolean recursive, PathMetaSort sort) throws PathNotFoundException {
+    private Stream<PathMeta> pathStream(String path, String search, boolean recursive) throws PathNotFoundException {
         Path workingPath = getWorkingPath(path);
         if (Files.notExists(workingPath)) throw new PathNotFoundException(path);
 
+        if (null != nameIndex && NameIndex.supports(search)) {
+            return nameIndex.search(path, search, recursive).stream()
+                .map(p -> meta(new NormalizedPath(p), getWorkingPath(p)))
+                .filter(Objects::nonNull);
+        }
+
         Stream<Path> stream;
         try {
             if (recursive) {
@@ -325,22 +664,314 @@ public class LocalFileSystem implements FileSystem {
                 stream = stream.filter(p -> p.getFileName().toString().contains(search));
             }
 
-            Stream<PathMeta> metaStream = stream.map(p -> meta(getNormalizedPath(p), p));
+            return stream.map(p -> meta(getNormalizedPath(p), p));
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 把摘要与文件当前的修改时间及大小一起保存在扩展属性中，文件系统不支持扩展属性时忽略。
+     */
+    void storeDigest(Path workingPath, String digest) throws IOException {
+        if (!attributeSupported) return;
 
-            if (null != sort) {
-                metaStream = FileSystem.sort(metaStream, sort);
+        BasicFileAttributes attributes = Files.readAttributes(workingPath, BasicFileAttributes.class);
+        String value = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) + ":" + attributes.size() + ":" + digest;
+
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(workingPath, UserDefinedFileAttributeView.class);
+        view.write(DIGEST_ATTRIBUTE, StandardCharsets.UTF_8.encode(value));
+    }
+
+    private String loadDigest(Path workingPath, BasicFileAttributes attributes) throws IOException {
+        if (!attributeSupported || !attributes.isRegularFile()) return null;
+
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(workingPath, UserDefinedFileAttributeView.class);
+        if (!view.list().contains(DIGEST_ATTRIBUTE)) return null;
+
+        ByteBuffer buffer = ByteBuffer.allocate(view.size(DIGEST_ATTRIBUTE));
+        view.read(DIGEST_ATTRIBUTE, buffer);
+        buffer.flip();
+
+        String[] values = StandardCharsets.UTF_8.decode(buffer).toString().split(":");
+        if (3 != values.length) return null;
+
+        if (!values[0].equals(String.valueOf(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)))) return null;
+        if (!values[1].equals(String.valueOf(attributes.size()))) return null;
+
+        return values[2];
+    }
+
+    /**
+     * 新建的目录用量为0，与创建一起在锁内完成，以免并发写入的增量落在保存用量之前。
+     */
+    void createDirectories(Path dir) throws IOException {
+        if (Files.exists(dir)) return;
+
+        if (attributeSupported) {
+            synchronized (usageLock) {
+                createMissingDirectories(dir);
             }
+        }
+        else {
+            createMissingDirectories(dir);
+        }
 
-            return metaStream;
+        indexDirectories(dir);
+    }
+
+    private void createMissingDirectories(Path dir) throws IOException {
+        Deque<Path> missing = new ArrayDeque<>();
+        for (Path p = dir; null != p && Files.notExists(p); p = p.getParent()) {
+            missing.push(p);
         }
-        catch (IOException e) {
-            throw new RuntimeException(e);
+
+        for (Path p : missing) {
+            try {
+                Files.createDirectory(p);
+            }
+            catch (FileAlreadyExistsException e) {
+                if (!Files.isDirectory(p)) throw e;
+                continue;
+            }
+
+            if (attributeSupported) {
+                storeUsage(p, new Usage());
+            }
+            if (null != groupCommitter) {
+                groupCommitter.created(p);
+            }
         }
     }
 
-    private void createDirectories(Path dir) throws IOException {
-        if (Files.notExists(dir)) {
-            Files.createDirectories(dir);
+    /**
+     * @return 不是文件时返回-1。
+     */
+    long sizeOf(Path workingPath) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(workingPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            return attributes.isRegularFile() ? attributes.size() : -1;
+        }
+        catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    private Object pathLock(Path workingPath) {
+        return pathLocks[Math.floorMod(workingPath.hashCode(), LOCK_STRIPES)];
+    }
+
+    private void write(Path workingPath, byte[] data) throws IOException {
+        synchronized (pathLock(workingPath)) {
+            long previousSize = sizeOf(workingPath);
+            Files.write(workingPath, data);
+            storeDigest(workingPath, ContentDigest.of(data));
+            fileChanged(workingPath, previousSize);
+        }
+    }
+
+    /**
+     * 以异步通道打开文件用于覆盖写入，与{@link #openWriteStream(String)}相同：新建的文件在打开时计入数量并加入名称索引，
+     * 写入的字节数在写完后由{@link #asynchronousWriteCompleted(Path, long, String)}计入大小。
+     */
+    AsynchronousFileChannel openAsynchronousChannel(Path workingPath) throws IOException {
+        createDirectories(workingPath.getParent());
+
+        synchronized (pathLock(workingPath)) {
+            long previousSize = sizeOf(workingPath);
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(workingPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                fileChanged(workingPath, previousSize);
+            }
+            catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            return channel;
+        }
+    }
+
+    void asynchronousWriteCompleted(Path workingPath, long written, String digest) throws IOException {
+        storeDigest(workingPath, digest);
+        updateUsage(workingPath.getParent(), written, 0);
+    }
+
+    /**
+     * 文件写入或删除后，把大小及数量的变化更新到所有上级目录，并更新名称索引。需要在路径锁内调用。
+     *
+     * @param previousSize 变化之前的文件大小，见{@link #sizeOf(Path)}。
+     */
+    void fileChanged(Path workingPath, long previousSize) throws IOException {
+        long size = sizeOf(workingPath);
+        updateUsage(
+            workingPath.getParent(),
+            Math.max(size, 0) - Math.max(previousSize, 0),
+            (size < 0 ? 0 : 1) - (previousSize < 0 ? 0 : 1)
+        );
+
+        if (null != nameIndex && size != previousSize && (size < 0 || previousSize < 0)) {
+            if (size < 0) {
+                nameIndex.remove(getNormalizedPath(workingPath).toString());
+            }
+            else {
+                nameIndex.add(getNormalizedPath(workingPath).toString());
+            }
+        }
+    }
+
+    /**
+     * 按磁盘上的现状重建路径及其下所有路径的名称索引，用于无法逐个跟踪变化的目录操作。
+     */
+    void reindex(Path workingPath) throws IOException {
+        if (null == nameIndex) return;
+
+        if (workingPath.equals(workingRootPath)) {
+            nameIndex.clear();
+        }
+        else {
+            nameIndex.remove(getNormalizedPath(workingPath).toString());
+        }
+
+        if (Files.notExists(workingPath, LinkOption.NOFOLLOW_LINKS)) return;
+
+        try (Stream<Path> stream = Files.walk(workingPath)) {
+            stream.filter(p -> !p.equals(workingRootPath)).forEach(p -> nameIndex.add(getNormalizedPath(p).toString()));
+        }
+        catch (UncheckedIOException e) {
+            //遍历期间被删除的路径忽略。
+            if (!(e.getCause() instanceof NoSuchFileException)) throw e.getCause();
+        }
+    }
+
+    private void indexDirectories(Path dir) {
+        if (null == nameIndex) return;
+
+        for (Path p = dir; null != p && p.startsWith(workingRootPath) && !p.equals(workingRootPath); p = p.getParent()) {
+            nameIndex.add(getNormalizedPath(p).toString());
+        }
+    }
+
+    /**
+     * 没有统计过的目录（绕过驱动创建的）保持未统计。
+     */
+    private void updateUsage(Path dir, long sizeDelta, long countDelta) throws IOException {
+        if (!attributeSupported || (0 == sizeDelta && 0 == countDelta)) return;
+
+        synchronized (usageLock) {
+            for (Path p = dir; null != p && p.startsWith(workingRootPath); p = p.getParent()) {
+                Usage usage = loadUsage(p);
+                if (null == usage) continue;
+
+                usage.size += sizeDelta;
+                usage.count += countDelta;
+                storeUsage(p, usage);
+            }
+        }
+    }
+
+    /**
+     * 文件或目录的用量，目录没有统计过时遍历计算。路径不存在时为0。
+     */
+    private Usage usageOf(Path workingPath) throws IOException {
+        if (!attributeSupported) return new Usage();
+
+        long size = sizeOf(workingPath);
+        if (size >= 0) return new Usage(size, 1);
+        if (!Files.isDirectory(workingPath, LinkOption.NOFOLLOW_LINKS)) return new Usage();
+
+        Usage usage = loadUsage(workingPath);
+        return null == usage ? computeUsage(workingPath, false) : usage;
+    }
+
+    private Usage recomputeUsage(Path dir) throws IOException {
+        if (!attributeSupported || !Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) return new Usage();
+
+        return computeUsage(dir, true);
+    }
+
+    /**
+     * 自底向上统计目录树的用量。
+     *
+     * @param store 如果true，保存每个子目录的用量。
+     */
+    private Usage computeUsage(Path dir, boolean store) throws IOException {
+        Deque<Usage> stack = new ArrayDeque<>();
+        AtomicReference<Usage> result = new AtomicReference<>();
+
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attributes) {
+                stack.push(new Usage());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile()) {
+                    stack.peek().size += attributes.size();
+                    stack.peek().count += 1;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                //统计期间被删除的文件忽略。
+                if (e instanceof NoSuchFileException) return FileVisitResult.CONTINUE;
+                throw e;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                if (null != e) throw e;
+
+                Usage usage = stack.pop();
+                if (store) {
+                    synchronized (usageLock) {
+                        storeUsage(d, usage);
+                    }
+                }
+
+                if (stack.isEmpty()) {
+                    result.set(usage);
+                }
+                else {
+                    stack.peek().size += usage.size;
+                    stack.peek().count += usage.count;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return null == result.get() ? new Usage() : result.get();
+    }
+
+    private void storeUsage(Path dir, Usage usage) throws IOException {
+        if (!attributeSupported) return;
+
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(dir, UserDefinedFileAttributeView.class);
+        view.write(USAGE_ATTRIBUTE, StandardCharsets.UTF_8.encode(usage.size + ":" + usage.count));
+    }
+
+    private Usage loadUsage(Path dir) throws IOException {
+        if (!attributeSupported) return null;
+
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(dir, UserDefinedFileAttributeView.class);
+        try {
+            if (!view.list().contains(USAGE_ATTRIBUTE)) return null;
+
+            ByteBuffer buffer = ByteBuffer.allocate(view.size(USAGE_ATTRIBUTE));
+            view.read(USAGE_ATTRIBUTE, buffer);
+            buffer.flip();
+
+            String[] values = StandardCharsets.UTF_8.decode(buffer).toString().split(":");
+            if (2 != values.length) return null;
+
+            return new Usage(Long.parseLong(values[0]), Long.parseLong(values[1]));
+        }
+        catch (NoSuchFileException | NumberFormatException e) {
+            return null;
         }
     }
 
@@ -369,6 +1000,29 @@ public class LocalFileSystem implements FileSystem {
         meta.setLastAccessTime(attributes.lastAccessTime().toInstant());
         meta.setLastModifiedTime(attributes.lastModifiedTime().toInstant());
 
+        try {
+            Usage usage = attributes.isDirectory() ? loadUsage(workingPath) : null;
+            if (null != usage) {
+                meta.setTotalSize(usage.size);
+                meta.setFileCount(usage.count);
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
         return meta;
     }
+
+    private static class Usage {
+        private long size;
+        private long count;
+
+        private Usage() {}
+
+        private Usage(long size, long count) {
+            this.size = size;
+            this.count = count;
+        }
+    }
 }
@@ -0,0 +1,141 @@
+package me.insidezhou.southernquiet.filesystem.driver;
+
+import me.insidezhou.southernquiet.filesystem.PathChange;
+import me.insidezhou.southernquiet.filesystem.PathChangeBatcher;
+import me.insidezhou.southernquiet.logging.SouthernQuietLogger;
+import me.insidezhou.southernquiet.logging.SouthernQuietLoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * 基于{@link WatchService}监听本地目录。WatchService不支持递归监听，子目录需要逐个注册，新建的子目录在收到事件后注册。
+ */
+class LocalPathWatcher implements Closeable {
+    private final static SouthernQuietLogger log = SouthernQuietLoggerFactory.getLogger(LocalPathWatcher.class);
+
+    private final Path root;
+    private final boolean recursive;
+    private final Function<Path, String> pathMapper;
+    private final PathChangeBatcher batcher;
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * @param pathMapper 把本地路径转换为{@link me.insidezhou.southernquiet.filesystem.FileSystem}中的路径
+     */
+    LocalPathWatcher(Path root, boolean recursive, Function<Path, String> pathMapper, PathChangeBatcher batcher) throws IOException {
+        this.root = root;
+        this.recursive = recursive;
+        this.pathMapper = pathMapper;
+        this.batcher = batcher;
+        this.watchService = root.getFileSystem().newWatchService();
+
+        try {
+            register(root, false);
+        }
+        catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+
+        Thread thread = new Thread(this::run, "sq-watch-" + root.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        watchService.close();
+        batcher.close();
+    }
+
+    private void run() {
+        while (!closed) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            }
+            catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path directory = keys.get(key);
+            if (null != directory) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    handle(directory, event);
+                }
+            }
+
+            if (!key.reset()) {
+                keys.remove(key);
+            }
+        }
+    }
+
+    private void handle(Path directory, WatchEvent<?> event) {
+        if (OVERFLOW == event.kind()) {
+            batcher.add(new PathChange(PathChange.Type.OVERFLOW, pathMapper.apply(root)));
+            return;
+        }
+
+        Path path = directory.resolve((Path) event.context());
+
+        if (ENTRY_DELETE == event.kind()) {
+            batcher.add(new PathChange(PathChange.Type.DELETED, pathMapper.apply(path)));
+            return;
+        }
+
+        if (ENTRY_MODIFY == event.kind()) {
+            //目录的修改时间随子路径变化，子路径的事件已经足够。
+            if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                batcher.add(new PathChange(PathChange.Type.MODIFIED, pathMapper.apply(path)));
+            }
+            return;
+        }
+
+        batcher.add(new PathChange(PathChange.Type.CREATED, pathMapper.apply(path)));
+
+        if (recursive && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                register(path, true);
+            }
+            catch (IOException e) {
+                log.message("监听新建的子目录失败").context("path", path).exception(e).warn();
+                batcher.add(new PathChange(PathChange.Type.OVERFLOW, pathMapper.apply(path)));
+            }
+        }
+    }
+
+    /**
+     * @param reportExisting 注册之前子目录中可能已经有了内容，这些内容不会再产生事件，需要补报为新建。
+     */
+    private void register(Path directory, boolean reportExisting) throws IOException {
+        if (!recursive) {
+            keys.put(directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), directory);
+            return;
+        }
+
+        try (Stream<Path> stream = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) stream::iterator) {
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    keys.put(path.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), path);
+                }
+
+                if (reportExisting && !path.equals(directory)) {
+                    batcher.add(new PathChange(PathChange.Type.CREATED, pathMapper.apply(path)));
+                }
+            }
+        }
+    }
+}
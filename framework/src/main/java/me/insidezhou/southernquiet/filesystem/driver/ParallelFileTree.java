@@ -0,0 +1,144 @@
+package me.insidezhou.southernquiet.filesystem.driver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+
+/**
+ * 基于ForkJoin的并行目录树遍历及批量操作。每个子目录是一个子任务，目录下的文件按批次拆分为子任务。
+ * 持有一个ForkJoinPool，由所属的文件系统在关闭时关闭。
+ */
+class ParallelFileTree implements Closeable {
+    private final static int FILE_BATCH_SIZE = 256;
+
+    @FunctionalInterface
+    interface PathAction {
+        void accept(Path path) throws IOException;
+    }
+
+    private final ForkJoinPool pool;
+
+    ParallelFileTree(int parallelism) {
+        this.pool = new ForkJoinPool(Math.max(parallelism, 1));
+    }
+
+    /**
+     * 遍历目录树，同一目录下的操作顺序为：preDirectory，所有文件及子目录，postDirectory。
+     *
+     * @param root          根目录
+     * @param preDirectory  进入目录时的操作，可以为null。
+     * @param file          对文件的操作
+     * @param postDirectory 离开目录时的操作，可以为null。
+     */
+    void walk(Path root, PathAction preDirectory, PathAction file, PathAction postDirectory) throws IOException {
+        try {
+            pool.invoke(new DirectoryTask(root, preDirectory, file, postDirectory));
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * 在并行池中执行，其中的parallelStream会使用该池而不是公共池。
+     */
+    <T> T parallel(Supplier<T> supplier) {
+        Callable<T> callable = supplier::get;
+        return pool.submit(callable).join();
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    private static class DirectoryTask extends RecursiveAction {
+        private final static long serialVersionUID = 4377385235385391347L;
+
+        private final Path directory;
+        private final PathAction preDirectory;
+        private final PathAction file;
+        private final PathAction postDirectory;
+
+        private DirectoryTask(Path directory, PathAction preDirectory, PathAction file, PathAction postDirectory) {
+            this.directory = directory;
+            this.preDirectory = preDirectory;
+            this.file = file;
+            this.postDirectory = postDirectory;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (null != preDirectory) {
+                    preDirectory.accept(directory);
+                }
+
+                List<RecursiveAction> tasks = new ArrayList<>();
+                List<Path> batch = new ArrayList<>(FILE_BATCH_SIZE);
+
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                    for (Path path : stream) {
+                        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                            tasks.add(new DirectoryTask(path, preDirectory, file, postDirectory));
+                            continue;
+                        }
+
+                        batch.add(path);
+                        if (batch.size() >= FILE_BATCH_SIZE) {
+                            tasks.add(new FileBatchTask(batch, file));
+                            batch = new ArrayList<>(FILE_BATCH_SIZE);
+                        }
+                    }
+                }
+
+                if (!batch.isEmpty()) {
+                    tasks.add(new FileBatchTask(batch, file));
+                }
+
+                invokeAll(tasks);
+
+                if (null != postDirectory) {
+                    postDirectory.accept(directory);
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static class FileBatchTask extends RecursiveAction {
+        private final static long serialVersionUID = -1751529311590325489L;
+
+        private final List<Path> files;
+        private final PathAction file;
+
+        private FileBatchTask(List<Path> files, PathAction file) {
+            this.files = files;
+            this.file = file;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                for (Path path : files) {
+                    file.accept(path);
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package me.insidezhou.southernquiet.filesystem.driver;
+
+import me.insidezhou.southernquiet.filesystem.ContentDigest;
+import me.insidezhou.southernquiet.filesystem.InvalidFileException;
+import me.insidezhou.southernquiet.filesystem.ReactiveFileSystem;
+import me.insidezhou.southernquiet.filesystem.ReactiveFileSystemAdapter;
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于{@link AsynchronousFileChannel}的{@link ReactiveFileSystem}本地驱动，元信息相关的操作仍然交给{@link LocalFileSystem}。
+ */
+public class ReactiveLocalFileSystem extends ReactiveFileSystemAdapter {
+    private final LocalFileSystem localFileSystem;
+
+    public ReactiveLocalFileSystem(LocalFileSystem fileSystem) {
+        this(fileSystem, Schedulers.boundedElastic(), DEFAULT_BUFFER_SIZE);
+    }
+
+    public ReactiveLocalFileSystem(LocalFileSystem fileSystem, Scheduler scheduler, int bufferSize) {
+        super(fileSystem, scheduler, bufferSize);
+
+        this.localFileSystem = fileSystem;
+    }
+
+    @Override
+    public Flux<DataBuffer> read(String path) {
+        Path workingPath = localFileSystem.getWorkingPath(path);
+
+        return DataBufferUtils.readAsynchronousFileChannel(
+            () -> AsynchronousFileChannel.open(workingPath, StandardOpenOption.READ),
+            bufferFactory,
+            bufferSize
+        ).onErrorMap(IOException.class, e -> new InvalidFileException(path, e));
+    }
+
+    /**
+     * 用量、名称索引的更新与{@link LocalFileSystem#openWriteStream(String)}相同，在路径锁内打开文件时计入数量，写完后计入大小。
+     * 摘要在每次订阅时重新计算，重新订阅不会累加到上一次的摘要上。
+     */
+    @Override
+    public Mono<Void> write(String path, Publisher<DataBuffer> data) {
+        Path workingPath = localFileSystem.getWorkingPath(path);
+
+        return Mono.defer(() -> {
+            MessageDigest messageDigest = ContentDigest.newMessageDigest();
+            AtomicLong written = new AtomicLong();
+            Flux<DataBuffer> content = Flux.from(data).doOnNext(buffer -> {
+                written.addAndGet(buffer.readableByteCount());
+                messageDigest.update(buffer.asByteBuffer());
+            });
+
+            return Mono.using(
+                () -> {
+                    if (Files.isDirectory(workingPath)) throw new InvalidFileException(path);
+
+                    return localFileSystem.openAsynchronousChannel(workingPath);
+                },
+                channel -> DataBufferUtils.write(content, channel).map(DataBufferUtils::release).then(),
+                channel -> {
+                    try {
+                        channel.close();
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            )
+                .subscribeOn(scheduler)
+                .then(Mono.<Void>fromCallable(() -> {
+                    localFileSystem.asynchronousWriteCompleted(workingPath, written.get(), ContentDigest.toHex(messageDigest));
+                    return null;
+                }).subscribeOn(scheduler));
+        })
+            .then(Mono.defer(() -> Mono.fromFuture(localFileSystem.sync(workingPath))))
+            .onErrorMap(IOException.class, e -> new InvalidFileException(path, e));
+    }
+}
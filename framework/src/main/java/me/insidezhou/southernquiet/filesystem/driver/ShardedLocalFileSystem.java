@@ -0,0 +1,660 @@
+package me.insidezhou.southernquiet.filesystem.driver;
+
+import me.insidezhou.southernquiet.FrameworkAutoConfiguration;
+import me.insidezhou.southernquiet.filesystem.FileSystem;
+import me.insidezhou.southernquiet.filesystem.FileSystemException;
+import me.insidezhou.southernquiet.filesystem.*;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.SystemPropertyUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 分布在多个本地卷上的驱动，每个卷是一个独立的{@link LocalFileSystem}，通常对应一块独立的磁盘。
+ * <ul>
+ * <li>文件按{@link NormalizedPath}的一致性哈希放置在某个卷上，单个文件的读写只涉及一个卷。</li>
+ * <li>目录可以同时存在于多个卷上，列举目录时合并所有卷的结果。</li>
+ * <li>增加卷时只有约1/N的文件需要迁移到新卷，迁移期间仍然可以从原来的卷读到文件。</li>
+ * </ul>
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class ShardedLocalFileSystem implements FileSystem, Closeable {
+    /**
+     * 每个卷在哈希环上的虚拟节点数量，用于让文件在卷之间均匀分布。
+     */
+    private final static int VIRTUAL_NODES = 160;
+
+    private final FrameworkAutoConfiguration.LocalFileSystemProperties properties;
+    private final int parallelism;
+    private final List<Volume> volumes = new CopyOnWriteArrayList<>();
+    private final ParallelFileTree fileTree;
+
+    private volatile TreeMap<Long, Volume> ring = new TreeMap<>();
+    /**
+     * 为false时可能存在不在所属卷上的文件，写入时需要清理其他卷上的旧文件。
+     */
+    private volatile boolean balanced = true;
+
+    public ShardedLocalFileSystem(FrameworkAutoConfiguration.LocalFileSystemProperties properties) {
+        String[] roots = properties.getVolumes();
+        if (null == roots || 0 == roots.length) throw new IllegalArgumentException("至少需要一个卷。");
+
+        this.properties = properties;
+        this.parallelism = properties.getParallelism();
+        this.fileTree = new ParallelFileTree(Math.max(parallelism, roots.length));
+
+        Arrays.stream(roots).forEach(this::addVolumeToRing);
+
+        if (properties.isRebalanceOnStartup()) {
+            rebalance();
+        }
+    }
+
+    /**
+     * 当前所有卷在本地文件系统中的实际路径。
+     */
+    public List<String> getVolumes() {
+        return volumes.stream().map(v -> v.root).collect(Collectors.toList());
+    }
+
+    /**
+     * 增加一个卷，并把按哈希应该放置在新卷上的文件迁移过去。
+     *
+     * @param workingRoot 新卷在本地文件系统中的实际路径
+     */
+    public synchronized void addVolume(String workingRoot) {
+        balanced = false;
+        addVolumeToRing(workingRoot);
+        rebalance();
+    }
+
+    /**
+     * 把所有不在所属卷上的文件迁移到所属卷。卷的配置在重启之间发生变化时，需要调用一次。
+     */
+    public synchronized void rebalance() {
+        balanced = false;
+
+        for (Volume volume : volumes) {
+            try {
+                fileTree.walk(volume.fileSystem.getWorkingPath(PATH_SEPARATOR_STRING), null, file -> relocate(volume, file), null);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        balanced = true;
+    }
+
+    /**
+     * 关闭并行操作使用的线程池及所有卷。
+     */
+    @Override
+    public void close() {
+        fileTree.close();
+        volumes.forEach(v -> v.fileSystem.close());
+    }
+
+    /**
+     * 在每个存在该目录的卷上重新统计用量，见{@link LocalFileSystem#recomputeUsage(String)}。
+     *
+     * @param path 目录路径
+     * @throws PathNotFoundException 目录在所有卷上都不存在
+     */
+    public void recomputeUsage(String path) throws PathNotFoundException {
+        List<Volume> candidates = volumes.stream()
+            .filter(v -> Files.isDirectory(v.fileSystem.getWorkingPath(path)))
+            .collect(Collectors.toList());
+
+        if (candidates.isEmpty()) throw new PathNotFoundException(path);
+
+        for (Volume volume : candidates) {
+            volume.fileSystem.recomputeUsage(path);
+        }
+    }
+
+    @Override
+    public void createDirectory(String path) {
+        locate(new NormalizedPath(path)).fileSystem.createDirectory(path);
+    }
+
+    @Override
+    public void put(String path, InputStream stream) throws InvalidFileException {
+        NormalizedPath normalizedPath = new NormalizedPath(path);
+        locate(normalizedPath).fileSystem.put(path, stream);
+        deleteStaleCopies(normalizedPath);
+    }
+
+    @Override
+    public void put(String path, CharSequence txt) throws InvalidFileException {
+        NormalizedPath normalizedPath = new NormalizedPath(path);
+        locate(normalizedPath).fileSystem.put(path, txt);
+        deleteStaleCopies(normalizedPath);
+    }
+
+    /**
+     * 按卷分组后，各个卷并行写入。
+     */
+    @Override
+    public void putAll(Map<String, ? extends InputStream> files) throws InvalidFileException {
+        Map<Volume, Map<String, InputStream>> groups = new HashMap<>();
+        files.forEach((path, stream) -> groups.computeIfAbsent(locate(new NormalizedPath(path)), v -> new HashMap<>()).put(path, stream));
+
+        AtomicReference<InvalidFileException> failure = new AtomicReference<>();
+        fileTree.parallel(() -> {
+            groups.entrySet().parallelStream().forEach(entry -> {
+                try {
+                    entry.getKey().fileSystem.putAll(entry.getValue());
+                }
+                catch (InvalidFileException e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+
+            return null;
+        });
+
+        if (!balanced) {
+            files.keySet().forEach(path -> deleteStaleCopies(new NormalizedPath(path)));
+        }
+
+        if (null != failure.get()) throw failure.get();
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return null != find(new NormalizedPath(path));
+    }
+
+    @Override
+    public InputStream openReadStream(String path) throws InvalidFileException {
+        Volume volume = find(new NormalizedPath(path));
+        if (null == volume) throw new InvalidFileException(path);
+
+        return volume.fileSystem.openReadStream(path);
+    }
+
+    @Override
+    public InputStream openReadStream(String path, long position, long length) throws InvalidFileException {
+        Volume volume = find(new NormalizedPath(path));
+        if (null == volume) throw new InvalidFileException(path);
+
+        return volume.fileSystem.openReadStream(path, position, length);
+    }
+
+    @Override
+    public OutputStream openWriteStream(String path) throws InvalidFileException {
+        NormalizedPath normalizedPath = new NormalizedPath(path);
+        Volume owner = locate(normalizedPath);
+
+        //以Append的方式写入，文件还在其他卷上时需要先迁移过来。
+        if (!balanced) {
+            Volume volume = find(normalizedPath);
+            if (null != volume && volume != owner) {
+                try {
+                    relocate(volume, volume.fileSystem.getWorkingPath(path));
+                }
+                catch (IOException e) {
+                    throw new InvalidFileException(path, e);
+                }
+            }
+        }
+
+        return owner.fileSystem.openWriteStream(path);
+    }
+
+    @Override
+    public void move(String source, String destination, boolean replaceExisting) throws FileSystemException {
+        moveOrCopy(true, source, destination, replaceExisting);
+    }
+
+    @Override
+    public void copy(String source, String destination, boolean replaceExisting) throws FileSystemException {
+        moveOrCopy(false, source, destination, replaceExisting);
+    }
+
+    @Override
+    public void delete(String path) {
+        fileTree.parallel(() -> {
+            volumes.parallelStream().forEach(v -> v.fileSystem.delete(path));
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteAll(Collection<String> paths) {
+        fileTree.parallel(() -> {
+            volumes.parallelStream().forEach(v -> v.fileSystem.deleteAll(paths));
+            return null;
+        });
+    }
+
+    @Override
+    public void touchCreation(String path) {
+        Volume volume = find(new NormalizedPath(path));
+        if (null != volume) {
+            volume.fileSystem.touchCreation(path);
+        }
+    }
+
+    @Override
+    public void touchLastModified(String path) {
+        Volume volume = find(new NormalizedPath(path));
+        if (null != volume) {
+            volume.fileSystem.touchLastModified(path);
+        }
+    }
+
+    @Override
+    public void touchLastAccess(String path) {
+        Volume volume = find(new NormalizedPath(path));
+        if (null != volume) {
+            volume.fileSystem.touchLastAccess(path);
+        }
+    }
+
+    @Override
+    public <M extends PathMeta> M meta(String path) {
+        Volume volume = find(new NormalizedPath(path));
+        return null == volume ? null : sumUsage(path, volume.fileSystem.meta(path), volume);
+    }
+
+    @Override
+    public String digest(String path) throws InvalidFileException {
+        Volume volume = find(new NormalizedPath(path));
+        if (null == volume) throw new InvalidFileException(path);
+
+        return volume.fileSystem.digest(path);
+    }
+
+    /**
+     * 按卷分组后，各个卷并行获取。不在所属卷上的路径（目录或者尚未迁移的文件）再逐个查找。
+     */
+    @Override
+    public <M extends PathMeta> Map<String, M> metaAll(Collection<String> paths) {
+        Map<Volume, List<String>> groups = paths.stream()
+            .distinct()
+            .collect(Collectors.groupingBy(path -> locate(new NormalizedPath(path))));
+
+        Map<String, M> result = new ConcurrentHashMap<>();
+        fileTree.parallel(() -> {
+            groups.entrySet().parallelStream().forEach(entry -> {
+                Map<String, M> metas = entry.getKey().fileSystem.metaAll(entry.getValue());
+                metas.forEach((path, meta) -> result.put(path, sumUsage(path, meta, entry.getKey())));
+
+                entry.getValue().stream()
+                    .filter(path -> !metas.containsKey(path))
+                    .forEach(path -> {
+                        M meta = meta(path);
+                        if (null != meta) {
+                            result.put(path, meta);
+                        }
+                    });
+            });
+
+            return null;
+        });
+
+        return new HashMap<>(result);
+    }
+
+    @Override
+    public Map<String, Boolean> existsAll(Collection<String> paths) {
+        Map<String, PathMeta> metas = metaAll(paths);
+
+        Map<String, Boolean> result = new HashMap<>();
+        paths.forEach(path -> result.put(path, metas.containsKey(path)));
+        return result;
+    }
+
+    @Override
+    public Stream<? extends PathMeta> directories(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) throws PathNotFoundException {
+        return FileSystem.sort(merge(path, v -> v.fileSystem.directories(path, search, recursive)), sort, offset, limit);
+    }
+
+    @Override
+    public Stream<? extends PathMeta> files(String path, String search, boolean recursive, int offset, int limit, PathMetaSort sort) throws PathNotFoundException {
+        return FileSystem.sort(merge(path, v -> v.fileSystem.files(path, search, recursive)), sort, offset, limit);
+    }
+
+    /**
+     * 每个卷各自取游标之后的limit个文件，合并后再取前limit个。
+     */
+    @Override
+    public Stream<? extends PathMeta> files(String path, String cursor, int limit, PathMetaSort sort) throws PathNotFoundException {
+        PathMetaSort pathMetaSort = PathMetaCursor.normalize(sort);
+        return FileSystem.sort(merge(path, v -> v.fileSystem.files(path, cursor, limit, pathMetaSort)), pathMetaSort, 0, limit);
+    }
+
+    /**
+     * 监听所有卷上的同一目录，合并后投递。目录在所有卷上都不存在时才视为不存在。
+     */
+    @Override
+    public Closeable watch(String path, boolean recursive, Duration debounce, Consumer<List<PathChange>> listener) throws PathNotFoundException {
+        if (volumes.stream().noneMatch(v -> Files.isDirectory(v.fileSystem.getWorkingPath(path)))) throw new PathNotFoundException(path);
+
+        PathChangeBatcher batcher = new PathChangeBatcher(debounce, listener);
+        List<LocalPathWatcher> watchers = new ArrayList<>();
+        try {
+            for (Volume volume : volumes) {
+                volume.fileSystem.createDirectory(path);
+                watchers.add(volume.fileSystem.watch(volume.fileSystem.getWorkingPath(path), recursive, batcher));
+            }
+        }
+        catch (IOException e) {
+            closeAll(watchers);
+            throw new UncheckedIOException(e);
+        }
+
+        return () -> closeAll(watchers);
+    }
+
+    private static void closeAll(List<LocalPathWatcher> watchers) {
+        for (LocalPathWatcher watcher : watchers) {
+            try {
+                watcher.close();
+            }
+            catch (IOException ignored) {}
+        }
+    }
+
+    @FunctionalInterface
+    private interface Listing {
+        Stream<? extends PathMeta> list(Volume volume) throws PathNotFoundException;
+    }
+
+    /**
+     * 并行列举所有存在该目录的卷，按路径去重。文件优先使用所属卷上的结果。
+     */
+    private Stream<PathMeta> merge(String path, Listing listing) throws PathNotFoundException {
+        NormalizedPath normalizedPath = new NormalizedPath(path);
+
+        List<Volume> candidates = volumes.stream()
+            .filter(v -> Files.isDirectory(v.fileSystem.getWorkingPath(path)))
+            .collect(Collectors.toList());
+
+        if (candidates.isEmpty()) throw new PathNotFoundException(path);
+
+        Map<String, PathMeta> result = new ConcurrentHashMap<>();
+        fileTree.parallel(() -> {
+            candidates.parallelStream().forEach(volume -> {
+                try (Stream<? extends PathMeta> stream = listing.list(volume)) {
+                    stream.forEach(meta -> {
+                        if (meta.isDirectory()) {
+                            result.merge(meta.getPath(), meta, ShardedLocalFileSystem::addUsage);
+                        }
+                        else if (locate(new NormalizedPath(meta.getPath())) == volume) {
+                            result.put(meta.getPath(), meta);
+                        }
+                        else {
+                            result.putIfAbsent(meta.getPath(), meta);
+                        }
+                    });
+                }
+                catch (PathNotFoundException e) {
+                    //列举期间目录被删除
+                }
+            });
+
+            return null;
+        });
+
+        return result.values().stream();
+    }
+
+    /**
+     * 目录可能同时存在于多个卷上，用量是各个卷之和。
+     *
+     * @param volume meta所在的卷
+     */
+    private <M extends PathMeta> M sumUsage(String path, M meta, Volume volume) {
+        if (null == meta || !meta.isDirectory()) return meta;
+
+        for (Volume v : volumes) {
+            if (v == volume) continue;
+
+            PathMeta other = v.fileSystem.meta(path);
+            if (null != other && other.isDirectory()) {
+                addUsage(meta, other);
+            }
+        }
+
+        return meta;
+    }
+
+    /**
+     * 任何一个卷上没有统计时，合计也视为没有统计。
+     */
+    private static PathMeta addUsage(PathMeta meta, PathMeta other) {
+        if (meta.getFileCount() < 0 || other.getFileCount() < 0) {
+            meta.setTotalSize(-1);
+            meta.setFileCount(-1);
+        }
+        else {
+            meta.setTotalSize(meta.getTotalSize() + other.getTotalSize());
+            meta.setFileCount(meta.getFileCount() + other.getFileCount());
+        }
+
+        return meta;
+    }
+
+    private void moveOrCopy(boolean move, String source, String destination, boolean replaceExisting) throws FileSystemException {
+        PathMeta sourceMeta = meta(source);
+        if (null == sourceMeta) throw new PathNotFoundException(source);
+
+        PathMeta destinationMeta = meta(destination);
+
+        try {
+            if (!sourceMeta.isDirectory()) {
+                String target = null != destinationMeta && destinationMeta.isDirectory()
+                    ? destinationMeta.getPath() + PATH_SEPARATOR + sourceMeta.getName()
+                    : destination;
+
+                LocalFileSystem sourceFileSystem = find(new NormalizedPath(source)).fileSystem;
+                transfer(move, sourceFileSystem, sourceFileSystem.getWorkingPath(source), new NormalizedPath(target), replaceExisting);
+                return;
+            }
+
+            if (null != destinationMeta && !destinationMeta.isDirectory()) throw new FileSystemException("不能把目录移动或复制到文件。");
+
+            NormalizedPath src = new NormalizedPath(source);
+            NormalizedPath dest = new NormalizedPath(destination);
+
+            //目录在每个卷上各自保留，文件按目标路径重新放置。
+            for (Volume volume : volumes) {
+                Path srcRoot = volume.fileSystem.getWorkingPath(source);
+                if (!Files.isDirectory(srcRoot)) continue;
+
+                Path destRoot = volume.fileSystem.getWorkingPath(destination);
+                fileTree.walk(
+                    srcRoot,
+                    dir -> volume.fileSystem.createDirectories(destRoot.resolve(srcRoot.relativize(dir))),
+                    file -> transfer(move, volume.fileSystem, file, relocated(volume, file, src, dest), replaceExisting),
+                    move ? this::deleteIfEmpty : null
+                );
+
+                //目录的创建及删除不经过单个文件的变化，按结果重建名称索引。
+                volume.fileSystem.reindex(destRoot);
+                if (move) {
+                    volume.fileSystem.reindex(srcRoot);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new FileSystemException(source + " " + destination, e);
+        }
+    }
+
+    private NormalizedPath relocated(Volume volume, Path file, NormalizedPath source, NormalizedPath destination) {
+        String path = volume.fileSystem.getNormalizedPath(file).toString();
+        String relative = path.substring(source.toString().length());
+        return new NormalizedPath(destination.toString() + relative);
+    }
+
+    /**
+     * @param source src所在卷的驱动
+     */
+    private void transfer(boolean move, LocalFileSystem source, Path src, NormalizedPath destination, boolean replaceExisting) throws IOException {
+        LocalFileSystem owner = locate(destination).fileSystem;
+        Path dest = owner.getWorkingPath(destination.toString());
+        if (Files.exists(dest, LinkOption.NOFOLLOW_LINKS) && !replaceExisting) return;
+
+        owner.createDirectories(dest.getParent());
+
+        long sourceSize = source.sizeOf(src);
+        long destinationSize = owner.sizeOf(dest);
+
+        if (move) {
+            Files.move(src, dest, StandardCopyOption.REPLACE_EXISTING);
+            source.fileChanged(src, sourceSize);
+        }
+        else {
+            Files.copy(src, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+
+        owner.fileChanged(dest, destinationSize);
+        deleteStaleCopies(destination);
+    }
+
+    private void deleteIfEmpty(Path dir) throws IOException {
+        try {
+            Files.delete(dir);
+        }
+        catch (DirectoryNotEmptyException e) {
+            //pass
+        }
+    }
+
+    /**
+     * 把volume上的文件迁移到所属卷。所属卷上已经有该文件时，所属卷上的较新，直接删除旧文件。
+     */
+    private void relocate(Volume volume, Path file) throws IOException {
+        NormalizedPath normalizedPath = volume.fileSystem.getNormalizedPath(file);
+        Volume owner = locate(normalizedPath);
+        if (owner == volume) return;
+
+        Path dest = owner.fileSystem.getWorkingPath(normalizedPath.toString());
+        owner.fileSystem.createDirectories(dest.getParent());
+
+        long size = volume.fileSystem.sizeOf(file);
+        try {
+            Files.move(file, dest);
+            owner.fileSystem.fileChanged(dest, -1);
+        }
+        catch (FileAlreadyExistsException e) {
+            Files.deleteIfExists(file);
+        }
+
+        volume.fileSystem.fileChanged(file, size);
+    }
+
+    /**
+     * 迁移未完成时，其他卷上可能还有同一路径的旧文件，不删除的话会在所属卷上的文件被删除后重新出现。
+     */
+    private void deleteStaleCopies(NormalizedPath normalizedPath) {
+        if (balanced) return;
+
+        Volume owner = locate(normalizedPath);
+        for (Volume volume : volumes) {
+            if (volume == owner) continue;
+
+            Path path = volume.fileSystem.getWorkingPath(normalizedPath.toString());
+            try {
+                long size = volume.fileSystem.sizeOf(path);
+                if (size >= 0) {
+                    Files.deleteIfExists(path);
+                    volume.fileSystem.fileChanged(path, size);
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * 查找实际存在该路径的卷，优先所属卷。
+     *
+     * @return 所有卷上都不存在时，返回null。
+     */
+    private Volume find(NormalizedPath normalizedPath) {
+        Volume owner = locate(normalizedPath);
+        if (owner.fileSystem.exists(normalizedPath.toString())) return owner;
+
+        return volumes.stream()
+            .filter(v -> v != owner && v.fileSystem.exists(normalizedPath.toString()))
+            .findFirst()
+            .orElse(null);
+    }
+
+    /**
+     * 按一致性哈希确定路径所属的卷。
+     */
+    private Volume locate(NormalizedPath normalizedPath) {
+        TreeMap<Long, Volume> ring = this.ring;
+
+        Map.Entry<Long, Volume> entry = ring.ceilingEntry(hash(normalizedPath.toString()));
+        return null == entry ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    private void addVolumeToRing(String workingRoot) {
+        FrameworkAutoConfiguration.LocalFileSystemProperties properties = new FrameworkAutoConfiguration.LocalFileSystemProperties();
+        properties.setWorkingRoot(workingRoot);
+        properties.setParallelism(parallelism);
+        properties.setDurable(this.properties.isDurable());
+        properties.setGroupCommitInterval(this.properties.getGroupCommitInterval());
+        properties.setGroupCommitSize(this.properties.getGroupCommitSize());
+        properties.setNameIndex(this.properties.isNameIndex());
+
+        Volume volume = new Volume(SystemPropertyUtils.resolvePlaceholders(workingRoot), new LocalFileSystem(properties));
+        if (volumes.stream().anyMatch(v -> v.rootPath.equals(volume.rootPath))) {
+            volume.fileSystem.close();
+            return;
+        }
+
+        //虚拟节点只和卷的路径有关，增加卷不会改变已有卷在环上的位置。
+        TreeMap<Long, Volume> ring = new TreeMap<>(this.ring);
+        for (int i = 0; i < VIRTUAL_NODES; ++i) {
+            ring.put(hash(volume.root + "#" + i), volume);
+        }
+
+        volumes.add(volume);
+        this.ring = ring;
+    }
+
+    private static long hash(String key) {
+        byte[] digest = DigestUtils.md5Digest(key.getBytes(StandardCharsets.UTF_8));
+
+        long hash = 0;
+        for (int i = 0; i < 8; ++i) {
+            hash = (hash << 8) | (digest[i] & 0xFF);
+        }
+        return hash;
+    }
+
+    private static class Volume {
+        private final String root;
+        private final Path rootPath;
+        private final LocalFileSystem fileSystem;
+
+        private Volume(String root, LocalFileSystem fileSystem) {
+            this.root = root;
+            this.rootPath = Paths.get(root).toAbsolutePath().normalize();
+            this.fileSystem = fileSystem;
+        }
+    }
+}
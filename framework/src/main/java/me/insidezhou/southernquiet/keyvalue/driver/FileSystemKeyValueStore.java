@@ -6,96 +6,110 @@ import me.insidezhou.southernquiet.keyvalue.KeyValueStore;
 import org.springframework.util.SerializationUtils;
 import org.springframework.util.StreamUtils;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.Serializable;
-import java.util.Optional;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * 基于 {@link FileSystem} 的键值对驱动.
+ * <ul>
+ * <li>每个键值对是工作目录下以key为名的文件，获取时只需要一次meta及一次读取，不需要列出整个目录。</li>
+ * <li>文件内容以{@link #HEADER_MAGIC}及ttl开头，之后是序列化的值；过期时间以文件的创建时间计算。</li>
+ * <li>旧版本把ttl写在文件名中（key + nameSeparator + ttl），启动时迁移为新的格式。旧版本中ttl为0的文件（由set写入）总是被当作已过期，迁移时直接删除。</li>
+ * </ul>
  */
 public class FileSystemKeyValueStore implements KeyValueStore {
+    public final static int HEADER_MAGIC = 0x53514B56;
+    public final static int HEADER_SIZE = 8;
+
     private final FileSystem fileSystem;
     private final String workingRoot; //Store在FileSystem中的路径
-    private final String nameSeparator; //文件名中不同部分的分隔
+    private final String nameSeparator; //旧版本文件名中key与ttl的分隔
 
     public FileSystemKeyValueStore(FrameworkAutoConfiguration.KeyValueStoreProperties.FileSystem properties, FileSystem fileSystem) {
         this.workingRoot = properties.getWorkingRoot();
         this.nameSeparator = properties.getNameSeparator();
 
         this.fileSystem = fileSystem;
+
+        migrateLegacyFiles();
     }
 
     @Override
     public <T extends Serializable> void put(String key, T value, int ttl) {
-        try {
-            fileSystem.put(getFilePath(key, ttl), serialize(value));
-        }
-        catch (InvalidFileException e) {
-            throw new RuntimeException(e);
-        }
+        write(key, SerializationUtils.serialize(value), ttl);
     }
 
+    /**
+     * 已存在且未过期的键值对保留原来的ttl。
+     */
     @Override
     public <T extends Serializable> void set(String key, T value) {
-        try {
-            fileSystem.put(getFilePath(key, -1), serialize(value));
-        }
-        catch (InvalidFileException e) {
-            throw new RuntimeException(e);
+        String path = getFilePath(key);
+        PathMeta meta = fileSystem.meta(path);
+
+        int ttl = 0;
+        if (null != meta && !meta.isDirectory()) {
+            try (DataInputStream inputStream = new DataInputStream(fileSystem.openReadStream(path, 0, HEADER_SIZE))) {
+                int existingTtl = readHeader(inputStream, path);
+                if (!isExpired(meta, existingTtl)) {
+                    ttl = existingTtl;
+                }
+            }
+            catch (InvalidFileException | IOException e) {
+                throw new RuntimeException(e);
+            }
         }
+
+        write(key, SerializationUtils.serialize(value), ttl);
     }
 
     @SuppressWarnings("unchecked")
     @Override
     public <T extends Serializable> T get(String key) {
-        try {
-            Optional<? extends PathMeta> opt = fileSystem.files(workingRoot, getKeyPrefix(key)).findFirst();
+        String path = getFilePath(key);
+        PathMeta meta = fileSystem.meta(path);
+        if (null == meta || meta.isDirectory()) return null;
 
-            if (opt.isPresent()) {
-                PathMeta meta = opt.get();
-                String filename = meta.getName();
-                long now = System.currentTimeMillis();
-                long creationTime = meta.getCreationTime().toEpochMilli();
-                int ttl = getTTLFromFileName(filename);
+        try (DataInputStream inputStream = new DataInputStream(fileSystem.openReadStream(path))) {
+            if (isExpired(meta, readHeader(inputStream, path))) return null;
 
-                if (creationTime + ttl <= now) {
-                    return null;
-                }
-
-                try (InputStream inputStream = fileSystem.openReadStream(meta.getPath())) {
-                    return (T) deserialize(inputStream);
-                }
-            }
-        }
-        catch (PathNotFoundException e) {
-            return null;
+            return (T) SerializationUtils.deserialize(StreamUtils.copyToByteArray(inputStream));
         }
         catch (InvalidFileException | IOException e) {
             throw new RuntimeException(e);
         }
-
-        return null;
     }
 
+    /**
+     * 只刷新创建时间时不读取内容；修改ttl时ttl在文件内容中，需要读出并改写整个值，代价与一次get加一次put相当。
+     */
     @Override
     public void touch(String key, Integer ttl) {
+        String path = getFilePath(key);
+
         try {
-            Optional<? extends PathMeta> opt = fileSystem.files(workingRoot, getKeyPrefix(key)).findFirst();
+            if (!fileSystem.exists(path)) throw new InvalidFileException("找不到key：" + key);
 
-            if (opt.isPresent()) {
-                PathMeta meta = opt.get();
+            if (null == ttl) {
+                fileSystem.touchCreation(path);
+                return;
+            }
 
-                fileSystem.touchCreation(meta.getPath());
-                if (null != ttl) {
-                    fileSystem.move(meta.getPath(), getFilePath(key, ttl));
-                }
+            //ttl在文件内容中，改写整个文件，同时也刷新了创建时间。
+            byte[] value;
+            try (DataInputStream inputStream = new DataInputStream(fileSystem.openReadStream(path))) {
+                readHeader(inputStream, path);
+                value = StreamUtils.copyToByteArray(inputStream);
             }
-            else {
-                throw new InvalidFileException("找不到key：" + key);
+            catch (IOException e) {
+                throw new InvalidFileException(path, e);
             }
+
+            fileSystem.touchCreation(path);
+            write(key, value, ttl);
         }
         catch (FileSystemException e) {
             throw new RuntimeException(e);
@@ -103,56 +117,98 @@ public class FileSystemKeyValueStore implements KeyValueStore {
     }
 
     @Override
-    @SuppressWarnings("all")
     public void remove(String... keys) {
-        Stream.of(keys).forEach(key -> {
-            try {
-                fileSystem.files(workingRoot, getKeyPrefix(key))
-                    .findFirst()
-                    .ifPresent(meta -> fileSystem.delete(meta.getPath()));
-            }
-            catch (PathNotFoundException e) {
-                return;
-            }
-        });
+        fileSystem.deleteAll(Stream.of(keys).map(this::getFilePath).collect(Collectors.toList()));
     }
 
-    protected String getFileName(String key, int ttl) {
-        return key + nameSeparator + (Math.max(ttl, 0));
+    private void write(String key, byte[] value, int ttl) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(HEADER_SIZE + (null == value ? 0 : value.length));
+        try (DataOutputStream dataOutputStream = new DataOutputStream(outputStream)) {
+            dataOutputStream.writeInt(HEADER_MAGIC);
+            dataOutputStream.writeInt(Math.max(ttl, 0));
+            if (null != value) {
+                dataOutputStream.write(value);
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        try {
+            fileSystem.put(getFilePath(key), new ByteArrayInputStream(outputStream.toByteArray()));
+        }
+        catch (InvalidFileException e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    private String getKeyPrefix(String key) {
-        return key + nameSeparator;
+    /**
+     * @return ttl
+     */
+    private int readHeader(DataInputStream inputStream, String path) throws IOException {
+        if (HEADER_MAGIC != inputStream.readInt()) throw new IOException("不是键值对文件：" + path);
+
+        return inputStream.readInt();
     }
 
-    private String getFilePath(String key, int ttl) {
-        return workingRoot + FileSystem.PATH_SEPARATOR + getFileName(key, ttl);
+    private boolean isExpired(PathMeta meta, int ttl) {
+        return ttl > 0 && meta.getCreationTime().toEpochMilli() + ttl <= System.currentTimeMillis();
     }
 
-    private int getTTLFromFileName(String name) {
-        return Integer.parseInt(name.substring(name.indexOf(nameSeparator) + nameSeparator.length()));
+    private String getFilePath(String key) {
+        return workingRoot + FileSystem.PATH_SEPARATOR + key;
     }
 
-    private Stream<? extends PathMeta> getMetaStream() {
-        try {
-            return fileSystem.files(workingRoot);
+    /**
+     * 把文件名中带ttl的旧版本文件改写为新的格式，只在启动时列出一次工作目录。
+     * 先只读取文件头，新格式的文件不需要读取整个内容。
+     */
+    private void migrateLegacyFiles() {
+        List<? extends PathMeta> metas;
+        try (Stream<? extends PathMeta> stream = fileSystem.files(workingRoot)) {
+            metas = stream.collect(Collectors.toList());
         }
         catch (PathNotFoundException e) {
-            throw new RuntimeException(e);
+            return;
         }
-    }
 
-    private InputStream serialize(Object data) {
-        byte[] bytes = SerializationUtils.serialize(data);
-        return null == bytes ? null : new ByteArrayInputStream(bytes);
-    }
+        for (PathMeta meta : metas) {
+            String name = meta.getName();
+            int index = name.indexOf(nameSeparator);
+            if (index <= 0) continue;
 
-    private Object deserialize(InputStream stream) {
-        try {
-            return SerializationUtils.deserialize(StreamUtils.copyToByteArray(stream));
-        }
-        catch (IOException e) {
-            throw new RuntimeException(e);
+            int ttl;
+            try {
+                ttl = Integer.parseInt(name.substring(index + nameSeparator.length()));
+            }
+            catch (NumberFormatException e) {
+                continue;
+            }
+
+            try {
+                //新格式的key本身也可能带有分隔符。
+                byte[] header;
+                try (InputStream inputStream = fileSystem.openReadStream(meta.getPath(), 0, HEADER_SIZE)) {
+                    header = StreamUtils.copyToByteArray(inputStream);
+                }
+                if (header.length >= HEADER_SIZE && HEADER_MAGIC == ByteBuffer.wrap(header).getInt()) continue;
+
+                //旧版本以创建时间加ttl判断过期，ttl为0的文件从来读不到。
+                if (ttl > 0 && !isExpired(meta, ttl)) {
+                    byte[] content;
+                    try (InputStream inputStream = fileSystem.openReadStream(meta.getPath())) {
+                        content = StreamUtils.copyToByteArray(inputStream);
+                    }
+
+                    //改写会刷新创建时间，所以只保留剩余的ttl。
+                    long remaining = meta.getCreationTime().toEpochMilli() + ttl - System.currentTimeMillis();
+                    write(name.substring(0, index), content, (int) Math.max(remaining, 1));
+                }
+            }
+            catch (InvalidFileException | IOException e) {
+                throw new RuntimeException(e);
+            }
+            fileSystem.delete(meta.getPath());
         }
     }
 }
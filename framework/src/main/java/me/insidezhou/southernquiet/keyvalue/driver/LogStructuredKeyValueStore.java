@@ -0,0 +1,627 @@
+package me.insidezhou.southernquiet.keyvalue.driver;
+
+import me.insidezhou.southernquiet.FrameworkAutoConfiguration;
+import me.insidezhou.southernquiet.keyvalue.KeyValueStore;
+import me.insidezhou.southernquiet.logging.SouthernQuietLogger;
+import me.insidezhou.southernquiet.logging.SouthernQuietLoggerFactory;
+import org.springframework.util.SerializationUtils;
+import org.springframework.util.SystemPropertyUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 日志结构（Bitcask）的键值对驱动，数据保存在本地磁盘的段文件中。
+ * <ul>
+ * <li>写入只顺序追加到当前的段，段文件预先分配并映射到内存。</li>
+ * <li>内存中的哈希索引记录每个key最新记录的位置，读取只需要一次索引查找及一次映射内存的读取。</li>
+ * <li>ttl随记录保存，删除追加一条墓碑记录；过期的记录在读取及压缩时被忽略。</li>
+ * <li>开启durable后，写入落盘后才返回，并发写入的刷盘由后台线程成组提交。</li>
+ * <li>已写满的段中失效的记录达到compactionRatio的段，由后台线程把仍然有效的记录复制到当前的段，再删除这些段。更早的段保留时，墓碑也一起复制。</li>
+ * </ul>
+ * 记录的格式：crc32(4) | 写入时间(8) | ttl(4，墓碑为-1) | key长度(4) | 值长度(4) | key | 值。crc32最后写入，启动时扫描到第一条校验不通过的记录为止，
+ * 并把段中之后的部分清零，之前写入过的旧记录不会在以后的启动中被重放。段文件预先分配的部分全是0，校验不会通过。
+ */
+@SuppressWarnings("WeakerAccess")
+public class LogStructuredKeyValueStore implements KeyValueStore, Closeable {
+    private final static SouthernQuietLogger log = SouthernQuietLoggerFactory.getLogger(LogStructuredKeyValueStore.class);
+
+    private final static int HEADER_SIZE = 24;
+    private final static int TOMBSTONE = -1;
+    private final static String SEGMENT_SUFFIX = ".log";
+
+    private final Path workingRoot;
+    private final int segmentSize;
+    private final boolean durable;
+    private final long groupCommitIntervalNanos;
+    private final int groupCommitSize;
+    private final double compactionRatio;
+
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private final NavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Object writeLock = new Object();
+    private final Object compactionLock = new Object();
+    private final BlockingQueue<CompletableFuture<Void>> commits = new LinkedBlockingQueue<>();
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sq-key-value-compact");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Thread committer;
+    private Segment active;
+    private boolean closed;
+
+    public LogStructuredKeyValueStore(FrameworkAutoConfiguration.KeyValueStoreProperties.Log properties) {
+        this.workingRoot = Paths.get(SystemPropertyUtils.resolvePlaceholders(properties.getWorkingRoot()));
+        this.segmentSize = (int) Math.min(properties.getSegmentSize().toBytes(), Integer.MAX_VALUE);
+        this.durable = properties.isDurable();
+        this.groupCommitIntervalNanos = properties.getGroupCommitInterval().toNanos();
+        this.groupCommitSize = Math.max(properties.getGroupCommitSize(), 1);
+        this.compactionRatio = properties.getCompactionRatio();
+
+        try {
+            Files.createDirectories(workingRoot);
+            recover();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        if (durable) {
+            committer = new Thread(this::runCommitter, "sq-key-value-commit");
+            committer.setDaemon(true);
+            committer.start();
+        }
+
+        long interval = properties.getCompactionInterval().toMillis();
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                if (shouldCompact()) {
+                    compact();
+                }
+            }
+            catch (RuntimeException e) {
+                log.message("压缩键值对的段文件失败").context("workingRoot", workingRoot).exception(e).warn();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public <T extends Serializable> void put(String key, T value, int ttl) {
+        append(key, SerializationUtils.serialize(value), System.currentTimeMillis(), Math.max(ttl, 0));
+        commit();
+    }
+
+    /**
+     * 已存在且未过期的键值对保留原来的写入时间及ttl。
+     */
+    @Override
+    public <T extends Serializable> void set(String key, T value) {
+        long now = System.currentTimeMillis();
+        Entry entry = index.get(key);
+
+        if (null != entry && !entry.isExpired(now)) {
+            append(key, SerializationUtils.serialize(value), entry.timestamp, entry.ttl);
+        }
+        else {
+            append(key, SerializationUtils.serialize(value), now, 0);
+        }
+        commit();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T extends Serializable> T get(String key) {
+        Entry entry = index.get(key);
+        if (null == entry || entry.isExpired(System.currentTimeMillis())) return null;
+
+        return (T) SerializationUtils.deserialize(readValue(entry));
+    }
+
+    /**
+     * 追加一条新写入时间的记录。
+     */
+    @Override
+    public void touch(String key, Integer ttl) {
+        long now = System.currentTimeMillis();
+        Entry entry = index.get(key);
+        if (null == entry || entry.isExpired(now)) throw new RuntimeException("找不到key：" + key);
+
+        append(key, readValue(entry), now, null == ttl ? entry.ttl : Math.max(ttl, 0));
+        commit();
+    }
+
+    @Override
+    public void remove(String... keys) {
+        long now = System.currentTimeMillis();
+        boolean removed = false;
+        for (String key : keys) {
+            if (!index.containsKey(key)) continue;
+
+            append(key, null, now, TOMBSTONE);
+            removed = true;
+        }
+
+        if (removed) {
+            commit();
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * 逐个检查已写满的段，失效记录的比例达到compactionRatio的段，把其中仍然有效的记录复制到当前的段，然后删除这些段。
+     */
+    public void compact() {
+        synchronized (compactionLock) {
+            List<Segment> selected = new ArrayList<>();
+            synchronized (writeLock) {
+                if (closed) return;
+
+                segments.headMap(active.id).values().stream()
+                    .filter(this::isCompactable)
+                    .forEach(selected::add);
+            }
+            if (selected.isEmpty()) return;
+
+            Set<Segment> removing = Collections.newSetFromMap(new IdentityHashMap<>());
+            removing.addAll(selected);
+            for (Segment segment : selected) {
+                //更早的段中可能有被墓碑或过期记录覆盖的旧记录，删除这个段后重放时不能让它们复活。
+                boolean shadowing = segments.headMap(segment.id).values().stream().anyMatch(s -> !removing.contains(s));
+                if (!copyLive(segment, shadowing)) return;
+            }
+
+            synchronized (writeLock) {
+                if (closed) return;
+                active.buffer.force();
+            }
+
+            //按从旧到新的顺序删除，中途失败时不会留下被删除的key的旧记录而丢掉其墓碑。
+            selected.forEach(segment -> {
+                segments.remove(segment.id);
+                try {
+                    segment.channel.close();
+                    Files.deleteIfExists(segment.path);
+                }
+                catch (IOException e) {
+                    log.message("删除键值对的段文件失败").context("path", segment.path).exception(e).warn();
+                }
+            });
+        }
+    }
+
+    /**
+     * 按顺序读取段中的记录，把仍然是最新的记录复制到当前的段。
+     *
+     * @param shadowing 是否还有更早的段保留，此时墓碑及过期的记录要以墓碑的形式保留下来。
+     * @return 如果false，存储已经关闭，放弃这次压缩。
+     */
+    private boolean copyLive(Segment segment, boolean shadowing) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        long now = System.currentTimeMillis();
+
+        int position = 0;
+        while (position < segment.position) {
+            int offset = position;
+            buffer.position(offset + 4);
+            long timestamp = buffer.getLong();
+            int ttl = buffer.getInt();
+            int keyLength = buffer.getInt();
+            int valueLength = buffer.getInt();
+            byte[] keyBytes = new byte[keyLength];
+            buffer.get(keyBytes);
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+            position += HEADER_SIZE + keyLength + valueLength;
+
+            if (TOMBSTONE == ttl) {
+                if (!shadowing) continue;
+
+                synchronized (writeLock) {
+                    if (closed) return false;
+
+                    //之后又写入的key不再需要墓碑。
+                    if (!index.containsKey(key)) {
+                        appendLocked(key, null, timestamp, TOMBSTONE);
+                    }
+                }
+                continue;
+            }
+
+            Entry entry = index.get(key);
+            if (null == entry || entry.segment != segment || entry.offset != offset) continue;
+
+            byte[] value = entry.isExpired(now) ? null : readValue(entry);
+            synchronized (writeLock) {
+                if (closed) return false;
+
+                //复制期间被覆盖或删除的key不再需要复制。
+                if (index.get(key) != entry) continue;
+
+                if (null != value) {
+                    appendLocked(key, value, entry.timestamp, entry.ttl);
+                }
+                else if (shadowing) {
+                    appendLocked(key, null, now, TOMBSTONE);
+                }
+                else {
+                    apply(key, null);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * 不再接受新的写入，等待进行中的压缩放弃、刷盘线程把已经排队的写入刷盘后，关闭所有的段文件。
+     */
+    @Override
+    public void close() {
+        synchronized (writeLock) {
+            if (closed) return;
+            closed = true;
+        }
+
+        compactor.shutdownNow();
+        try {
+            if (!compactor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.message("压缩键值对的线程没有在限定时间内结束").context("workingRoot", workingRoot).warn();
+            }
+
+            if (null != committer) {
+                committer.interrupt();
+                committer.join();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        //不在压缩线程中调用的compact也要等它结束。
+        synchronized (compactionLock) {
+            active.buffer.force();
+
+            for (Segment segment : segments.values()) {
+                try {
+                    segment.channel.close();
+                }
+                catch (IOException e) {
+                    log.message("关闭键值对的段文件失败").context("path", segment.path).exception(e).warn();
+                }
+            }
+        }
+    }
+
+    private void append(String key, byte[] value, long timestamp, int ttl) {
+        synchronized (writeLock) {
+            if (closed) throw new IllegalStateException("键值对存储已关闭");
+
+            appendLocked(key, value, timestamp, ttl);
+        }
+    }
+
+    /**
+     * 在writeLock内追加记录并更新索引，索引的更新顺序与记录的顺序一致。
+     */
+    private void appendLocked(String key, byte[] value, long timestamp, int ttl) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int valueLength = null == value ? 0 : value.length;
+        int size = HEADER_SIZE + keyBytes.length + valueLength;
+
+        if (active.position + size > active.buffer.capacity()) {
+            roll(size);
+        }
+
+        int offset = active.position;
+        ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(offset + 4);
+        buffer.putLong(timestamp).putInt(ttl).putInt(keyBytes.length).putInt(valueLength).put(keyBytes);
+        if (null != value) {
+            buffer.put(value);
+        }
+        buffer.putInt(offset, checksum(active.buffer, offset, size));
+
+        active.position = offset + size;
+        apply(key, TOMBSTONE == ttl ? null : new Entry(active, offset, size, timestamp, ttl));
+    }
+
+    /**
+     * 当前的段写满后刷盘，并开始一个新的段。
+     */
+    private void roll(int minSize) {
+        active.buffer.force();
+
+        try {
+            Segment segment = openSegment(active.id + 1, Math.max(segmentSize, minSize));
+            segments.put(segment.id, segment);
+            active = segment;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param entry 为null时删除key。
+     */
+    private void apply(String key, Entry entry) {
+        Entry previous = null == entry ? index.remove(key) : index.put(key, entry);
+        if (null != previous) {
+            previous.segment.liveBytes.addAndGet(-previous.size);
+        }
+        if (null != entry) {
+            entry.segment.liveBytes.addAndGet(entry.size);
+        }
+    }
+
+    private byte[] readValue(Entry entry) {
+        ByteBuffer buffer = entry.segment.buffer.duplicate();
+        buffer.position(entry.offset + 16);
+        int keyLength = buffer.getInt();
+        byte[] value = new byte[buffer.getInt()];
+
+        buffer.position(entry.offset + HEADER_SIZE + keyLength);
+        buffer.get(value);
+        return value;
+    }
+
+    private boolean shouldCompact() {
+        synchronized (writeLock) {
+            if (closed) return false;
+
+            return segments.headMap(active.id).values().stream().anyMatch(this::isCompactable);
+        }
+    }
+
+    private boolean isCompactable(Segment segment) {
+        return segment.position > 0 && segment.position - segment.liveBytes.get() >= segment.position * compactionRatio;
+    }
+
+    /**
+     * 写入落盘后才返回，未开启durable时直接返回。
+     */
+    private void commit() {
+        if (!durable) return;
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        Segment segment;
+        synchronized (writeLock) {
+            //与close在同一个锁内检查，关闭后刷盘线程不再从队列中取出，由写入方自己刷盘。
+            segment = active;
+            if (!closed) {
+                commits.add(future);
+                segment = null;
+            }
+        }
+        if (null != segment) {
+            segment.buffer.force();
+            return;
+        }
+
+        try {
+            future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * 与LocalFileSystem的成组提交相同：等待一段时间或者积累到一定数量后，对当前的段做一次刷盘，再一起唤醒所有等待的写入方。
+     * 每个写入方都在追加完成之后才进入队列，之前写满的段在切换时已经刷盘。
+     */
+    private void runCommitter() {
+        while (true) {
+            List<CompletableFuture<Void>> batch = new ArrayList<>(groupCommitSize);
+            try {
+                batch.add(commits.take());
+
+                long deadline = System.nanoTime() + groupCommitIntervalNanos;
+                while (batch.size() < groupCommitSize) {
+                    commits.drainTo(batch, groupCommitSize - batch.size());
+                    if (batch.size() >= groupCommitSize) break;
+
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+
+                    CompletableFuture<Void> future = commits.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (null == future) break;
+                    batch.add(future);
+                }
+            }
+            catch (InterruptedException e) {
+                //close时才会中断，之后不会再有写入进入队列，剩下的一起刷盘。
+                commits.drainTo(batch);
+                flush(batch);
+                return;
+            }
+
+            flush(batch);
+        }
+    }
+
+    private void flush(List<CompletableFuture<Void>> batch) {
+        try {
+            Segment segment;
+            synchronized (writeLock) {
+                segment = active;
+            }
+            segment.buffer.force();
+            batch.forEach(f -> f.complete(null));
+        }
+        catch (RuntimeException e) {
+            batch.forEach(f -> f.completeExceptionally(e));
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Integer> ids;
+        try (Stream<Path> stream = Files.list(workingRoot)) {
+            ids = stream.map(path -> path.getFileName().toString())
+                .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                .map(name -> name.substring(0, name.length() - SEGMENT_SUFFIX.length()))
+                .filter(name -> !name.isEmpty() && name.chars().allMatch(Character::isDigit))
+                .map(Integer::parseInt)
+                .sorted()
+                .collect(Collectors.toList());
+        }
+
+        for (int id : ids) {
+            Segment segment = openSegment(id, 0);
+            segment.position = scan(segment);
+            clearTail(segment);
+            segments.put(id, segment);
+        }
+
+        if (segments.isEmpty()) {
+            Segment segment = openSegment(0, segmentSize);
+            segments.put(segment.id, segment);
+        }
+
+        active = segments.lastEntry().getValue();
+    }
+
+    /**
+     * 按顺序重放段中的记录，key可以为空，以校验和判断记录是否完整。
+     *
+     * @return 第一条不完整的记录的位置，即可以继续写入的位置。
+     */
+    private int scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int capacity = buffer.capacity();
+        int position = 0;
+
+        while (position + HEADER_SIZE <= capacity) {
+            buffer.position(position);
+            int crc = buffer.getInt();
+            long timestamp = buffer.getLong();
+            int ttl = buffer.getInt();
+            int keyLength = buffer.getInt();
+            int valueLength = buffer.getInt();
+            if (keyLength < 0 || valueLength < 0) break;
+
+            long size = (long) HEADER_SIZE + keyLength + valueLength;
+            if (position + size > capacity || crc != checksum(segment.buffer, position, (int) size)) break;
+
+            byte[] key = new byte[keyLength];
+            buffer.get(key);
+            apply(new String(key, StandardCharsets.UTF_8), TOMBSTONE == ttl ? null : new Entry(segment, position, (int) size, timestamp, ttl));
+
+            position += (int) size;
+        }
+
+        return position;
+    }
+
+    /**
+     * 把写入位置之后不全是0的部分清零并刷盘。不完整的记录之后可能还有崩溃前已经落盘的记录，
+     * 新的记录覆盖了不完整的记录后，如果恰好与其中某条记录的开头对齐，下次启动时这些旧记录会被当作新写入的重放。
+     */
+    private void clearTail(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+
+        int end = buffer.capacity();
+        while (end > segment.position && 0 == buffer.get(end - 1)) {
+            --end;
+        }
+        if (end <= segment.position) return;
+
+        for (int i = segment.position; i < end; ++i) {
+            buffer.put(i, (byte) 0);
+        }
+        buffer.force();
+    }
+
+    private Segment openSegment(int id, int minSize) throws IOException {
+        Path path = workingRoot.resolve(String.format("%010d%s", id, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            //READ_WRITE的映射会把文件扩展到映射的大小，即预先分配。
+            long size = Math.min(Math.max(channel.size(), minSize), Integer.MAX_VALUE);
+            return new Segment(id, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 记录中crc32之后的部分的校验和。
+     */
+    private static int checksum(MappedByteBuffer source, int offset, int size) {
+        ByteBuffer buffer = source.duplicate();
+        buffer.position(offset + 4);
+        buffer.limit(offset + size);
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(buffer);
+        return (int) crc32.getValue();
+    }
+
+    private static class Segment {
+        private final int id;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final AtomicLong liveBytes = new AtomicLong();
+        /**
+         * 写入位置，只在writeLock内修改。
+         */
+        private volatile int position;
+
+        private Segment(int id, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * key最新记录的位置，以及过期判断需要的写入时间及ttl。
+     */
+    private static class Entry {
+        private final Segment segment;
+        private final int offset;
+        private final int size;
+        private final long timestamp;
+        private final int ttl;
+
+        private Entry(Segment segment, int offset, int size, long timestamp, int ttl) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+            this.timestamp = timestamp;
+            this.ttl = ttl;
+        }
+
+        private boolean isExpired(long now) {
+            return ttl > 0 && timestamp + ttl <= now;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package test.filesystem;
+
+import me.insidezhou.southernquiet.FrameworkAutoConfiguration;
+import me.insidezhou.southernquiet.filesystem.CachingFileSystem;
+import me.insidezhou.southernquiet.filesystem.FileSystem;
+import me.insidezhou.southernquiet.filesystem.InvalidFileException;
+import me.insidezhou.southernquiet.filesystem.PathMeta;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@SpringBootTest(classes = FrameworkAutoConfiguration.class)
+@RunWith(SpringRunner.class)
+public class CachingFileSystemTest {
+    @Autowired
+    private FileSystem fileSystem;
+
+    @Test
+    public void invalidateOnWrite() throws InvalidFileException {
+        String path = "caching/hello/world.txt";
+        fileSystem.delete("caching");
+
+        CachingFileSystem cachingFileSystem = new CachingFileSystem(fileSystem, 100);
+
+        Assert.assertFalse(cachingFileSystem.exists(path));
+        Assert.assertFalse(cachingFileSystem.exists("caching/hello"));
+        Assert.assertFalse(cachingFileSystem.exists(path));
+        Assert.assertEquals(1, cachingFileSystem.getHitCount());
+
+        cachingFileSystem.put(path, "你好，Spring Boot。");
+        Assert.assertTrue(cachingFileSystem.exists(path));
+        Assert.assertTrue(cachingFileSystem.exists("caching/hello"));
+
+        PathMeta meta = cachingFileSystem.meta(path);
+        Assert.assertSame(meta, cachingFileSystem.meta(path));
+
+        cachingFileSystem.delete("caching");
+        Assert.assertFalse(cachingFileSystem.exists(path));
+        Assert.assertTrue(cachingFileSystem.getHitRatio() > 0);
+    }
+
+    @Test
+    public void externalChange() throws InvalidFileException, InterruptedException {
+        String path = "caching/external.txt";
+        fileSystem.delete(path);
+
+        CachingFileSystem cachingFileSystem = new CachingFileSystem(fileSystem, 100, Duration.ofMillis(100));
+        Assert.assertFalse(cachingFileSystem.exists(path));
+
+        fileSystem.put(path, "你好，Spring Boot。");
+        Assert.assertFalse(cachingFileSystem.exists(path));
+
+        Thread.sleep(150);
+        Assert.assertTrue(cachingFileSystem.exists(path));
+    }
+
+    @Test
+    public void loadInvalidation() throws Exception {
+        String path = "caching/load/slow.txt";
+        fileSystem.put(path, "slow");
+
+        AtomicBoolean block = new AtomicBoolean(true);
+        BlockingQueue<Boolean> loading = new LinkedBlockingQueue<>();
+        BlockingQueue<Boolean> release = new LinkedBlockingQueue<>();
+        CachingFileSystem slowFileSystem = new CachingFileSystem(fileSystem, 0) {
+            @Override
+            public <M extends PathMeta> M meta(String p) {
+                if (block.get() && p.equals(path)) {
+                    loading.add(true);
+                    try {
+                        release.take();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.meta(p);
+            }
+        };
+        CachingFileSystem cachingFileSystem = new CachingFileSystem(slowFileSystem, 100);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            //加载期间其他路径的写入不影响这次加载。
+            Future<PathMeta> future = executor.submit(() -> cachingFileSystem.meta(path));
+            Assert.assertNotNull(loading.poll(5, TimeUnit.SECONDS));
+            cachingFileSystem.put("caching/other.txt", "other");
+            release.add(true);
+            Assert.assertNotNull(future.get(5, TimeUnit.SECONDS));
+
+            block.set(false);
+            long hitCount = cachingFileSystem.getHitCount();
+            cachingFileSystem.meta(path);
+            Assert.assertEquals(hitCount + 1, cachingFileSystem.getHitCount());
+
+            //同一路径或上级目录的失效使加载作废。
+            for (String invalidated : new String[]{path, "caching/load"}) {
+                cachingFileSystem.invalidate(path);
+                block.set(true);
+
+                future = executor.submit(() -> cachingFileSystem.meta(path));
+                Assert.assertNotNull(loading.poll(5, TimeUnit.SECONDS));
+                cachingFileSystem.invalidate(invalidated);
+                release.add(true);
+                future.get(5, TimeUnit.SECONDS);
+
+                block.set(false);
+                long missCount = cachingFileSystem.getMissCount();
+                cachingFileSystem.meta(path);
+                Assert.assertEquals(missCount + 1, cachingFileSystem.getMissCount());
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void bounded() throws InvalidFileException {
+        CachingFileSystem cachingFileSystem = new CachingFileSystem(fileSystem, 2);
+
+        cachingFileSystem.put("caching/bounded/1.txt", "1");
+        cachingFileSystem.put("caching/bounded/2.txt", "2");
+        cachingFileSystem.put("caching/bounded/3.txt", "3");
+
+        cachingFileSystem.meta("caching/bounded/1.txt");
+        cachingFileSystem.meta("caching/bounded/2.txt");
+        cachingFileSystem.meta("caching/bounded/3.txt");
+        cachingFileSystem.meta("caching/bounded/1.txt");
+
+        Assert.assertEquals(0, cachingFileSystem.getHitCount());
+        Assert.assertEquals(4, cachingFileSystem.getMissCount());
+    }
+}
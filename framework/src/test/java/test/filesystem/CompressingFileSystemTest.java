@@ -0,0 +1,54 @@
+package test.filesystem;
+
+import me.insidezhou.southernquiet.FrameworkAutoConfiguration;
+import me.insidezhou.southernquiet.filesystem.CompressingFileSystem;
+import me.insidezhou.southernquiet.filesystem.FileSystem;
+import me.insidezhou.southernquiet.filesystem.PathMeta;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+@SpringBootTest(classes = FrameworkAutoConfiguration.class)
+@RunWith(SpringRunner.class)
+public class CompressingFileSystemTest {
+    @Autowired
+    private FileSystem fileSystem;
+
+    @Test
+    public void compress() throws Exception {
+        CompressingFileSystem compressingFileSystem = new CompressingFileSystem(fileSystem);
+        String text = String.join("", Collections.nCopies(1000, "{\"level\":\"INFO\"}\n"));
+
+        compressingFileSystem.put("compressing/log.json", text);
+        Assert.assertEquals(CompressingFileSystem.Codec.DEFLATE, compressingFileSystem.codec("compressing/log.json"));
+        Assert.assertEquals(text, compressingFileSystem.read("compressing/log.json"));
+
+        PathMeta meta = compressingFileSystem.meta("compressing/log.json");
+        Assert.assertEquals(text.length(), meta.getSize());
+        Assert.assertTrue(fileSystem.meta("compressing/log.json").getSize() < text.length() / 10);
+        Assert.assertEquals(text.length(), compressingFileSystem.files("compressing").findFirst().map(PathMeta::getSize).orElse(0L).longValue());
+
+        try (OutputStream outputStream = compressingFileSystem.openWriteStream("compressing/log.json")) {
+            outputStream.write("end".getBytes(StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals(text + "end", compressingFileSystem.read("compressing/log.json"));
+
+        //已经压缩过的内容
+        compressingFileSystem.put("compressing/image.png", text);
+        Assert.assertEquals(CompressingFileSystem.Codec.STORED, compressingFileSystem.codec("compressing/image.png"));
+        Assert.assertEquals(text.length(), compressingFileSystem.meta("compressing/image.png").getSize());
+
+        //没有头部的文件
+        fileSystem.put("compressing/plain.txt", "plain");
+        Assert.assertNull(compressingFileSystem.codec("compressing/plain.txt"));
+        Assert.assertEquals("plain", compressingFileSystem.read("compressing/plain.txt"));
+        Assert.assertEquals(5, compressingFileSystem.meta("compressing/plain.txt").getSize());
+    }
+}
@@ -0,0 +1,69 @@
+package test.filesystem;
+
+import me.insidezhou.southernquiet.FrameworkAutoConfiguration;
+import me.insidezhou.southernquiet.filesystem.*;
+import me.insidezhou.southernquiet.filesystem.driver.LocalFileSystem;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+@SpringBootTest(classes = FrameworkAutoConfiguration.class)
+@RunWith(SpringRunner.class)
+public class DedupFileSystemTest {
+    @Autowired
+    private FrameworkAutoConfiguration.LocalFileSystemProperties properties;
+
+    @Test
+    public void dedup() throws Exception {
+        DedupFileSystem fileSystem = newFileSystem();
+        String digest = ContentDigest.of("same".getBytes(StandardCharsets.UTF_8));
+
+        fileSystem.put("dedup/a.txt", "same");
+        fileSystem.put("dedup/b.txt", "same");
+        Assert.assertEquals(2, fileSystem.getReferenceCount(digest));
+
+        fileSystem.copy("dedup", "dedup_copy", false);
+        Assert.assertEquals(4, fileSystem.getReferenceCount(digest));
+        Assert.assertEquals("same", fileSystem.read("dedup_copy/a.txt"));
+
+        PathMeta meta = fileSystem.meta("dedup_copy/b.txt");
+        Assert.assertEquals(4, meta.getSize());
+        Assert.assertEquals(digest, meta.getDigest());
+        Assert.assertEquals("/dedup_copy/b.txt", meta.getPath());
+        Assert.assertEquals(2, fileSystem.files("dedup_copy").count());
+
+        fileSystem.move("dedup_copy/a.txt", "dedup/c.txt", false);
+        Assert.assertFalse(fileSystem.exists("dedup_copy/a.txt"));
+        Assert.assertEquals(4, fileSystem.getReferenceCount(digest));
+
+        fileSystem.put("dedup/a.txt", "changed");
+        Assert.assertEquals(3, fileSystem.getReferenceCount(digest));
+
+        try (OutputStream outputStream = fileSystem.openWriteStream("dedup/a.txt")) {
+            outputStream.write("!".getBytes(StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals("changed!", fileSystem.read("dedup/a.txt"));
+        Assert.assertEquals(0, fileSystem.getReferenceCount(ContentDigest.of("changed".getBytes(StandardCharsets.UTF_8))));
+
+        fileSystem.delete("dedup");
+        fileSystem.delete("dedup_copy");
+        Assert.assertEquals(0, fileSystem.getReferenceCount(digest));
+        Assert.assertFalse(fileSystem.getFileSystem().files("BLOBS", "", true).findAny().isPresent());
+    }
+
+    private DedupFileSystem newFileSystem() {
+        FrameworkAutoConfiguration.LocalFileSystemProperties dedupProperties = new FrameworkAutoConfiguration.LocalFileSystemProperties();
+        dedupProperties.setWorkingRoot(properties.getWorkingRoot() + "_dedup");
+
+        LocalFileSystem localFileSystem = new LocalFileSystem(dedupProperties);
+        localFileSystem.deleteAll(Arrays.asList("PATHS", "BLOBS", "REFS", "TMP"));
+        return new DedupFileSystem(localFileSystem);
+    }
+}
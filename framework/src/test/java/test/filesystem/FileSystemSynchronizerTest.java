@@ -0,0 +1,93 @@
+package test.filesystem;
+
+import me.insidezhou.southernquiet.FrameworkAutoConfiguration;
+import me.insidezhou.southernquiet.filesystem.FileSystemException;
+import me.insidezhou.southernquiet.filesystem.FileSystemSynchronizer;
+import me.insidezhou.southernquiet.filesystem.InvalidFileException;
+import me.insidezhou.southernquiet.filesystem.driver.LocalFileSystem;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.InputStream;
+
+@SpringBootTest(classes = FrameworkAutoConfiguration.class)
+@RunWith(SpringRunner.class)
+public class FileSystemSynchronizerTest {
+    @Autowired
+    private FrameworkAutoConfiguration.LocalFileSystemProperties properties;
+
+    @Test
+    public void sync() throws Exception {
+        LocalFileSystem source = newFileSystem("source");
+        LocalFileSystem target = newFileSystem("target");
+        source.delete("sync");
+        target.delete("sync");
+        target.delete("SYNC_CHECKPOINT");
+
+        for (int i = 0; i < 40; ++i) {
+            source.put(String.format("sync/%02d.txt", i), "file " + i);
+        }
+        source.put("sync/sub/a.txt", "a");
+        target.put("sync/extraneous/b.txt", "b");
+
+        //第一次同步在sync/30.txt上失败，之前完成的批次记录在检查点中。
+        LocalFileSystem failingSource = new LocalFileSystem(newProperties("source")) {
+            @Override
+            public InputStream openReadStream(String path) throws InvalidFileException {
+                if (path.endsWith("/30.txt")) throw new InvalidFileException(path);
+                return super.openReadStream(path);
+            }
+        };
+
+        FileSystemSynchronizer synchronizer = new FileSystemSynchronizer(failingSource, target, 1);
+        synchronizer.setDeleteExtraneous(true);
+        try {
+            synchronizer.sync("sync", "SYNC_CHECKPOINT/sync");
+            Assert.fail();
+        }
+        catch (FileSystemException e) {
+            Assert.assertTrue(target.exists("SYNC_CHECKPOINT/sync"));
+        }
+
+        synchronizer = new FileSystemSynchronizer(source, target, 4);
+        synchronizer.setDeleteExtraneous(true);
+        FileSystemSynchronizer.Result result = synchronizer.sync("sync", "SYNC_CHECKPOINT/sync");
+        Assert.assertEquals(10, result.getTransferred());
+        Assert.assertEquals(1, result.getDeleted());
+        Assert.assertFalse(target.exists("SYNC_CHECKPOINT/sync"));
+        Assert.assertFalse(target.exists("sync/extraneous"));
+        Assert.assertEquals("file 30", target.read("sync/30.txt"));
+        Assert.assertEquals("a", target.read("sync/sub/a.txt"));
+
+        source.put("sync/05.txt", "changed");
+        source.delete("sync/06.txt");
+        result = synchronizer.sync("sync");
+        Assert.assertEquals(1, result.getTransferred());
+        Assert.assertEquals(1, result.getDeleted());
+        Assert.assertEquals(39, result.getUnchanged());
+        Assert.assertEquals("changed", target.read("sync/05.txt"));
+
+        source.put("sync/07.txt", "file 8");
+        synchronizer.setCompareDigest(true);
+        result = synchronizer.sync("sync");
+        Assert.assertEquals(1, result.getTransferred());
+        Assert.assertEquals("file 8", target.read("sync/07.txt"));
+
+        source.delete("sync");
+        target.delete("sync");
+    }
+
+    private LocalFileSystem newFileSystem(String name) {
+        return new LocalFileSystem(newProperties(name));
+    }
+
+    private FrameworkAutoConfiguration.LocalFileSystemProperties newProperties(String name) {
+        FrameworkAutoConfiguration.LocalFileSystemProperties localProperties = new FrameworkAutoConfiguration.LocalFileSystemProperties();
+        localProperties.setWorkingRoot(properties.getWorkingRoot() + "_sync/" + name);
+        return localProperties;
+    }
+}
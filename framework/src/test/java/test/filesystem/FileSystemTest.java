@@ -11,12 +11,21 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.util.StreamUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 @SpringBootTest(classes = FrameworkAutoConfiguration.class)
@@ -128,6 +137,32 @@ public class FileSystemTest {
         Assert.assertEquals("你好，Spring Boot。", result);
     }
 
+    @Test
+    public void rangeRead() throws Exception {
+        String path = "range/hello/world.txt";
+
+        fileSystem.delete(path);
+        try (OutputStream outputStream = fileSystem.openWriteStream(path)) {
+            outputStream.write("你好，".getBytes(StandardCharsets.UTF_8));
+        }
+        try (OutputStream outputStream = fileSystem.openWriteStream(path)) {
+            outputStream.write("Spring Boot。".getBytes(StandardCharsets.UTF_8));
+        }
+
+        Assert.assertEquals("Spring", readRange(path, 9, 6));
+        Assert.assertEquals("，Spring", readRange(path, 6, 9));
+        Assert.assertEquals(" Boot。", readRange(path, 15, -1));
+        Assert.assertEquals("", readRange(path, 100, 5));
+
+        fileSystem.delete("range");
+    }
+
+    private String readRange(String path, long position, long length) throws Exception {
+        try (InputStream inputStream = fileSystem.openReadStream(path, position, length)) {
+            return StreamUtils.copyToString(inputStream, StandardCharsets.UTF_8);
+        }
+    }
+
     @Test
     public void writeAndFind() {
         String file = "exists.txt";
@@ -164,4 +199,176 @@ public class FileSystemTest {
             throw new RuntimeException(e);
         }
     }
+
+    @Test
+    public void sortedPage() {
+        try {
+            fileSystem.delete("paging");
+            for (int i = 0; i < 10; ++i) {
+                fileSystem.put("paging/" + i + ".txt", String.valueOf(i));
+            }
+
+            List<String> names = fileSystem.files("paging", "", false, 3, 4, PathMetaSort.NameDesc)
+                .map(PathMeta::getName)
+                .collect(Collectors.toList());
+
+            Assert.assertEquals(Arrays.asList("6.txt", "5.txt", "4.txt", "3.txt"), names);
+
+            //offset+limit溢出int时退回到整体排序。
+            Assert.assertEquals(7, fileSystem.files("paging", "", false, 3, Integer.MAX_VALUE, PathMetaSort.Name).count());
+        }
+        catch (InvalidFileException | PathNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void cursorPage() {
+        try {
+            fileSystem.delete("cursor");
+            for (int i = 0; i < 10; ++i) {
+                fileSystem.put("cursor/" + i + ".txt", String.valueOf(i));
+            }
+
+            for (PathMetaSort sort : new PathMetaSort[]{PathMetaSort.Name, PathMetaSort.NameDesc, PathMetaSort.Size}) {
+                List<String> expected = fileSystem.files("cursor", "", false, -1, -1, sort)
+                    .map(PathMeta::getName)
+                    .collect(Collectors.toList());
+
+                List<String> names = new ArrayList<>();
+                String cursor = null;
+                while (true) {
+                    List<? extends PathMeta> page = fileSystem.files("cursor", cursor, 3, sort).collect(Collectors.toList());
+                    if (page.isEmpty()) break;
+
+                    page.forEach(meta -> names.add(meta.getName()));
+                    cursor = PathMetaCursor.of(page.get(page.size() - 1), sort);
+                }
+
+                Assert.assertEquals(10, names.size());
+                Assert.assertEquals(expected, names);
+            }
+        }
+        catch (InvalidFileException | PathNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void batch() {
+        Map<String, InputStream> files = new HashMap<>();
+        for (int i = 0; i < 5; ++i) {
+            files.put("batch/" + i + ".txt", new ByteArrayInputStream(String.valueOf(i).getBytes(StandardCharsets.UTF_8)));
+        }
+
+        try {
+            fileSystem.putAll(files);
+            Assert.assertEquals("3", fileSystem.read("batch/3.txt"));
+        }
+        catch (InvalidFileException e) {
+            throw new RuntimeException(e);
+        }
+
+        List<String> paths = Arrays.asList("batch/0.txt", "batch/4.txt", "batch/missing.txt");
+        Map<String, PathMeta> metas = fileSystem.metaAll(paths);
+        Assert.assertEquals(2, metas.size());
+        Assert.assertEquals("/batch/4.txt", metas.get("batch/4.txt").getPath());
+
+        Map<String, Boolean> exists = fileSystem.existsAll(paths);
+        Assert.assertTrue(exists.get("batch/0.txt"));
+        Assert.assertFalse(exists.get("batch/missing.txt"));
+
+        fileSystem.deleteAll(paths);
+        Assert.assertFalse(fileSystem.exists("batch/0.txt"));
+        Assert.assertFalse(fileSystem.exists("batch/4.txt"));
+        Assert.assertTrue(fileSystem.exists("batch/1.txt"));
+    }
+
+    @Test
+    public void digest() throws Exception {
+        String path = "digest/hello.txt";
+        fileSystem.delete(path);
+
+        fileSystem.put(path, "hello");
+        String digest = ContentDigest.of("hello".getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals(digest, fileSystem.digest(path));
+
+        Assert.assertTrue(fileSystem.matches(path, ContentDigest.toETag(digest)));
+        Assert.assertNull(fileSystem.openReadStreamIfNoneMatch(path, digest));
+
+        try (OutputStream outputStream = fileSystem.openWriteStream(path)) {
+            outputStream.write(" world".getBytes(StandardCharsets.UTF_8));
+        }
+
+        Assert.assertFalse(fileSystem.matches(path, digest));
+        Assert.assertEquals(ContentDigest.of("hello world".getBytes(StandardCharsets.UTF_8)), fileSystem.digest(path));
+
+        try (InputStream inputStream = fileSystem.openReadStreamIfNoneMatch(path, digest)) {
+            Assert.assertEquals("hello world", StreamUtils.copyToString(inputStream, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void watch() throws Exception {
+        fileSystem.delete("watch");
+        fileSystem.delete("watch_out");
+        fileSystem.createDirectory("watch");
+
+        BlockingQueue<PathChange> changes = new LinkedBlockingQueue<>();
+        try (Closeable ignored = fileSystem.watch("watch", true, Duration.ofMillis(50), changes::addAll)) {
+            fileSystem.put("watch/sub/a.txt", "a");
+            Assert.assertTrue(awaitChange(changes, new PathChange(PathChange.Type.CREATED, "watch/sub/a.txt")));
+
+            fileSystem.delete("watch/sub/a.txt");
+            Assert.assertTrue(awaitChange(changes, new PathChange(PathChange.Type.DELETED, "watch/sub/a.txt")));
+
+            //移出监听范围
+            fileSystem.put("watch/c.txt", "c");
+            Assert.assertTrue(awaitChange(changes, new PathChange(PathChange.Type.CREATED, "watch/c.txt")));
+            fileSystem.move("watch/c.txt", "watch_out/c.txt", false);
+            Assert.assertTrue(awaitChange(changes, new PathChange(PathChange.Type.DELETED, "watch/c.txt")));
+        }
+
+        //绕过缓存的修改
+        CachingFileSystem cachingFileSystem = new CachingFileSystem(fileSystem, 100);
+        Assert.assertFalse(cachingFileSystem.exists("watch/b.txt"));
+        try (Closeable ignored = cachingFileSystem.invalidateOnChange()) {
+            fileSystem.put("watch/b.txt", "b");
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!cachingFileSystem.exists("watch/b.txt") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertTrue(cachingFileSystem.exists("watch/b.txt"));
+        }
+    }
+
+    @Test
+    public void pollingWatch() throws Exception {
+        fileSystem.delete("polling");
+        fileSystem.createDirectory("polling");
+
+        BlockingQueue<PathChange> changes = new LinkedBlockingQueue<>();
+        PathChangeBatcher batcher = new PathChangeBatcher(Duration.ofMillis(50), changes::addAll);
+        try (Closeable ignored = new PollingPathWatcher(fileSystem, "polling", true, Duration.ofMillis(50), batcher)) {
+            fileSystem.put("polling/sub/a.txt", "a");
+            Assert.assertTrue(awaitChange(changes, new PathChange(PathChange.Type.CREATED, "polling/sub/a.txt")));
+
+            fileSystem.put("polling/sub/a.txt", "changed");
+            Assert.assertTrue(awaitChange(changes, new PathChange(PathChange.Type.MODIFIED, "polling/sub/a.txt")));
+
+            fileSystem.delete("polling/sub");
+            Assert.assertTrue(awaitChange(changes, new PathChange(PathChange.Type.DELETED, "polling/sub/a.txt")));
+        }
+
+        fileSystem.delete("polling");
+    }
+
+    private boolean awaitChange(BlockingQueue<PathChange> changes, PathChange expected) throws InterruptedException {
+        PathChange change;
+        while (null != (change = changes.poll(5, TimeUnit.SECONDS))) {
+            if (expected.equals(change)) return true;
+        }
+        return false;
+    }
 }
@@ -0,0 +1,312 @@
+package test.filesystem;
+
+import me.insidezhou.southernquiet.FrameworkAutoConfiguration;
+import me.insidezhou.southernquiet.filesystem.FileSystemException;
+import me.insidezhou.southernquiet.filesystem.InvalidFileException;
+import me.insidezhou.southernquiet.filesystem.PathMeta;
+import me.insidezhou.southernquiet.filesystem.driver.LocalFileSystem;
+import me.insidezhou.southernquiet.logging.SouthernQuietLogger;
+import me.insidezhou.southernquiet.logging.SouthernQuietLoggerFactory;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+@SpringBootTest(classes = FrameworkAutoConfiguration.class)
+@RunWith(SpringRunner.class)
+public class LocalFileSystemTest {
+    private final static SouthernQuietLogger log = SouthernQuietLoggerFactory.getLogger(LocalFileSystemTest.class);
+
+    @Autowired
+    private FrameworkAutoConfiguration.LocalFileSystemProperties properties;
+
+    @Test
+    public void copyMoveDelete() throws Exception {
+        LocalFileSystem fileSystem = newFileSystem(4);
+        fileSystem.delete("tree");
+
+        createTree(fileSystem, "tree/src", 3, 10);
+
+        fileSystem.copy("tree/src", "tree/copy");
+        Assert.assertEquals(paths(fileSystem, "tree/src"), paths(fileSystem, "tree/copy"));
+
+        fileSystem.put("tree/copy/0/0.txt", "changed");
+        fileSystem.copy("tree/src", "tree/copy");
+        Assert.assertEquals("changed", fileSystem.read("tree/copy/0/0.txt"));
+        fileSystem.copy("tree/src", "tree/copy", true);
+        Assert.assertEquals("0/0", fileSystem.read("tree/copy/0/0.txt"));
+
+        Set<String> expected = paths(fileSystem, "tree/src");
+        fileSystem.move("tree/src", "tree/moved");
+        Assert.assertFalse(fileSystem.exists("tree/src"));
+        Assert.assertEquals(expected, paths(fileSystem, "tree/moved"));
+
+        fileSystem.put("tree/moved/0/0.txt", "merged");
+        fileSystem.move("tree/moved", "tree/copy", true);
+        Assert.assertFalse(fileSystem.exists("tree/moved"));
+        Assert.assertEquals("merged", fileSystem.read("tree/copy/0/0.txt"));
+
+        fileSystem.delete("tree");
+        Assert.assertFalse(fileSystem.exists("tree"));
+    }
+
+    @Test
+    public void parallelCopyDelete() throws Exception {
+        LocalFileSystem sequential = newFileSystem(1);
+        sequential.delete("parallel");
+        createTree(sequential, "parallel/src", 4, 300);
+
+        //超过一批的文件拆分为多个子任务，结果与顺序执行相同。
+        try (LocalFileSystem parallel = newFileSystem(4)) {
+            parallel.copy("parallel/src", "parallel/copy");
+            Assert.assertEquals(paths(sequential, "parallel/src"), paths(sequential, "parallel/copy"));
+
+            parallel.delete("parallel/copy");
+            Assert.assertFalse(sequential.exists("parallel/copy"));
+        }
+
+        sequential.delete("parallel");
+        sequential.close();
+    }
+
+    /**
+     * 大目录树上顺序与并行的复制、移动、删除耗时对比，默认跳过，以-Dsq.benchmark=true开启。
+     */
+    @Test
+    public void parallelBenchmark() throws Exception {
+        Assume.assumeTrue("未开启基准测试", Boolean.getBoolean("sq.benchmark"));
+
+        int directories = 40;
+        int filesPerDirectory = 500;
+        int files = directories * filesPerDirectory;
+
+        for (int parallelism : new int[]{1, Math.max(Runtime.getRuntime().availableProcessors(), 4)}) {
+            try (LocalFileSystem fileSystem = newFileSystem(parallelism)) {
+                fileSystem.delete("benchmark");
+                createTree(fileSystem, "benchmark/src", directories, filesPerDirectory);
+
+                long start = System.nanoTime();
+                fileSystem.copy("benchmark/src", "benchmark/copy");
+                long copy = System.nanoTime() - start;
+                Assert.assertEquals(files, fileSystem.files("benchmark/copy", true).count());
+
+                //目标目录已存在时逐个文件移动，不走整体重命名。
+                fileSystem.createDirectory("benchmark/moved");
+                start = System.nanoTime();
+                fileSystem.move("benchmark/copy", "benchmark/moved");
+                long move = System.nanoTime() - start;
+                Assert.assertEquals(files, fileSystem.files("benchmark/moved", true).count());
+
+                start = System.nanoTime();
+                fileSystem.delete("benchmark/moved");
+                long delete = System.nanoTime() - start;
+                Assert.assertFalse(fileSystem.exists("benchmark/moved"));
+
+                fileSystem.delete("benchmark");
+
+                log.message("并行目录树操作")
+                    .context("parallelism", parallelism)
+                    .context("files", files)
+                    .context("copy", TimeUnit.NANOSECONDS.toMillis(copy))
+                    .context("move", TimeUnit.NANOSECONDS.toMillis(move))
+                    .context("delete", TimeUnit.NANOSECONDS.toMillis(delete))
+                    .info();
+            }
+        }
+    }
+
+    @Test
+    public void groupCommit() throws Exception {
+        int writers = 16;
+        Set<Path> syncedFiles = ConcurrentHashMap.newKeySet();
+        List<Path> syncedDirectories = Collections.synchronizedList(new ArrayList<>());
+
+        FrameworkAutoConfiguration.LocalFileSystemProperties durableProperties = new FrameworkAutoConfiguration.LocalFileSystemProperties();
+        durableProperties.setWorkingRoot(properties.getWorkingRoot());
+        durableProperties.setDurable(true);
+        durableProperties.setGroupCommitInterval(Duration.ofMillis(20));
+
+        LocalFileSystem fileSystem = new LocalFileSystem(durableProperties) {
+            @Override
+            protected void force(Path workingPath) throws IOException {
+                if (workingPath.endsWith("fail.txt")) throw new IOException("fsync失败");
+
+                if (Files.isDirectory(workingPath)) {
+                    syncedDirectories.add(workingPath);
+                }
+                else {
+                    syncedFiles.add(workingPath);
+                }
+                super.force(workingPath);
+            }
+        };
+        fileSystem.delete("durable");
+
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < writers; ++w) {
+            int writer = w;
+            futures.add(executor.submit(() -> {
+                start.await();
+                fileSystem.put("durable/a/b/" + writer + ".txt", String.valueOf(writer));
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        //同一批的写入共用一次目录的fsync，新建的各级目录及其上级目录都刷过盘。
+        Assert.assertEquals(writers, syncedFiles.size());
+        Assert.assertTrue(syncedDirectories.toString(), syncedDirectories.size() < writers);
+        Path b = syncedFiles.iterator().next().getParent();
+        Assert.assertTrue(syncedDirectories.containsAll(Arrays.asList(b, b.getParent(), b.getParent().getParent(), b.getParent().getParent().getParent())));
+
+        try {
+            fileSystem.put("durable/fail.txt", "fail");
+            Assert.fail();
+        }
+        catch (InvalidFileException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+
+        fileSystem.delete("durable");
+        fileSystem.close();
+    }
+
+    @Test
+    public void usage() throws Exception {
+        LocalFileSystem fileSystem = newFileSystem(4);
+        fileSystem.delete("usage");
+
+        //其他测试在工作目录下嵌套了别的工作目录，绕过了这里的统计。
+        fileSystem.recomputeUsage("/");
+        PathMeta root = fileSystem.meta("/");
+        Assume.assumeTrue("文件系统不支持扩展属性", root.getFileCount() >= 0);
+
+        createTree(fileSystem, "usage/src", 2, 3);
+        assertUsage(fileSystem, "usage/src", 18, 6);
+        assertUsage(fileSystem, "usage/src/0", 9, 3);
+
+        fileSystem.put("usage/src/0/0.txt", "changed");
+        try (OutputStream outputStream = fileSystem.openWriteStream("usage/src/0/0.txt")) {
+            outputStream.write("!".getBytes(StandardCharsets.UTF_8));
+        }
+        assertUsage(fileSystem, "usage/src", 23, 6);
+
+        fileSystem.copy("usage/src", "usage/copy");
+        assertUsage(fileSystem, "usage/copy", 23, 6);
+        assertUsage(fileSystem, "usage", 46, 12);
+
+        fileSystem.move("usage/copy", "usage/moved");
+        assertUsage(fileSystem, "usage/moved", 23, 6);
+        assertUsage(fileSystem, "usage", 46, 12);
+
+        fileSystem.move("usage/moved/1/0.txt", "usage/src/1/0.txt", true);
+        assertUsage(fileSystem, "usage/moved", 20, 5);
+        assertUsage(fileSystem, "usage/src/1", 9, 3);
+
+        fileSystem.delete("usage/moved/1");
+        fileSystem.delete("usage/src/0/1.txt");
+        assertUsage(fileSystem, "usage", 34, 8);
+        assertUsage(fileSystem, "/", root.getTotalSize() + 34, root.getFileCount() + 8);
+
+        fileSystem.recomputeUsage("usage");
+        assertUsage(fileSystem, "usage", 34, 8);
+
+        //并发写入同一路径，用量按最终的大小计算。
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 500; ++i) {
+            String content = String.valueOf(i);
+            futures.add(executor.submit(() -> {
+                fileSystem.put("usage/concurrent.txt", content);
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertUsage(fileSystem, "usage", 34 + fileSystem.meta("usage/concurrent.txt").getSize(), 9);
+        fileSystem.delete("usage/concurrent.txt");
+
+        fileSystem.delete("usage");
+        assertUsage(fileSystem, "/", root.getTotalSize(), root.getFileCount());
+    }
+
+    @Test
+    public void nameIndex() throws Exception {
+        FrameworkAutoConfiguration.LocalFileSystemProperties localProperties = new FrameworkAutoConfiguration.LocalFileSystemProperties();
+        localProperties.setWorkingRoot(properties.getWorkingRoot() + "_name_index");
+        LocalFileSystem plain = new LocalFileSystem(localProperties);
+        plain.delete("names");
+        createTree(plain, "names/src", 3, 12);
+
+        //已有的文件在启动时建立索引，之后的变化增量维护。
+        localProperties.setNameIndex(true);
+        LocalFileSystem indexed = new LocalFileSystem(localProperties);
+        indexed.put("names/report-2020.txt", "a");
+        indexed.copy("names/src", "names/report-copy");
+        indexed.move("names/src/1", "names/src/report-1");
+        indexed.delete("names/src/0/11.txt");
+
+        for (String search : new String[]{"11.", ".txt", "report", "t-1"}) {
+            Assert.assertEquals(search, names(plain.files("names", search, true)), names(indexed.files("names", search, true)));
+            Assert.assertEquals(search, names(plain.directories("names", search, true)), names(indexed.directories("names", search, true)));
+            Assert.assertEquals(search, names(plain.files("names/src", search)), names(indexed.files("names/src", search)));
+        }
+        Assert.assertEquals(5, indexed.files("names", "11.", true).count());
+
+        indexed.delete("names");
+    }
+
+    private Set<String> names(Stream<? extends PathMeta> stream) {
+        return stream.map(PathMeta::getPath).collect(Collectors.toSet());
+    }
+
+    private void assertUsage(LocalFileSystem fileSystem, String path, long totalSize, long fileCount) {
+        PathMeta meta = fileSystem.meta(path);
+        Assert.assertEquals(totalSize, meta.getTotalSize());
+        Assert.assertEquals(fileCount, meta.getFileCount());
+    }
+
+    private LocalFileSystem newFileSystem(int parallelism) {
+        FrameworkAutoConfiguration.LocalFileSystemProperties localProperties = new FrameworkAutoConfiguration.LocalFileSystemProperties();
+        localProperties.setWorkingRoot(properties.getWorkingRoot());
+        localProperties.setParallelism(parallelism);
+        return new LocalFileSystem(localProperties);
+    }
+
+    private void createTree(LocalFileSystem fileSystem, String root, int directories, int filesPerDirectory) throws InvalidFileException {
+        for (int d = 0; d < directories; ++d) {
+            for (int f = 0; f < filesPerDirectory; ++f) {
+                fileSystem.put(root + "/" + d + "/" + f + ".txt", d + "/" + f);
+            }
+        }
+    }
+
+    private Set<String> paths(LocalFileSystem fileSystem, String root) throws FileSystemException {
+        return fileSystem.files(root, true)
+            .map(PathMeta::getPath)
+            .map(path -> path.substring(root.length() + 1))
+            .collect(Collectors.toSet());
+    }
+}
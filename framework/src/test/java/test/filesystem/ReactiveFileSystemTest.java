@@ -0,0 +1,142 @@
+package test.filesystem;
+
+import me.insidezhou.southernquiet.FrameworkAutoConfiguration;
+import me.insidezhou.southernquiet.filesystem.*;
+import me.insidezhou.southernquiet.filesystem.driver.LocalFileSystem;
+import me.insidezhou.southernquiet.filesystem.driver.ReactiveLocalFileSystem;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.test.context.junit4.SpringRunner;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+@SpringBootTest(classes = FrameworkAutoConfiguration.class)
+@RunWith(SpringRunner.class)
+public class ReactiveFileSystemTest {
+    @Autowired
+    private FileSystem fileSystem;
+
+    @Autowired
+    private ReactiveFileSystem reactiveFileSystem;
+
+    @Autowired
+    private FrameworkAutoConfiguration.LocalFileSystemProperties properties;
+
+    @Test
+    public void readAndWrite() {
+        readAndWrite(reactiveFileSystem);
+    }
+
+    @Test
+    public void adapterReadAndWrite() {
+        readAndWrite(new ReactiveFileSystemAdapter(fileSystem));
+    }
+
+    @Test
+    public void metaAndList() {
+        String path = "reactive/list/hello.txt";
+
+        reactiveFileSystem.write(path, content("你好，")).block();
+
+        PathMeta meta = reactiveFileSystem.meta(path).block();
+        Assert.assertNotNull(meta);
+        Assert.assertEquals("你好，".getBytes(StandardCharsets.UTF_8).length, meta.getSize());
+
+        List<String> files = reactiveFileSystem.list("reactive/list").map(PathMeta::getPath).collectList().block();
+        Assert.assertEquals(1, files.size());
+        Assert.assertEquals("/reactive/list/hello.txt", files.get(0));
+
+        reactiveFileSystem.delete(path).block();
+        Assert.assertFalse(reactiveFileSystem.exists(path).block());
+        Assert.assertNull(reactiveFileSystem.meta(path).block());
+    }
+
+    @Test
+    public void localBookkeeping() throws Exception {
+        FrameworkAutoConfiguration.LocalFileSystemProperties localProperties = new FrameworkAutoConfiguration.LocalFileSystemProperties();
+        localProperties.setWorkingRoot(properties.getWorkingRoot() + "_reactive");
+        localProperties.setNameIndex(true);
+        LocalFileSystem localFileSystem = new LocalFileSystem(localProperties);
+        localFileSystem.delete("upload");
+        localFileSystem.put("upload/existing.txt", "12345");
+
+        //异步写入与同步写入一样更新上级目录的用量及名称索引。
+        ReactiveLocalFileSystem reactiveLocalFileSystem = new ReactiveLocalFileSystem(localFileSystem);
+        reactiveLocalFileSystem.write("upload/a/report.txt", content("你好，", "WebFlux。")).block();
+        long size = "你好，WebFlux。".getBytes(StandardCharsets.UTF_8).length;
+        assertUsage(localFileSystem, "upload/a", size, 1);
+        assertUsage(localFileSystem, "upload", size + 5, 2);
+
+        reactiveLocalFileSystem.write("upload/a/report.txt", content("ab")).block();
+        assertUsage(localFileSystem, "upload/a", 2, 1);
+        assertUsage(localFileSystem, "upload", 7, 2);
+
+        Assert.assertEquals(Collections.singletonList("/upload/a/report.txt"), localFileSystem.files("upload", "report", true).map(PathMeta::getPath).collect(Collectors.toList()));
+
+        //重新订阅时摘要重新计算。
+        Mono<Void> write = reactiveLocalFileSystem.write("upload/b.txt", content("again"));
+        write.block();
+        write.block();
+        Assert.assertEquals(ContentDigest.of("again".getBytes(StandardCharsets.UTF_8)), localFileSystem.digest("upload/b.txt"));
+        assertUsage(localFileSystem, "upload", 12, 3);
+
+        localFileSystem.delete("upload");
+        localFileSystem.close();
+    }
+
+    @Test(expected = InvalidFileException.class)
+    public void readMissing() throws Throwable {
+        try {
+            reactiveFileSystem.read("reactive/missing.txt").blockLast();
+        }
+        catch (RuntimeException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void readAndWrite(ReactiveFileSystem reactiveFileSystem) {
+        String path = "reactive/hello/world.txt";
+
+        reactiveFileSystem.write(path, content("你好，", "Spring Boot。")).block();
+        reactiveFileSystem.write(path, content("你好，", "WebFlux。")).block();
+
+        String result = DataBufferUtils.join(reactiveFileSystem.read(path))
+            .map(buffer -> {
+                String txt = buffer.toString(StandardCharsets.UTF_8);
+                DataBufferUtils.release(buffer);
+                return txt;
+            })
+            .block();
+
+        Assert.assertEquals("你好，WebFlux。", result);
+        try {
+            Assert.assertEquals(result, fileSystem.read(path));
+        }
+        catch (InvalidFileException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void assertUsage(FileSystem fileSystem, String path, long totalSize, long fileCount) {
+        PathMeta meta = fileSystem.meta(path);
+        Assert.assertEquals(totalSize, meta.getTotalSize());
+        Assert.assertEquals(fileCount, meta.getFileCount());
+    }
+
+    private Flux<DataBuffer> content(String... parts) {
+        DataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+        return Flux.fromArray(parts).map(part -> bufferFactory.wrap(part.getBytes(StandardCharsets.UTF_8)));
+    }
+}
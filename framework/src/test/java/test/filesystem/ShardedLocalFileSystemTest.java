@@ -0,0 +1,108 @@
+package test.filesystem;
+
+import me.insidezhou.southernquiet.FrameworkAutoConfiguration;
+import me.insidezhou.southernquiet.filesystem.FileSystemException;
+import me.insidezhou.southernquiet.filesystem.InvalidFileException;
+import me.insidezhou.southernquiet.filesystem.PathMeta;
+import me.insidezhou.southernquiet.filesystem.driver.LocalFileSystem;
+import me.insidezhou.southernquiet.filesystem.driver.ShardedLocalFileSystem;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+@SpringBootTest(classes = FrameworkAutoConfiguration.class)
+@RunWith(SpringRunner.class)
+public class ShardedLocalFileSystemTest {
+    private final static int FILES = 100;
+
+    @Autowired
+    private FrameworkAutoConfiguration.LocalFileSystemProperties properties;
+
+    private LocalFileSystem root;
+
+    @Before
+    public void before() {
+        root = new LocalFileSystem(properties);
+        root.delete("sharded");
+    }
+
+    @Test
+    public void shardAndRebalance() throws FileSystemException {
+        ShardedLocalFileSystem fileSystem = newFileSystem(volume(0), volume(1), volume(2));
+
+        for (int i = 0; i < FILES; ++i) {
+            fileSystem.put("data/" + i + ".txt", String.valueOf(i));
+        }
+
+        Assert.assertEquals(FILES, fileSystem.files("data").count());
+        Assert.assertEquals(FILES, Arrays.stream(new int[]{0, 1, 2}).map(this::count).sum());
+        Assert.assertTrue(Arrays.stream(new int[]{0, 1, 2}).allMatch(v -> count(v) > 0));
+
+        List<String> page = fileSystem.files("data", "", false, 0, 10, null).map(PathMeta::getName).collect(Collectors.toList());
+        Assert.assertEquals(10, page.size());
+
+        fileSystem.addVolume(volume(3));
+        Assert.assertTrue(count(3) > 0);
+        Assert.assertEquals(FILES, Arrays.stream(new int[]{0, 1, 2, 3}).map(this::count).sum());
+
+        for (int i = 0; i < FILES; ++i) {
+            Assert.assertEquals(String.valueOf(i), fileSystem.read("data/" + i + ".txt"));
+        }
+
+        fileSystem.move("data", "moved");
+        Assert.assertFalse(fileSystem.exists("data/0.txt"));
+        Assert.assertEquals(FILES, fileSystem.files("moved").count());
+        Assert.assertEquals("1", fileSystem.read("moved/1.txt"));
+
+        fileSystem.delete("moved");
+        Assert.assertFalse(fileSystem.exists("moved"));
+    }
+
+    @Test
+    public void rebalanceOnStartup() throws InvalidFileException {
+        ShardedLocalFileSystem fileSystem = newFileSystem(volume(0));
+        for (int i = 0; i < FILES; ++i) {
+            fileSystem.put("data/" + i + ".txt", String.valueOf(i));
+        }
+
+        FrameworkAutoConfiguration.LocalFileSystemProperties shardedProperties = newProperties(volume(0), volume(1));
+        shardedProperties.setRebalanceOnStartup(true);
+        fileSystem = new ShardedLocalFileSystem(shardedProperties);
+
+        Assert.assertTrue(count(1) > 0);
+        Assert.assertEquals(FILES, count(0) + count(1));
+        Assert.assertEquals("42", fileSystem.read("data/42.txt"));
+    }
+
+    private ShardedLocalFileSystem newFileSystem(String... volumes) {
+        return new ShardedLocalFileSystem(newProperties(volumes));
+    }
+
+    private FrameworkAutoConfiguration.LocalFileSystemProperties newProperties(String... volumes) {
+        FrameworkAutoConfiguration.LocalFileSystemProperties shardedProperties = new FrameworkAutoConfiguration.LocalFileSystemProperties();
+        shardedProperties.setVolumes(volumes);
+        shardedProperties.setParallelism(2);
+        return shardedProperties;
+    }
+
+    private String volume(int index) {
+        return properties.getWorkingRoot() + "/sharded/" + index;
+    }
+
+    private int count(int volume) {
+        try {
+            return (int) root.files("sharded/" + volume + "/data").count();
+        }
+        catch (FileSystemException e) {
+            return 0;
+        }
+    }
+}
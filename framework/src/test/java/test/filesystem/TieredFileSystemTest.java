@@ -0,0 +1,188 @@
+package test.filesystem;
+
+import me.insidezhou.southernquiet.FrameworkAutoConfiguration;
+import me.insidezhou.southernquiet.filesystem.FileSystem;
+import me.insidezhou.southernquiet.filesystem.InvalidFileException;
+import me.insidezhou.southernquiet.filesystem.PathInvalidatedEvent;
+import me.insidezhou.southernquiet.filesystem.TieredFileSystem;
+import me.insidezhou.southernquiet.filesystem.driver.LocalFileSystem;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.StreamUtils;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@SpringBootTest(classes = FrameworkAutoConfiguration.class)
+@RunWith(SpringRunner.class)
+public class TieredFileSystemTest {
+    @Autowired
+    private FileSystem fileSystem;
+
+    @Autowired
+    private FrameworkAutoConfiguration.LocalFileSystemProperties properties;
+
+    @Test
+    public void readThrough() throws Exception {
+        fileSystem.put("tiered/hot.txt", "hot");
+
+        TieredFileSystem tieredFileSystem = newFileSystem(1024, TieredFileSystem.Eviction.LRU);
+        List<String> invalidated = new ArrayList<>();
+        tieredFileSystem.setInvalidationListener(invalidated::addAll);
+
+        Assert.assertEquals("hot", tieredFileSystem.read("tiered/hot.txt"));
+        Assert.assertEquals(0, tieredFileSystem.getHitCount());
+        Assert.assertEquals(3, tieredFileSystem.getSize());
+
+        Assert.assertEquals("hot", tieredFileSystem.read("tiered/hot.txt"));
+        Assert.assertEquals(1, tieredFileSystem.getHitCount());
+
+        //范围读取同样命中缓存
+        try (InputStream inputStream = tieredFileSystem.openReadStream("tiered/hot.txt", 1, 1)) {
+            Assert.assertEquals("o", StreamUtils.copyToString(inputStream, StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals(2, tieredFileSystem.getHitCount());
+
+        tieredFileSystem.put("tiered/hot.txt", "changed");
+        Assert.assertEquals(Collections.singletonList("/tiered/hot.txt"), invalidated);
+        Assert.assertEquals(0, tieredFileSystem.getSize());
+        Assert.assertEquals("changed", tieredFileSystem.read("tiered/hot.txt"));
+
+        //其他节点写入主文件系统后广播的失效事件
+        fileSystem.put("tiered/hot.txt", "remote");
+        Assert.assertEquals("changed", tieredFileSystem.read("tiered/hot.txt"));
+        tieredFileSystem.onPathInvalidated(new PathInvalidatedEvent(Collections.singletonList("tiered")));
+        Assert.assertEquals("remote", tieredFileSystem.read("tiered/hot.txt"));
+    }
+
+    @Test
+    public void bounded() throws InvalidFileException {
+        for (int i = 0; i < 4; ++i) {
+            fileSystem.put("tiered/bounded/" + i + ".txt", "0123456789");
+        }
+
+        TieredFileSystem tieredFileSystem = newFileSystem(30, TieredFileSystem.Eviction.LFU);
+
+        tieredFileSystem.read("tiered/bounded/0.txt");
+        tieredFileSystem.read("tiered/bounded/0.txt");
+        tieredFileSystem.read("tiered/bounded/1.txt");
+        tieredFileSystem.read("tiered/bounded/2.txt");
+        tieredFileSystem.read("tiered/bounded/3.txt");
+        Assert.assertEquals(30, tieredFileSystem.getSize());
+
+        //0被读取的次数最多，不会被淘汰。
+        long hitCount = tieredFileSystem.getHitCount();
+        tieredFileSystem.read("tiered/bounded/0.txt");
+        Assert.assertEquals(hitCount + 1, tieredFileSystem.getHitCount());
+
+        tieredFileSystem.read("tiered/bounded/1.txt");
+        Assert.assertEquals(hitCount + 1, tieredFileSystem.getHitCount());
+    }
+
+    @Test
+    public void evictionOutsideLock() throws Exception {
+        fileSystem.put("tiered/lock/a.txt", "a");
+        fileSystem.put("tiered/lock/b.txt", "b");
+
+        CountDownLatch deleting = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean blockDelete = new AtomicBoolean();
+
+        FrameworkAutoConfiguration.LocalFileSystemProperties cacheProperties = new FrameworkAutoConfiguration.LocalFileSystemProperties();
+        cacheProperties.setWorkingRoot(properties.getWorkingRoot() + "_cache");
+        LocalFileSystem cacheFileSystem = new LocalFileSystem(cacheProperties) {
+            @Override
+            public void delete(String path) {
+                if (blockDelete.get()) {
+                    deleting.countDown();
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.delete(path);
+            }
+        };
+
+        TieredFileSystem tieredFileSystem = new TieredFileSystem(fileSystem, cacheFileSystem, 1024, 1024, TieredFileSystem.Eviction.LRU);
+        tieredFileSystem.read("tiered/lock/a.txt");
+        tieredFileSystem.read("tiered/lock/b.txt");
+
+        //删除缓存文件时不持有锁，其他路径的读取不被阻塞。
+        blockDelete.set(true);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> invalidation = executor.submit(() -> tieredFileSystem.invalidate("tiered/lock/a.txt"));
+        Assert.assertTrue(deleting.await(5, TimeUnit.SECONDS));
+
+        try {
+            Assert.assertEquals("b", CompletableFuture.supplyAsync(() -> {
+                try {
+                    return tieredFileSystem.read("tiered/lock/b.txt");
+                }
+                catch (InvalidFileException e) {
+                    throw new RuntimeException(e);
+                }
+            }).get(5, TimeUnit.SECONDS));
+        }
+        finally {
+            release.countDown();
+        }
+
+        invalidation.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, tieredFileSystem.getSize());
+        executor.shutdown();
+    }
+
+    @Test
+    public void fillInvalidation() throws Exception {
+        fileSystem.put("tiered/fill/a.txt", "a");
+        fileSystem.put("tiered/fill/sub/b.txt", "b");
+
+        TieredFileSystem tieredFileSystem = newFileSystem(1024, TieredFileSystem.Eviction.LRU);
+
+        //填充期间其他路径的写入不影响这次填充。
+        try (InputStream inputStream = tieredFileSystem.openReadStream("tiered/fill/a.txt")) {
+            tieredFileSystem.put("tiered/other.txt", "other");
+            try (OutputStream outputStream = tieredFileSystem.openWriteStream("tiered/other.txt")) {
+                outputStream.write('!');
+            }
+            Assert.assertEquals("a", StreamUtils.copyToString(inputStream, StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals(1, tieredFileSystem.getSize());
+
+        //同一路径或上级目录的写入使填充作废。
+        try (InputStream inputStream = tieredFileSystem.openReadStream("tiered/fill/sub/b.txt")) {
+            tieredFileSystem.put("tiered/fill/sub/b.txt", "b");
+            Assert.assertEquals("b", StreamUtils.copyToString(inputStream, StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals(1, tieredFileSystem.getSize());
+
+        try (InputStream inputStream = tieredFileSystem.openReadStream("tiered/fill/sub/b.txt")) {
+            tieredFileSystem.invalidate("tiered/fill/sub");
+            Assert.assertEquals("b", StreamUtils.copyToString(inputStream, StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals(1, tieredFileSystem.getSize());
+
+        //关闭时一起关闭缓存文件系统。
+        tieredFileSystem.close();
+    }
+
+    private TieredFileSystem newFileSystem(long maxSize, TieredFileSystem.Eviction eviction) {
+        FrameworkAutoConfiguration.LocalFileSystemProperties cacheProperties = new FrameworkAutoConfiguration.LocalFileSystemProperties();
+        cacheProperties.setWorkingRoot(properties.getWorkingRoot() + "_cache");
+
+        return new TieredFileSystem(fileSystem, new LocalFileSystem(cacheProperties), maxSize, maxSize, eviction);
+    }
+}
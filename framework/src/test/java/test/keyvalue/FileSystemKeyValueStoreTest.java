@@ -0,0 +1,67 @@
+package test.keyvalue;
+
+import me.insidezhou.southernquiet.FrameworkAutoConfiguration;
+import me.insidezhou.southernquiet.filesystem.FileSystem;
+import me.insidezhou.southernquiet.keyvalue.driver.FileSystemKeyValueStore;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.SerializationUtils;
+
+import java.io.ByteArrayInputStream;
+
+@SpringBootTest(classes = FrameworkAutoConfiguration.class)
+@RunWith(SpringRunner.class)
+public class FileSystemKeyValueStoreTest {
+    @Autowired
+    private FileSystem fileSystem;
+
+    @Autowired
+    private FrameworkAutoConfiguration.KeyValueStoreProperties properties;
+
+    @Test
+    public void keyValue() throws Exception {
+        FrameworkAutoConfiguration.KeyValueStoreProperties.FileSystem storeProperties = properties.getFileSystem();
+        String workingRoot = storeProperties.getWorkingRoot();
+        fileSystem.delete(workingRoot);
+
+        //旧版本的文件在启动时迁移，ttl为0的文件在旧版本中总是过期，直接删除。
+        String legacyPath = workingRoot + "/legacy" + storeProperties.getNameSeparator() + "100000";
+        String expiredPath = workingRoot + "/expired" + storeProperties.getNameSeparator() + "0";
+        fileSystem.put(legacyPath, new ByteArrayInputStream(SerializationUtils.serialize("legacy value")));
+        fileSystem.put(expiredPath, new ByteArrayInputStream(SerializationUtils.serialize("expired value")));
+
+        FileSystemKeyValueStore store = new FileSystemKeyValueStore(storeProperties, fileSystem);
+        Assert.assertEquals("legacy value", store.get("legacy"));
+        Assert.assertNull(store.get("expired"));
+        Assert.assertFalse(fileSystem.exists(legacyPath));
+        Assert.assertFalse(fileSystem.exists(expiredPath));
+
+        //新格式的key带有分隔符时不会被当作旧版本的文件。
+        store.put("new" + storeProperties.getNameSeparator() + "0", "new value");
+        Assert.assertEquals("new value", new FileSystemKeyValueStore(storeProperties, fileSystem).get("new" + storeProperties.getNameSeparator() + "0"));
+
+        store.put("permanent", 1);
+        store.put("expiring", "value", 100);
+        Assert.assertEquals(Integer.valueOf(1), store.get("permanent"));
+        Assert.assertEquals("value", store.get("expiring"));
+
+        store.set("expiring", "changed");
+        Assert.assertEquals("changed", store.get("expiring"));
+
+        Thread.sleep(200);
+        Assert.assertNull(store.get("expiring"));
+        Assert.assertEquals(Integer.valueOf(1), store.get("permanent"));
+
+        store.touch("permanent", 100);
+        Assert.assertEquals(Integer.valueOf(1), store.get("permanent"));
+
+        store.remove("permanent", "missing");
+        Assert.assertNull(store.get("permanent"));
+
+        fileSystem.delete(workingRoot);
+    }
+}
@@ -0,0 +1,257 @@
+package test.keyvalue;
+
+import me.insidezhou.southernquiet.FrameworkAutoConfiguration;
+import me.insidezhou.southernquiet.keyvalue.driver.LogStructuredKeyValueStore;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.SerializationUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+public class LogStructuredKeyValueStoreTest {
+    @Test
+    public void keyValue() throws Exception {
+        Path workingRoot = Files.createTempDirectory("sq-key-value");
+
+        FrameworkAutoConfiguration.KeyValueStoreProperties.Log properties = new FrameworkAutoConfiguration.KeyValueStoreProperties.Log();
+        properties.setWorkingRoot(workingRoot.toString());
+        properties.setSegmentSize(DataSize.ofKilobytes(4));
+        properties.setDurable(true);
+
+        try {
+            LogStructuredKeyValueStore store = new LogStructuredKeyValueStore(properties);
+            store.put("permanent", 1);
+            store.put("expiring", "value", 100);
+            Assert.assertEquals(Integer.valueOf(1), store.get("permanent"));
+            Assert.assertEquals("value", store.get("expiring"));
+
+            store.set("expiring", "changed");
+            Assert.assertEquals("changed", store.get("expiring"));
+
+            Thread.sleep(200);
+            Assert.assertNull(store.get("expiring"));
+
+            store.put("removed", "value");
+            store.remove("removed", "missing");
+            Assert.assertNull(store.get("removed"));
+
+            //反复覆盖写满若干个段，压缩后只剩下最新的记录。
+            for (int i = 0; i < 200; ++i) {
+                store.put("overwritten", i);
+            }
+            long segments = countSegments(workingRoot);
+            Assert.assertTrue(segments > 1);
+
+            store.compact();
+            Assert.assertTrue(countSegments(workingRoot) < segments);
+            Assert.assertEquals(Integer.valueOf(199), store.get("overwritten"));
+            Assert.assertEquals(Integer.valueOf(1), store.get("permanent"));
+            store.close();
+
+            //重新打开时从段文件重建索引。
+            store = new LogStructuredKeyValueStore(properties);
+            Assert.assertEquals(2, store.size());
+            Assert.assertEquals(Integer.valueOf(199), store.get("overwritten"));
+            Assert.assertEquals(Integer.valueOf(1), store.get("permanent"));
+            Assert.assertNull(store.get("removed"));
+            store.close();
+        }
+        finally {
+            FileSystemUtils.deleteRecursively(workingRoot);
+        }
+    }
+
+    @Test
+    public void tornRecord() throws Exception {
+        Path workingRoot = Files.createTempDirectory("sq-key-value");
+
+        try {
+            LogStructuredKeyValueStore store = new LogStructuredKeyValueStore(newProperties(workingRoot));
+            store.put("", "empty key");
+            store.put("a", 1);
+            store.put("b", 2);
+            store.put("c", 3);
+            store.close();
+
+            //破坏b的key，b及之后的记录都不再重放。
+            Path segment = workingRoot.resolve("0000000000.log");
+            int offset = recordSize("", "empty key") + recordSize("a", 1);
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap("x".getBytes(StandardCharsets.UTF_8)), offset + 24);
+            }
+
+            store = new LogStructuredKeyValueStore(newProperties(workingRoot));
+            Assert.assertEquals("empty key", store.get(""));
+            Assert.assertEquals(Integer.valueOf(1), store.get("a"));
+            Assert.assertNull(store.get("b"));
+            Assert.assertNull(store.get("c"));
+
+            //大小相同的新记录正好与c对齐，c已被清零，不会被当作新写入的重放。
+            store.put("b", 4);
+            store.close();
+
+            store = new LogStructuredKeyValueStore(newProperties(workingRoot));
+            Assert.assertEquals(Integer.valueOf(4), store.get("b"));
+            Assert.assertNull(store.get("c"));
+            Assert.assertEquals(3, store.size());
+            store.close();
+        }
+        finally {
+            FileSystemUtils.deleteRecursively(workingRoot);
+        }
+    }
+
+    @Test
+    public void compactionKeepsTombstones() throws Exception {
+        Path workingRoot = Files.createTempDirectory("sq-key-value");
+
+        try {
+            LogStructuredKeyValueStore store = new LogStructuredKeyValueStore(newProperties(workingRoot));
+            store.put("removed", "value");
+            for (int i = 0; i < 30; ++i) {
+                store.put("live" + i, i);
+            }
+
+            //第一个段大部分仍然有效，不会被压缩；墓碑所在的段大部分是被覆盖的记录，会被压缩。
+            for (int i = 0; i < 100; ++i) {
+                store.put("overwritten", i);
+                if (50 == i) {
+                    store.remove("removed");
+                }
+            }
+            store.compact();
+            Assert.assertTrue(Files.exists(workingRoot.resolve("0000000000.log")));
+            store.close();
+
+            store = new LogStructuredKeyValueStore(newProperties(workingRoot));
+            Assert.assertNull(store.get("removed"));
+            Assert.assertEquals(Integer.valueOf(99), store.get("overwritten"));
+            Assert.assertEquals(Integer.valueOf(29), store.get("live29"));
+            store.close();
+        }
+        finally {
+            FileSystemUtils.deleteRecursively(workingRoot);
+        }
+    }
+
+    @Test
+    public void concurrentWriters() throws Exception {
+        Path workingRoot = Files.createTempDirectory("sq-key-value");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            LogStructuredKeyValueStore store = new LogStructuredKeyValueStore(newProperties(workingRoot));
+
+            AtomicBoolean writing = new AtomicBoolean(true);
+            Future<?> compaction = executor.submit(() -> {
+                while (writing.get()) {
+                    store.compact();
+                }
+            });
+
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < 4; ++t) {
+                String key = "writer" + t;
+                writers.add(executor.submit(() -> {
+                    for (int i = 0; i < 200; ++i) {
+                        store.put(key, i);
+                        store.put(key + "-" + i, i);
+                        Assert.assertEquals(Integer.valueOf(i), store.get(key));
+                    }
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get(30, TimeUnit.SECONDS);
+            }
+            writing.set(false);
+            compaction.get(30, TimeUnit.SECONDS);
+            store.close();
+
+            LogStructuredKeyValueStore reopened = new LogStructuredKeyValueStore(newProperties(workingRoot));
+            Assert.assertEquals(4 * 201, reopened.size());
+            for (int t = 0; t < 4; ++t) {
+                Assert.assertEquals(Integer.valueOf(199), reopened.get("writer" + t));
+                Assert.assertEquals(Integer.valueOf(7), reopened.get("writer" + t + "-7"));
+            }
+            reopened.close();
+        }
+        finally {
+            executor.shutdownNow();
+            FileSystemUtils.deleteRecursively(workingRoot);
+        }
+    }
+
+    @Test
+    public void closeWhileWriting() throws Exception {
+        Path workingRoot = Files.createTempDirectory("sq-key-value");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            LogStructuredKeyValueStore store = new LogStructuredKeyValueStore(newProperties(workingRoot));
+
+            //每个写入方记录最后一次成功返回的值，关闭后不能有写入方一直等待刷盘。
+            Map<String, Integer> written = new ConcurrentHashMap<>();
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < 8; ++t) {
+                String key = "writer" + t;
+                writers.add(executor.submit(() -> {
+                    try {
+                        for (int i = 0; ; ++i) {
+                            store.put(key, i);
+                            written.put(key, i);
+                        }
+                    }
+                    catch (IllegalStateException e) {
+                        //已关闭
+                    }
+                }));
+            }
+
+            Thread.sleep(100);
+            store.close();
+            for (Future<?> writer : writers) {
+                writer.get(10, TimeUnit.SECONDS);
+            }
+
+            LogStructuredKeyValueStore reopened = new LogStructuredKeyValueStore(newProperties(workingRoot));
+            written.forEach((key, value) -> Assert.assertTrue(reopened.<Integer>get(key) >= value));
+            reopened.close();
+        }
+        finally {
+            executor.shutdownNow();
+            FileSystemUtils.deleteRecursively(workingRoot);
+        }
+    }
+
+    private FrameworkAutoConfiguration.KeyValueStoreProperties.Log newProperties(Path workingRoot) {
+        FrameworkAutoConfiguration.KeyValueStoreProperties.Log properties = new FrameworkAutoConfiguration.KeyValueStoreProperties.Log();
+        properties.setWorkingRoot(workingRoot.toString());
+        properties.setSegmentSize(DataSize.ofKilobytes(4));
+        properties.setDurable(true);
+        return properties;
+    }
+
+    private int recordSize(String key, Serializable value) {
+        return 24 + key.getBytes(StandardCharsets.UTF_8).length + SerializationUtils.serialize(value).length;
+    }
+
+    private long countSegments(Path workingRoot) throws Exception {
+        try (Stream<Path> stream = Files.list(workingRoot)) {
+            return stream.count();
+        }
+    }
+}